@@ -0,0 +1,86 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures how fast a {@link Server} takes on a storm of connections: how many
+ * storms of {@link #STORM} raw sockets per second are connected and seen by
+ * {@link ServerListener#onConnect(Connection)}, with one or several acceptors
+ * sharing a listening socket or each bound to its own with SO_REUSEPORT<br>
+ * The sockets are reset rather than closed afterwards so no TIME_WAIT is left
+ * to run out of ports.
+ */
+final class AcceptBenchmark {
+
+	private static final int PORT = 45513;
+	private static final int STORM = 200;
+	private static final int ACCEPTORS = 4;
+
+	private AcceptBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		for (int eventLoops : new int[] { 0, Runtime.getRuntime().availableProcessors() }) {
+			run(harness, eventLoops, 1, false);
+			run(harness, eventLoops, ACCEPTORS, false);
+			run(harness, eventLoops, ACCEPTORS, true);
+		}
+	}
+
+	private static void run(Harness harness, int eventLoops, int acceptors, boolean reusePort) throws Exception {
+		LongAdder connected = new LongAdder();
+		Server server = new Server(PORT);
+		server.setEventLoops(eventLoops);
+		server.setAcceptors(acceptors);
+		server.setReusePort(reusePort);
+		server.setBacklog(STORM);
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+				connected.increment();
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		String params = "eventLoops=" + eventLoops + ";acceptors=" + acceptors + ";reusePort=" + reusePort;
+		harness.throughput("accept_storm", params, () -> storm(connected));
+
+		server.stop();
+		accept.join(1000);
+	}
+
+	// connect a storm of sockets, wait until the server has seen every one and
+	// reset them
+	private static long storm(LongAdder connected) throws IOException {
+		long target = connected.sum() + STORM;
+		Socket[] sockets = new Socket[STORM];
+		for (int i = 0; i < STORM; i++) {
+			sockets[i] = new Socket();
+			sockets[i].connect(new InetSocketAddress("localhost", PORT));
+		}
+		while (connected.sum() < target) {
+			Thread.yield();
+		}
+		for (Socket socket : sockets) {
+			socket.setSoLinger(true, 0);
+			socket.close();
+		}
+		return STORM;
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks of the library and prints their results as CSV<br>
+ * Arguments: the groups to run, any of serialization, roundtrip, throughput,
+ * security, stream, pubsub, delta, pool, accept and ratelimit (default all of them), and quick for fewer and shorter iterations. The output
+ * starts with comment lines describing the machine, redirect it to a file and
+ * compare two of them with {@link CompareResults}. The throughput group opens
+ * up to 1024 connections and the pubsub group 1000, each taking two file
+ * descriptors in this process.
+ */
+public class BenchmarkSuite {
+
+	private static final int[] CONNECTIONS = { 1, 64, 1024 };
+
+	public static void main(String[] args) throws Exception {
+		List<String> groups = new ArrayList<String>(Arrays.asList(args));
+		boolean quick = groups.remove("quick");
+		if (groups.isEmpty()) {
+			groups.addAll(Arrays.asList("serialization", "roundtrip", "throughput", "security", "stream", "pubsub",
+					"delta", "pool", "accept", "ratelimit"));
+		}
+		Harness harness = quick ? new Harness(2, 3, 300) : new Harness(5, 5, 1000);
+
+		System.out.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.name")
+				+ " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors()
+				+ " processors");
+		System.out.println(Harness.HEADER);
+		for (String group : groups) {
+			switch (group) {
+			case "serialization":
+				SerializationBenchmark.run(harness, Payloads.SHAPES);
+				break;
+			case "roundtrip":
+				RoundTripBenchmark.run(harness, new String[] { "small", "nested", "text" },
+						new String[] { "xml", "binary" });
+				break;
+			case "throughput":
+				ThroughputBenchmark.run(harness, CONNECTIONS, new String[] { "xml", "binary" });
+				break;
+			case "security":
+				SecurityBenchmark.run(harness);
+				break;
+			case "stream":
+				StreamBenchmark.run(harness);
+				break;
+			case "pubsub":
+				PubSubBenchmark.run(harness);
+				break;
+			case "delta":
+				DeltaBenchmark.run(harness, new String[] { "xml", "binary" });
+				break;
+			case "pool":
+				PoolBenchmark.run(harness);
+				break;
+			case "accept":
+				AcceptBenchmark.run(harness);
+				break;
+			case "ratelimit":
+				RateLimitBenchmark.run(harness);
+				break;
+			default:
+				System.out.println("# unknown group " + group + " skipped");
+			}
+		}
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Serializer;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.XMLSerializer;
+
+/**
+ * Measures fan-out latency: the time from handing one Object to the Server
+ * until every connected peer has received it<br>
+ * Compares {@link Server#broadcast(Object)} with calling
+ * {@link Connection#send(Object)} on every Connection. The peers are
+ * {@link RawPeers} so the measurement is not skewed by a thread per peer.<br>
+ * Arguments: connection counts (default 1000,10000), iterations (default 200),
+ * serializer xml or binary (default xml). Every peer takes two file
+ * descriptors in this process, raise the open file limit for 10k peers.
+ */
+public class BroadcastBenchmark {
+
+	private static final int PORT = 45501;
+
+	public static void main(String[] args) throws Exception {
+		String counts = args.length > 0 ? args[0] : "1000,10000";
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		boolean binary = args.length > 2 && args[2].equals("binary");
+
+		System.out.println("mode,connections,serializer,p50_us,p99_us,max_us");
+		for (String count : counts.split(",")) {
+			int n = Integer.parseInt(count.trim());
+			Serializer serializer = binary ? new BinarySerializer() : new XMLSerializer();
+			run(n, iterations, serializer, binary ? "binary" : "xml");
+		}
+		System.exit(0);
+	}
+
+	private static void run(int n, int iterations, Serializer serializer, String name) throws Exception {
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(serializer);
+		Thread accept = new Thread(() -> {
+			try {
+				server.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "Accept");
+		accept.start();
+		Thread.sleep(200);
+
+		RawPeers peers = new RawPeers("localhost", PORT, n);
+		while (server.getConnectionCount() < n) {
+			Thread.sleep(10);
+		}
+
+		Payload payload = new Payload();
+		int warmup = Math.max(10, iterations / 10);
+
+		long[] broadcast = measure(peers, warmup, iterations, () -> server.broadcast(payload));
+		print("broadcast", n, name, broadcast);
+
+		long[] loop = measure(peers, warmup, iterations, () -> {
+			for (Connection conn : server.getConnections()) {
+				conn.send(payload);
+			}
+		});
+		print("send_loop", n, name, loop);
+
+		peers.close();
+		server.stop();
+		accept.join(1000);
+	}
+
+	private static long[] measure(RawPeers peers, int warmup, int iterations, Runnable fanOut) throws Exception {
+		long[] times = new long[iterations];
+		for (int i = -warmup; i < iterations; i++) {
+			peers.expectNext();
+			long start = System.nanoTime();
+			fanOut.run();
+			peers.await();
+			if (i >= 0) {
+				times[i] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(times);
+		return times;
+	}
+
+	private static void print(String mode, int n, String serializer, long[] sorted) {
+		System.out.println(mode + "," + n + "," + serializer + "," + sorted[sorted.length / 2] / 1000 + ","
+				+ sorted[(int) (sorted.length * 0.99)] / 1000 + "," + sorted[sorted.length - 1] / 1000);
+	}
+
+	/**
+	 * A typical small event
+	 */
+	public static class Payload {
+		public long id = 42;
+		public String symbol = "ACME";
+		public double price = 101.25;
+		public int quantity = 300;
+	}
+
+}
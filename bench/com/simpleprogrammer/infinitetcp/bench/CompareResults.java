@@ -0,0 +1,67 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two results files printed by {@link BenchmarkSuite}<br>
+ * Arguments: the baseline file, the new file and optionally the change in
+ * percent counted as a regression (default 10). Prints the change of every
+ * score and exits with 1 if any got worse by more than that, higher is better
+ * for throughput and lower for latency.
+ */
+public class CompareResults {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CompareResults <baseline.csv> <new.csv> [threshold percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		Map<String, String[]> baseline = read(args[0]);
+		Map<String, String[]> current = read(args[1]);
+
+		boolean regressed = false;
+		System.out.println("benchmark,params,mode,baseline,new,change_percent,verdict");
+		for (Map.Entry<String, String[]> entry : current.entrySet()) {
+			String[] now = entry.getValue();
+			String[] before = baseline.get(entry.getKey());
+			if (before == null) {
+				continue;
+			}
+			double old = Double.parseDouble(before[4]);
+			double score = Double.parseDouble(now[4]);
+			double change = old == 0 ? 0 : (score - old) / old * 100;
+			// a positive worse means the score got worse
+			double worse = now[2].equals("thrpt") ? -change : change;
+			// changes within the error of both runs are noise
+			double noise = Double.parseDouble(before[5]) + Double.parseDouble(now[5]);
+			String verdict = "same";
+			if (Math.abs(score - old) > noise) {
+				verdict = worse > threshold ? "worse" : worse < -threshold ? "better" : "same";
+			}
+			regressed |= verdict.equals("worse");
+			System.out.println(now[0] + "," + now[1] + "," + now[2] + "," + before[4] + "," + now[4] + ","
+					+ String.format(Locale.ROOT, "%.1f", change) + "," + verdict);
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	// the results by benchmark and params
+	private static Map<String, String[]> read(String file) throws IOException {
+		LinkedHashMap<String, String[]> results = new LinkedHashMap<String, String[]>();
+		for (String line : Files.readAllLines(Paths.get(file))) {
+			if (line.isEmpty() || line.startsWith("#") || line.equals(Harness.HEADER)) {
+				continue;
+			}
+			String[] fields = line.split(",", -1);
+			results.put(fields[0] + "," + fields[1], fields);
+		}
+		return results;
+	}
+
+}
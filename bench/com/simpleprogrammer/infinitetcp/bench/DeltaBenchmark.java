@@ -0,0 +1,126 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.simpleprogrammer.infinitetcp.Backpressure;
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.MetricsSnapshot;
+import com.simpleprogrammer.infinitetcp.Serializer;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+import com.simpleprogrammer.infinitetcp.XMLSerializer;
+
+/**
+ * Measures delta encoding: how many {@link Quote}s per second a {@link Client}
+ * sends to a {@link Server} on loopback, two of their ten fields changing from
+ * one to the next, with and without
+ * {@link Server#setDeltaEncoding(boolean)}<br>
+ * After each measurement a comment line gives the bytes the server received
+ * per message.
+ */
+final class DeltaBenchmark {
+
+	private static final int PORT = 45510;
+
+	private DeltaBenchmark() {
+	}
+
+	static void run(Harness harness, String[] serializers) throws Exception {
+		for (String serializer : serializers) {
+			for (boolean delta : new boolean[] { false, true }) {
+				run(harness, serializer, delta);
+			}
+		}
+	}
+
+	private static void run(Harness harness, String serializer, boolean delta) throws Exception {
+		LongAdder received = new LongAdder();
+		Server server = new Server(PORT);
+		server.setSerializer(serializer(serializer));
+		server.setDeltaEncoding(delta);
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+				received.increment();
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		Client client = new Client("localhost", PORT);
+		client.setSerializer(serializer(serializer));
+		client.setDeltaEncoding(delta);
+		client.setBackpressure(Backpressure.BLOCK);
+		client.addListener(new Listener() {
+			@Override
+			public void onReceive(Object obj) {
+			}
+
+			@Override
+			public void onDisconnect() {
+			}
+		});
+		client.start();
+		while (server.getConnectionCount() < 1) {
+			Thread.sleep(10);
+		}
+		Thread writer = new Thread(() -> write(client), "Write");
+		writer.start();
+
+		String params = "serializer=" + serializer + ";delta=" + delta;
+		harness.rate("delta_messages", params, received::sum);
+		MetricsSnapshot metrics = server.getMetrics();
+		System.out.println("# delta_messages " + params + ": "
+				+ metrics.getBytesReceived() / Math.max(1, metrics.getMessagesReceived()) + " bytes per message");
+
+		client.stop();
+		writer.join(1000);
+		server.stop();
+		accept.join(1000);
+	}
+
+	private static Serializer serializer(String name) {
+		return name.equals("xml") ? new XMLSerializer() : new BinarySerializer();
+	}
+
+	// send changing quotes until the client stops
+	private static void write(Client client) {
+		Quote quote = new Quote();
+		try {
+			for (long i = 0;; i++) {
+				quote.bid += 0.01;
+				quote.sequence = i;
+				client.send(quote);
+			}
+		} catch (IllegalStateException e) {
+			// the client has been stopped
+		}
+	}
+
+	/**
+	 * A price update of which only the bid and the sequence change
+	 */
+	public static class Quote {
+		public String symbol = "ACME";
+		public String exchange = "NYSE";
+		public String currency = "USD";
+		public double bid = 101.25;
+		public double ask = 101.30;
+		public int bidSize = 500;
+		public int askSize = 300;
+		public long sequence;
+		public long timestamp = 1700000000000L;
+		public boolean open = true;
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the measurements of the {@link BenchmarkSuite} and prints their results<br>
+ * Every benchmark is warmed up first so the JIT has compiled it, then measured
+ * in several iterations. The score is the mean of the iterations and the error
+ * the half width of its 99.9% confidence interval. Results are printed as CSV
+ * lines so runs of different versions can be compared with
+ * {@link CompareResults}.
+ */
+final class Harness {
+
+	/**
+	 * The header of the CSV lines printed for every result
+	 */
+	static final String HEADER = "benchmark,params,mode,unit,score,error,p50,p90,p99,p999,max";
+
+	// z value of a 99.9% confidence interval
+	private static final double Z = 3.29;
+
+	// results are added to it so the JIT can not drop the work measured
+	static volatile long sink;
+
+	// warmup and measured iterations and the length of one in milliseconds
+	private final int warmups;
+	private final int iterations;
+	private final long iterationMillis;
+
+	Harness(int warmups, int iterations, long iterationMillis) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+	}
+
+	/**
+	 * One operation of a benchmark
+	 */
+	interface Operation {
+
+		/**
+		 * @return a value depending on the work done, kept from the JIT
+		 */
+		long run() throws Exception;
+
+	}
+
+	/**
+	 * A source of operations which are counted rather than run by the harness,
+	 * such as messages received on other threads
+	 */
+	interface Counter {
+
+		/**
+		 * @return the number of operations completed so far
+		 */
+		long count();
+
+	}
+
+	/**
+	 * Measures how many times per second the operation runs
+	 */
+	void throughput(String benchmark, String params, Operation op) throws Exception {
+		double[] scores = new double[iterations];
+		for (int i = -warmups; i < iterations; i++) {
+			long ops = 0;
+			long value = 0;
+			long start = System.nanoTime();
+			long end = start + iterationMillis * 1000000L;
+			long now;
+			do {
+				value += op.run();
+				ops++;
+			} while ((now = System.nanoTime()) < end);
+			sink += value;
+			if (i >= 0) {
+				scores[i] = ops * 1e9 / (now - start);
+			}
+		}
+		print(benchmark, params, "thrpt", "ops/s", scores, null);
+	}
+
+	/**
+	 * Measures how many operations per second the counter advances by
+	 */
+	void rate(String benchmark, String params, Counter counter) throws InterruptedException {
+		double[] scores = new double[iterations];
+		for (int i = -warmups; i < iterations; i++) {
+			long before = counter.count();
+			long start = System.nanoTime();
+			Thread.sleep(iterationMillis);
+			long ops = counter.count() - before;
+			long now = System.nanoTime();
+			if (i >= 0) {
+				scores[i] = ops * 1e9 / (now - start);
+			}
+		}
+		print(benchmark, params, "thrpt", "ops/s", scores, null);
+	}
+
+	/**
+	 * Measures the time every run of the operation takes<br>
+	 * The score is the mean in microseconds, the percentiles are over every
+	 * measured run.
+	 */
+	void latency(String benchmark, String params, Operation op) throws Exception {
+		double[] scores = new double[iterations];
+		long[] samples = new long[1024];
+		int count = 0;
+		for (int i = -warmups; i < iterations; i++) {
+			long value = 0;
+			long total = 0;
+			int runs = 0;
+			long end = System.nanoTime() + iterationMillis * 1000000L;
+			long now;
+			do {
+				long start = System.nanoTime();
+				value += op.run();
+				now = System.nanoTime();
+				if (i >= 0) {
+					if (count == samples.length) {
+						samples = Arrays.copyOf(samples, count * 2);
+					}
+					samples[count++] = now - start;
+				}
+				total += now - start;
+				runs++;
+			} while (now < end);
+			sink += value;
+			if (i >= 0) {
+				scores[i] = total / 1000.0 / runs;
+			}
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		print(benchmark, params, "latency", "us", scores, sorted);
+	}
+
+	// print the result as one CSV line
+	private static void print(String benchmark, String params, String mode, String unit, double[] scores,
+			long[] sorted) {
+		double mean = 0;
+		for (double score : scores) {
+			mean += score;
+		}
+		mean /= scores.length;
+		double variance = 0;
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean);
+		}
+		double error = scores.length > 1 ? Z * Math.sqrt(variance / (scores.length - 1) / scores.length) : 0;
+
+		StringBuilder line = new StringBuilder();
+		line.append(benchmark).append(',').append(params).append(',').append(mode).append(',').append(unit)
+				.append(',').append(format(mean)).append(',').append(format(error));
+		if (sorted != null && sorted.length > 0) {
+			line.append(',').append(percentile(sorted, 0.5)).append(',').append(percentile(sorted, 0.9))
+					.append(',').append(percentile(sorted, 0.99)).append(',').append(percentile(sorted, 0.999))
+					.append(',').append(format(sorted[sorted.length - 1] / 1000.0));
+		} else {
+			line.append(",,,,,");
+		}
+		System.out.println(line);
+	}
+
+	// the percentile of the sorted nanoseconds in microseconds
+	private static String percentile(long[] sorted, double p) {
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return format(sorted[Math.max(0, index)] / 1000.0);
+	}
+
+	private static String format(double v) {
+		return String.format(Locale.ROOT, "%.3f", v);
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The payload shapes the benchmarks send<br>
+ * small is one flat event, nested an object graph a few levels deep, list a
+ * thousand boxed numbers, map a hundred entries and text one 64 KB String.
+ */
+final class Payloads {
+
+	static final String[] SHAPES = { "small", "nested", "list", "map", "text" };
+
+	private Payloads() {
+	}
+
+	/**
+	 * @return a new payload of the shape
+	 */
+	static Object create(String shape) {
+		switch (shape) {
+		case "small":
+			return new BroadcastBenchmark.Payload();
+		case "nested":
+			Order order = new Order();
+			order.id = 7;
+			order.customer = new Customer();
+			order.customer.name = "Ada Lovelace";
+			order.customer.email = "ada@example.com";
+			order.lines = new ArrayList<Line>();
+			for (int i = 0; i < 10; i++) {
+				Line line = new Line();
+				line.sku = "SKU-" + i;
+				line.quantity = i + 1;
+				line.price = 9.99 * (i + 1);
+				order.lines.add(line);
+			}
+			return order;
+		case "list":
+			ArrayList<Integer> list = new ArrayList<Integer>();
+			for (int i = 0; i < 1000; i++) {
+				list.add(i * 31);
+			}
+			return list;
+		case "map":
+			HashMap<String, Double> map = new HashMap<String, Double>();
+			for (int i = 0; i < 100; i++) {
+				map.put("key" + i, i * 0.5);
+			}
+			return map;
+		case "text":
+			StringBuilder text = new StringBuilder();
+			while (text.length() < 64 * 1024) {
+				text.append("The quick brown fox jumps over the lazy dog. ");
+			}
+			return text.toString();
+		default:
+			throw new IllegalArgumentException("Unknown shape: " + shape + "!");
+		}
+	}
+
+	/**
+	 * An order of a customer with its lines
+	 */
+	public static class Order {
+		public long id;
+		public Customer customer;
+		public List<Line> lines;
+	}
+
+	/**
+	 * The customer of an order
+	 */
+	public static class Customer {
+		public String name;
+		public String email;
+	}
+
+	/**
+	 * One line of an order
+	 */
+	public static class Line {
+		public String sku;
+		public int quantity;
+		public double price;
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.simpleprogrammer.infinitetcp.Balancing;
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.ClientPool;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Request;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures a {@link ClientPool} spreading requests over two servers on
+ * loopback, one of which answers {@link #SLOW_MILLIS} late: how many batches
+ * of {@link #BATCH} requests per second complete with each {@link Balancing}.
+ * The slow server holds its requests outstanding for longer, so balancing by
+ * load sends more of them to the fast one.
+ */
+final class PoolBenchmark {
+
+	private static final int FAST_PORT = 45511;
+	private static final int SLOW_PORT = 45512;
+	private static final int BATCH = 64;
+	private static final long SLOW_MILLIS = 2;
+
+	private PoolBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		Server fast = server(FAST_PORT, null);
+		Server slow = server(SLOW_PORT, CompletableFuture.delayedExecutor(SLOW_MILLIS, TimeUnit.MILLISECONDS));
+		Thread fastAccept = RoundTripBenchmark.start(fast);
+		Thread slowAccept = RoundTripBenchmark.start(slow);
+
+		ClientPool pool = new ClientPool();
+		pool.addEndpoint("localhost", FAST_PORT);
+		pool.addEndpoint("localhost", SLOW_PORT);
+		pool.setConfigurer(client -> client.setSerializer(new BinarySerializer()));
+		pool.start();
+		for (Balancing balancing : Balancing.values()) {
+			pool.setBalancing(balancing);
+			harness.throughput("pool_requests", "endpoints=2;batch=" + BATCH + ";balancing=" + balancing,
+					() -> batch(pool));
+		}
+
+		pool.stop();
+		fast.stop();
+		slow.stop();
+		fastAccept.join(1000);
+		slowAccept.join(1000);
+	}
+
+	// a server answering requests straight away, or on the executor if not null
+	private static Server server(int port, Executor delayed) {
+		Server server = new Server(port);
+		server.setSerializer(new BinarySerializer());
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+			}
+
+			@Override
+			public void onRequest(Connection conn, Request request) {
+				if (delayed == null) {
+					request.reply(request.getMessage());
+				} else {
+					delayed.execute(() -> request.reply(request.getMessage()));
+				}
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		return server;
+	}
+
+	private static long batch(ClientPool pool) throws Exception {
+		CompletableFuture<?>[] responses = new CompletableFuture<?>[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			responses[i] = pool.request(i, Duration.ofSeconds(10));
+		}
+		CompletableFuture.allOf(responses).get();
+		return responses.length;
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Server;
+
+/**
+ * Measures publishing to topics: how many Objects per second
+ * {@link Server#publish(String, Object)} sends to the subscribers of a topic,
+ * compared to {@link Server#broadcast(Object, java.util.function.Predicate)}
+ * with a filter looking the topic up in a set per Connection<br>
+ * {@link #PEERS} {@link RawPeers} are subscribed to {@link #PER_PEER} of
+ * {@link #TOPICS} topics each, so every topic has about 10 subscribers among
+ * the 100k subscriptions. With wildcards every peer is subscribed to one
+ * "market/group/+" pattern instead, matching as many topics.
+ */
+final class PubSubBenchmark {
+
+	private static final int PORT = 45509;
+	private static final int PEERS = 1000;
+	private static final int GROUPS = 100;
+	private static final int TOPICS = GROUPS * 100;
+	private static final int PER_PEER = 100;
+
+	private PubSubBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(new BinarySerializer());
+		Thread accept = RoundTripBenchmark.start(server);
+		RawPeers peers = new RawPeers("localhost", PORT, PEERS);
+		while (server.getConnectionCount() < PEERS) {
+			Thread.sleep(10);
+		}
+		List<Connection> conns = server.getConnections();
+		String[] topics = new String[TOPICS];
+		for (int i = 0; i < TOPICS; i++) {
+			topics[i] = "market/" + i / 100 + "/" + i % 100;
+		}
+
+		// the topics of every peer, spread so each topic has the same subscribers
+		HashMap<Connection, Set<String>> subscribed = new HashMap<Connection, Set<String>>();
+		for (int p = 0; p < conns.size(); p++) {
+			Set<String> own = new HashSet<String>();
+			for (int i = 0; i < PER_PEER; i++) {
+				String topic = topics[(p * PER_PEER + i) % TOPICS];
+				conns.get(p).subscribe(topic);
+				own.add(topic);
+			}
+			subscribed.put(conns.get(p), own);
+		}
+		int[] next = new int[1];
+		String params = "peers=" + PEERS + ";subscriptions=" + PEERS * PER_PEER + ";patterns=exact";
+		harness.throughput("pubsub_publish", params + ";lookup=index",
+				() -> server.publish(topics[next[0]++ % TOPICS], next[0]));
+		harness.throughput("pubsub_publish", params + ";lookup=scan", () -> {
+			String topic = topics[next[0]++ % TOPICS];
+			return server.broadcast(next[0], conn -> subscribed.get(conn).contains(topic));
+		});
+
+		for (Connection conn : conns) {
+			for (String topic : conn.getSubscriptions()) {
+				conn.unsubscribe(topic);
+			}
+		}
+		for (int p = 0; p < conns.size(); p++) {
+			conns.get(p).subscribe("market/" + p % GROUPS + "/+");
+		}
+		params = "peers=" + PEERS + ";subscriptions=" + PEERS + ";patterns=wildcard";
+		harness.throughput("pubsub_publish", params + ";lookup=index",
+				() -> server.publish(topics[next[0]++ % TOPICS], next[0]));
+
+		peers.close();
+		server.stop();
+		accept.join(1000);
+	}
+
+}
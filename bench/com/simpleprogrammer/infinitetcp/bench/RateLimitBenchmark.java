@@ -0,0 +1,104 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.time.Duration;
+
+import com.simpleprogrammer.infinitetcp.Backpressure;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.RateLimit;
+import com.simpleprogrammer.infinitetcp.Request;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures how much a {@link Client} flooding a {@link Server} with XML
+ * messages slows the requests of another one served by the same event loop,
+ * without a limit and with {@link Server#setConnectionRateLimit(RateLimit)}
+ * holding each Connection to {@link #MESSAGES_PER_SECOND}<br>
+ * With the limit the flood waits in the socket buffers rather than being
+ * parsed, so the round trip stays close to that of an idle Server.
+ */
+final class RateLimitBenchmark {
+
+	private static final int PORT = 45514;
+	private static final int MESSAGES_PER_SECOND = 1000;
+
+	private RateLimitBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		run(harness, null);
+		run(harness, new RateLimit(MESSAGES_PER_SECOND, 0));
+	}
+
+	private static void run(Harness harness, RateLimit limit) throws Exception {
+		Server server = new Server(PORT);
+		server.setEventLoops(1);
+		server.setConnectionRateLimit(limit);
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+			}
+
+			@Override
+			public void onRequest(Connection conn, Request request) {
+				request.reply(request.getMessage());
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		Client flooder = client();
+		flooder.setBackpressure(Backpressure.BLOCK);
+		flooder.start();
+		Client client = client();
+		client.start();
+		Thread flood = new Thread(() -> flood(flooder), "Flood");
+		flood.start();
+
+		String params = "limit=" + (limit == null ? "none" : MESSAGES_PER_SECOND + "/s");
+		harness.latency("ratelimit_roundtrip", params,
+				() -> System.identityHashCode(client.request(1, Duration.ofSeconds(30)).get()));
+
+		client.stop();
+		flooder.stop();
+		flood.join(1000);
+		server.stop();
+		accept.join(1000);
+	}
+
+	private static Client client() {
+		Client client = new Client("localhost", PORT);
+		client.addListener(new Listener() {
+			@Override
+			public void onReceive(Object obj) {
+			}
+
+			@Override
+			public void onDisconnect() {
+			}
+		});
+		return client;
+	}
+
+	// send until the client stops
+	private static void flood(Client flooder) {
+		Object payload = Payloads.create("nested");
+		try {
+			while (true) {
+				flooder.send(payload);
+			}
+		} catch (IllegalStateException e) {
+			// the client has been stopped
+		}
+	}
+
+}
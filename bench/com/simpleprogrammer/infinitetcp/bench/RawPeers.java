@@ -0,0 +1,157 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.simpleprogrammer.infinitetcp.Serializer;
+
+/**
+ * Many raw peers served by one selector thread, counting the frames each of
+ * them receives<br>
+ * Used by the benchmarks so the peers do not need a thread each.
+ */
+class RawPeers implements Runnable {
+
+	private final Selector selector;
+	private final ArrayList<SocketChannel> channels = new ArrayList<SocketChannel>();
+	private final AtomicInteger reached = new AtomicInteger();
+	private volatile int target = 0;
+	private volatile boolean running = true;
+
+	RawPeers(String host, int port, int n) throws IOException {
+		selector = Selector.open();
+		for (int i = 0; i < n; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new Peer());
+			channels.add(channel);
+		}
+		new Thread(this, "Peers").start();
+	}
+
+	/**
+	 * Encodes an Object as one frame the way the library does
+	 */
+	static ByteBuffer frame(Serializer serializer, Object obj) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(obj, out);
+		ByteBuffer frame = ByteBuffer.allocate(5 + out.size());
+		frame.putInt(out.size()).put((byte) 0).put(out.toByteArray()).flip();
+		return frame;
+	}
+
+	int size() {
+		return channels.size();
+	}
+
+	/**
+	 * Every peer has to receive one more frame before {@link #await()} returns
+	 */
+	void expectNext() {
+		reached.set(0);
+		target++;
+	}
+
+	void await() {
+		while (reached.get() < channels.size()) {
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Writes the frame from every peer
+	 */
+	void sendAll(ByteBuffer frame) throws IOException {
+		for (SocketChannel channel : channels) {
+			ByteBuffer view = frame.duplicate();
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		while (running) {
+			try {
+				selector.select(100);
+			} catch (IOException e) {
+				return;
+			}
+			if (!selector.isOpen()) {
+				return;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Peer peer = (Peer) key.attachment();
+				buffer.clear();
+				try {
+					if (((SocketChannel) key.channel()).read(buffer) < 0) {
+						key.cancel();
+						continue;
+					}
+				} catch (IOException e) {
+					key.cancel();
+					continue;
+				}
+				buffer.flip();
+				int before = peer.frames;
+				peer.read(buffer);
+				if (peer.frames > before && peer.frames >= target) {
+					reached.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	void close() throws IOException {
+		running = false;
+		for (SocketChannel channel : channels) {
+			channel.close();
+		}
+		selector.close();
+	}
+
+	// counts the frames of one peer by their length headers
+	private static class Peer {
+
+		private final ByteBuffer header = ByteBuffer.allocate(5);
+		private long skip = 0;
+		private int frames = 0;
+
+		void read(ByteBuffer buffer) {
+			while (buffer.hasRemaining()) {
+				if (skip > 0) {
+					int n = (int) Math.min(skip, buffer.remaining());
+					buffer.position(buffer.position() + n);
+					skip -= n;
+					if (skip == 0) {
+						frames++;
+					}
+				} else {
+					header.put(buffer.get());
+					if (!header.hasRemaining()) {
+						skip = header.getInt(0);
+						header.clear();
+						if (skip == 0) {
+							frames++;
+						}
+					}
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.Request;
+import com.simpleprogrammer.infinitetcp.Serializer;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+import com.simpleprogrammer.infinitetcp.XMLSerializer;
+
+/**
+ * Measures the latency of one message from a {@link Client} to a
+ * {@link Server} and back on loopback<br>
+ * send is {@link Client#send(Object)} echoed by the Server's listener and
+ * waited for in the Client's listener, request is
+ * {@link Client#request(Object, Duration)} answered with
+ * {@link Request#reply(Object)}. Only one message is in flight at a time and
+ * the sending thread parks while it waits, as it would in an application.
+ */
+final class RoundTripBenchmark {
+
+	private static final int PORT = 45504;
+
+	private RoundTripBenchmark() {
+	}
+
+	static void run(Harness harness, String[] shapes, String[] serializers) throws Exception {
+		for (String name : serializers) {
+			for (String shape : shapes) {
+				run(harness, name, shape);
+			}
+		}
+	}
+
+	private static void run(Harness harness, String name, String shape) throws Exception {
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(serializer(name));
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+				conn.send(obj);
+			}
+
+			@Override
+			public void onRequest(Connection conn, Request request) {
+				request.reply(request.getMessage());
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = start(server);
+
+		Client client = new Client("localhost", PORT);
+		client.setSerializer(serializer(name));
+		Echoes echoes = new Echoes();
+		client.addListener(echoes);
+		client.start();
+
+		Object payload = Payloads.create(shape);
+		String params = "shape=" + shape + ";serializer=" + name;
+		harness.latency("roundtrip_send", params, () -> {
+			long target = echoes.received + 1;
+			echoes.waiter = Thread.currentThread();
+			client.send(payload);
+			while (echoes.received < target) {
+				LockSupport.park();
+			}
+			return target;
+		});
+		harness.latency("roundtrip_request", params,
+				() -> System.identityHashCode(client.request(payload, Duration.ofSeconds(10)).get()));
+
+		client.stop();
+		server.stop();
+		accept.join(1000);
+	}
+
+	static Serializer serializer(String name) {
+		return name.equals("binary") ? new BinarySerializer() : new XMLSerializer();
+	}
+
+	/**
+	 * Starts the Server on a thread of its own and waits until it accepts
+	 */
+	static Thread start(Server server) throws InterruptedException {
+		Thread accept = new Thread(() -> {
+			try {
+				server.start();
+			} catch (IOException e) {
+				// thrown when the server is stopped
+			}
+		}, "Accept");
+		accept.start();
+		Thread.sleep(200);
+		return accept;
+	}
+
+	// counts the echoes, only written by the Client's receive thread, and wakes
+	// the thread waiting for them
+	private static final class Echoes implements Listener {
+
+		volatile long received = 0;
+		volatile Thread waiter;
+
+		@Override
+		public void onReceive(Object obj) {
+			received++;
+			LockSupport.unpark(waiter);
+		}
+
+		@Override
+		public void onDisconnect() {
+		}
+
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.Security;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures what TLS costs: the echo throughput of one Client with and without
+ * TLS, and the time a Client takes to connect with a full handshake and with
+ * one resuming a cached session<br>
+ * The key of the Server is generated with the keytool of the running java into
+ * a temporary file.
+ */
+final class SecurityBenchmark {
+
+	private static final int PORT = 45507;
+	private static final char[] PASSWORD = "benchmark".toCharArray();
+	// messages the Client keeps in flight
+	private static final int WINDOW = 16;
+
+	private SecurityBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		KeyStore keys = keyStore();
+		Security server = Security.create(keys, PASSWORD, null);
+		for (String shape : new String[] { "small", "text" }) {
+			throughput(harness, shape, null, null);
+			throughput(harness, shape, server, Security.create(null, null, keys));
+		}
+		handshake(harness, server, keys);
+	}
+
+	private static void throughput(Harness harness, String shape, Security serverSecurity,
+			Security clientSecurity) throws Exception {
+		Server server = server(serverSecurity);
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+				conn.send(obj);
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		Object payload = Payloads.create(shape);
+		LongAdder echoes = new LongAdder();
+		Client client = client(clientSecurity);
+		client.addListener(new Listener() {
+			@Override
+			public void onReceive(Object obj) {
+				echoes.increment();
+				try {
+					client.send(payload);
+				} catch (IllegalStateException e) {
+					// the client has been stopped
+				}
+			}
+
+			@Override
+			public void onDisconnect() {
+			}
+		});
+		client.start();
+		for (int i = 0; i < WINDOW; i++) {
+			client.send(payload);
+		}
+
+		harness.rate("security_echo", "shape=" + shape + ";tls=" + (clientSecurity != null), echoes::sum);
+
+		client.stop();
+		server.stop();
+		accept.join(1000);
+	}
+
+	private static void handshake(Harness harness, Security serverSecurity, KeyStore keys) throws Exception {
+		Server server = server(serverSecurity);
+		Thread accept = RoundTripBenchmark.start(server);
+
+		// a new context per connect has no session to resume
+		harness.latency("security_connect", "resumed=false", () -> connect(Security.create(null, null, keys)));
+		Security shared = Security.create(null, null, keys);
+		harness.latency("security_connect", "resumed=true", () -> connect(shared));
+
+		server.stop();
+		accept.join(1000);
+	}
+
+	// connect a Client, which is done once the handshake is, and stop it again
+	private static long connect(Security security) throws IOException {
+		Client client = client(security);
+		client.start();
+		long value = client.getSSLSession().getCreationTime();
+		client.stop();
+		return value;
+	}
+
+	private static Server server(Security security) {
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(new BinarySerializer());
+		server.setSecurity(security);
+		return server;
+	}
+
+	private static Client client(Security security) {
+		Client client = new Client("localhost", PORT);
+		client.setSerializer(new BinarySerializer());
+		client.setSecurity(security);
+		return client;
+	}
+
+	// a key and self signed certificate for localhost
+	private static KeyStore keyStore() throws Exception {
+		File file = File.createTempFile("benchmark", ".p12");
+		file.delete();
+		try {
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+					"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+					"-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", new String(PASSWORD))
+							.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool failed to generate a key!");
+			}
+			KeyStore keys = KeyStore.getInstance("PKCS12");
+			try (InputStream in = new FileInputStream(file)) {
+				keys.load(in, PASSWORD);
+			}
+			return keys;
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Serializer;
+import com.simpleprogrammer.infinitetcp.XMLSerializer;
+
+/**
+ * Measures the serializers on their own, without any networking<br>
+ * For every payload shape it measures {@link XMLSerializer#toXML(Object)} and
+ * {@link XMLSerializer#fromXML(String)}, and the stream methods the library
+ * uses of the {@link XMLSerializer}, of an XMLSerializer with the payload
+ * classes registered and of the {@link BinarySerializer}. It also measures
+ * creating an XMLSerializer against getting the shared one, and a new Client
+ * getting its Serializer.
+ */
+final class SerializationBenchmark {
+
+	private SerializationBenchmark() {
+	}
+
+	static void run(Harness harness, String[] shapes) throws Exception {
+		harness.throughput("xml_create", "", () -> System.identityHashCode(new XMLSerializer()));
+		harness.throughput("xml_default", "", () -> System.identityHashCode(XMLSerializer.getDefault()));
+		harness.throughput("client_serializer", "", () -> System.identityHashCode(new Client().getSerializer()));
+
+		XMLSerializer xml = new XMLSerializer();
+		XMLSerializer registered = registered();
+		BinarySerializer binary = new BinarySerializer();
+		for (String shape : shapes) {
+			Object payload = Payloads.create(shape);
+			String params = "shape=" + shape;
+
+			String text = xml.toXML(payload);
+			harness.throughput("xml_toXML", params, () -> xml.toXML(payload).length());
+			harness.throughput("xml_fromXML", params, () -> System.identityHashCode(xml.fromXML(text)));
+
+			serializer(harness, "xml", xml, payload, params);
+			serializer(harness, "xml_registered", registered, payload, params);
+			serializer(harness, "binary", binary, payload, params);
+		}
+	}
+
+	/**
+	 * @return an XMLSerializer with the classes of the payloads registered
+	 */
+	static XMLSerializer registered() {
+		XMLSerializer xml = new XMLSerializer();
+		xml.register("payload", BroadcastBenchmark.Payload.class);
+		xml.register("order", Payloads.Order.class);
+		xml.register("customer", Payloads.Customer.class);
+		xml.register("line", Payloads.Line.class);
+		return xml;
+	}
+
+	// measure the stream methods of one serializer
+	private static void serializer(Harness harness, String name, Serializer serializer, Object payload,
+			String params) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(payload, out);
+		byte[] bytes = out.toByteArray();
+		params += ";bytes=" + bytes.length;
+
+		harness.throughput(name + "_serialize", params, () -> {
+			out.reset();
+			serializer.serialize(payload, out);
+			return out.size();
+		});
+		harness.throughput(name + "_deserialize", params,
+				() -> System.identityHashCode(serializer.deserialize(new ByteArrayInputStream(bytes))));
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Channel;
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.InboundStream;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.OutboundStream;
+import com.simpleprogrammer.infinitetcp.Priority;
+import com.simpleprogrammer.infinitetcp.Request;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures streams from a {@link Server} to a {@link Client} on loopback: the
+ * KiB per second a stream carries when written from an array and when
+ * transferred from a file, and the round trip of a request while a stream is
+ * sending compared to an idle connection<br>
+ * With channels the stream is sent on a {@link Priority#LOW} {@link Channel}
+ * and the round trip is a message echoed on {@link Priority#HIGH} ones, which
+ * does not wait behind the stream's queued chunks.<br>
+ * The file is a temporary one of {@link #FILE_SIZE} bytes, sent over and over.
+ */
+final class StreamBenchmark {
+
+	private static final int PORT = 45508;
+	private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+	private StreamBenchmark() {
+	}
+
+	static void run(Harness harness) throws Exception {
+		File file = File.createTempFile("benchmark", ".bin");
+		try {
+			try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+				data.setLength(FILE_SIZE);
+			}
+			for (String source : new String[] { "write", "file" }) {
+				run(harness, source, file, false);
+			}
+			run(harness, "write", file, true);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void run(Harness harness, String source, File file, boolean channels) throws Exception {
+		Channel[] control = new Channel[1];
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(new BinarySerializer());
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, int channel, Object obj) {
+				control[0].send(obj);
+			}
+
+			@Override
+			public void onRequest(Connection conn, Request request) {
+				request.reply(request.getMessage());
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		LongAdder read = new LongAdder();
+		BlockingQueue<Object> echoes = new LinkedBlockingQueue<Object>();
+		Client client = new Client("localhost", PORT);
+		client.setSerializer(new BinarySerializer());
+		client.addListener(new Listener() {
+			@Override
+			public void onStream(InboundStream stream) {
+				new Thread(() -> drain(stream, read), "Read").start();
+			}
+
+			@Override
+			public void onReceive(Object obj) {
+			}
+
+			@Override
+			public void onReceive(int channel, Object obj) {
+				echoes.add(obj);
+			}
+
+			@Override
+			public void onDisconnect() {
+			}
+		});
+		client.start();
+		while (server.getConnectionCount() < 1) {
+			Thread.sleep(10);
+		}
+		Connection conn = server.getConnections().get(0);
+		Channel bulk = null;
+		Harness.Operation roundTrip = () -> request(client);
+		if (channels) {
+			bulk = conn.openChannel(1, Priority.LOW, 1);
+			control[0] = conn.openChannel(2, Priority.HIGH, 1);
+			Channel ping = client.openChannel(2, Priority.HIGH, 1);
+			roundTrip = () -> echo(ping, echoes);
+		}
+
+		String params = "source=" + source + ";channels=" + channels;
+		harness.latency("stream_roundtrip", params + ";streaming=false", roundTrip);
+		Channel channel = bulk;
+		Thread writer = new Thread(() -> write(conn, channel, source, file), "Write");
+		writer.start();
+		harness.rate("stream_kib", params, () -> read.sum() / 1024);
+		harness.latency("stream_roundtrip", params + ";streaming=true", roundTrip);
+
+		client.stop();
+		writer.join(1000);
+		server.stop();
+		accept.join(1000);
+	}
+
+	private static long request(Client client) throws Exception {
+		return System.identityHashCode(client.request(1, Duration.ofSeconds(10)).get());
+	}
+
+	private static long echo(Channel ping, BlockingQueue<Object> echoes) throws Exception {
+		ping.send(1);
+		Object echo = echoes.poll(10, TimeUnit.SECONDS);
+		if (echo == null) {
+			throw new IllegalStateException("No echo on the channel!");
+		}
+		return System.identityHashCode(echo);
+	}
+
+	// send until the connection closes, on the channel if not null
+	private static void write(Connection conn, Channel channel, String source, File file) {
+		try (OutboundStream stream = channel == null ? conn.openStream(source) : channel.openStream(source)) {
+			if (source.equals("file")) {
+				try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					while (true) {
+						stream.transferFrom(data, 0, FILE_SIZE);
+					}
+				}
+			}
+			byte[] chunk = new byte[64 * 1024];
+			while (true) {
+				stream.write(chunk);
+			}
+		} catch (IOException e) {
+			// the client has been stopped
+		}
+	}
+
+	// read the stream to its end, counting the bytes
+	private static void drain(InputStream stream, LongAdder read) {
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			for (int n; (n = stream.read(buffer)) >= 0;) {
+				read.add(n);
+			}
+		} catch (IOException e) {
+			// the client has been stopped
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.simpleprogrammer.infinitetcp.BinarySerializer;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Compares a Server without event loops running its Connections on platform
+ * threads and on virtual threads<br>
+ * Every round each peer sends one message which the Server echoes, the round
+ * ends when every peer has its echo.<br>
+ * Arguments: connections (default 10000), rounds (default 100). Virtual
+ * threads need java 21, on older versions only the platform mode runs. Every
+ * peer takes two file descriptors in this process.
+ */
+public class ThreadModeBenchmark {
+
+	private static final int PORT = 45502;
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		System.out.println("mode,connections,p50_us,p99_us,max_us,messages_per_s,peak_threads");
+		run("platform", n, rounds, PORT);
+		try {
+			run("virtual", n, rounds, PORT + 1);
+		} catch (UnsupportedOperationException e) {
+			System.out.println("# virtual skipped: " + e.getMessage());
+		}
+		System.exit(0);
+	}
+
+	private static void run(String mode, int n, int rounds, int port) throws Exception {
+		BinarySerializer serializer = new BinarySerializer();
+		Server server = new Server(port);
+		server.setSerializer(serializer);
+		if (mode.equals("virtual")) {
+			server.useVirtualThreads();
+		}
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+				conn.send(obj);
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = new Thread(() -> {
+			try {
+				server.start();
+			} catch (IOException e) {
+				// thrown when the server is stopped
+			}
+		}, "Accept");
+		accept.start();
+		Thread.sleep(200);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		RawPeers peers = new RawPeers("localhost", port, n);
+		while (server.getConnectionCount() < n) {
+			Thread.sleep(10);
+		}
+
+		ByteBuffer ping = RawPeers.frame(serializer, "ping");
+		int warmup = Math.max(5, rounds / 10);
+		long[] times = new long[rounds];
+		long total = 0;
+		for (int i = -warmup; i < rounds; i++) {
+			peers.expectNext();
+			long start = System.nanoTime();
+			peers.sendAll(ping);
+			peers.await();
+			long time = System.nanoTime() - start;
+			if (i >= 0) {
+				times[i] = time;
+				total += time;
+			}
+		}
+		Arrays.sort(times);
+
+		long perSecond = (long) n * rounds * 1000000000L / Math.max(1, total);
+		System.out.println(mode + "," + n + "," + times[rounds / 2] / 1000 + "," + times[(int) (rounds * 0.99)] / 1000
+				+ "," + times[rounds - 1] / 1000 + "," + perSecond + "," + threads.getPeakThreadCount());
+
+		peers.close();
+		server.stop();
+		accept.join(1000);
+	}
+
+}
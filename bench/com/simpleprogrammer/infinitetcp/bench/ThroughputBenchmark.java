@@ -0,0 +1,99 @@
+package com.simpleprogrammer.infinitetcp.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.simpleprogrammer.infinitetcp.Client;
+import com.simpleprogrammer.infinitetcp.Connection;
+import com.simpleprogrammer.infinitetcp.Listener;
+import com.simpleprogrammer.infinitetcp.Server;
+import com.simpleprogrammer.infinitetcp.ServerListener;
+
+/**
+ * Measures how many messages per second a {@link Server} echoes to many
+ * {@link Client}s on loopback<br>
+ * Every Client keeps a window of messages in flight and sends the next one
+ * whenever an echo arrives. The score is the number of echoes received by all
+ * the Clients per second. Every Client takes two file descriptors and a thread
+ * in this process.
+ */
+final class ThroughputBenchmark {
+
+	private static final int PORT = 45505;
+	// messages each Client keeps in flight
+	private static final int WINDOW = 16;
+
+	private ThroughputBenchmark() {
+	}
+
+	static void run(Harness harness, int[] counts, String[] serializers) throws Exception {
+		for (String name : serializers) {
+			for (int n : counts) {
+				run(harness, name, n);
+			}
+		}
+	}
+
+	private static void run(Harness harness, String name, int n) throws Exception {
+		Server server = new Server(PORT);
+		server.setEventLoops(Runtime.getRuntime().availableProcessors());
+		server.setSerializer(RoundTripBenchmark.serializer(name));
+		server.addListener(new ServerListener() {
+			@Override
+			public void onConnect(Connection conn) {
+			}
+
+			@Override
+			public void onReceive(Connection conn, Object obj) {
+				conn.send(obj);
+			}
+
+			@Override
+			public void onDisconnect(Connection conn) {
+			}
+		});
+		Thread accept = RoundTripBenchmark.start(server);
+
+		Object payload = Payloads.create("small");
+		LongAdder echoes = new LongAdder();
+		ArrayList<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < n; i++) {
+			Client client = new Client("localhost", PORT);
+			client.setSerializer(RoundTripBenchmark.serializer(name));
+			client.addListener(new Listener() {
+				@Override
+				public void onReceive(Object obj) {
+					echoes.increment();
+					try {
+						client.send(payload);
+					} catch (IllegalStateException e) {
+						// the client has been stopped
+					}
+				}
+
+				@Override
+				public void onDisconnect() {
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+		while (server.getConnectionCount() < n) {
+			Thread.sleep(10);
+		}
+		for (Client client : clients) {
+			for (int i = 0; i < WINDOW; i++) {
+				client.send(payload);
+			}
+		}
+
+		harness.rate("throughput_echo", "connections=" + n + ";serializer=" + name, echoes::sum);
+
+		for (Client client : clients) {
+			client.stop();
+		}
+		server.stop();
+		accept.join(1000);
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * What a send does when the messages queued for a peer have reached the high
+ * water mark<br>
+ * The high water mark is set with {@link Server#setHighWaterMark(int)} and
+ * {@link Client#setHighWaterMark(int)}.
+ */
+public enum Backpressure {
+
+	/**
+	 * The sending thread waits until the queue has drained below the high water
+	 * mark<br>
+	 * A send made on an event loop thread, such as from a listener of a Server
+	 * with event loops, never waits as the loop is what drains the queue; the
+	 * message is queued past the high water mark instead.
+	 */
+	BLOCK,
+
+	/**
+	 * The send throws an IllegalStateException straight away
+	 */
+	FAIL,
+
+	/**
+	 * The message is silently dropped
+	 */
+	DROP
+
+}
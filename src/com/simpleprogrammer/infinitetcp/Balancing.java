@@ -0,0 +1,25 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * How a {@link ClientPool} picks the connection a message or request is sent
+ * on<br>
+ * The load of a connection is the number of its requests waiting for a
+ * response, the bytes queued for sending telling apart connections with as
+ * many. Only connections in rotation are picked.
+ */
+public enum Balancing {
+
+	/**
+	 * Every connection is looked at and the least loaded one picked, ties going
+	 * round robin
+	 */
+	LEAST_OUTSTANDING,
+
+	/**
+	 * Two connections are picked at random and the less loaded of them used,
+	 * which costs the same however many connections there are and keeps many
+	 * senders from all picking the same connection
+	 */
+	POWER_OF_TWO_CHOICES
+
+}
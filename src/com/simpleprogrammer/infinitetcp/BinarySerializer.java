@@ -0,0 +1,934 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary {@link Serializer}<br>
+ * Primitives, boxed primitives, Strings and primitive arrays are written with
+ * a one byte tag followed by their value, integers as variable length numbers.
+ * Other Objects are written field by field in a fixed order, Collections and
+ * Maps element by element and length prefixed.<br>
+ * Classes can be registered with {@link #register(Class)} so only a small
+ * number is sent instead of the class name. Both peers must register the same
+ * classes in the same order. Unregistered class names are sent once per
+ * message and referred to by number after that.<br>
+ * Object graphs are written as trees: shared Objects are written again each
+ * time they are referenced and cycles are not supported.<br>
+ * Instances are safe to share between threads once every class has been
+ * registered.
+ */
+public class BinarySerializer implements Serializer {
+
+	// tags written before every value, those of primitives also tell the kinds
+	// of the fields apart
+	static final int NULL = 0, TRUE = 1, FALSE = 2, BYTE = 3, SHORT = 4, CHAR = 5, INT = 6, LONG = 7,
+			FLOAT = 8, DOUBLE = 9, STRING = 10, BYTE_ARRAY = 11, SHORT_ARRAY = 12, CHAR_ARRAY = 13, INT_ARRAY = 14,
+			LONG_ARRAY = 15, FLOAT_ARRAY = 16, DOUBLE_ARRAY = 17, BOOLEAN_ARRAY = 18, OBJECT_ARRAY = 19,
+			COLLECTION = 20, MAP = 21, ENUM = 22, OBJECT = 23, SERIALIZABLE = 24;
+
+	// nesting after which a graph is taken to be cyclic
+	private static final int MAX_DEPTH = 512;
+
+	// size of the buffers messages are written and read through
+	private static final int BUFFER_SIZE = 512;
+	// the write and read buffer each thread reuses for every message, a slot is
+	// empty while its buffer is in use
+	private static final ThreadLocal<byte[][]> BUFFERS = ThreadLocal.withInitial(() -> new byte[2][]);
+
+	// the constructor used for classes without a no argument constructor
+	private static final Object REFLECTION_FACTORY;
+	private static final Method NEW_CONSTRUCTOR;
+
+	static {
+		Object factory = null;
+		Method method = null;
+		try {
+			Class<?> type = Class.forName("sun.reflect.ReflectionFactory");
+			factory = type.getMethod("getReflectionFactory").invoke(null);
+			method = type.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// only classes with a no argument constructor can be read
+		}
+		REFLECTION_FACTORY = factory;
+		NEW_CONSTRUCTOR = method;
+	}
+
+	// registered classes and their ids
+	private final Map<Class<?>, Integer> ids = new ConcurrentHashMap<Class<?>, Integer>();
+	private final Map<Integer, Class<?>> classes = new ConcurrentHashMap<Integer, Class<?>>();
+	// how each class is written, built the first time a class is seen
+	private final Map<Class<?>, ClassInfo> infos = new ConcurrentHashMap<Class<?>, ClassInfo>();
+
+	/**
+	 * Registers the class with the next free id<br>
+	 * Both peers must register the same classes in the same order
+	 *
+	 * @param type
+	 *            the class to register
+	 * @return the id of the class
+	 */
+	public synchronized int register(Class<?> type) {
+		Integer id = ids.get(type);
+		if (id != null) {
+			return id;
+		}
+		int next = classes.size();
+		while (classes.containsKey(next)) {
+			next++;
+		}
+		register(type, next);
+		return next;
+	}
+
+	/**
+	 * Registers the class with the specified id<br>
+	 * Both peers must register the same class with the same id
+	 *
+	 * @param type
+	 *            the class to register
+	 * @param id
+	 *            the id of the class
+	 * @exception IllegalArgumentException
+	 *                if the id is negative or already used by another class
+	 */
+	public synchronized void register(Class<?> type, int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Id can not be negative: " + id + "!");
+		}
+		Class<?> registered = classes.get(id);
+		if (registered != null && registered != type) {
+			throw new IllegalArgumentException("Id " + id + " is already used by " + registered.getName() + "!");
+		}
+		classes.put(id, type);
+		ids.put(type, id);
+	}
+
+	@Override
+	public void serialize(Object obj, OutputStream out) throws IOException {
+		byte[] buffer = borrow(0);
+		try {
+			Output output = new Output(out, buffer);
+			write(output, obj, 0);
+			output.flush();
+		} finally {
+			BUFFERS.get()[0] = buffer;
+		}
+	}
+
+	@Override
+	public Object deserialize(InputStream in) throws IOException {
+		byte[] buffer = borrow(1);
+		try {
+			return read(new Input(in, buffer), 0);
+		} finally {
+			BUFFERS.get()[1] = buffer;
+		}
+	}
+
+	// take the thread's buffer from the slot, or a new one if it is in use
+	private static byte[] borrow(int slot) {
+		byte[][] buffers = BUFFERS.get();
+		byte[] buffer = buffers[slot];
+		buffers[slot] = null;
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	private void write(Output out, Object obj, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Object graph too deep, cycles are not supported!");
+		}
+		if (obj == null) {
+			out.write(NULL);
+			return;
+		}
+		Class<?> type = obj.getClass();
+		// fast paths for the common types
+		if (type == String.class) {
+			out.write(STRING);
+			out.writeString((String) obj);
+		} else if (type == Integer.class) {
+			out.write(INT);
+			out.writeVarInt((Integer) obj);
+		} else if (type == Long.class) {
+			out.write(LONG);
+			out.writeVarLong((Long) obj);
+		} else if (type == Boolean.class) {
+			out.write((Boolean) obj ? TRUE : FALSE);
+		} else if (type == Double.class) {
+			out.write(DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits((Double) obj));
+		} else if (type == Float.class) {
+			out.write(FLOAT);
+			out.writeInt(Float.floatToRawIntBits((Float) obj));
+		} else if (type == Byte.class) {
+			out.write(BYTE);
+			out.write((Byte) obj);
+		} else if (type == Short.class) {
+			out.write(SHORT);
+			out.writeVarInt((Short) obj);
+		} else if (type == Character.class) {
+			out.write(CHAR);
+			out.writeVarInt((Character) obj);
+		} else if (type.isArray()) {
+			writeArray(out, obj, depth);
+		} else if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+			out.write(ENUM);
+			Enum<?> e = (Enum<?>) obj;
+			out.writeClass(e.getDeclaringClass());
+			out.writeVarInt(e.ordinal());
+		} else {
+			ClassInfo info = info(type);
+			if (info.kind == COLLECTION) {
+				out.write(COLLECTION);
+				out.writeClass(info.readAs);
+				Collection<?> c = (Collection<?>) obj;
+				out.writeVarInt(c.size());
+				for (Object o : c) {
+					write(out, o, depth + 1);
+				}
+			} else if (info.kind == MAP) {
+				out.write(MAP);
+				out.writeClass(info.readAs);
+				Map<?, ?> m = (Map<?, ?>) obj;
+				out.writeVarInt(m.size());
+				for (Map.Entry<?, ?> entry : m.entrySet()) {
+					write(out, entry.getKey(), depth + 1);
+					write(out, entry.getValue(), depth + 1);
+				}
+			} else if (info.kind == SERIALIZABLE) {
+				out.write(SERIALIZABLE);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(obj);
+				oos.close();
+				out.writeVarInt(bytes.size());
+				out.write(bytes.toByteArray());
+			} else {
+				out.write(OBJECT);
+				out.writeClass(type);
+				writeFields(out, obj, info, depth);
+			}
+		}
+	}
+
+	private void writeArray(Output out, Object obj, int depth) throws IOException {
+		Class<?> component = obj.getClass().getComponentType();
+		if (component == byte.class) {
+			byte[] a = (byte[]) obj;
+			out.write(BYTE_ARRAY);
+			out.writeVarInt(a.length);
+			out.write(a);
+		} else if (component == int.class) {
+			int[] a = (int[]) obj;
+			out.write(INT_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeVarInt(a[i]);
+			}
+		} else if (component == long.class) {
+			long[] a = (long[]) obj;
+			out.write(LONG_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeVarLong(a[i]);
+			}
+		} else if (component == double.class) {
+			double[] a = (double[]) obj;
+			out.write(DOUBLE_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeLong(Double.doubleToRawLongBits(a[i]));
+			}
+		} else if (component == float.class) {
+			float[] a = (float[]) obj;
+			out.write(FLOAT_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeInt(Float.floatToRawIntBits(a[i]));
+			}
+		} else if (component == short.class) {
+			short[] a = (short[]) obj;
+			out.write(SHORT_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeVarInt(a[i]);
+			}
+		} else if (component == char.class) {
+			char[] a = (char[]) obj;
+			out.write(CHAR_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.writeVarInt(a[i]);
+			}
+		} else if (component == boolean.class) {
+			boolean[] a = (boolean[]) obj;
+			out.write(BOOLEAN_ARRAY);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				out.write(a[i] ? 1 : 0);
+			}
+		} else {
+			Object[] a = (Object[]) obj;
+			out.write(OBJECT_ARRAY);
+			out.writeClass(component);
+			out.writeVarInt(a.length);
+			for (int i = 0; i < a.length; i++) {
+				write(out, a[i], depth + 1);
+			}
+		}
+	}
+
+	private void writeFields(Output out, Object obj, ClassInfo info, int depth) throws IOException {
+		try {
+			for (int i = 0; i < info.fields.length; i++) {
+				Field f = info.fields[i];
+				switch (info.types[i]) {
+				case INT:
+					out.writeVarInt(f.getInt(obj));
+					break;
+				case LONG:
+					out.writeVarLong(f.getLong(obj));
+					break;
+				case DOUBLE:
+					out.writeLong(Double.doubleToRawLongBits(f.getDouble(obj)));
+					break;
+				case FLOAT:
+					out.writeInt(Float.floatToRawIntBits(f.getFloat(obj)));
+					break;
+				case TRUE:
+					out.write(f.getBoolean(obj) ? 1 : 0);
+					break;
+				case BYTE:
+					out.write(f.getByte(obj));
+					break;
+				case SHORT:
+					out.writeVarInt(f.getShort(obj));
+					break;
+				case CHAR:
+					out.writeVarInt(f.getChar(obj));
+					break;
+				default:
+					write(out, f.get(obj), depth + 1);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private Object read(Input in, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Object graph too deep!");
+		}
+		int tag = in.read();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return (byte) in.read();
+		case SHORT:
+			return (short) in.readVarInt();
+		case CHAR:
+			return (char) in.readVarInt();
+		case INT:
+			return in.readVarInt();
+		case LONG:
+			return in.readVarLong();
+		case FLOAT:
+			return Float.intBitsToFloat(in.readInt());
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+		case STRING:
+			return in.readString();
+		case BYTE_ARRAY: {
+			byte[] a = new byte[in.readLength(1)];
+			in.readFully(a);
+			return a;
+		}
+		case SHORT_ARRAY: {
+			short[] a = new short[in.readLength(1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = (short) in.readVarInt();
+			}
+			return a;
+		}
+		case CHAR_ARRAY: {
+			char[] a = new char[in.readLength(1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = (char) in.readVarInt();
+			}
+			return a;
+		}
+		case INT_ARRAY: {
+			int[] a = new int[in.readLength(1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = in.readVarInt();
+			}
+			return a;
+		}
+		case LONG_ARRAY: {
+			long[] a = new long[in.readLength(1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = in.readVarLong();
+			}
+			return a;
+		}
+		case FLOAT_ARRAY: {
+			float[] a = new float[in.readLength(4)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = Float.intBitsToFloat(in.readInt());
+			}
+			return a;
+		}
+		case DOUBLE_ARRAY: {
+			double[] a = new double[in.readLength(8)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = Double.longBitsToDouble(in.readLong());
+			}
+			return a;
+		}
+		case BOOLEAN_ARRAY: {
+			boolean[] a = new boolean[in.readLength(1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = in.read() != 0;
+			}
+			return a;
+		}
+		case OBJECT_ARRAY: {
+			Class<?> component = in.readClass();
+			Object[] a = (Object[]) Array.newInstance(component, in.readLength(1));
+			for (int i = 0; i < a.length; i++) {
+				a[i] = read(in, depth + 1);
+			}
+			return a;
+		}
+		case ENUM: {
+			Class<?> type = in.readClass();
+			Object[] constants = type.getEnumConstants();
+			int ordinal = in.readVarInt();
+			if (constants == null || ordinal < 0 || ordinal >= constants.length) {
+				throw new IOException("Invalid enum constant " + ordinal + " of " + type.getName() + "!");
+			}
+			return constants[ordinal];
+		}
+		case COLLECTION: {
+			ClassInfo info = info(in.readClass());
+			if (info.kind != COLLECTION) {
+				throw new IOException(info.type.getName() + " is not a collection!");
+			}
+			@SuppressWarnings("unchecked")
+			Collection<Object> c = (Collection<Object>) info.newInstance();
+			int size = in.readLength(1);
+			for (int i = 0; i < size; i++) {
+				c.add(read(in, depth + 1));
+			}
+			return c;
+		}
+		case MAP: {
+			ClassInfo info = info(in.readClass());
+			if (info.kind != MAP) {
+				throw new IOException(info.type.getName() + " is not a map!");
+			}
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> m = (Map<Object, Object>) info.newInstance();
+			int size = in.readLength(2);
+			for (int i = 0; i < size; i++) {
+				m.put(read(in, depth + 1), read(in, depth + 1));
+			}
+			return m;
+		}
+		case SERIALIZABLE: {
+			byte[] bytes = new byte[in.readLength(1)];
+			in.readFully(bytes);
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				// only the platform's classes are ever written this way
+				ois.setObjectInputFilter(filter -> filter.serialClass() == null
+						|| filter.serialClass().isArray() || filter.serialClass().getName().startsWith("java.")
+								? ObjectInputFilter.Status.UNDECIDED
+								: ObjectInputFilter.Status.REJECTED);
+				return ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+		case OBJECT: {
+			ClassInfo info = info(in.readClass());
+			if (info.kind != OBJECT) {
+				throw new IOException(info.type.getName() + " can not be read as an object!");
+			}
+			Object obj = info.newInstance();
+			readFields(in, obj, info, depth);
+			return obj;
+		}
+		default:
+			throw new IOException("Unknown tag " + tag + "!");
+		}
+	}
+
+	private void readFields(Input in, Object obj, ClassInfo info, int depth) throws IOException {
+		try {
+			for (int i = 0; i < info.fields.length; i++) {
+				Field f = info.fields[i];
+				switch (info.types[i]) {
+				case INT:
+					f.setInt(obj, in.readVarInt());
+					break;
+				case LONG:
+					f.setLong(obj, in.readVarLong());
+					break;
+				case DOUBLE:
+					f.setDouble(obj, Double.longBitsToDouble(in.readLong()));
+					break;
+				case FLOAT:
+					f.setFloat(obj, Float.intBitsToFloat(in.readInt()));
+					break;
+				case TRUE:
+					f.setBoolean(obj, in.read() != 0);
+					break;
+				case BYTE:
+					f.setByte(obj, (byte) in.read());
+					break;
+				case SHORT:
+					f.setShort(obj, (short) in.readVarInt());
+					break;
+				case CHAR:
+					f.setChar(obj, (char) in.readVarInt());
+					break;
+				default:
+					f.set(obj, read(in, depth + 1));
+				}
+			}
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// returns how the class is written, building it the first time
+	private ClassInfo info(Class<?> type) throws IOException {
+		ClassInfo info = infos.get(type);
+		if (info == null) {
+			info = new ClassInfo(type);
+			infos.put(type, info);
+		}
+		return info;
+	}
+
+	// how the Objects of a class are written and created, also used for the
+	// fields of delta encoded messages
+	static final class ClassInfo {
+
+		private final Class<?> type;
+		final int kind;
+		// the class created when reading, collections without a constructor are
+		// read as a common collection of the same kind
+		private Class<?> readAs;
+		Field[] fields;
+		// the tag of each field if primitive, OBJECT otherwise
+		int[] types;
+		private Constructor<?> constructor;
+
+		ClassInfo(Class<?> type) throws IOException {
+			this.type = type;
+			readAs = type;
+			if (Collection.class.isAssignableFrom(type)) {
+				kind = COLLECTION;
+			} else if (Map.class.isAssignableFrom(type)) {
+				kind = MAP;
+			} else if (type.getName().startsWith("java.") && Serializable.class.isAssignableFrom(type)) {
+				// the fields of the platform's classes can not be accessed
+				kind = SERIALIZABLE;
+				return;
+			} else {
+				kind = OBJECT;
+				fields = fields(type);
+				types = new int[fields.length];
+				for (int i = 0; i < fields.length; i++) {
+					types[i] = tag(fields[i].getType());
+				}
+			}
+
+			try {
+				Constructor<?> c = type.getDeclaredConstructor();
+				c.setAccessible(true);
+				constructor = c;
+			} catch (NoSuchMethodException | RuntimeException e) {
+				if (kind == COLLECTION) {
+					readAs = Set.class.isAssignableFrom(type) ? LinkedHashSet.class : ArrayList.class;
+				} else if (kind == MAP) {
+					readAs = LinkedHashMap.class;
+				} else if (NEW_CONSTRUCTOR != null) {
+					try {
+						constructor = (Constructor<?>) NEW_CONSTRUCTOR.invoke(REFLECTION_FACTORY, type,
+								Object.class.getDeclaredConstructor());
+					} catch (ReflectiveOperationException | RuntimeException e1) {
+						constructor = null;
+					}
+				}
+			}
+		}
+
+		boolean canCreate() {
+			return constructor != null;
+		}
+
+		Object newInstance() throws IOException {
+			if (constructor == null) {
+				throw new IOException("No way to create an instance of " + type.getName() + "!");
+			}
+			try {
+				return constructor.newInstance();
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+
+		// every instance field of the class and its superclasses in a fixed order
+		private static Field[] fields(Class<?> type) throws IOException {
+			ArrayList<Field> list = new ArrayList<Field>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				Field[] declared = c.getDeclaredFields();
+				Arrays.sort(declared, Comparator.comparing(Field::getName));
+				for (Field f : declared) {
+					int modifiers = f.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+						continue;
+					}
+					try {
+						f.setAccessible(true);
+					} catch (RuntimeException e) {
+						throw new IOException("Can not access " + f + "!", e);
+					}
+					list.add(f);
+				}
+			}
+			return list.toArray(new Field[list.size()]);
+		}
+
+		private static int tag(Class<?> type) {
+			if (type == int.class) {
+				return INT;
+			} else if (type == long.class) {
+				return LONG;
+			} else if (type == double.class) {
+				return DOUBLE;
+			} else if (type == float.class) {
+				return FLOAT;
+			} else if (type == boolean.class) {
+				return TRUE;
+			} else if (type == byte.class) {
+				return BYTE;
+			} else if (type == short.class) {
+				return SHORT;
+			} else if (type == char.class) {
+				return CHAR;
+			}
+			return OBJECT;
+		}
+
+	}
+
+	// buffered writer of one message
+	private final class Output {
+
+		private final OutputStream out;
+		private final byte[] buffer;
+		private int count = 0;
+		// unregistered classes already named in this message
+		private HashMap<Class<?>, Integer> named;
+
+		Output(OutputStream out, byte[] buffer) {
+			this.out = out;
+			this.buffer = buffer;
+		}
+
+		void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		void write(byte[] b) throws IOException {
+			if (b.length > buffer.length - count) {
+				flush();
+				out.write(b);
+			} else {
+				System.arraycopy(b, 0, buffer, count, b.length);
+				count += b.length;
+			}
+		}
+
+		void writeInt(int v) throws IOException {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		void writeLong(long v) throws IOException {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		// zig zag encoded so small negative numbers stay small
+		void writeVarInt(int v) throws IOException {
+			writeUnsigned((v << 1) ^ (v >> 31));
+		}
+
+		void writeVarLong(long v) throws IOException {
+			long u = (v << 1) ^ (v >> 63);
+			while ((u & ~0x7FL) != 0) {
+				write((int) ((u & 0x7F) | 0x80));
+				u >>>= 7;
+			}
+			write((int) u);
+		}
+
+		void writeUnsigned(int v) throws IOException {
+			while ((v & ~0x7F) != 0) {
+				write((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			write(v);
+		}
+
+		// the char count and whether the String is ASCII, then the bytes
+		void writeString(String s) throws IOException {
+			int length = s.length();
+			boolean ascii = true;
+			for (int i = 0; i < length && ascii; i++) {
+				ascii = s.charAt(i) < 0x80;
+			}
+			writeUnsigned(length << 1 | (ascii ? 1 : 0));
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					write(c);
+				} else if (c < 0x800) {
+					write(0xC0 | c >> 6);
+					write(0x80 | (c & 0x3F));
+				} else {
+					write(0xE0 | c >> 12);
+					write(0x80 | (c >> 6 & 0x3F));
+					write(0x80 | (c & 0x3F));
+				}
+			}
+		}
+
+		// registered classes as 2 * id + 1, classes named earlier in the message
+		// as 2 * index + 2 and new classes as 0 followed by the name
+		void writeClass(Class<?> type) throws IOException {
+			Integer id = ids.get(type);
+			if (id != null) {
+				writeUnsigned(2 * id + 1);
+				return;
+			}
+			if (named == null) {
+				named = new HashMap<Class<?>, Integer>();
+			}
+			Integer index = named.get(type);
+			if (index != null) {
+				writeUnsigned(2 * index + 2);
+				return;
+			}
+			named.put(type, named.size());
+			writeUnsigned(0);
+			writeString(type.getName());
+		}
+
+		void flush() throws IOException {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+
+	}
+
+	// buffered reader of one message
+	private final class Input {
+
+		private final InputStream in;
+		private final byte[] buffer;
+		private int position = 0, limit = 0;
+		private ArrayList<Class<?>> named;
+		// whether the stream holds one whole message and knows how much of it is
+		// left, as for the frames of a connection
+		private final boolean sized;
+
+		Input(InputStream in, byte[] buffer) {
+			this.in = in;
+			this.buffer = buffer;
+			sized = in instanceof ByteBufferInputStream || in instanceof ByteArrayInputStream;
+		}
+
+		int read() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					throw new EOFException();
+				}
+			}
+			return buffer[position++] & 0xFF;
+		}
+
+		void readFully(byte[] b) throws IOException {
+			int n = Math.min(limit - position, b.length);
+			System.arraycopy(buffer, position, b, 0, n);
+			position += n;
+			while (n < b.length) {
+				int read = in.read(b, n, b.length - n);
+				if (read < 0) {
+					throw new EOFException();
+				}
+				n += read;
+			}
+		}
+
+		int readInt() throws IOException {
+			return read() << 24 | read() << 16 | read() << 8 | read();
+		}
+
+		long readLong() throws IOException {
+			return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+		}
+
+		int readVarInt() throws IOException {
+			int u = readUnsigned();
+			return (u >>> 1) ^ -(u & 1);
+		}
+
+		long readVarLong() throws IOException {
+			long u = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				u |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return (u >>> 1) ^ -(u & 1);
+				}
+			}
+			throw new IOException("Malformed variable length number!");
+		}
+
+		int readUnsigned() throws IOException {
+			int u = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = read();
+				u |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return u;
+				}
+			}
+			throw new IOException("Malformed variable length number!");
+		}
+
+		// read the length of something of which every element takes at least the
+		// specified bytes, which must all be left in the message so a few bytes
+		// can not ask for a huge array
+		int readLength(int elementSize) throws IOException {
+			int length = readVarInt();
+			if (length < 0) {
+				throw new IOException("Negative length " + length + "!");
+			}
+			long left = remaining();
+			if ((long) length * elementSize > left) {
+				throw new IOException("Length " + length + " exceeds the " + left + " bytes left!");
+			}
+			return length;
+		}
+
+		// the bytes left in the message, unknown for a stream that is not sized
+		private long remaining() throws IOException {
+			return sized ? (long) limit - position + in.available() : Long.MAX_VALUE;
+		}
+
+		String readString() throws IOException {
+			int header = readUnsigned();
+			int length = header >>> 1;
+			// every char takes a byte at least
+			long left = remaining();
+			if (length > left) {
+				throw new IOException("String of " + length + " chars exceeds the " + left + " bytes left!");
+			}
+			char[] chars = new char[length];
+			if ((header & 1) != 0) {
+				for (int i = 0; i < length; i++) {
+					chars[i] = (char) read();
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					int b = read();
+					if (b < 0x80) {
+						chars[i] = (char) b;
+					} else if (b < 0xE0) {
+						chars[i] = (char) ((b & 0x1F) << 6 | (read() & 0x3F));
+					} else {
+						chars[i] = (char) ((b & 0x0F) << 12 | (read() & 0x3F) << 6 | (read() & 0x3F));
+					}
+				}
+			}
+			return new String(chars);
+		}
+
+		Class<?> readClass() throws IOException {
+			int ref = readUnsigned();
+			if ((ref & 1) != 0) {
+				Class<?> type = classes.get(ref >>> 1);
+				if (type == null) {
+					throw new IOException("Unregistered class id " + (ref >>> 1) + "!");
+				}
+				return type;
+			}
+			if (named == null) {
+				named = new ArrayList<Class<?>>();
+			}
+			if (ref != 0) {
+				int index = (ref - 2) >>> 1;
+				if (index >= named.size()) {
+					throw new IOException("Unknown class reference " + index + "!");
+				}
+				return named.get(index);
+			}
+			String name = readString();
+			try {
+				ClassLoader loader = Thread.currentThread().getContextClassLoader();
+				Class<?> type = Class.forName(name, false,
+						loader != null ? loader : BinarySerializer.class.getClassLoader());
+				named.add(type);
+				return type;
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+
+	}
+
+}
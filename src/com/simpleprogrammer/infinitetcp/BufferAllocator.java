@@ -0,0 +1,50 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out the buffers which frames are encoded into and read from<br>
+ * Every buffer allocated is given back with {@link #release(ByteBuffer)} once
+ * it is no longer used, after which it must not be touched. An allocator is
+ * used by many threads at once. {@link PooledAllocator#DEFAULT} is used unless
+ * another is set on the Client or Server.
+ *
+ * @see PooledAllocator
+ */
+public interface BufferAllocator {
+
+	/**
+	 * An allocator which creates a new heap buffer every time and leaves freeing
+	 * it to the garbage collector
+	 */
+	BufferAllocator UNPOOLED = new BufferAllocator() {
+		@Override
+		public ByteBuffer allocate(int size) {
+			return ByteBuffer.allocate(size);
+		}
+
+		@Override
+		public void release(ByteBuffer buffer) {
+		}
+	};
+
+	/**
+	 * Returns a buffer of at least the specified size<br>
+	 * The buffer's position is 0 and its limit the size, its capacity may be
+	 * larger. Its contents are undefined.
+	 *
+	 * @param size
+	 *            the number of bytes needed
+	 * @return the buffer
+	 */
+	public ByteBuffer allocate(int size);
+
+	/**
+	 * Gives back a buffer returned by {@link #allocate(int)}
+	 *
+	 * @param buffer
+	 *            the buffer which is no longer used
+	 */
+	public void release(ByteBuffer buffer);
+
+}
@@ -0,0 +1,64 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading straight from a ByteBuffer<br>
+ * Lets a {@link Serializer} read a frame's payload without copying it first.
+ * One stream is kept per connection and reset to every payload.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	// a stream reused for every frame of a connection
+	ByteBufferInputStream() {
+		this(ByteBuffer.allocate(0));
+	}
+
+	/**
+	 * Reads from the buffer from now on
+	 * 
+	 * @return this stream
+	 */
+	ByteBufferInputStream reset(ByteBuffer buffer) {
+		this.buffer = buffer;
+		return this;
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+
+/**
+ * A logical channel sharing the socket of a Client or Connection with the
+ * other channels, opened with {@link Client#openChannel(int, Priority, int)} or
+ * {@link Connection#openChannel(int, Priority, int)}<br>
+ * The messages and streams of a channel arrive in the order they were sent,
+ * but may overtake those of other channels: the frames of a channel of a
+ * higher {@link Priority} are written first, channels of the same priority
+ * take turns in proportion to their weights. So control messages sent on a
+ * {@link Priority#HIGH} channel do not wait behind a bulk transfer on a
+ * {@link Priority#LOW} one.<br>
+ * The peer receives the messages with the channel's id by
+ * {@link Listener#onReceive(int, Object)} and
+ * {@link ServerListener#onReceive(Connection, int, Object)}. The priority only
+ * applies to what is sent, each side opens the channels it sends on. Messages
+ * of a channel are neither kept by a session nor by a {@link Spool}, as their
+ * order among the other messages is not kept either.
+ */
+public final class Channel {
+
+	private final int id;
+	private final Priority priority;
+	private final int weight;
+	// the Client or the Connection the channel belongs to, the other is null
+	private final Client client;
+	private final Connection connection;
+
+	Channel(int id, Priority priority, int weight, Client client, Connection connection) {
+		this.id = id;
+		this.priority = priority;
+		this.weight = weight;
+		this.client = client;
+		this.connection = connection;
+	}
+
+	// check the arguments of a channel to be opened
+	static void check(int id, Priority priority, int weight) {
+		if (id <= 0) {
+			throw new IllegalArgumentException("Channel id must be positive: " + id + "!");
+		}
+		if (priority == null) {
+			throw new IllegalArgumentException("Priority can not be null!");
+		}
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be positive: " + weight + "!");
+		}
+	}
+
+	/**
+	 * Sends the specified Object on the channel<br>
+	 * The backpressure of the Client or Server applies, except on a
+	 * {@link Priority#HIGH} channel.
+	 *
+	 * @param obj
+	 *            the Object to send
+	 * @exception IllegalStateException
+	 *                if the socket is not connected, or the send queue is full
+	 *                and the backpressure is {@link Backpressure#FAIL}
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 */
+	public void send(Object obj) {
+		if (client != null) {
+			client.send(this, obj);
+		} else {
+			connection.send(this, obj);
+		}
+	}
+
+	/**
+	 * Opens a stream whose chunks are sent on the channel, so a bulk transfer
+	 * can be given a low priority
+	 *
+	 * @param metadata
+	 *            an Object sent ahead of the bytes, such as the name of a file,
+	 *            or null
+	 * @return the stream to write to and close
+	 * @exception IOException
+	 *                if the connection is closed
+	 * @see Client#openStream(Object)
+	 * @see Connection#openStream(Object)
+	 */
+	public OutboundStream openStream(Object metadata) throws IOException {
+		if (client != null) {
+			return client.openStream(this, metadata);
+		}
+		return connection.openStream(this, metadata);
+	}
+
+	/**
+	 * @return the id the peer receives the messages with
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the priority of the channel's frames
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return the share of the connection the channel gets among the channels of
+	 *         its priority
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+}
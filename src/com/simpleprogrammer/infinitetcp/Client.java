@@ -1,46 +1,150 @@
 package com.simpleprogrammer.infinitetcp;
 
 import java.awt.Dimension;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import javax.management.ObjectName;
 
 /**
  * The class in which an connection is issued to a TCP server<br>
- * The class uses XML to serialize the data Data is sent using the @link
+ * The class uses XML to serialize the data unless another {@link Serializer} is
+ * set. Data is sent using the @link
  * #send(Object) method
  */
 public class Client {
 
+	// size of the buffer the receive thread reads into
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
 	// Internet Protocol address for socket to connect to
 	private InetAddress ip = null;
+	// host name the client was bound to, looked up again on every connect, null
+	// if it was bound to an address
+	private String host;
+	// further addresses tried in turn when the bound one does not accept
+	private volatile InetSocketAddress[] addresses = new InetSocketAddress[0];
 	// Port for socket to connect to
 	private int port = -1;
-	// XMLSerializer to send objects as XML string over socket XMLSerializer uses
-	// xStream library
-	private XMLSerializer serializer = new XMLSerializer();
+	// Serializer to send objects as bytes over the socket, an XMLSerializer using
+	// the xStream library unless another is set
+	private Serializer serializer;
 	// The main Socket
 	private Socket socket;
 	// Check if the socket has started
 	private boolean started = false;
 	// check if the socket is bound to an ip and port
 	private boolean bound = false;
-	// Threads to receive and send data
-	private Thread receive, send;
-	// BufferedReader to read XML data
-	private BufferedReader in;
-	// BufferedWriter to write XML data
-	private BufferedWriter out;
-	// List of listeners user has added
-	private ArrayList<Listener> listeners = new ArrayList<Listener>();
+	// Thread to receive data
+	private Thread receive;
+	// creates the receive thread and the send threads, null for the defaults
+	private ThreadFactory threadFactory;
+	// InputStream to read the frames
+	private InputStream in;
+	// splits the received bytes into frames
+	private FrameDecoder decoder;
+	// largest frame accepted from or sent to the server
+	private int maxFrameSize = Frame.DEFAULT_MAX_FRAME_SIZE;
+	// BufferedOutputStream to write the messages
+	private BufferedOutputStream out;
+	// messages waiting to be written, drained by a writer thread
+	private SendQueue sendQueue;
+	// the streams open on the connection in both directions
+	private volatile Streams streams;
+	// bytes of a stream from the server buffered ahead of its reader
+	private int streamWindow = Streams.DEFAULT_WINDOW;
+	// the channels opened by id
+	private final ConcurrentHashMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+	// the topic patterns subscribed to, sent again every time the client
+	// connects, changed holding the lifecycle lock
+	private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+	// how long the server may be idle before it is pinged, and before the
+	// connection is given up, null for ever
+	private Duration heartbeatInterval;
+	private Duration readIdleTimeout;
+	// how long queued bytes may wait without being written, null for ever
+	private Duration writeIdleTimeout;
+	// pings the server and gives the connection up when idle, null for none
+	private Heartbeat heartbeat;
+	// requests waiting for a response
+	private final PendingRequests pending = new PendingRequests();
+	// queued bytes after which the backpressure applies
+	private int highWaterMark = SendQueue.DEFAULT_HIGH_WATER_MARK;
+	private Backpressure backpressure = Backpressure.BLOCK;
+	// compression offered in the handshake, null for none
+	private Compression compression;
+	// the compression offered when the client was started
+	private Compression offered;
+	// compresses the frames once the server has agreed, null until then
+	private volatile Compressor compressor;
+	// whether delta encoding is offered in the handshake
+	private boolean deltaEncoding = false;
+	// delta encodes the messages once the server has agreed, null until then
+	private volatile Delta delta;
+	// TLS of the connection, null for none
+	private Security security;
+	// allocator of the frames sent and received
+	private BufferAllocator allocator = PooledAllocator.DEFAULT;
+	// stream the received payloads are deserialized from
+	private final ByteBufferInputStream payloads = new ByteBufferInputStream();
+	// counts what goes through the client over every time it was started
+	private final Metrics metrics = new Metrics();
+	// name the metrics are registered by with JMX, null if they are not
+	private ObjectName mbean;
+	// log of the messages sent until the server acknowledges them, null for none
+	private Spool spool;
+	// the spool used since the client was started
+	private Spool spooling;
+	// sequence number in the spool of the first message sent on the connection
+	private long firstSpooled;
+	// held to append to the spool and queue in the same order, never while
+	// waiting for room in the send queue
+	private final ReentrantLock spoolLock = new ReentrantLock();
+	// how the client reconnects when the connection breaks, null to not
+	private Reconnect reconnect;
+	// held while connecting and disconnecting
+	private final Object lifecycle = new Object();
+	// set by stop so a reconnect waiting gives up
+	private volatile boolean stopped = false;
+	// the thread waiting to reconnect, null if none
+	private volatile Thread reconnecting;
+	// whether the next answer to the handshake completes a reconnect
+	private boolean reconnected = false;
+	// token of the session the server has given, null if none
+	private byte[] sessionToken;
+	// messages of the server received in the session, and the count last
+	// acknowledged to it
+	private long sessionReceived = 0;
+	private long sessionAcked = 0;
+	// whether the messages received count for the session, only used by the
+	// receive thread
+	private boolean counting = false;
+	// listeners user has added, replaced as a whole when changed so it can be
+	// iterated without locking
+	private volatile Listener[] listeners = new Listener[0];
 
 	/**
 	 * Constructs a client which is bound to the specified String as an InetAddress
@@ -70,6 +174,7 @@ public class Client {
 			throw new IllegalArgumentException("Port out of range: " + port + "!");
 		}
 
+		host = ip;
 		this.port = port;
 		bound = true;
 	}
@@ -134,6 +239,7 @@ public class Client {
 			throw new IllegalArgumentException("Port out of range: " + port + "!");
 		}
 
+		host = ip;
 		this.port = port;
 		bound = true;
 	}
@@ -160,42 +266,242 @@ public class Client {
 			throw new IllegalArgumentException("Port out of range: " + port + "!");
 		}
 
+		host = null;
 		this.port = port;
 		bound = true;
 	}
 
+	/**
+	 * Adds an address which is tried when the bound one does not accept the
+	 * connection<br>
+	 * Every time the client connects, the bound address and then the added ones
+	 * are tried in the order they were added. A host name is looked up every time
+	 * and each of its addresses is tried.
+	 * 
+	 * @param host
+	 *            the host name or IP of the server
+	 * @param port
+	 *            the port of the server
+	 * @exception IllegalArgumentException
+	 *                if the port is out of range
+	 */
+	public synchronized void addAddress(String host, int port) {
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Port out of range: " + port + "!");
+		}
+		addAddress(InetSocketAddress.createUnresolved(host, port));
+	}
+
+	/**
+	 * Adds an address which is tried when the bound one does not accept the
+	 * connection<br>
+	 * Every time the client connects, the bound address and then the added ones
+	 * are tried in the order they were added.
+	 * 
+	 * @param ip
+	 *            the InetAddress of the server
+	 * @param port
+	 *            the port of the server
+	 * @exception IllegalArgumentException
+	 *                if the port is out of range
+	 */
+	public synchronized void addAddress(InetAddress ip, int port) {
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Port out of range: " + port + "!");
+		}
+		addAddress(new InetSocketAddress(ip, port));
+	}
+
+	// add an address to the ones tried in turn
+	private void addAddress(InetSocketAddress address) {
+		InetSocketAddress[] added = Arrays.copyOf(addresses, addresses.length + 1);
+		added[addresses.length] = address;
+		addresses = added;
+	}
+
+	/**
+	 * @return the addresses added with {@link #addAddress(String, int)} and
+	 *         {@link #addAddress(InetAddress, int)}, a host name is unresolved
+	 */
+	public List<InetSocketAddress> getAddresses() {
+		return Collections.unmodifiableList(Arrays.asList(addresses));
+	}
+
 	/**
 	 * Starts the clients socket and starts receiving from it.
 	 * 
 	 * @throws IOException
-	 *             if an I/O exception happens when starting the socket
+	 *             if an I/O exception happens when starting the socket, or none
+	 *             of the addresses accepts the connection
 	 **/
 	public void start() throws IOException {
 		if (!bound) {
 			throw new IllegalStateException("Socket is not bound!");
 		}
-		checkStarted();
+		synchronized (lifecycle) {
+			checkStarted();
+			stopped = false;
+			// a client started anew begins a new session
+			sessionToken = null;
+			sessionReceived = 0;
+			connect();
+		}
+	}
 
-		this.socket = new Socket(ip, port);
-		out = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(socket.getOutputStream())));
+	// connect to the first address which accepts and start receiving
+	private void connect() throws IOException {
+		getSerializer();
+		Socket socket = open();
+		if (security != null) {
+			socket = secure(socket);
+		}
+		this.socket = socket;
+		// frames are already written in batches, Nagle's algorithm only delays them
+		socket.setTcpNoDelay(true);
+		sendQueue = new SendQueue(highWaterMark, backpressure, Threads.writers(threadFactory), this::write, metrics);
+		streams = new Streams(sendQueue, streamWindow, maxFrameSize, allocator);
+		out = new BufferedOutputStream(socket.getOutputStream());
 		out.flush();
-		in = new BufferedReader(new InputStreamReader(new BufferedInputStream(socket.getInputStream())));
+		in = socket.getInputStream();
+		decoder = new FrameDecoder(maxFrameSize, allocator);
+		// closing the socket breaks the connection as the server going would, on a
+		// thread of its own as closing TLS may wait for a stalled write
+		Socket connected = socket;
+		heartbeat = Heartbeat.start(heartbeatInterval, readIdleTimeout, writeIdleTimeout, sendQueue, allocator,
+				() -> Threads.start(threadFactory, "Close", () -> {
+					try {
+						connected.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}));
+
+		// the handshake is the first frame sent
+		offered = compression;
+		compressor = null;
+		Handshake hello = new Handshake();
+		if (offered != null) {
+			hello.compression = true;
+			hello.dictionaryId = offered.dictionaryId();
+		}
+		spooling = spool;
+		hello.acks = spooling != null;
+		// deltas can not be spooled and sent again on another connection
+		delta = null;
+		hello.delta = deltaEncoding && spooling == null;
+		if (reconnect != null) {
+			// ask for a session to resume when reconnecting
+			hello.session = true;
+			hello.token = sessionToken;
+			hello.received = sessionReceived;
+		}
+		counting = false;
+		sessionAcked = sessionReceived;
+		sendQueue.add(new SharedFrame(hello.encode(allocator), 1, allocator));
+
+		// started must be set before the receive thread checks it
+		if (spooling != null) {
+			// what the server has not acknowledged goes before any new message
+			spoolLock.lock();
+			try {
+				firstSpooled = spooling.replay(this::resend);
+				started = true;
+			} finally {
+				spoolLock.unlock();
+			}
+		} else {
+			started = true;
+		}
+		// the server's new connection is not subscribed to anything yet
+		for (String pattern : subscriptions) {
+			sendQueue.control(new SharedFrame(Frame.topic(Frame.SUBSCRIBE, pattern, allocator), 1, allocator));
+		}
 
 		receive();
 
-		started = true;
+	}
+
+	// try the bound address and then the added ones, every address of a host name
+	// in turn
+	private Socket open() throws IOException {
+		ArrayList<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+		endpoints.add(host != null ? InetSocketAddress.createUnresolved(host, port) : new InetSocketAddress(ip, port));
+		endpoints.addAll(Arrays.asList(addresses));
+		int timeout = connectTimeout();
+		IOException failure = null;
+		for (InetSocketAddress endpoint : endpoints) {
+			InetAddress[] candidates;
+			try {
+				candidates = endpoint.isUnresolved() ? InetAddress.getAllByName(endpoint.getHostString())
+						: new InetAddress[] { endpoint.getAddress() };
+			} catch (UnknownHostException e) {
+				failure = e;
+				continue;
+			}
+			for (InetAddress candidate : candidates) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(candidate, endpoint.getPort()), timeout);
+					return socket;
+				} catch (IOException e) {
+					socket.close();
+					failure = e;
+				}
+			}
+		}
+		throw failure;
+	}
+
+	// how long to wait for an address to accept and for the handshake of TLS
+	private int connectTimeout() {
+		return reconnect == null ? 0 : reconnect.getConnectTimeout();
+	}
 
+	// wrap the connected socket in TLS and do the handshake before anything is
+	// sent, a session cached for the address is resumed
+	private Socket secure(Socket socket) throws IOException {
+		InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+		SSLSocket secure;
+		try {
+			secure = security.layer(socket, true, remote.getHostString(), remote.getPort());
+			secure.setSoTimeout(connectTimeout());
+			secure.startHandshake();
+			secure.setSoTimeout(0);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return secure;
 	}
 
 	/**
-	 * Stops the clients socket and the input and output streams.
+	 * Stops the clients socket and the input and output streams.<br>
+	 * A reconnect in progress is given up.
 	 * 
 	 * @throws IOException
 	 *             if an I/O exception happens when stopping the socket
 	 **/
 	public void stop() throws IOException {
+		stopped = true;
+		Thread waiting = reconnecting;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+		synchronized (lifecycle) {
+			close();
+		}
+	}
+
+	// close the socket and the streams, holding the lifecycle lock
+	private void close() throws IOException {
 		if (started) {
 			started = false;
+			if (heartbeat != null) {
+				heartbeat.stop();
+			}
+			sendQueue.close();
+			streams.close();
+			pending.failAll(new IOException("Disconnected!"));
 			if (receive.isAlive()) {
 				try {
 					receive.join(1);
@@ -218,6 +524,46 @@ public class Client {
 		if (started) {
 			throw new IllegalStateException("Socket already connected!");
 		}
+		if (reconnecting != null) {
+			throw new IllegalStateException("Socket is reconnecting!");
+		}
+	}
+
+	// connect again after the connection broke, waiting longer after every failed
+	// attempt, until connected, stopped or out of attempts
+	private void reconnect(Reconnect reconnect) {
+		reconnecting = Thread.currentThread();
+		try {
+			for (Listener listener : listeners) {
+				listener.onConnectionLost();
+			}
+			int attempts = reconnect.getMaxAttempts();
+			for (int attempt = 0; attempts == 0 || attempt < attempts; attempt++) {
+				long deadline = System.nanoTime() + reconnect.delay(attempt);
+				for (long left; !stopped && (left = deadline - System.nanoTime()) > 0;) {
+					LockSupport.parkNanos(this, left);
+				}
+				synchronized (lifecycle) {
+					if (stopped) {
+						break;
+					}
+					try {
+						reconnected = true;
+						connect();
+						return;
+					} catch (IOException e) {
+						// the server is still away, try again
+						reconnected = false;
+					}
+				}
+			}
+		} finally {
+			reconnecting = null;
+		}
+		// given up or stopped
+		for (Listener listener : listeners) {
+			listener.onDisconnect();
+		}
 	}
 
 	/**
@@ -228,77 +574,1041 @@ public class Client {
 	}
 
 	/**
-	 * Sends the specified object to the server in XML format
+	 * Sets the number of bytes that may be queued for sending before the
+	 * {@link Backpressure} applies<br>
+	 * Takes effect the next time the client is started, the default is 1 MB
+	 * 
+	 * @param highWaterMark
+	 *            the high water mark in bytes
+	 * @exception IllegalArgumentException
+	 *                if the high water mark is not positive
+	 */
+	public void setHighWaterMark(int highWaterMark) {
+		if (highWaterMark <= 0) {
+			throw new IllegalArgumentException("High water mark must be positive: " + highWaterMark + "!");
+		}
+		this.highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * @return the number of bytes that may be queued before the
+	 *         {@link Backpressure} applies
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Sets what {@link #send(Object)} does when the queue has reached the high
+	 * water mark<br>
+	 * Takes effect the next time the client is started, the default is
+	 * {@link Backpressure#BLOCK}
+	 * 
+	 * @param backpressure
+	 *            the backpressure to apply
+	 */
+	public void setBackpressure(Backpressure backpressure) {
+		if (backpressure == null) {
+			throw new IllegalArgumentException("Backpressure can not be null!");
+		}
+		this.backpressure = backpressure;
+	}
+
+	/**
+	 * @return what {@link #send(Object)} does when the queue has reached the high
+	 *         water mark
+	 */
+	public Backpressure getBackpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * Sets the largest message in bytes the client accepts or sends<br>
+	 * Takes effect the next time the client is started, the default is 16 MB
+	 * 
+	 * @param maxFrameSize
+	 *            the largest message size in bytes
+	 * @exception IllegalArgumentException
+	 *                if the size is not positive
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("Maximum frame size must be positive: " + maxFrameSize + "!");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return the largest message in bytes the client accepts or sends
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Sets the number of bytes of each stream from the server the client buffers
+	 * ahead of its reader<br>
+	 * The server waits to write more until the stream is read. Takes effect the
+	 * next time the client is started, the default is 256 KB.
+	 * 
+	 * @param streamWindow
+	 *            the number of bytes
+	 * @exception IllegalArgumentException
+	 *                if the window is not positive
+	 * @see Listener#onStream(InboundStream)
+	 */
+	public void setStreamWindow(int streamWindow) {
+		if (streamWindow <= 0) {
+			throw new IllegalArgumentException("Stream window must be positive: " + streamWindow + "!");
+		}
+		this.streamWindow = streamWindow;
+	}
+
+	/**
+	 * @return the number of bytes of each stream the client buffers ahead of its
+	 *         reader
+	 */
+	public int getStreamWindow() {
+		return streamWindow;
+	}
+
+	/**
+	 * Sets how long nothing may arrive from the server before it is pinged<br>
+	 * The server answers the ping, so with a read idle timeout longer than the
+	 * interval only a dead server or a half open connection is given up, however
+	 * quiet the server is. Takes effect the next time the client connects, by
+	 * default there are no pings.
+	 * 
+	 * @param heartbeatInterval
+	 *            how long the server may be idle, or null to not ping
+	 * @exception IllegalArgumentException
+	 *                if the interval is not positive
+	 * @see #setReadIdleTimeout(Duration)
+	 */
+	public void setHeartbeatInterval(Duration heartbeatInterval) {
+		Heartbeat.check("Heartbeat interval", heartbeatInterval);
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * @return how long nothing may arrive from the server before it is pinged,
+	 *         null if it is not
+	 */
+	public Duration getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Sets how long nothing may arrive from the server before the connection is
+	 * given up<br>
+	 * The connection breaks as if the server had gone: with a {@link Reconnect}
+	 * the client connects again, otherwise {@link Listener#onDisconnect()} is
+	 * called. Takes effect the next time the client connects, by default there
+	 * is none.
+	 * 
+	 * @param readIdleTimeout
+	 *            how long the server may be idle, or null for ever
+	 * @exception IllegalArgumentException
+	 *                if the timeout is not positive
+	 * @see #setHeartbeatInterval(Duration)
+	 */
+	public void setReadIdleTimeout(Duration readIdleTimeout) {
+		Heartbeat.check("Read idle timeout", readIdleTimeout);
+		this.readIdleTimeout = readIdleTimeout;
+	}
+
+	/**
+	 * @return how long nothing may arrive from the server before the connection
+	 *         is given up, null if for ever
+	 */
+	public Duration getReadIdleTimeout() {
+		return readIdleTimeout;
+	}
+
+	/**
+	 * Sets how long messages may wait to be sent without any byte being written
+	 * before the connection is given up<br>
+	 * A server which has stopped reading, or a half open connection, fills the
+	 * socket's buffers and then the send queue. The connection breaks as if the
+	 * server had gone. Takes effect the next time the client connects, by
+	 * default there is none.
+	 * 
+	 * @param writeIdleTimeout
+	 *            how long nothing may be written, or null for ever
+	 * @exception IllegalArgumentException
+	 *                if the timeout is not positive
+	 */
+	public void setWriteIdleTimeout(Duration writeIdleTimeout) {
+		Heartbeat.check("Write idle timeout", writeIdleTimeout);
+		this.writeIdleTimeout = writeIdleTimeout;
+	}
+
+	/**
+	 * @return how long messages may wait without any byte being written before
+	 *         the connection is given up, null if for ever
+	 */
+	public Duration getWriteIdleTimeout() {
+		return writeIdleTimeout;
+	}
+
+	/**
+	 * Sets the {@link BufferAllocator} the messages are encoded into and read
+	 * from<br>
+	 * Takes effect the next time the client is started, the default is
+	 * {@link PooledAllocator#DEFAULT}
+	 * 
+	 * @param allocator
+	 *            the allocator to use
+	 */
+	public void setAllocator(BufferAllocator allocator) {
+		if (allocator == null) {
+			throw new IllegalArgumentException("Allocator can not be null!");
+		}
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return the {@link BufferAllocator} the messages are encoded into and read
+	 *         from
+	 */
+	public BufferAllocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * Sets the compression offered to the server in the handshake<br>
+	 * The messages are compressed once the server agrees, which it only does when
+	 * it has compression set too. Takes effect the next time the client is
+	 * started, by default there is no compression.
+	 * 
+	 * @param compression
+	 *            the settings of the compression, or null for none
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return the settings of the compression, null if there is none
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the TLS the connection is encrypted with<br>
+	 * The server must have TLS set too. The handshake is done when the client
+	 * connects, a session cached by the Security for the same address is resumed.
+	 * Takes effect the next time the client is started, by default there is no
+	 * TLS.
+	 * 
+	 * @param security
+	 *            the settings of the TLS, holding the certificates trusted, or
+	 *            null for none
+	 */
+	public void setSecurity(Security security) {
+		this.security = security;
+	}
+
+	/**
+	 * @return the settings of the TLS, null if there is none
+	 */
+	public Security getSecurity() {
+		return security;
+	}
+
+	/**
+	 * @return the TLS session of the connection, null if the client is not
+	 *         connected or not encrypted
+	 */
+	public SSLSession getSSLSession() {
+		Socket socket = this.socket;
+		return started && socket instanceof SSLSocket ? ((SSLSocket) socket).getSession() : null;
+	}
+
+	/**
+	 * @return whether or not the server has agreed to compress the messages
+	 */
+	public boolean isCompressed() {
+		return compressor != null;
+	}
+
+	/**
+	 * Sets whether delta encoding is offered to the server in the handshake<br>
+	 * Once the server agrees, which it only does when it has delta encoding set
+	 * too, the first message of a class is sent whole and the next ones of the
+	 * class as the fields changed since. Only the messages sent with
+	 * {@link #send(Object)} of plain classes with fields are delta encoded. It
+	 * is not offered with a {@link Spool} or agreed to with a session of a
+	 * {@link Reconnect}, whose messages may be sent again on another
+	 * connection. Takes effect the next time the client connects, by default it
+	 * is off.
+	 * 
+	 * @param deltaEncoding
+	 *            whether or not to offer delta encoding
+	 * @see Server#setDeltaEncoding(boolean)
+	 */
+	public void setDeltaEncoding(boolean deltaEncoding) {
+		this.deltaEncoding = deltaEncoding;
+	}
+
+	/**
+	 * @return whether or not delta encoding is offered to the server
+	 */
+	public boolean isDeltaEncoding() {
+		return deltaEncoding;
+	}
+
+	/**
+	 * @return whether or not the server has agreed to delta encode the messages
+	 */
+	public boolean isDeltaEncoded() {
+		return delta != null;
+	}
+
+	/**
+	 * Sets how the client reconnects when its connection breaks<br>
+	 * Without one, the default, the client stops when the connection breaks and
+	 * the listeners' {@link Listener#onDisconnect()} is called. With one,
+	 * {@link Listener#onConnectionLost()} is called and the client connects
+	 * again, {@link Listener#onReconnect(boolean)} is called once the server has
+	 * answered. Requests waiting for a response fail when the connection breaks
+	 * and {@link #send(Object)} fails until the client is connected again,
+	 * unless there is a {@link Spool}. A server which keeps sessions sends the
+	 * messages the client missed again. Takes effect the next time the client is
+	 * started.
+	 * 
+	 * @param reconnect
+	 *            the settings of the reconnect, or null to not reconnect
+	 * @see Server#setSessionTimeout(Duration)
+	 */
+	public void setReconnect(Reconnect reconnect) {
+		this.reconnect = reconnect;
+	}
+
+	/**
+	 * @return the settings of the reconnect, null if the client does not
+	 *         reconnect
+	 */
+	public Reconnect getReconnect() {
+		return reconnect;
+	}
+
+	/**
+	 * Sets the {@link Spool} the messages are logged to until the server
+	 * acknowledges them<br>
+	 * With a spool, messages can be sent while the client is not connected and
+	 * every message not acknowledged is sent again when it is started. The
+	 * server must be told to acknowledge, so the spool is asked for in the
+	 * handshake. Messages are queued waiting for room whatever the
+	 * {@link Backpressure}, the spool filling up fails a send instead. Requests
+	 * are not spooled. Takes effect the next time the client is started, by
+	 * default there is no spool.
+	 * 
+	 * @param spool
+	 *            the spool to use, or null for none
+	 */
+	public void setSpool(Spool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * @return the {@link Spool} the messages are logged to, null if there is none
+	 */
+	public Spool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * Sets the factory of the threads which receive from the server, run the
+	 * listeners and write the sent Objects<br>
+	 * With a factory every burst of sends is written by a new thread so it is
+	 * meant for cheap threads such as virtual threads. Without one, the default,
+	 * a platform thread receives and a bounded pool of threads shared by every
+	 * Client and Server writes. A write holds its thread until the server reads,
+	 * so while every thread of the pool writes to a peer that stopped reading
+	 * the sends wait for a free one; a
+	 * {@link #setWriteIdleTimeout(Duration) write idle timeout} gives such
+	 * connections up. Takes effect the next time the client is started.
+	 * 
+	 * @param threadFactory
+	 *            the factory to use, or null for the defaults
+	 * @see #useVirtualThreads()
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * @return the factory of the client's threads, null if the defaults are used
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Runs the client's receive loop, listeners and sends on virtual threads<br>
+	 * Takes effect the next time the client is started
+	 * 
+	 * @exception UnsupportedOperationException
+	 *                if this version of java has no virtual threads
+	 */
+	public void useVirtualThreads() {
+		threadFactory = Threads.virtual("Client-");
+	}
+
+	/**
+	 * Sets the {@link Serializer} used for the Objects sent to and received from
+	 * the server<br>
+	 * The server must use the same kind of Serializer. The shared
+	 * {@link XMLSerializer#getDefault()} is used unless this method is called.
+	 * 
+	 * @param serializer
+	 *            the Serializer to use
+	 */
+	public void setSerializer(Serializer serializer) {
+		if (serializer == null) {
+			throw new IllegalArgumentException("Serializer can not be null!");
+		}
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return the {@link Serializer} used for the Objects sent and received
+	 */
+	public Serializer getSerializer() {
+		if (serializer == null) {
+			serializer = XMLSerializer.getDefault();
+		}
+		return serializer;
+	}
+
+	/**
+	 * Sends the specified object to the server using the {@link Serializer}<br>
+	 * Objects are sent in the order this method is called, queued messages are
+	 * written together by a writer thread.
+	 * 
+	 * With a {@link Spool} the message is appended to it first, and is only
+	 * queued if the client is connected.
 	 * 
 	 * @param obj
 	 *            the Object to send
 	 * @exception IllegalStateException
-	 *                if the socket is not connected
-	 * @exception IOException
-	 *                if an I/O error occurs when writing to the server
+	 *                if the socket is not connected and there is no spool, the
+	 *                send queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}, or the spool is full
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
 	 **/
 	public void send(Object obj) {
-		send = new Thread("Send") {
-
-			@Override
-			public void run() {
-
-				if (!started) {
-					throw new IllegalStateException("Socket not connected!");
+		Spool spool = started ? spooling : this.spool;
+		if (!started && spool == null) {
+			throw new IllegalStateException("Socket not connected!");
+		}
+		try {
+			Delta delta = this.delta;
+			if (spool == null && delta != null && obj != null && Delta.encodes(obj.getClass())) {
+				if (delta(delta, obj)) {
+					return;
 				}
-
-				// synchronize out to minimize errors
-				synchronized (out) {
-					try {
-						// serialize to XML and send
-						out.write(serializer.toXML(obj) + "\n");
-						// flush the outputstream
-						out.flush();
-					} catch (IOException e) {
-						e.printStackTrace();
+			}
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.MESSAGE, getSerializer(), obj, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (spool == null) {
+				if (sendQueue.add(frame(frame))) {
+					metrics.sent();
+				}
+				return;
+			}
+			// room is waited for before the lock is taken, so a sender waiting on
+			// a slow server holds up no other
+			if (started && spool == spooling) {
+				sendQueue.awaitRoom();
+			}
+			// appended and queued in the same order so the acknowledgements count
+			// the spool's messages
+			spoolLock.lock();
+			try {
+				try {
+					spool.append(frame);
+				} catch (IllegalStateException e) {
+					allocator.release(frame);
+					throw e;
+				}
+				if (started && spool == spooling) {
+					if (sendQueue.queue(frame(frame), null)) {
+						metrics.sent();
 					}
+				} else {
+					allocator.release(frame);
 				}
+			} finally {
+				spoolLock.unlock();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// send the object delta encoded, returning false if it is to be sent as an
+	// ordinary message
+	private boolean delta(Delta delta, Object obj) throws IOException {
+		// the backpressure applies before the lock is taken, so no sender waits
+		// for room holding it
+		if (!sendQueue.reserve()) {
+			return true;
+		}
+		// encoded and queued in the order the server decodes them
+		delta.lock.lock();
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = delta.encode(obj, getSerializer(), maxFrameSize, allocator);
+			if (frame == null) {
+				return false;
+			}
+			metrics.serialized(System.nanoTime() - start);
+			boolean queued = false;
+			try {
+				queued = sendQueue.queue(frame(frame), null);
+			} finally {
+				if (queued) {
+					metrics.sent();
+				} else {
+					// the server never gets it, the next one is sent whole
+					delta.forget(obj.getClass());
+				}
+			}
+			return true;
+		} finally {
+			delta.lock.unlock();
+		}
+	}
+
+	/**
+	 * Opens a stream to the server, to send a large object or file in chunks
+	 * between the other messages<br>
+	 * The server's listeners are handed the stream with the metadata by
+	 * {@link ServerListener#onStream(Connection, InboundStream)}. Writing waits
+	 * while the server has its stream window buffered, until it reads on. The
+	 * stream fails if the connection breaks, it is not resumed by a
+	 * {@link Reconnect} nor kept by a {@link Spool}.
+	 * 
+	 * @param metadata
+	 *            an Object sent ahead of the bytes, such as the name of a file,
+	 *            or null
+	 * @return the stream to write to and close
+	 * @exception IllegalStateException
+	 *                if the socket is not connected
+	 * @exception IOException
+	 *                if the connection closes meanwhile
+	 * @exception IllegalArgumentException
+	 *                if the serialized metadata is larger than the maximum frame
+	 *                size
+	 */
+	public OutboundStream openStream(Object metadata) throws IOException {
+		Streams streams = this.streams;
+		if (!started || streams == null) {
+			throw new IllegalStateException("Socket not connected!");
+		}
+		return streams.open(getSerializer(), metadata, maxFrameSize, null);
+	}
+
+	/**
+	 * Opens a logical channel to the server, whose messages and streams are
+	 * written ahead of or in turns with the rest by their priority<br>
+	 * The channel stays open while the client is restarted or reconnects.
+	 * 
+	 * @param id
+	 *            the id the server receives the channel's messages with
+	 * @param priority
+	 *            the priority of the channel's frames over those of others
+	 * @param weight
+	 *            the share of the connection among the channels of the same
+	 *            priority, 1 for the share of the messages sent without a
+	 *            channel
+	 * @return the channel to send on
+	 * @exception IllegalArgumentException
+	 *                if the id or weight is not positive or the priority null
+	 * @exception IllegalStateException
+	 *                if a channel with the id is already open
+	 * @see Channel
+	 */
+	public Channel openChannel(int id, Priority priority, int weight) {
+		Channel.check(id, priority, weight);
+		Channel channel = new Channel(id, priority, weight, this, null);
+		if (channels.putIfAbsent(id, channel) != null) {
+			throw new IllegalStateException("Channel " + id + " is already open!");
+		}
+		return channel;
+	}
+
+	// send the object on the channel, neither spooled nor counted for the session
+	void send(Channel channel, Object obj) {
+		if (!started) {
+			throw new IllegalStateException("Socket not connected!");
+		}
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.CHANNEL, channel.getId(), getSerializer(), obj, maxFrameSize,
+					allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (sendQueue.add(frame(frame), channel)) {
+				metrics.sent();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// open a stream whose chunks are sent on the channel
+	OutboundStream openStream(Channel channel, Object metadata) throws IOException {
+		Streams streams = this.streams;
+		if (!started || streams == null) {
+			throw new IllegalStateException("Socket not connected!");
+		}
+		return streams.open(getSerializer(), metadata, maxFrameSize, channel);
+	}
 
-		};
-		send.start();
+	/**
+	 * Subscribes the client to the topics matching the pattern, so it receives
+	 * what the server publishes to them with
+	 * {@link Server#publish(String, Object)} by
+	 * {@link Listener#onPublish(String, Object)}<br>
+	 * A "+" level of the pattern matches any one level of a topic, a "#" as the
+	 * last level any number of them: "prices/+/ACME" and "prices/#" both match
+	 * "prices/nyse/ACME". The subscriptions are kept while the client is stopped
+	 * and sent again every time it connects or reconnects.
+	 * 
+	 * @param pattern
+	 *            the topic or topic pattern
+	 * @return whether or not the client was subscribed, false if it already was
+	 * @exception IllegalArgumentException
+	 *                if the pattern is empty, or a wildcard is not a level of its
+	 *                own or "#" not the last level
+	 */
+	public boolean subscribe(String pattern) {
+		Topics.checkPattern(pattern);
+		return subscription(Frame.SUBSCRIBE, pattern);
+	}
+
+	/**
+	 * Unsubscribes the client from a pattern it subscribed to
+	 * 
+	 * @param pattern
+	 *            the pattern as it was subscribed to
+	 * @return whether or not the client was subscribed to it
+	 * @exception IllegalArgumentException
+	 *                if the pattern is null
+	 */
+	public boolean unsubscribe(String pattern) {
+		if (pattern == null) {
+			throw new IllegalArgumentException("Topic pattern can not be null!");
+		}
+		return subscription(Frame.UNSUBSCRIBE, pattern);
+	}
+
+	// change the subscriptions and tell the server if connected, the frames go
+	// ahead of the queued messages in the order they are changed
+	private boolean subscription(int type, String pattern) {
+		synchronized (lifecycle) {
+			if (type == Frame.SUBSCRIBE ? !subscriptions.add(pattern) : !subscriptions.remove(pattern)) {
+				return false;
+			}
+			if (started) {
+				sendQueue.control(new SharedFrame(Frame.topic(type, pattern, allocator), 1, allocator));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return a snapshot of the topic patterns the client is subscribed to
+	 */
+	public Set<String> getSubscriptions() {
+		return Collections.unmodifiableSet(new HashSet<String>(subscriptions));
+	}
+
+	// queue a copy of a message from the spool
+	private void resend(ByteBuffer message) {
+		ByteBuffer frame = allocator.allocate(message.remaining());
+		frame.put(message).flip();
+		if (sendQueue.put(frame(frame))) {
+			metrics.sent();
+		}
+	}
+
+	/**
+	 * Sends the specified object to the server as a request and returns the
+	 * server's response<br>
+	 * The server replies with {@link Request#reply(Object)}. Many requests can be
+	 * waiting at once, responses are matched to them by a correlation id.
+	 * 
+	 * @param obj
+	 *            the Object to send
+	 * @param timeout
+	 *            how long to wait for the response
+	 * @return a future completed with the response, or failed with a
+	 *         TimeoutException if none arrives in time or an IOException if the
+	 *         client disconnects first or the server could not read the request
+	 * @exception IllegalStateException
+	 *                if the socket is not connected, or the send queue is full
+	 *                and the backpressure is {@link Backpressure#FAIL}
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 */
+	public CompletableFuture<Object> request(Object obj, Duration timeout) {
+		if (!started) {
+			throw new IllegalStateException("Socket not connected!");
+		}
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		int id = pending.add(future, timeout.toNanos(), TimeUnit.NANOSECONDS,
+				Threads.completions(threadFactory));
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.REQUEST, id, serializer, obj, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (sendQueue.add(frame(frame))) {
+				metrics.sent();
+			} else {
+				pending.remove(id);
+				future.completeExceptionally(new IOException("Request was dropped!"));
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			future.completeExceptionally(e);
+		} catch (RuntimeException e) {
+			pending.remove(id);
+			throw e;
+		}
+		return future;
+	}
+
+	// compress the frame if the server has agreed to, ready to be queued
+	private SharedFrame frame(ByteBuffer frame) {
+		Compressor compressor = this.compressor;
+		if (compressor != null) {
+			ByteBuffer compressed = compressor.compress(frame);
+			if (compressed != frame) {
+				allocator.release(frame);
+				frame = compressed;
+			}
+		}
+		return new SharedFrame(frame, 1, allocator);
+	}
+
+	// run by a writer thread to write the queued messages
+	private void write() {
+		BufferedOutputStream out = this.out;
+		if (out == null) {
+			// stopped while the writer was on its way
+			return;
+		}
+		try {
+			sendQueue.drain(out);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	// receive from the server and activate the listeners
 	private void receive() {
-		receive = new Thread("Receive") {
-			@Override
-			public void run() {
-				while (started) {
-					// synchronize to minimize errors
-					synchronized (in) {
-						try {
-							// read from Inputstream and convert to object from XML
-							Object obj = serializer.fromXML(in.readLine());
-							// activate all the listeners receive methods
-							for (int i = 0; i < listeners.size(); i++) {
-								listeners.get(i).onReceive(obj);
-							}
-						} catch (IOException e) {
-							// catch an IOException and stop the socket
-							try {
-								Client.this.stop();
-							} catch (IOException e1) {
-								e1.printStackTrace();
-							}
-							// activate the listeners disconnect methods
-							for (int i = 0; i < listeners.size(); i++) {
-								listeners.get(i).onDisconnect();
-							}
-							return;
-						} catch (NullPointerException e) {
-							// Do nothing when receiving null
+		InputStream input = in;
+		SendQueue queue = sendQueue;
+		Heartbeat heartbeat = this.heartbeat;
+		Reconnect reconnect = this.reconnect;
+		receive = Threads.start(threadFactory, "Receive", () -> {
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			while (started) {
+				try {
+					// read from the Inputstream and hand every whole frame on
+					int read = input.read(buffer.array());
+					if (read < 0) {
+						throw new EOFException();
+					}
+					metrics.read(read);
+					if (heartbeat != null) {
+						heartbeat.read();
+					}
+					buffer.limit(read).position(0);
+					decoder.decode(buffer, this::onFrame);
+					if (counting && sessionReceived != sessionAcked) {
+						// tell the server how many of its messages have arrived
+						sessionAcked = sessionReceived;
+						queue.control(new SharedFrame(Frame.ack(sessionAcked, allocator), 1, allocator));
+					}
+				} catch (IOException | RuntimeException | Error e) {
+					// catch an IOException and stop the socket
+					if (!(e instanceof IOException)) {
+						// handling what was read failed rather than the socket
+						e.printStackTrace();
+					}
+					decoder.release();
+					Compressor compressor = this.compressor;
+					if (compressor != null) {
+						compressor.end();
+					}
+					try {
+						synchronized (lifecycle) {
+							close();
 						}
+					} catch (IOException e1) {
+						e1.printStackTrace();
+					}
+					if (reconnect != null && !stopped) {
+						reconnect(reconnect);
+						return;
+					}
+					// activate the listeners disconnect methods
+					for (Listener listener : listeners) {
+						listener.onDisconnect();
 					}
+					return;
 				}
 			}
-		};
-		receive.start();
+		});
+	}
+
+	// handle a frame received from the server
+	private void onFrame(int type, ByteBuffer payload) throws IOException {
+		if ((type & Frame.COMPRESSED) != 0) {
+			Compressor compressor = this.compressor;
+			if (compressor == null) {
+				throw new IOException("Compressed frame before the handshake!");
+			}
+			payload = compressor.decompress(payload);
+			type &= ~Frame.COMPRESSED;
+		}
+
+		Object obj;
+		switch (type) {
+		case Frame.MESSAGE:
+			if (counting) {
+				sessionReceived++;
+			}
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				// the message is broken but the next one can still be read
+				e.printStackTrace();
+				return;
+			}
+			// activate all the listeners receive methods
+			long start = System.nanoTime();
+			for (Listener listener : listeners) {
+				listener.onReceive(obj);
+			}
+			metrics.dispatched(System.nanoTime() - start);
+			break;
+		case Frame.PUBLISH:
+			if (counting) {
+				sessionReceived++;
+			}
+			String topic = Frame.readString(payload);
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				return;
+			}
+			start = System.nanoTime();
+			for (Listener listener : listeners) {
+				listener.onPublish(topic, obj);
+			}
+			metrics.dispatched(System.nanoTime() - start);
+			break;
+		case Frame.DELTA:
+			Delta delta = this.delta;
+			if (delta == null) {
+				// not agreed on, skipped like an unknown type
+				return;
+			}
+			try {
+				start = System.nanoTime();
+				obj = delta.decode(payload, serializer);
+				metrics.deserialized(System.nanoTime() - start);
+			} catch (IOException | RuntimeException e) {
+				// the rest of the epoch is dropped until the server starts again
+				e.printStackTrace();
+				sendQueue.control(new SharedFrame(Frame.stream(Frame.RESYNC, delta.receivedEpoch(), -1, allocator), 1,
+						allocator));
+				return;
+			}
+			if (obj == null) {
+				return;
+			}
+			metrics.received();
+			start = System.nanoTime();
+			for (Listener listener : listeners) {
+				listener.onReceive(obj);
+			}
+			metrics.dispatched(System.nanoTime() - start);
+			break;
+		case Frame.RESYNC:
+			delta = this.delta;
+			if (delta != null) {
+				// applied by the next send, which may be waiting for the queue to
+				// drain
+				delta.resync(Frame.readVarInt(payload));
+			}
+			break;
+		case Frame.CHANNEL:
+			int channel = Frame.readVarInt(payload);
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				return;
+			}
+			start = System.nanoTime();
+			for (Listener listener : listeners) {
+				listener.onReceive(channel, obj);
+			}
+			metrics.dispatched(System.nanoTime() - start);
+			break;
+		case Frame.RESPONSE:
+			CompletableFuture<Object> future = pending.remove(Frame.readVarInt(payload));
+			if (future == null) {
+				// the request has timed out
+				return;
+			}
+			try {
+				future.complete(deserialize(payload));
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			break;
+		case Frame.FAILED:
+			future = pending.remove(Frame.readVarInt(payload));
+			if (future != null) {
+				future.completeExceptionally(
+						new IOException("Server could not read the request: " + Frame.readString(payload)));
+			}
+			break;
+		case Frame.STREAM:
+			int stream = Frame.readVarInt(payload);
+			try {
+				obj = serializer.deserialize(payloads.reset(payload));
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				streams.refuse(stream);
+				return;
+			}
+			InboundStream opened = streams.opened(stream, obj);
+			for (Listener listener : listeners) {
+				listener.onStream(opened);
+			}
+			break;
+		case Frame.CHUNK:
+		case Frame.CREDIT:
+		case Frame.END:
+		case Frame.CANCEL:
+			streams.onFrame(type, payload);
+			break;
+		case Frame.HELLO:
+			Handshake answer = Handshake.decode(payload);
+			if (answer.compression && offered != null && compressor == null) {
+				boolean dictionary = answer.dictionaryId != 0 && answer.dictionaryId == offered.dictionaryId();
+				compressor = new Compressor(offered, dictionary, maxFrameSize, allocator);
+			}
+			if (answer.delta) {
+				this.delta = new Delta();
+			}
+			boolean resumed = false;
+			if (answer.session && answer.token != null) {
+				// the messages after the answer count for the session
+				resumed = Arrays.equals(answer.token, sessionToken);
+				if (!resumed) {
+					sessionToken = answer.token;
+					sessionReceived = 0;
+					sessionAcked = 0;
+				}
+				counting = true;
+			}
+			if (reconnected) {
+				reconnected = false;
+				for (Listener listener : listeners) {
+					listener.onReconnect(resumed);
+				}
+			}
+			break;
+		case Frame.ACK:
+			if (spooling != null && payload.remaining() >= 8) {
+				// the server counts the messages from the first sent on the connection
+				spooling.acknowledge(firstSpooled + payload.getLong() - 1);
+			}
+			break;
+		case Frame.PING:
+			sendQueue.control(new SharedFrame(Frame.empty(Frame.PONG, allocator), 1, allocator));
+			break;
+		case Frame.PONG:
+			// the read was all it was sent for
+			break;
+		default:
+			// frames of unknown types are skipped
+		}
+	}
+
+	// deserialize a received message, counting it and timing it
+	private Object deserialize(ByteBuffer payload) throws IOException {
+		long start = System.nanoTime();
+		Object obj = serializer.deserialize(payloads.reset(payload));
+		metrics.deserialized(System.nanoTime() - start);
+		metrics.received();
+		return obj;
+	}
+
+	/**
+	 * Takes a snapshot of the metrics of the client<br>
+	 * The counters and histograms add up every time the client was started.
+	 * 
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot getMetrics() {
+		SendQueue sendQueue = this.sendQueue;
+		return metrics.snapshot(started ? 1 : 0, sendQueue == null ? 0 : sendQueue.pending());
+	}
+
+	/**
+	 * @return the bytes queued for sending, 0 if the client was never started
+	 */
+	long queuedBytes() {
+		SendQueue sendQueue = this.sendQueue;
+		return sendQueue == null ? 0 : sendQueue.pending();
+	}
+
+	/**
+	 * Registers a {@link MetricsMXBean} of the client with the platform
+	 * MBeanServer<br>
+	 * It is named com.simpleprogrammer.infinitetcp:type=Client,name= followed by
+	 * the specified name and stays registered until
+	 * {@link #unregisterMBean()} is called.
+	 * 
+	 * @param name
+	 *            the name telling the client apart from others in the JVM
+	 * @exception IllegalArgumentException
+	 *                if the name is not valid in an ObjectName
+	 * @exception IllegalStateException
+	 *                if the client's MBean is already registered or the name
+	 *                is taken
+	 */
+	public synchronized void registerMBean(String name) {
+		if (mbean != null) {
+			throw new IllegalStateException("MBean already registered as " + mbean + "!");
+		}
+		mbean = Metrics.register("Client", name, this::getMetrics);
+	}
+
+	/**
+	 * Unregisters the MBean registered by {@link #registerMBean(String)}, if any
+	 */
+	public synchronized void unregisterMBean() {
+		if (mbean != null) {
+			Metrics.unregister(mbean);
+			mbean = null;
+		}
 	}
 
 	/**
@@ -307,8 +1617,10 @@ public class Client {
 	 * @param listener
 	 *            the listener to be added
 	 */
-	public void addListener(Listener listener) {
-		listeners.add(listener);
+	public synchronized void addListener(Listener listener) {
+		Listener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+		added[listeners.length] = listener;
+		listeners = added;
 	}
 
 	/**
@@ -319,8 +1631,17 @@ public class Client {
 	 * 
 	 * @return whether or not the listener was removed
 	 */
-	public boolean removeListener(Listener listener) {
-		return listeners.remove(listener);
+	public synchronized boolean removeListener(Listener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(listener)) {
+				Listener[] removed = new Listener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				listeners = removed;
+				return true;
+			}
+		}
+		return false;
 	}
 
 }
@@ -0,0 +1,657 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps warm connections to several servers and spreads messages and requests
+ * over them<br>
+ * Every endpoint gets a number of {@link Client}s, created and started with the
+ * pool. Each send picks one of the connections in rotation by the
+ * {@link Balancing}, so messages sent through the pool are not ordered with
+ * each other unless there is a single connection.<br>
+ * A connection leaves the rotation when it breaks, which a heartbeat set with
+ * {@link #setConfigurer(Consumer)} also notices of a dead server, or when that
+ * many requests in a row have timed out. The health check then starts it again,
+ * every interval until it connects.<br>
+ * The listeners of the pool get what every connection receives.
+ * {@link Listener#onConnectionLost()} is called when a connection leaves the
+ * rotation, {@link Listener#onReconnect(boolean)} when it is back and
+ * {@link Listener#onDisconnect()} once the pool is stopped.
+ */
+public class ClientPool {
+
+	/**
+	 * The default number of connections to each endpoint
+	 */
+	public static final int DEFAULT_CONNECTIONS_PER_ENDPOINT = 2;
+
+	/**
+	 * The default time in milliseconds between health checks
+	 */
+	public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 1000;
+
+	/**
+	 * The default number of requests in a row which may time out before a
+	 * connection leaves the rotation
+	 */
+	public static final int DEFAULT_MAX_FAILURES = 3;
+
+	// the servers connected to, unresolved for host names
+	private final List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+	private int connectionsPerEndpoint = DEFAULT_CONNECTIONS_PER_ENDPOINT;
+	private volatile Balancing balancing = Balancing.LEAST_OUTSTANDING;
+	private Duration healthCheckInterval = Duration.ofMillis(DEFAULT_HEALTH_CHECK_INTERVAL);
+	// 0 for requests timing out to never take a connection out
+	private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+	// sets up every Client before it is started, null for none
+	private Consumer<Client> configurer;
+	// the connections since the pool was started, replaced as a whole
+	private volatile Member[] members = new Member[0];
+	// where the next scan for the least loaded connection starts
+	private final AtomicInteger next = new AtomicInteger();
+	// held while starting and stopping
+	private final Object lifecycle = new Object();
+	private volatile boolean started = false;
+	// the next health check, null when stopped
+	private volatile TimingWheel.Timeout check;
+	// the thread starting connections again, null if none
+	private volatile Thread restarting;
+	// listeners user has added, replaced as a whole when changed so it can be
+	// iterated without locking
+	private volatile Listener[] listeners = new Listener[0];
+
+	/**
+	 * Creates a pool without endpoints
+	 */
+	public ClientPool() {
+	}
+
+	/**
+	 * Adds a server to connect to, its host name is looked up again every time a
+	 * connection to it is started<br>
+	 * Takes effect the next time the pool is started.
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the host is null or the port is out of range
+	 */
+	public synchronized void addEndpoint(String host, int port) {
+		if (host == null) {
+			throw new IllegalArgumentException("Host can not be null!");
+		}
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Port out of range: " + port + "!");
+		}
+		endpoints.add(InetSocketAddress.createUnresolved(host, port));
+	}
+
+	/**
+	 * Adds a server to connect to<br>
+	 * Takes effect the next time the pool is started.
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the address is null or the port is out of range
+	 */
+	public synchronized void addEndpoint(InetAddress ip, int port) {
+		if (ip == null) {
+			throw new IllegalArgumentException("Address can not be null!");
+		}
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Port out of range: " + port + "!");
+		}
+		endpoints.add(new InetSocketAddress(ip, port));
+	}
+
+	/**
+	 * @return the servers added, a host name is unresolved
+	 */
+	public synchronized List<InetSocketAddress> getEndpoints() {
+		return Collections.unmodifiableList(new ArrayList<InetSocketAddress>(endpoints));
+	}
+
+	/**
+	 * Sets the number of connections kept to each endpoint<br>
+	 * Takes effect the next time the pool is started, the default is 2
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the number is not positive
+	 */
+	public void setConnectionsPerEndpoint(int connectionsPerEndpoint) {
+		if (connectionsPerEndpoint <= 0) {
+			throw new IllegalArgumentException(
+					"Connections per endpoint must be positive: " + connectionsPerEndpoint + "!");
+		}
+		this.connectionsPerEndpoint = connectionsPerEndpoint;
+	}
+
+	/**
+	 * @return the number of connections kept to each endpoint
+	 */
+	public int getConnectionsPerEndpoint() {
+		return connectionsPerEndpoint;
+	}
+
+	/**
+	 * Sets how the connection of each send is picked<br>
+	 * Takes effect straight away, the default is
+	 * {@link Balancing#LEAST_OUTSTANDING}
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the balancing is null
+	 */
+	public void setBalancing(Balancing balancing) {
+		if (balancing == null) {
+			throw new IllegalArgumentException("Balancing can not be null!");
+		}
+		this.balancing = balancing;
+	}
+
+	/**
+	 * @return how the connection of each send is picked
+	 */
+	public Balancing getBalancing() {
+		return balancing;
+	}
+
+	/**
+	 * Sets how often the connections out of rotation are started again<br>
+	 * Takes effect the next time the pool is started, the default is a second
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the interval is null or not positive
+	 */
+	public void setHealthCheckInterval(Duration healthCheckInterval) {
+		if (healthCheckInterval == null) {
+			throw new IllegalArgumentException("Health check interval can not be null!");
+		}
+		Heartbeat.check("Health check interval", healthCheckInterval);
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * @return how often the connections out of rotation are started again
+	 */
+	public Duration getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	/**
+	 * Sets how many requests in a row may time out on a connection before it
+	 * leaves the rotation and is started again<br>
+	 * Takes effect straight away, the default is 3
+	 *
+	 * @param maxFailures
+	 *            the number of requests, 0 for timeouts to never take a
+	 *            connection out
+	 * @exception IllegalArgumentException
+	 *                if the number is negative
+	 */
+	public void setMaxFailures(int maxFailures) {
+		if (maxFailures < 0) {
+			throw new IllegalArgumentException("Max failures can not be negative: " + maxFailures + "!");
+		}
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * @return how many requests in a row may time out on a connection, 0 for any
+	 */
+	public int getMaxFailures() {
+		return maxFailures;
+	}
+
+	/**
+	 * Sets what is done to every {@link Client} the pool creates before it is
+	 * first started, such as setting its {@link Serializer}, {@link Security} or
+	 * heartbeat<br>
+	 * Listeners are added to the pool rather than to its Clients. A
+	 * {@link Reconnect} is allowed, the health check leaves a Client which is
+	 * reconnecting alone. Takes effect the next time the pool is started.
+	 *
+	 * @param configurer
+	 *            sets up each Client, or null for the defaults
+	 */
+	public void setConfigurer(Consumer<Client> configurer) {
+		this.configurer = configurer;
+	}
+
+	/**
+	 * @return what sets up every Client, null for nothing
+	 */
+	public Consumer<Client> getConfigurer() {
+		return configurer;
+	}
+
+	/**
+	 * Creates the connections to every endpoint and starts them<br>
+	 * The connections which can not connect are left to the health check.
+	 *
+	 * @throws IOException
+	 *             if none of the connections connects, the pool is then stopped
+	 * @exception IllegalStateException
+	 *                if there are no endpoints or the pool is already started
+	 */
+	public void start() throws IOException {
+		synchronized (lifecycle) {
+			if (started) {
+				throw new IllegalStateException("Pool already started!");
+			}
+			List<InetSocketAddress> endpoints = getEndpoints();
+			if (endpoints.isEmpty()) {
+				throw new IllegalStateException("Pool has no endpoints!");
+			}
+			Member[] members = new Member[endpoints.size() * connectionsPerEndpoint];
+			for (int i = 0; i < members.length; i++) {
+				members[i] = new Member(client(endpoints.get(i / connectionsPerEndpoint)));
+			}
+			this.members = members;
+			started = true;
+			IOException failure = null;
+			boolean connected = false;
+			for (Member member : members) {
+				try {
+					member.client.start();
+					connected = true;
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (!connected) {
+				stop();
+				throw failure;
+			}
+			schedule();
+		}
+	}
+
+	// a client of the endpoint set up and listening for the pool
+	private Client client(InetSocketAddress endpoint) {
+		Client client = endpoint.isUnresolved() ? new Client(endpoint.getHostString(), endpoint.getPort())
+				: new Client(endpoint.getAddress(), endpoint.getPort());
+		Consumer<Client> configurer = this.configurer;
+		if (configurer != null) {
+			configurer.accept(client);
+		}
+		return client;
+	}
+
+	/**
+	 * Stops every connection of the pool and calls the listeners'
+	 * {@link Listener#onDisconnect()}
+	 *
+	 * @throws IOException
+	 *             if an I/O exception happens when stopping a connection
+	 */
+	public void stop() throws IOException {
+		synchronized (lifecycle) {
+			if (!started) {
+				return;
+			}
+			started = false;
+			TimingWheel.Timeout check = this.check;
+			if (check != null) {
+				check.cancel();
+			}
+			IOException failure = null;
+			for (Member member : members) {
+				try {
+					member.client.stop();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			Thread waiting = restarting;
+			if (waiting != null) {
+				try {
+					waiting.join(1);
+				} catch (InterruptedException e) {
+
+				}
+			}
+			for (Listener listener : listeners) {
+				listener.onDisconnect();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the pool is started
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * @return the Clients of the pool since it was started, whether in rotation or
+	 *         not
+	 */
+	public List<Client> getClients() {
+		Member[] members = this.members;
+		Client[] clients = new Client[members.length];
+		for (int i = 0; i < members.length; i++) {
+			clients[i] = members[i].client;
+		}
+		return Collections.unmodifiableList(Arrays.asList(clients));
+	}
+
+	/**
+	 * @return the number of connections in rotation
+	 */
+	public int getAvailableCount() {
+		int available = 0;
+		for (Member member : members) {
+			if (member.available()) {
+				available++;
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * Sends the Object on the connection the {@link Balancing} picks
+	 *
+	 * @param obj
+	 *            the Object to be sent
+	 * @exception IllegalStateException
+	 *                if no connection is in rotation, or as
+	 *                {@link Client#send(Object)}
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 * @see Client#send(Object)
+	 */
+	public void send(Object obj) {
+		pick().client.send(obj);
+	}
+
+	/**
+	 * Sends the Object as a request on the connection the {@link Balancing}
+	 * picks<br>
+	 * The request counts toward the load of the connection until it is
+	 * answered, and toward taking the connection out if it times out.
+	 *
+	 * @param obj
+	 *            the request
+	 * @param timeout
+	 *            how long to wait for the response
+	 * @return a future completed with the response, as
+	 *         {@link Client#request(Object, Duration)}
+	 * @exception IllegalStateException
+	 *                if no connection is in rotation, or as
+	 *                {@link Client#request(Object, Duration)}
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 */
+	public CompletableFuture<Object> request(Object obj, Duration timeout) {
+		Member member = pick();
+		member.outstanding.incrementAndGet();
+		CompletableFuture<Object> future;
+		try {
+			future = member.client.request(obj, timeout);
+		} catch (RuntimeException e) {
+			member.outstanding.decrementAndGet();
+			throw e;
+		}
+		future.whenComplete((response, failure) -> member.answered(failure));
+		return future;
+	}
+
+	// the connection in rotation to send on
+	private Member pick() {
+		if (!started) {
+			throw new IllegalStateException("Pool not started!");
+		}
+		Member[] members = this.members;
+		Member picked = null;
+		if (balancing == Balancing.POWER_OF_TWO_CHOICES) {
+			// two distinct random connections, falling back to a scan when either
+			// is out of rotation
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(members.length);
+			Member a = members[first];
+			if (members.length == 1) {
+				picked = a.available() ? a : null;
+			} else {
+				Member b = members[(first + 1 + random.nextInt(members.length - 1)) % members.length];
+				if (a.available() && b.available()) {
+					picked = a.compareTo(b) <= 0 ? a : b;
+				}
+			}
+		}
+		if (picked == null) {
+			int start = Math.floorMod(next.getAndIncrement(), members.length);
+			for (int i = 0; i < members.length; i++) {
+				Member member = members[(start + i) % members.length];
+				if (member.available() && (picked == null || member.compareTo(picked) < 0)) {
+					picked = member;
+				}
+			}
+		}
+		if (picked == null) {
+			throw new IllegalStateException("No connection available!");
+		}
+		return picked;
+	}
+
+	// check the health again after the interval
+	private void schedule() {
+		check = TimingWheel.SHARED.schedule(this::check, healthCheckInterval.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	// start the connections out of rotation again on a thread of their own, run
+	// on the wheel's thread so it must not block
+	private void check() {
+		if (!started) {
+			return;
+		}
+		boolean down = false;
+		for (Member member : members) {
+			down |= !member.available();
+		}
+		if (down && restarting == null) {
+			restarting = Threads.start(null, "HealthCheck", this::restart);
+		} else {
+			schedule();
+		}
+	}
+
+	// stop and start every connection out of rotation, then schedule the next
+	// check
+	private void restart() {
+		try {
+			for (Member member : members) {
+				if (!started) {
+					return;
+				}
+				if (member.available()) {
+					continue;
+				}
+				Client client = member.client;
+				try {
+					// a timing out connection may still be connected
+					client.stop();
+					client.start();
+				} catch (IOException e) {
+					// still away, tried again at the next check
+					continue;
+				} catch (IllegalStateException e) {
+					// reconnecting by itself
+					continue;
+				}
+				if (!started) {
+					// stopped while connecting
+					try {
+						client.stop();
+					} catch (IOException e) {
+					}
+					return;
+				}
+				member.failures.set(0);
+				member.failed = false;
+				for (Listener listener : listeners) {
+					listener.onReconnect(false);
+				}
+			}
+		} finally {
+			restarting = null;
+			if (started) {
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * Adds a @code Listener getting what every connection of the pool receives
+	 *
+	 * @param listener
+	 *            the listener to be added
+	 */
+	public synchronized void addListener(Listener listener) {
+		Listener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+		added[listeners.length] = listener;
+		listeners = added;
+	}
+
+	/**
+	 * Removes the first instance of the @code Listener in the pool
+	 *
+	 * @param listener
+	 *            the listener to be removed
+	 *
+	 * @return whether or not the listener was removed
+	 */
+	public synchronized boolean removeListener(Listener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(listener)) {
+				Listener[] removed = new Listener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				listeners = removed;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * One connection of the pool, passing what it receives to the pool's
+	 * listeners
+	 */
+	private final class Member implements Listener, Comparable<Member> {
+
+		final Client client;
+		// requests waiting for a response
+		final AtomicInteger outstanding = new AtomicInteger();
+		// requests timed out in a row
+		final AtomicInteger failures = new AtomicInteger();
+		// set when too many requests timed out, until started again
+		volatile boolean failed = false;
+
+		Member(Client client) {
+			this.client = client;
+			client.addListener(this);
+		}
+
+		boolean available() {
+			return !failed && client.isConnected();
+		}
+
+		// count the answer or failure of a request
+		void answered(Throwable failure) {
+			outstanding.decrementAndGet();
+			if (!(failure instanceof TimeoutException)) {
+				failures.set(0);
+				return;
+			}
+			int max = maxFailures;
+			if (max > 0 && failures.incrementAndGet() >= max && !failed) {
+				failed = true;
+				lost();
+			}
+		}
+
+		// the connection has left the rotation
+		private void lost() {
+			if (started) {
+				for (Listener listener : listeners) {
+					listener.onConnectionLost();
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Member other) {
+			int compare = Integer.compare(outstanding.get(), other.outstanding.get());
+			return compare != 0 ? compare : Long.compare(client.queuedBytes(), other.client.queuedBytes());
+		}
+
+		@Override
+		public void onReceive(Object obj) {
+			for (Listener listener : listeners) {
+				listener.onReceive(obj);
+			}
+		}
+
+		@Override
+		public void onReceive(int channel, Object obj) {
+			for (Listener listener : listeners) {
+				listener.onReceive(channel, obj);
+			}
+		}
+
+		@Override
+		public void onPublish(String topic, Object obj) {
+			for (Listener listener : listeners) {
+				listener.onPublish(topic, obj);
+			}
+		}
+
+		@Override
+		public void onStream(InboundStream stream) {
+			for (Listener listener : listeners) {
+				listener.onStream(stream);
+			}
+		}
+
+		@Override
+		public void onConnectionLost() {
+			if (!failed) {
+				lost();
+			}
+		}
+
+		@Override
+		public void onReconnect(boolean resumed) {
+			for (Listener listener : listeners) {
+				listener.onReconnect(resumed);
+			}
+		}
+
+		@Override
+		public void onDisconnect() {
+			// stopped by the pool when it had failed, or by a restart which has
+			// already connected again
+			if (!failed && !client.isConnected()) {
+				lost();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * An XStream Converter for one class whose fields are looked up once when it
+ * is registered with {@link XMLSerializer#register(String, Class)}<br>
+ * The fields are read and written through method handles, and the per field
+ * lookups XStream's ReflectionConverter makes in its mapper for every Object
+ * are skipped. The XML is the same as the ReflectionConverter's: an element per
+ * field which is not null, named after the field, with a class attribute when
+ * the value is not of the field's default type. Elements of unknown fields
+ * are skipped so a peer may have added fields.
+ */
+final class CompiledConverter implements Converter {
+
+	private final Class<?> type;
+	private final Mapper mapper;
+	private final ReflectionProvider reflectionProvider;
+	// the name of the class attribute, null if XStream writes none
+	private final String classAttribute;
+	// every field in the order they are written, and by name
+	private final Accessor[] accessors;
+	private final HashMap<String, Accessor> byName = new HashMap<String, Accessor>();
+
+	/**
+	 * @exception IllegalArgumentException
+	 *                if the class is not a concrete top level or static nested
+	 *                class, or its fields can not be accessed
+	 */
+	CompiledConverter(Class<?> type, Mapper mapper, ReflectionProvider reflectionProvider) {
+		if (type.isInterface() || type.isArray() || type.isPrimitive() || type.isEnum()
+				|| Modifier.isAbstract(type.getModifiers())) {
+			throw new IllegalArgumentException("Class " + type.getName() + " is not a concrete class!");
+		}
+		if (type.getEnclosingClass() != null && !Modifier.isStatic(type.getModifiers())) {
+			throw new IllegalArgumentException("Class " + type.getName() + " is an inner class!");
+		}
+		this.type = type;
+		this.mapper = mapper;
+		this.reflectionProvider = reflectionProvider;
+		classAttribute = mapper.aliasForSystemAttribute("class");
+
+		// fields of the superclasses first, as XStream writes them
+		ArrayList<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+			hierarchy.add(0, c);
+		}
+		ArrayList<Accessor> list = new ArrayList<Accessor>();
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for (Class<?> c : hierarchy) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+					continue;
+				}
+				if (byName.containsKey(field.getName())) {
+					throw new IllegalArgumentException(
+							"Field " + field.getName() + " of " + type.getName() + " hides another!");
+				}
+				Accessor accessor;
+				try {
+					field.setAccessible(true);
+					accessor = new Accessor(field, lookup);
+				} catch (IllegalAccessException | RuntimeException e) {
+					throw new IllegalArgumentException("Field " + field.getName() + " of " + type.getName()
+							+ " can not be accessed!", e);
+				}
+				list.add(accessor);
+				byName.put(accessor.name, accessor);
+			}
+		}
+		accessors = list.toArray(new Accessor[list.size()]);
+	}
+
+	@Override
+	public boolean canConvert(@SuppressWarnings("rawtypes") Class type) {
+		return type == this.type;
+	}
+
+	@Override
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		for (Accessor accessor : accessors) {
+			Object value = accessor.get(source);
+			if (value == null) {
+				continue;
+			}
+			writer.startNode(accessor.name);
+			Class<?> actual = value.getClass();
+			if (value instanceof Enum) {
+				// constants with a body of their own are written as their enum
+				actual = ((Enum<?>) value).getDeclaringClass();
+			}
+			if (classAttribute != null && actual != accessor.defaultType) {
+				writer.addAttribute(classAttribute, mapper.serializedClass(actual));
+			}
+			context.convertAnother(value);
+			writer.endNode();
+		}
+	}
+
+	@Override
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		Object result = reflectionProvider.newInstance(type);
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+			Accessor accessor = byName.get(reader.getNodeName());
+			if (accessor != null) {
+				String name = classAttribute == null ? null : reader.getAttribute(classAttribute);
+				Class<?> actual = name == null ? accessor.defaultType : mapper.realClass(name);
+				accessor.set(result, context.convertAnother(result, actual));
+			}
+			reader.moveUp();
+		}
+		return result;
+	}
+
+	// reads and writes one field
+	private final class Accessor {
+
+		private final String name;
+		// the class a value of the field is without a class attribute
+		private final Class<?> defaultType;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+
+		Accessor(Field field, MethodHandles.Lookup lookup) throws IllegalAccessException {
+			name = field.getName();
+			Class<?> declared = field.getType();
+			defaultType = declared.isPrimitive() ? box(declared) : mapper.defaultImplementationOf(declared);
+			getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+			setter = lookup.unreflectSetter(field)
+					.asType(MethodType.methodType(void.class, Object.class, Object.class));
+		}
+
+		Object get(Object obj) {
+			try {
+				return getter.invokeExact(obj);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new ConversionException("Could not read field " + name + "!", e);
+			}
+		}
+
+		void set(Object obj, Object value) {
+			try {
+				setter.invokeExact(obj, value);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new ConversionException("Could not write field " + name + "!", e);
+			}
+		}
+
+	}
+
+	// the boxed class of a primitive class
+	private static Class<?> box(Class<?> primitive) {
+		return MethodType.methodType(primitive).wrap().returnType();
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * The settings of per message compression, given to
+ * {@link Client#setCompression(Compression)} and
+ * {@link Server#setCompression(Compression)}<br>
+ * Compression is only used on a connection when both peers have it set, they
+ * agree on it in the handshake when the Client connects. Every message is
+ * compressed on its own so it can be read without the ones before it.<br>
+ * A dictionary holds bytes which are common in the messages, such as the class
+ * names and element tags of the XML, so that even small messages compress well.
+ * The dictionary is only used when both peers have the same one.
+ */
+public final class Compression {
+
+	/**
+	 * The default size in bytes below which messages are not compressed
+	 */
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	private int level = Deflater.BEST_SPEED;
+	private int threshold = DEFAULT_THRESHOLD;
+	private byte[] dictionary;
+	// checksum the peers compare their dictionaries by, 0 without one
+	private int dictionaryId = 0;
+
+	/**
+	 * Creates the default settings: the fastest level, a threshold of 256 bytes
+	 * and no dictionary
+	 */
+	public Compression() {
+	}
+
+	/**
+	 * Sets the level of the compression from 1, the fastest, to 9, the smallest
+	 * 
+	 * @param level
+	 *            the level to use
+	 * @exception IllegalArgumentException
+	 *                if the level is out of range
+	 */
+	public void setLevel(int level) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Level out of range: " + level + "!");
+		}
+		this.level = level;
+	}
+
+	/**
+	 * @return the level of the compression
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the size in bytes below which messages are sent as they are<br>
+	 * Each connection raises its own threshold while its messages of that size do
+	 * not get smaller, and lowers it back when they do again.
+	 * 
+	 * @param threshold
+	 *            the smallest message size to compress
+	 * @exception IllegalArgumentException
+	 *                if the threshold is negative
+	 */
+	public void setThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Threshold can not be negative: " + threshold + "!");
+		}
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the size in bytes below which messages are not compressed
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the dictionary of bytes common in the messages<br>
+	 * A good dictionary is a few typical messages put together, the most common
+	 * bytes at the end. It is at most 32 KB, bytes before that are not used.
+	 * 
+	 * @param dictionary
+	 *            the dictionary, or null for none
+	 */
+	public void setDictionary(byte[] dictionary) {
+		if (dictionary == null || dictionary.length == 0) {
+			this.dictionary = null;
+			dictionaryId = 0;
+			return;
+		}
+		this.dictionary = dictionary.clone();
+		Adler32 checksum = new Adler32();
+		checksum.update(dictionary);
+		dictionaryId = (int) checksum.getValue();
+	}
+
+	/**
+	 * @return a copy of the dictionary, null if there is none
+	 */
+	public byte[] getDictionary() {
+		return dictionary == null ? null : dictionary.clone();
+	}
+
+	// the dictionary without copying it
+	byte[] dictionary() {
+		return dictionary;
+	}
+
+	int dictionaryId() {
+		return dictionaryId;
+	}
+
+}
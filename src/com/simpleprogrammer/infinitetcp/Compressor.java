@@ -0,0 +1,185 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the frames sent on one connection and decompresses the ones
+ * received<br>
+ * The Deflater and Inflater are kept for the life of the connection and reset
+ * for every frame. They use raw deflate data without the zlib header and
+ * checksum, the frame already has a length and TCP a checksum.<br>
+ * A compressed frame has the {@link Frame#COMPRESSED} bit set in its type and
+ * its payload is the size of the original payload as a variable length number
+ * followed by the deflated payload.
+ */
+final class Compressor {
+
+	// largest decompressed payload kept between frames
+	private static final int KEEP_SIZE = 64 * 1024;
+	// highest threshold the adaptive threshold rises to
+	private static final int MAX_THRESHOLD = 64 * 1024;
+	// a frame must get at least 1/8 smaller to be worth compressing
+	private static final int MIN_SAVING = 8;
+	// frames below the raised threshold skipped before one is compressed again
+	private static final int PROBE_INTERVAL = 64;
+
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater(true);
+	// dictionary agreed on in the handshake, null if none
+	private final byte[] dictionary;
+	private final int maxFrameSize;
+	// allocator of the compressed frames and the decompressed payloads
+	private final BufferAllocator allocator;
+	// smallest payload which is compressed, as set by the user
+	private final int threshold;
+	// threshold raised while frames do not get smaller, guarded by the deflater
+	private int limit;
+	private int probe = PROBE_INTERVAL;
+	// set once the deflater has been ended, guarded by the deflater
+	private boolean ended = false;
+	// the last payload decompressed, null if none is kept
+	private ByteBuffer inflated;
+
+	Compressor(Compression compression, boolean useDictionary, int maxFrameSize, BufferAllocator allocator) {
+		deflater = new Deflater(compression.getLevel(), true);
+		dictionary = useDictionary ? compression.dictionary() : null;
+		this.maxFrameSize = maxFrameSize;
+		this.allocator = allocator;
+		threshold = compression.getThreshold();
+		limit = threshold;
+	}
+
+	/**
+	 * @return whether or not the agreed dictionary is used
+	 */
+	boolean hasDictionary() {
+		return dictionary != null;
+	}
+
+	/**
+	 * Compresses the frame when it is large enough and gets smaller
+	 * 
+	 * @param frame
+	 *            a whole frame, header included
+	 * @return a compressed frame from the allocator, or the same frame if it is
+	 *         sent as it is
+	 */
+	ByteBuffer compress(ByteBuffer frame) {
+		int length = frame.remaining() - Frame.HEADER_SIZE;
+		if (length < threshold) {
+			return frame;
+		}
+		synchronized (deflater) {
+			if (ended) {
+				return frame;
+			}
+			// frames below the raised threshold are only tried now and then
+			if (length < limit && --probe > 0) {
+				return frame;
+			}
+			probe = PROBE_INTERVAL;
+
+			ByteBuffer payload = frame.duplicate();
+			payload.position(payload.position() + Frame.HEADER_SIZE);
+			deflater.reset();
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(payload);
+			deflater.finish();
+
+			// deflate straight into the new frame, giving up once it is too large
+			Frame.Output out = new Frame.Output(allocator);
+			Frame.writeVarInt(out, length);
+			int max = length - length / MIN_SAVING - Frame.varIntSize(length);
+			ByteBuffer target = out.reserve(Math.max(0, max + 1));
+			int start = target.position();
+			while (!deflater.finished() && target.position() - start <= max) {
+				deflater.deflate(target);
+			}
+			if (!deflater.finished() || target.position() - start > max) {
+				out.discard();
+				// not worth it, send frames of this size as they are for a while
+				limit = Math.min(Math.max(limit, length + 1) * 2, MAX_THRESHOLD);
+				return frame;
+			}
+			limit = Math.max(threshold, limit / 2);
+
+			int type = frame.get(frame.position() + 4);
+			return out.finish(type | Frame.COMPRESSED, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Decompresses the payload of a compressed frame<br>
+	 * Only called by the thread receiving on the connection, the returned buffer
+	 * is only valid until the next call or {@link #end()}.
+	 * 
+	 * @exception IOException
+	 *                if the payload is malformed or larger than the maximum frame
+	 *                size once decompressed
+	 */
+	ByteBuffer decompress(ByteBuffer payload) throws IOException {
+		int length = Frame.readVarInt(payload);
+		if (length < 0 || length > maxFrameSize) {
+			throw new IOException("Compressed frame of " + (length & 0xFFFFFFFFL)
+					+ " bytes exceeds the maximum frame size of " + maxFrameSize + "!");
+		}
+		// keep a large buffer only until a smaller one will do
+		int capacity = inflated == null ? 0 : inflated.capacity();
+		if (inflated != null && (capacity < length || capacity > Math.max(length, KEEP_SIZE))) {
+			allocator.release(inflated);
+			inflated = null;
+		}
+		if (inflated == null) {
+			inflated = allocator.allocate(Math.max(length, 1024));
+		}
+		ByteBuffer buf = inflated;
+		buf.clear().limit(length);
+
+		inflater.reset();
+		if (dictionary != null) {
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(payload);
+		int size = 0;
+		try {
+			while (size < length) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				size += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed frame!", e);
+		}
+		if (size != length) {
+			throw new IOException("Compressed frame is " + size + " bytes instead of " + length + "!");
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Frees the native memory of the Deflater and Inflater<br>
+	 * Called by the thread receiving on the connection once it has stopped,
+	 * frames sent after it are not compressed.
+	 */
+	void end() {
+		synchronized (deflater) {
+			ended = true;
+			deflater.end();
+		}
+		inflater.end();
+		if (inflated != null) {
+			allocator.release(inflated);
+			inflated = null;
+		}
+	}
+
+}
@@ -1,14 +1,27 @@
 package com.simpleprogrammer.infinitetcp;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 /**
  * This class implies a connection to a Client however it can not be
@@ -16,82 +29,963 @@ import java.net.Socket;
  * A connection is created when a Client joins the Server.
  */
 public class Connection {
+
+	// size of the buffer a receive thread reads into
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	// nanoseconds reading pauses for while the Server's listeners are too far
+	// behind, a tick of the shared timer
+	private static final long OVERLOADED_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// the server which accepted the connection
+	private final Server server;
+	// unique number the server knows the connection by
+	final long serial;
 	// socket connected to
 	private Socket socket;
-	private BufferedWriter out;
-	private BufferedReader in;
+	private BufferedOutputStream out;
+	private InputStream in;
 	// id is optional and can be set using the getID method
 	private int id = -1;
-	private Thread receive, send;
-	// Serializer to convert to XML
-	private XMLSerializer serializer;
+	private volatile Thread receive;
+	// creates the receive thread and the send threads, null for the defaults
+	private ThreadFactory threadFactory;
+	// Serializer to convert Objects to bytes
+	private volatile Serializer serializer;
+
+	// channel and loop used instead of the streams when the Server runs event
+	// loops
+	SocketChannel channel;
+	SelectionKey key;
+	private EventLoop loop;
+	// the TLS between the frames and the channel, null without TLS or for a
+	// blocking socket, which is an SSLSocket instead
+	private SecureChannel tls;
+	// splits the received bytes into frames
+	private FrameDecoder decoder;
+	private int maxFrameSize;
+	// messages waiting to be written
+	private SendQueue sendQueue;
+	// the streams open in both directions
+	private final Streams streams;
+	// the channels opened by id
+	private final ConcurrentHashMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+	// pings the Client and gives it up when idle, null for none
+	private final Heartbeat heartbeat;
+	// the topic patterns subscribed to, changed together with the Server's
+	// index holding the set's lock
+	final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+	// set once the Connection has gone, so it is not subscribed again
+	boolean unsubscribed = false;
+	// set once the Connection is closed, or stopped for a blocking socket whose
+	// receive thread is then never started
+	private volatile boolean closed = false;
+	// allocator of the frames sent and received
+	private final BufferAllocator allocator;
+	// stream the received payloads are deserialized from
+	private final ByteBufferInputStream payloads = new ByteBufferInputStream();
+	// compresses the frames once agreed on in the handshake, null until then
+	volatile Compressor compressor;
+	// delta encodes the messages once agreed on in the handshake, null until
+	// then
+	private volatile Delta delta;
+	// whether delta encoding is agreed to when the Client offers it
+	private final boolean deltaEncoding;
+	// counts what goes through the connection, added to the Server's metrics
+	private final Metrics metrics;
+	// hands what is received to the listeners in order
+	final Dispatcher dispatcher;
+	// whether reading is paused until the listeners catch up, only used in the
+	// loop
+	private boolean paused = false;
+	// the buckets of the connection and those shared with the other
+	// connections from its address, null for no limit
+	private final RateLimiter limiter;
+	final RateLimiter addressLimiter;
+	// whether reading is paused until the rate limits allow more, only used in
+	// the loop
+	private boolean throttled = false;
+	// whether the Client asked for its messages to be acknowledged
+	private volatile boolean acks = false;
+	// messages handed to the listeners so far, only used by the dispatcher
+	private long acknowledged = 0;
+	// whether the Server kept sessions when the connection was made
+	private final boolean sessions;
+	// the session of the Client once agreed in the handshake, null for none
+	volatile Session session;
+	// whether the Client resumed a session of an earlier connection
+	private volatile boolean resumed = false;
 
 	// Not to be instantised outside of the jar
-	protected Connection(Socket socket, XMLSerializer serializer) throws IOException {
-		this.serializer = serializer;
+	protected Connection(Socket socket, Server server) throws IOException {
+		this.server = server;
+		serial = server.nextSerial();
+		this.serializer = server.getSerializer();
 		this.socket = socket;
+		limiter = server.connectionLimiter();
+		addressLimiter = server.addressLimiter(socket.getInetAddress());
+		// frames are already written in batches, Nagle's algorithm only delays them
+		socket.setTcpNoDelay(true);
+		threadFactory = server.getThreadFactory();
+		maxFrameSize = server.getMaxFrameSize();
+		allocator = server.getAllocator();
+		decoder = new FrameDecoder(maxFrameSize, allocator);
+		metrics = new Metrics(server.metrics);
+		sessions = server.getSessionTimeout() != null;
+		deltaEncoding = server.isDeltaEncoding();
+		dispatcher = new Dispatcher(server, this, server.getDispatchExecutor(), null);
+		sendQueue = new SendQueue(server.getHighWaterMark(), server.getBackpressure(), Threads.writers(threadFactory),
+				this::write, metrics);
+		streams = new Streams(sendQueue, server.getStreamWindow(), maxFrameSize, allocator);
 		// initialize streams
-		out = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(socket.getOutputStream())));
+		out = new BufferedOutputStream(socket.getOutputStream());
 		out.flush();
-		in = new BufferedReader(new InputStreamReader(new BufferedInputStream(socket.getInputStream())));
-		// start receiving
-		receive();
-	}
-
-	// method to receive from socket
-	private void receive() {
-		receive = new Thread("Receive") {
-			@Override
-			public void run() {
-				while (true) {
-					// synchronize to minimize errors
-					synchronized (in) {
-						try {
-							// read from socket and convert XML to object
-							Object obj = serializer.fromXML(in.readLine());
-							// activate receive methods in listeners
-							for (int i = 0; i < Server.listeners.size(); i++) {
-								Server.listeners.get(i).onReceive(Connection.this, obj);
-							}
-						} catch (IOException e) {
-							// the socket has an error close the connection
-							Server.connections.remove(Connection.this);
-							for (int i = 0; i < Server.listeners.size(); i++) {
-								Server.listeners.get(i).onDisconnect(Connection.this);
-							}
-							return;
-						}
+		in = socket.getInputStream();
+		// a socket is closed on a thread of its own, closing TLS may wait for a
+		// stalled write
+		heartbeat = heartbeat(() -> Threads.start(threadFactory, "Close", this::stop));
+	}
+
+	// Connection served by an event loop, reading starts once it is registered
+	protected Connection(SocketChannel channel, EventLoop loop, Server server) {
+		this.server = server;
+		serial = server.nextSerial();
+		this.serializer = server.getSerializer();
+		this.channel = channel;
+		maxFrameSize = server.getMaxFrameSize();
+		allocator = server.getAllocator();
+		decoder = new FrameDecoder(maxFrameSize, allocator);
+		this.loop = loop;
+		this.socket = channel.socket();
+		limiter = server.connectionLimiter();
+		addressLimiter = server.addressLimiter(socket.getInetAddress());
+		Security security = server.getSecurity();
+		if (security != null) {
+			tls = new SecureChannel(channel, security.engine(false, null, 0), allocator);
+		}
+		metrics = new Metrics(server.metrics);
+		sessions = server.getSessionTimeout() != null;
+		deltaEncoding = server.isDeltaEncoding();
+		dispatcher = new Dispatcher(server, this, server.getDispatchExecutor(), () -> loop.execute(this::resume));
+		sendQueue = new SendQueue(server.getHighWaterMark(), server.getBackpressure(), loop::execute, () -> {
+			if (key != null) {
+				flush();
+			}
+		}, metrics);
+		streams = new Streams(sendQueue, server.getStreamWindow(), maxFrameSize, allocator);
+		heartbeat = heartbeat(this::stop);
+	}
+
+	// start watching for a dead Client if the Server is set to
+	private Heartbeat heartbeat(Runnable timedOut) {
+		return Heartbeat.start(server.getHeartbeatInterval(), server.getReadIdleTimeout(),
+				server.getWriteIdleTimeout(), sendQueue, allocator, timedOut);
+	}
+
+	// called by the event loop when the channel is readable
+	void read(ByteBuffer buffer) {
+		buffer.clear();
+		int read;
+		try {
+			read = channel.read(buffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if (read < 0) {
+			close();
+			return;
+		}
+		metrics.read(read);
+		if (heartbeat != null) {
+			heartbeat.read();
+		}
+		buffer.flip();
+
+		try {
+			if (tls == null) {
+				decoder.decode(buffer, this::onFrame);
+			} else if (!tls.unwrap(buffer, loop.plainBuffer(tls.applicationSize()),
+					plain -> decoder.decode(plain, this::onFrame))) {
+				// the Client has closed the TLS connection
+				close();
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+			return;
+		}
+		int received = dispatcher.incoming();
+		if (!dispatcher.flush()) {
+			// the listeners are behind, stop reading until they catch up
+			paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		long wait = throttle(read, received);
+		if (wait > 0) {
+			// leave the bytes in the socket until the rate limits allow more
+			throttled = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			TimingWheel.SHARED.schedule(() -> loop.execute(this::unthrottle), wait, TimeUnit.NANOSECONDS);
+		}
+		if (tls != null) {
+			// write the answers of the handshake and what waited for it to finish
+			flush();
+		}
+	}
+
+	// read again once the listeners have caught up, runs in the loop
+	private void resume() {
+		if (closed || !paused) {
+			return;
+		}
+		paused = false;
+		if (!throttled) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	// read again once the rate limits allow it and the Server's listeners have
+	// caught up, runs in the loop
+	private void unthrottle() {
+		if (closed || !throttled) {
+			return;
+		}
+		if (server.overloaded()) {
+			TimingWheel.SHARED.schedule(() -> loop.execute(this::unthrottle), OVERLOADED_WAIT, TimeUnit.NANOSECONDS);
+			return;
+		}
+		throttled = false;
+		if (!paused) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	// the nanoseconds to pause reading for after a read, while over the rate
+	// limits or the Server's listeners are too far behind
+	private long throttle(int read, int received) {
+		long wait = 0;
+		if (limiter != null) {
+			wait = limiter.take(read, received);
+		}
+		if (addressLimiter != null) {
+			wait = Math.max(wait, addressLimiter.take(read, received));
+		}
+		if (server.overloaded()) {
+			wait = Math.max(wait, OVERLOADED_WAIT);
+		}
+		return wait;
+	}
+
+	// handle a frame received from the Client
+	private void onFrame(int type, ByteBuffer payload) throws IOException {
+		if ((type & Frame.COMPRESSED) != 0) {
+			Compressor compressor = this.compressor;
+			if (compressor == null) {
+				throw new IOException("Compressed frame before the handshake!");
+			}
+			payload = compressor.decompress(payload);
+			type &= ~Frame.COMPRESSED;
+		}
+
+		Object obj;
+		switch (type) {
+		case Frame.MESSAGE:
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				// the message is broken but the next one can still be read
+				e.printStackTrace();
+				dispatcher.skipped();
+				return;
+			}
+			// the listeners get it once the whole read is decoded
+			dispatcher.message(obj);
+			break;
+		case Frame.REQUEST:
+			int id = Frame.readVarInt(payload);
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				// fail the Client's request now rather than when it times out
+				sendQueue.control(new SharedFrame(Frame.failed(id, e.toString(), allocator), 1, allocator));
+				return;
+			}
+			dispatcher.request(new Request(this, id, obj));
+			break;
+		case Frame.DELTA:
+			Delta delta = this.delta;
+			if (delta == null) {
+				// not agreed on, skipped like an unknown type
+				return;
+			}
+			try {
+				long start = System.nanoTime();
+				obj = delta.decode(payload, serializer);
+				metrics.deserialized(System.nanoTime() - start);
+			} catch (IOException | RuntimeException e) {
+				// the rest of the epoch is dropped until the Client starts again
+				e.printStackTrace();
+				sendQueue.control(new SharedFrame(Frame.stream(Frame.RESYNC, delta.receivedEpoch(), -1, allocator), 1,
+						allocator));
+				dispatcher.skipped();
+				return;
+			}
+			if (obj == null) {
+				dispatcher.skipped();
+				return;
+			}
+			metrics.received();
+			dispatcher.message(obj);
+			break;
+		case Frame.RESYNC:
+			delta = this.delta;
+			if (delta != null) {
+				// applied by the next send, which may be waiting for this thread to
+				// drain the queue
+				delta.resync(Frame.readVarInt(payload));
+			}
+			break;
+		case Frame.CHANNEL:
+			int channel = Frame.readVarInt(payload);
+			try {
+				obj = deserialize(payload);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				return;
+			}
+			dispatcher.channel(channel, obj);
+			break;
+		case Frame.STREAM:
+			int stream = Frame.readVarInt(payload);
+			try {
+				obj = serializer.deserialize(payloads.reset(payload));
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				streams.refuse(stream);
+				return;
+			}
+			dispatcher.stream(streams.opened(stream, obj));
+			break;
+		case Frame.CHUNK:
+		case Frame.CREDIT:
+		case Frame.END:
+		case Frame.CANCEL:
+			streams.onFrame(type, payload);
+			break;
+		case Frame.HELLO:
+			hello(Handshake.decode(payload));
+			break;
+		case Frame.ACK:
+			Session session = this.session;
+			if (session != null && payload.remaining() >= 8) {
+				session.acknowledge(payload.getLong());
+			}
+			break;
+		case Frame.SUBSCRIBE:
+		case Frame.UNSUBSCRIBE:
+			String pattern = Frame.readString(payload);
+			try {
+				if (type == Frame.SUBSCRIBE) {
+					subscribe(pattern);
+				} else {
+					unsubscribe(pattern);
+				}
+			} catch (IllegalArgumentException e) {
+				// the pattern is not valid, the connection still is
+				e.printStackTrace();
+			}
+			break;
+		case Frame.PING:
+			sendQueue.control(new SharedFrame(Frame.empty(Frame.PONG, allocator), 1, allocator));
+			break;
+		case Frame.PONG:
+			// the read was all it was sent for
+			break;
+		default:
+			// frames of unknown types are skipped
+		}
+	}
+
+	// deserialize a received message, counting it and timing it
+	private Object deserialize(ByteBuffer payload) throws IOException {
+		long start = System.nanoTime();
+		Object obj = serializer.deserialize(payloads.reset(payload));
+		metrics.deserialized(System.nanoTime() - start);
+		metrics.received();
+		return obj;
+	}
+
+	// answer the Client's handshake with the options the Server agrees to
+	private void hello(Handshake offer) {
+		Compression compression = server.getCompression();
+		Handshake answer = new Handshake();
+		if (compression != null && offer.compression && compressor == null) {
+			answer.compression = true;
+			if (offer.dictionaryId == compression.dictionaryId()) {
+				answer.dictionaryId = offer.dictionaryId;
+			}
+		}
+		answer.acks = offer.acks;
+		Session session = sessions ? server.session(offer, this) : null;
+		// deltas can not be sent again on another connection
+		answer.delta = offer.delta && deltaEncoding && session == null && delta == null;
+		if (answer.delta) {
+			delta = new Delta();
+		}
+		if (session == null) {
+			// the answer is queued before any compressed frame
+			sendQueue.add(new SharedFrame(answer.encode(allocator), 1, allocator));
+		}
+		if (answer.compression) {
+			compressor = new Compressor(compression, answer.dictionaryId != 0, maxFrameSize, allocator);
+		}
+		acks = answer.acks;
+		if (session != null) {
+			boolean resumed = offer.token != null && Arrays.equals(offer.token, session.token);
+			answer.session = true;
+			answer.token = session.token;
+			answer.received = resumed ? offer.received : 0;
+			// the messages the Client missed follow the answer, before any new one
+			List<SharedFrame> messages = session.unacknowledged();
+			ArrayList<SharedFrame> frames = new ArrayList<SharedFrame>(messages.size() + 1);
+			frames.add(new SharedFrame(answer.encode(allocator), 1, allocator));
+			for (SharedFrame message : messages) {
+				frames.add(frame(message));
+				message.release();
+			}
+			this.resumed = resumed;
+			this.session = session;
+			if (sendQueue.attach(session, frames)) {
+				for (int i = 0; i < messages.size(); i++) {
+					metrics.sent();
+				}
+			}
+		}
+	}
+
+	// leave the session to the Client's new connection
+	void detach(Session session) {
+		if (this.session == session) {
+			this.session = null;
+		}
+		sendQueue.detach(session);
+	}
+
+	// tell the Client how many messages the listeners have been handed, if it
+	// asked to be told
+	void acknowledge(int messages) {
+		acknowledged += messages;
+		if (acks) {
+			sendQueue.control(new SharedFrame(Frame.ack(acknowledged, allocator), 1, allocator));
+		}
+	}
+
+	// compress the frame if agreed on in the handshake, ready to be queued
+	private SharedFrame frame(ByteBuffer frame) {
+		Compressor compressor = this.compressor;
+		if (compressor != null) {
+			ByteBuffer compressed = compressor.compress(frame);
+			if (compressed != frame) {
+				allocator.release(frame);
+				frame = compressed;
+			}
+		}
+		return new SharedFrame(frame, 1, allocator);
+	}
+
+	// compress the message if agreed on, with a reference of its own for the
+	// queue
+	private SharedFrame frame(SharedFrame message) {
+		Compressor compressor = this.compressor;
+		if (compressor != null) {
+			ByteBuffer compressed = compressor.compress(message.buffer());
+			if (compressed != message.buffer()) {
+				return new SharedFrame(compressed, 1, allocator);
+			}
+		}
+		message.retain();
+		return message;
+	}
+
+	// queue a message, kept uncompressed by the session until the Client
+	// acknowledges it
+	private boolean message(ByteBuffer frame) {
+		return message(frame, false);
+	}
+
+	// queue a message without waiting if room was reserved for it
+	private boolean message(ByteBuffer frame, boolean reserved) {
+		if (!sessions) {
+			return reserved ? sendQueue.queue(frame(frame), null) : sendQueue.add(frame(frame));
+		}
+		SharedFrame message = new SharedFrame(frame, 1, allocator);
+		try {
+			return reserved ? sendQueue.queue(frame(message), message) : sendQueue.message(frame(message), message);
+		} finally {
+			message.release();
+		}
+	}
+
+	// called by the event loop to write the queued messages
+	void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			int read = paused || throttled ? 0 : SelectionKey.OP_READ;
+			boolean written;
+			if (tls == null) {
+				written = sendQueue.drain(channel);
+			} else if (!tls.flush()) {
+				written = false;
+			} else if (tls.isHandshaking()) {
+				// the frames wait until the handshake is done, the next read goes on
+				written = true;
+			} else {
+				written = sendQueue.drain(tls) && tls.flush();
+			}
+			if (written) {
+				key.interestOps(read);
+			} else {
+				// the socket is full, wait until it can be written to again
+				key.interestOps(read | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	// run by a writer thread to write the queued messages to the stream
+	private void write() {
+		try {
+			sendQueue.drain(out);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// close the channel and activate the disconnect methods, runs in the loop
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
+		sendQueue.close();
+		sendQueue.discard();
+		streams.close();
+		if (tls != null) {
+			tls.close();
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		end();
+		server.disconnected(this);
+	}
+
+	// free the decoder and compressor, called by the thread receiving once it
+	// has stopped
+	private void end() {
+		decoder.release();
+		Compressor compressor = this.compressor;
+		if (compressor != null) {
+			compressor.end();
+		}
+	}
+
+	// start receiving from the socket, called by the Server once the listeners
+	// know about the connection
+	void receive() {
+		if (closed) {
+			// stopped before it started, by a listener or the heartbeat
+			disconnect();
+			return;
+		}
+		receive = Threads.start(threadFactory, "Receive", () -> {
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			while (true) {
+				try {
+					// read from the socket and hand every whole frame on
+					int read = in.read(buffer.array());
+					if (read < 0) {
+						throw new EOFException();
+					}
+					metrics.read(read);
+					if (heartbeat != null) {
+						heartbeat.read();
 					}
+					buffer.limit(read).position(0);
+					decoder.decode(buffer, this::onFrame);
+					int received = dispatcher.incoming();
+					if (!dispatcher.flush()) {
+						// the listeners are behind, stop reading until they catch up
+						dispatcher.awaitCaughtUp();
+					}
+					// leave the bytes in the socket until the rate limits allow more
+					long end = System.nanoTime() + throttle(read, received);
+					for (long left; (left = end - System.nanoTime()) > 0 || server.overloaded();) {
+						LockSupport.parkNanos(this, left > 0 ? left : OVERLOADED_WAIT);
+					}
+				} catch (IOException e) {
+					// the socket has an error close the connection
+					disconnect();
+					return;
+				} catch (RuntimeException | Error e) {
+					// handling what was read failed, the connection is closed as the
+					// event loop does
+					e.printStackTrace();
+					try {
+						socket.close();
+					} catch (IOException e1) {
+					}
+					disconnect();
+					return;
 				}
 			}
-		};
-		receive.start();
+		});
+	}
+
+	// release what a blocking socket holds once it no longer receives and
+	// activate the disconnect methods
+	private void disconnect() {
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
+		sendQueue.close();
+		streams.close();
+		end();
+		server.disconnected(this);
 	}
 
 	/**
-	 * Sends the specified Object to the peer which the socket is connected to
+	 * Sends the specified Object to the peer which the socket is connected to<br>
+	 * Objects are sent in the order this method is called. When the queued
+	 * messages have reached the Server's high water mark the Server's
+	 * {@link Backpressure} applies.
 	 * 
 	 * @param obj
 	 *            the Object to send
-	 * @exception IOException
-	 *             if an error occurs when sending the object
+	 * @exception IllegalStateException
+	 *                if the send queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
 	 */
 	public void send(Object obj) {
-		send = new Thread("Send") {
-			@Override
-			public void run() {
-				synchronized (out) {
-					try {
-						// convert to XML and send
-						out.write(serializer.toXML(obj) + "\n");
-						out.flush();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+		try {
+			Delta delta = this.delta;
+			if (delta != null && obj != null && Delta.encodes(obj.getClass())) {
+				if (delta(delta, obj)) {
+					return;
 				}
 			}
-		};
-		send.start();
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.MESSAGE, serializer, obj, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (message(frame)) {
+				metrics.sent();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// send the object delta encoded, returning false if it is to be sent as an
+	// ordinary message
+	private boolean delta(Delta delta, Object obj) throws IOException {
+		// the backpressure applies before the lock is taken, so no sender waits
+		// for room holding it
+		if (!sendQueue.reserve()) {
+			return true;
+		}
+		// encoded and queued in the order the Client decodes them
+		delta.lock.lock();
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = delta.encode(obj, serializer, maxFrameSize, allocator);
+			if (frame == null) {
+				return false;
+			}
+			metrics.serialized(System.nanoTime() - start);
+			boolean queued = false;
+			try {
+				queued = message(frame, true);
+			} finally {
+				if (queued) {
+					metrics.sent();
+				} else {
+					// the Client never gets it, the next one is sent whole
+					delta.forget(obj.getClass());
+				}
+			}
+			return true;
+		} finally {
+			delta.lock.unlock();
+		}
+	}
+
+	/**
+	 * Opens a stream to the Client, to send a large object or file in chunks
+	 * between the other messages<br>
+	 * The Client's listeners are handed the stream with the metadata by
+	 * {@link Listener#onStream(InboundStream)}. Writing waits while the Client
+	 * has the Server's stream window buffered, until it reads on.
+	 * 
+	 * @param metadata
+	 *            an Object sent ahead of the bytes, such as the name of a file,
+	 *            or null
+	 * @return the stream to write to and close
+	 * @exception IOException
+	 *                if the Connection is closed
+	 * @exception IllegalArgumentException
+	 *                if the serialized metadata is larger than the maximum frame
+	 *                size
+	 * @see Server#setStreamWindow(int)
+	 */
+	public OutboundStream openStream(Object metadata) throws IOException {
+		return streams.open(serializer, metadata, maxFrameSize, null);
+	}
+
+	/**
+	 * Opens a logical channel to the Client, whose messages and streams are
+	 * written ahead of or in turns with the rest by their priority
+	 * 
+	 * @param id
+	 *            the id the Client receives the channel's messages with
+	 * @param priority
+	 *            the priority of the channel's frames over those of others
+	 * @param weight
+	 *            the share of the Connection among the channels of the same
+	 *            priority, 1 for the share of the messages sent without a
+	 *            channel
+	 * @return the channel to send on
+	 * @exception IllegalArgumentException
+	 *                if the id or weight is not positive or the priority null
+	 * @exception IllegalStateException
+	 *                if a channel with the id is already open
+	 * @see Channel
+	 */
+	public Channel openChannel(int id, Priority priority, int weight) {
+		Channel.check(id, priority, weight);
+		Channel channel = new Channel(id, priority, weight, null, this);
+		if (channels.putIfAbsent(id, channel) != null) {
+			throw new IllegalStateException("Channel " + id + " is already open!");
+		}
+		return channel;
+	}
+
+	// send the object on the channel, not kept by the session
+	void send(Channel channel, Object obj) {
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.CHANNEL, channel.getId(), serializer, obj, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (sendQueue.add(frame(frame), channel)) {
+				metrics.sent();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// open a stream whose chunks are sent on the channel
+	OutboundStream openStream(Channel channel, Object metadata) throws IOException {
+		return streams.open(serializer, metadata, maxFrameSize, channel);
+	}
+
+	/**
+	 * Subscribes the Connection to the topics matching the pattern, so it is sent
+	 * what is published to them with {@link Server#publish(String, Object)}<br>
+	 * A "+" level of the pattern matches any one level of a topic, a "#" as the
+	 * last level any number of them. The Client subscribes with
+	 * {@link Client#subscribe(String)}, the Server can subscribe it as well. The
+	 * subscriptions end with the Connection, a Client which reconnects subscribes
+	 * its new Connection again.
+	 * 
+	 * @param pattern
+	 *            the topic or topic pattern, such as "prices/+/ACME"
+	 * @return whether or not the Connection was subscribed, false if it already
+	 *         was or has gone
+	 * @exception IllegalArgumentException
+	 *                if the pattern is empty, or a wildcard is not a level of its
+	 *                own or "#" not the last level
+	 */
+	public boolean subscribe(String pattern) {
+		Topics.checkPattern(pattern);
+		return server.topics.subscribe(this, pattern);
+	}
+
+	/**
+	 * Unsubscribes the Connection from a pattern it subscribed to
+	 * 
+	 * @param pattern
+	 *            the pattern as it was subscribed to
+	 * @return whether or not the Connection was subscribed to it
+	 * @exception IllegalArgumentException
+	 *                if the pattern is null
+	 */
+	public boolean unsubscribe(String pattern) {
+		if (pattern == null) {
+			throw new IllegalArgumentException("Topic pattern can not be null!");
+		}
+		return server.topics.unsubscribe(this, pattern);
+	}
+
+	/**
+	 * @return a snapshot of the topic patterns the Connection is subscribed to
+	 */
+	public Set<String> getSubscriptions() {
+		return Collections.unmodifiableSet(new HashSet<String>(subscriptions));
+	}
+
+	// send what was published to a topic the Connection subscribed to,
+	// serialized by its own Serializer
+	void publish(String topic, Object obj) {
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.PUBLISH, topic, serializer, obj, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (message(frame)) {
+				metrics.sent();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends the response to a request received on this Connection<br>
+	 * The same as calling {@link Request#reply(Object)}
+	 * 
+	 * @param request
+	 *            the request to reply to
+	 * @param response
+	 *            the Object to respond with
+	 * @exception IllegalArgumentException
+	 *                if the request was received on another Connection
+	 * @exception IllegalStateException
+	 *                if the request has already been replied to
+	 */
+	public void reply(Request request, Object response) {
+		if (request.getConnection() != this) {
+			throw new IllegalArgumentException("Request was received on another connection!");
+		}
+		if (!request.markReplied()) {
+			throw new IllegalStateException("Request already replied to!");
+		}
+		try {
+			long start = System.nanoTime();
+			ByteBuffer frame = Frame.encode(Frame.RESPONSE, request.id, serializer, response, maxFrameSize, allocator);
+			metrics.serialized(System.nanoTime() - start);
+			if (sendQueue.add(frame(frame))) {
+				metrics.sent();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// queue an encoded message which may be shared with other connections, the
+	// message before compression is kept by the session
+	boolean send(SharedFrame frame, SharedFrame message) {
+		if (sendQueue.message(frame, sessions ? message : null)) {
+			metrics.sent();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the {@link Serializer} used for the Objects sent and received on this
+	 * Connection<br>
+	 * By default the Server's Serializer is used
+	 * 
+	 * @param serializer
+	 *            the Serializer to use
+	 */
+	public void setSerializer(Serializer serializer) {
+		if (serializer == null) {
+			throw new IllegalArgumentException("Serializer can not be null!");
+		}
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return the {@link Serializer} used on this Connection
+	 */
+	public Serializer getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * @return whether or not the Client resumed the session of an earlier
+	 *         Connection, the messages it missed having been sent again
+	 * @see Server#setSessionTimeout(java.time.Duration)
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return whether or not compression was agreed on in the handshake with the
+	 *         Client
+	 */
+	public boolean isCompressed() {
+		return compressor != null;
+	}
+
+	/**
+	 * @return whether or not delta encoding was agreed on in the handshake with
+	 *         the Client
+	 * @see Server#setDeltaEncoding(boolean)
+	 */
+	public boolean isDeltaEncoded() {
+		return delta != null;
+	}
+
+	/**
+	 * Takes a snapshot of the bytes and messages sent and received on this
+	 * Connection<br>
+	 * The durations are recorded in the Server's metrics, the snapshot has no
+	 * histograms.
+	 * 
+	 * @return the snapshot
+	 * @see Server#getMetrics()
+	 */
+	public MetricsSnapshot getMetrics() {
+		return metrics.snapshot(server.isConnected(this) ? 1 : 0, sendQueue.pending());
+	}
+
+	/**
+	 * @return whether or not the Connection is encrypted with TLS
+	 * @see Server#setSecurity(Security)
+	 */
+	public boolean isSecure() {
+		return tls != null || socket instanceof SSLSocket;
+	}
+
+	/**
+	 * Returns the TLS session of the Connection, such as to read the
+	 * certificates the Client presented<br>
+	 * On a blocking socket this waits for the handshake to finish.
+	 * 
+	 * @return the session, or null if the Connection is not encrypted
+	 */
+	public SSLSession getSSLSession() {
+		if (tls != null) {
+			return tls.engine.getSession();
+		}
+		return socket instanceof SSLSocket ? ((SSLSocket) socket).getSession() : null;
 	}
 
 	public InetAddress getInetAddress() {
@@ -103,14 +997,25 @@ public class Connection {
 	}
 
 	public void stop() {
+		if (channel != null) {
+			loop.execute(this::close);
+			return;
+		}
+		closed = true;
+		sendQueue.close();
+		Thread receive = this.receive;
+		if (receive != null) {
+			try {
+				receive.join(1);
+			} catch (InterruptedException e) {
+			}
+		}
 		try {
-			receive.join(1);
 			socket.close();
 			out.close();
 			in.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (InterruptedException e) {
 		}
 	}
 
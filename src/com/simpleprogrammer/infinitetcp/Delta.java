@@ -0,0 +1,486 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The delta encoding of the messages of one connection, in both directions<br>
+ * The first message of a class is sent whole with the name of the class, and
+ * the peer remembers the values of its fields. The next message of the class
+ * is sent as the fields whose values changed since, so a state sent again and
+ * again with a few fields changed costs those few fields to serialize and to
+ * send. Primitive fields are written as numbers and String fields as text,
+ * other fields are serialized by the connection's Serializer on their own and
+ * compared by their bytes, so a field mutated in place is sent again.<br>
+ * Every delta frame carries the sender's epoch. A receiver which can not
+ * decode a delta drops it and the following ones and asks for a resync, the
+ * sender then starts a new epoch in which every class is sent whole again. A
+ * new connection starts from nothing on both sides.<br>
+ * Only plain classes with fields are delta encoded, the others are sent as
+ * ordinary messages.
+ */
+final class Delta {
+
+	// most classes remembered in each direction, more are sent whole
+	static final int MAX_TYPES = 256;
+
+	// tags of the values of fields which are not primitive
+	private static final int NULL = 0, STRING = 1, SERIALIZED = 2;
+
+	// the fields of every class which is delta encoded, null for the others
+	private static final ClassValue<BinarySerializer.ClassInfo> LAYOUTS = new ClassValue<BinarySerializer.ClassInfo>() {
+		@Override
+		protected BinarySerializer.ClassInfo computeValue(Class<?> type) {
+			if (type.isArray() || type.isEnum() || type.isPrimitive() || type.getName().startsWith("java.")) {
+				return null;
+			}
+			try {
+				BinarySerializer.ClassInfo info = new BinarySerializer.ClassInfo(type);
+				if (info.kind != BinarySerializer.OBJECT || info.fields.length == 0 || !info.canCreate()) {
+					return null;
+				}
+				return info;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	};
+
+	/**
+	 * Held by the sender from encoding a frame until it is queued, so frames are
+	 * queued in the order they were encoded
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+
+	// the sender's side, used holding the lock
+	private int epoch = 0;
+	private final HashMap<Class<?>, State> sent = new HashMap<Class<?>, State>();
+	// the epoch the receiver asked to end, -1 for none, set by the thread
+	// receiving and applied by the next sender so neither waits for the other
+	private final AtomicInteger resync = new AtomicInteger(-1);
+
+	// the receiver's side, only used by the thread receiving
+	private int receivedEpoch = 0;
+	// whether a delta of the epoch could not be decoded, the rest of it is
+	// dropped
+	private boolean broken = false;
+	private final ArrayList<State> received = new ArrayList<State>();
+
+	/**
+	 * @return whether or not Objects of the class can be delta encoded
+	 */
+	static boolean encodes(Class<?> type) {
+		return LAYOUTS.get(type) != null;
+	}
+
+	/**
+	 * Encodes the Object as the fields changed since the last Object of its
+	 * class, or whole if it is the first, holding the lock<br>
+	 * The frame must be queued before the lock is let go, or the class
+	 * forgotten with {@link #forget(Class)} if it is not sent.
+	 *
+	 * @return a buffer from the allocator holding the whole frame, or null if
+	 *         the Object is to be sent as an ordinary message
+	 * @exception IllegalArgumentException
+	 *                if the payload is larger than the maximum frame size
+	 */
+	ByteBuffer encode(Object obj, Serializer serializer, int maxFrameSize, BufferAllocator allocator)
+			throws IOException {
+		int requested = resync.getAndSet(-1);
+		if (requested == epoch) {
+			// a new epoch in which every class is sent whole again
+			epoch++;
+			sent.clear();
+		}
+		Class<?> type = obj.getClass();
+		State state = sent.get(type);
+		if (state == null) {
+			BinarySerializer.ClassInfo info = LAYOUTS.get(type);
+			if (info == null || sent.size() == MAX_TYPES) {
+				return null;
+			}
+			state = new State(sent.size(), info);
+			sent.put(type, state);
+		}
+
+		Frame.Output out = new Frame.Output(allocator);
+		try {
+			boolean whole = !state.defined;
+			// the state is taken before anything is written, it is only sent if
+			// the frame is
+			state.defined = false;
+			Field[] fields = state.info.fields;
+			byte[] changed = new byte[(fields.length + 7) >>> 3];
+			for (int i = 0; i < fields.length; i++) {
+				if (state.take(i, obj, serializer) || whole) {
+					changed[i >>> 3] |= 1 << (i & 7);
+				}
+			}
+			Frame.writeVarInt(out, epoch);
+			Frame.writeVarInt(out, state.id << 1 | (whole ? 1 : 0));
+			if (whole) {
+				Frame.writeString(out, type.getName());
+			} else {
+				out.write(changed, 0, changed.length);
+			}
+			for (int i = 0; i < fields.length; i++) {
+				if ((changed[i >>> 3] & 1 << (i & 7)) != 0) {
+					state.write(out, i, serializer);
+				}
+			}
+			ByteBuffer frame = out.finish(Frame.DELTA, maxFrameSize);
+			state.defined = true;
+			return frame;
+		} catch (IOException | RuntimeException e) {
+			out.discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the next Object of the class whole, as the last frame encoded for it
+	 * was not sent, holding the lock
+	 */
+	void forget(Class<?> type) {
+		State state = sent.get(type);
+		if (state != null) {
+			state.defined = false;
+		}
+	}
+
+	/**
+	 * Asks for a new epoch to start with the next Object encoded if the
+	 * receiver asked to end the current one, by the thread receiving without
+	 * taking the lock
+	 */
+	void resync(int epoch) {
+		resync.set(epoch);
+	}
+
+	/**
+	 * Decodes a delta frame into a new Object, by the thread receiving
+	 *
+	 * @return the Object, or null if the frame is dropped as it is of an epoch
+	 *         which has been resynced or could not be decoded
+	 * @exception IOException
+	 *                if the frame can not be decoded, a resync of
+	 *                {@link #receivedEpoch()} is to be asked for
+	 */
+	Object decode(ByteBuffer payload, Serializer serializer) throws IOException {
+		int epoch = Frame.readVarInt(payload);
+		if (epoch < receivedEpoch) {
+			return null;
+		}
+		if (epoch > receivedEpoch) {
+			// the sender has started again
+			receivedEpoch = epoch;
+			received.clear();
+			broken = false;
+		}
+		if (broken) {
+			return null;
+		}
+		try {
+			int ref = Frame.readVarInt(payload);
+			int id = ref >>> 1;
+			State state;
+			if ((ref & 1) != 0) {
+				BinarySerializer.ClassInfo info = LAYOUTS.get(load(Frame.readString(payload)));
+				if (info == null || id >= MAX_TYPES) {
+					throw new IOException("Invalid delta type " + id + "!");
+				}
+				state = new State(id, info);
+				// the types before it may not have been sent if they were dropped
+				while (received.size() <= id) {
+					received.add(null);
+				}
+				received.set(id, state);
+				for (int i = 0; i < info.fields.length; i++) {
+					state.read(payload, i);
+				}
+			} else {
+				state = id < received.size() ? received.get(id) : null;
+				if (state == null) {
+					throw new IOException("Unknown delta type " + id + "!");
+				}
+				byte[] changed = new byte[(state.info.fields.length + 7) >>> 3];
+				payload.get(changed);
+				for (int i = 0; i < state.info.fields.length; i++) {
+					if ((changed[i >>> 3] & 1 << (i & 7)) != 0) {
+						state.read(payload, i);
+					}
+				}
+			}
+			return state.create(serializer);
+		} catch (IOException | RuntimeException e) {
+			broken = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the epoch of the last delta received
+	 */
+	int receivedEpoch() {
+		return receivedEpoch;
+	}
+
+	// the class sent whole
+	private static Class<?> load(String name) throws IOException {
+		try {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			return Class.forName(name, false, loader != null ? loader : Delta.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// whether the Objects of the class are never changed, so the value itself is
+	// kept rather than its bytes
+	private static boolean immutable(Class<?> type) {
+		return type == String.class || type == Integer.class || type == Long.class || type == Double.class
+				|| type == Boolean.class || type == Float.class || type == Short.class || type == Byte.class
+				|| type == Character.class || type.isEnum()
+				|| (type.getSuperclass() != null && type.getSuperclass().isEnum());
+	}
+
+	// zig zag encoded so small negative numbers stay small
+	private static void writeVarLong(Frame.Output out, long v) {
+		long u = (v << 1) ^ (v >> 63);
+		while ((u & ~0x7FL) != 0) {
+			out.write((int) ((u & 0x7F) | 0x80));
+			u >>>= 7;
+		}
+		out.write((int) u);
+	}
+
+	private static long readVarLong(ByteBuffer in) throws IOException {
+		long u = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.get();
+			u |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (u >>> 1) ^ -(u & 1);
+			}
+		}
+		throw new IOException("Malformed variable length number!");
+	}
+
+	/**
+	 * The values of the fields of the last Object of a class sent or received
+	 */
+	private static final class State {
+
+		final int id;
+		final BinarySerializer.ClassInfo info;
+		// the primitive fields as numbers, the bits of floating point ones
+		final long[] primitives;
+		// the other fields as their value if it is immutable or null, their
+		// serialized bytes otherwise
+		final Object[] references;
+		// whether the peer has the values, only used when sending
+		boolean defined = false;
+
+		State(int id, BinarySerializer.ClassInfo info) {
+			this.id = id;
+			this.info = info;
+			primitives = new long[info.fields.length];
+			references = new Object[info.fields.length];
+		}
+
+		// take the value of the field from the Object, returning whether it changed
+		boolean take(int i, Object obj, Serializer serializer) throws IOException {
+			Field f = info.fields[i];
+			try {
+				long v;
+				switch (info.types[i]) {
+				case BinarySerializer.INT:
+					v = f.getInt(obj);
+					break;
+				case BinarySerializer.LONG:
+					v = f.getLong(obj);
+					break;
+				case BinarySerializer.DOUBLE:
+					v = Double.doubleToRawLongBits(f.getDouble(obj));
+					break;
+				case BinarySerializer.FLOAT:
+					v = Float.floatToRawIntBits(f.getFloat(obj));
+					break;
+				case BinarySerializer.TRUE:
+					v = f.getBoolean(obj) ? 1 : 0;
+					break;
+				case BinarySerializer.BYTE:
+					v = f.getByte(obj);
+					break;
+				case BinarySerializer.SHORT:
+					v = f.getShort(obj);
+					break;
+				case BinarySerializer.CHAR:
+					v = f.getChar(obj);
+					break;
+				default:
+					Object value = f.get(obj);
+					Object last = references[i];
+					if (value == null) {
+						references[i] = null;
+						return last != null;
+					}
+					if (immutable(value.getClass())) {
+						references[i] = value;
+						return !value.equals(last);
+					}
+					byte[] bytes = serialize(value, serializer);
+					references[i] = bytes;
+					return !(last instanceof byte[]) || !Arrays.equals(bytes, (byte[]) last);
+				}
+				boolean changed = v != primitives[i];
+				primitives[i] = v;
+				return changed;
+			} catch (IllegalAccessException e) {
+				throw new IOException(e);
+			}
+		}
+
+		// write the value taken of the field
+		void write(Frame.Output out, int i, Serializer serializer) throws IOException {
+			switch (info.types[i]) {
+			case BinarySerializer.DOUBLE:
+				out.reserve(8).putLong(primitives[i]);
+				break;
+			case BinarySerializer.FLOAT:
+				out.reserve(4).putInt((int) primitives[i]);
+				break;
+			case BinarySerializer.TRUE:
+			case BinarySerializer.BYTE:
+				out.write((int) primitives[i]);
+				break;
+			case BinarySerializer.INT:
+			case BinarySerializer.LONG:
+			case BinarySerializer.SHORT:
+			case BinarySerializer.CHAR:
+				writeVarLong(out, primitives[i]);
+				break;
+			default:
+				Object value = references[i];
+				if (value == null) {
+					out.write(NULL);
+				} else if (value instanceof String) {
+					out.write(STRING);
+					Frame.writeString(out, (String) value);
+				} else {
+					byte[] bytes = value instanceof byte[] ? (byte[]) value : serialize(value, serializer);
+					out.write(SERIALIZED);
+					Frame.writeVarInt(out, bytes.length);
+					out.write(bytes, 0, bytes.length);
+				}
+			}
+		}
+
+		// read the value of the field, the bytes of a serialized one are read by
+		// create
+		void read(ByteBuffer in, int i) throws IOException {
+			switch (info.types[i]) {
+			case BinarySerializer.DOUBLE:
+				primitives[i] = in.getLong();
+				break;
+			case BinarySerializer.FLOAT:
+				primitives[i] = in.getInt();
+				break;
+			case BinarySerializer.TRUE:
+			case BinarySerializer.BYTE:
+				primitives[i] = in.get();
+				break;
+			case BinarySerializer.INT:
+			case BinarySerializer.LONG:
+			case BinarySerializer.SHORT:
+			case BinarySerializer.CHAR:
+				primitives[i] = readVarLong(in);
+				break;
+			default:
+				int tag = in.get();
+				if (tag == NULL) {
+					references[i] = null;
+				} else if (tag == STRING) {
+					references[i] = Frame.readString(in);
+				} else if (tag == SERIALIZED) {
+					int length = Frame.readVarInt(in);
+					if (length < 0 || length > in.remaining()) {
+						throw new IOException("Truncated delta field!");
+					}
+					byte[] bytes = new byte[length];
+					in.get(bytes);
+					references[i] = bytes;
+				} else {
+					throw new IOException("Unknown delta field tag " + tag + "!");
+				}
+			}
+		}
+
+		// a new Object with the values of the fields
+		Object create(Serializer serializer) throws IOException {
+			Object obj = info.newInstance();
+			try {
+				for (int i = 0; i < info.fields.length; i++) {
+					Field f = info.fields[i];
+					long v = primitives[i];
+					switch (info.types[i]) {
+					case BinarySerializer.INT:
+						f.setInt(obj, (int) v);
+						break;
+					case BinarySerializer.LONG:
+						f.setLong(obj, v);
+						break;
+					case BinarySerializer.DOUBLE:
+						f.setDouble(obj, Double.longBitsToDouble(v));
+						break;
+					case BinarySerializer.FLOAT:
+						f.setFloat(obj, Float.intBitsToFloat((int) v));
+						break;
+					case BinarySerializer.TRUE:
+						f.setBoolean(obj, v != 0);
+						break;
+					case BinarySerializer.BYTE:
+						f.setByte(obj, (byte) v);
+						break;
+					case BinarySerializer.SHORT:
+						f.setShort(obj, (short) v);
+						break;
+					case BinarySerializer.CHAR:
+						f.setChar(obj, (char) v);
+						break;
+					default:
+						Object value = references[i];
+						if (value instanceof byte[]) {
+							// read anew for every Object so none shares a mutable value with
+							// one handed on before, an immutable one is kept instead
+							value = serializer.deserialize(new ByteArrayInputStream((byte[]) value));
+							if (value != null && immutable(value.getClass())) {
+								references[i] = value;
+							}
+						}
+						f.set(obj, value);
+					}
+				}
+			} catch (IllegalAccessException | IllegalArgumentException e) {
+				throw new IOException(e);
+			}
+			return obj;
+		}
+
+		private static byte[] serialize(Object value, Serializer serializer) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			serializer.serialize(value, bytes);
+			return bytes.toByteArray();
+		}
+
+	}
+
+}
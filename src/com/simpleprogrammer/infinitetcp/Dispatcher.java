@@ -0,0 +1,272 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands the messages, requests, streams, messages of channels and the
+ * disconnect of one Connection
+ * to the Server's listeners in the order they were received<br>
+ * The receiving thread collects what it decodes from one read and flushes it at
+ * once. Without an executor the listeners run on the receiving thread during
+ * the flush. With one, a drain is handed to the executor when the first event
+ * arrives and takes every queued event at once, so one Connection is never
+ * served by two workers at a time while different Connections are served in
+ * parallel. Messages received one after another are passed to the listeners
+ * as one batch.<br>
+ * When the listeners fall {@link #MAX_PENDING} events behind, the flush asks
+ * the receiving thread to stop reading until they have caught up by half. The
+ * events waiting are also counted over every Connection of the Server, for
+ * {@link Server#setMaxInFlight(int)}.<br>
+ * Once the listeners have been handed the messages of a drain, the Connection
+ * is told how many there were so it can acknowledge them. Messages of channels
+ * are not counted, as the Client does not keep them.
+ */
+final class Dispatcher {
+
+	/**
+	 * The number of events waiting for the listeners after which reading pauses
+	 */
+	static final int MAX_PENDING = 1024;
+
+	// queued after every other event of the connection
+	private static final Object DISCONNECT = new Object();
+	// stands in for a message which could not be read, only counted
+	private static final Object SKIPPED = new Object();
+
+	private final Server server;
+	private final Connection conn;
+	// runs the drains, null to run them on the receiving thread
+	private final Executor executor;
+	// run by the drain when reading may go on, null if the reading thread waits
+	private final Runnable resume;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition caughtUp = lock.newCondition();
+	private final ArrayDeque<Object> events = new ArrayDeque<Object>();
+	// events flushed but not yet handed to the listeners
+	private int pending = 0;
+	// whether a drain has been handed to the executor
+	private boolean scheduled = false;
+	// whether reading has been paused until the listeners catch up
+	private boolean paused = false;
+
+	// events decoded since the last flush, only used by the receiving thread
+	private final ArrayList<Object> incoming = new ArrayList<Object>();
+	// events taken from the queue by the drain, only used by the drain
+	private final ArrayList<Object> batch = new ArrayList<Object>();
+
+	Dispatcher(Server server, Connection conn, Executor executor, Runnable resume) {
+		this.server = server;
+		this.conn = conn;
+		this.executor = executor;
+		this.resume = resume;
+	}
+
+	/**
+	 * Adds a message received, handed on at the next flush
+	 */
+	void message(Object obj) {
+		incoming.add(obj);
+	}
+
+	/**
+	 * Adds a message which could not be read, counted as handed on at the next
+	 * flush
+	 */
+	void skipped() {
+		incoming.add(SKIPPED);
+	}
+
+	/**
+	 * Adds a request received, handed on at the next flush
+	 */
+	void request(Request request) {
+		incoming.add(request);
+	}
+
+	/**
+	 * Adds a stream the Client has opened, handed on at the next flush
+	 */
+	void stream(InboundStream stream) {
+		incoming.add(stream);
+	}
+
+	/**
+	 * Adds a message received on a channel, handed on at the next flush
+	 */
+	void channel(int channel, Object obj) {
+		incoming.add(new ChannelMessage(channel, obj));
+	}
+
+	/**
+	 * @return the number of events received since the last flush
+	 */
+	int incoming() {
+		return incoming.size();
+	}
+
+	/**
+	 * Flushes the events received and the disconnect after them
+	 */
+	void disconnect() {
+		incoming.add(DISCONNECT);
+		flush();
+	}
+
+	/**
+	 * Hands the events received since the last flush to the listeners
+	 *
+	 * @return false if the listeners have fallen behind and reading should pause
+	 *         until they have caught up
+	 */
+	boolean flush() {
+		if (incoming.isEmpty()) {
+			return true;
+		}
+		boolean schedule;
+		boolean full;
+		lock.lock();
+		try {
+			events.addAll(incoming);
+			pending += incoming.size();
+			server.inFlight.addAndGet(incoming.size());
+			schedule = !scheduled;
+			scheduled = true;
+			if (executor != null && pending >= MAX_PENDING) {
+				paused = true;
+			}
+			full = paused;
+		} finally {
+			lock.unlock();
+		}
+		incoming.clear();
+		if (schedule) {
+			if (executor == null) {
+				drain();
+			} else {
+				executor.execute(this::drain);
+			}
+		}
+		return !full;
+	}
+
+	/**
+	 * Waits until the listeners have caught up after a flush returned false<br>
+	 * Called by the thread receiving from a blocking socket
+	 */
+	void awaitCaughtUp() {
+		lock.lock();
+		try {
+			while (paused) {
+				caughtUp.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// hand every queued event to the listeners, until the queue is empty
+	private void drain() {
+		do {
+			lock.lock();
+			try {
+				batch.addAll(events);
+				events.clear();
+			} finally {
+				lock.unlock();
+			}
+			int messages = dispatch(batch);
+			if (messages > 0) {
+				conn.acknowledge(messages);
+			}
+			boolean resumed = false;
+			lock.lock();
+			try {
+				pending -= batch.size();
+				server.inFlight.addAndGet(-batch.size());
+				if (paused && pending <= MAX_PENDING / 2) {
+					paused = false;
+					resumed = true;
+					caughtUp.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+			batch.clear();
+			if (resumed && resume != null) {
+				resume.run();
+			}
+		} while (!finish());
+	}
+
+	// pass the events on, messages in a row as one batch, returning the number of
+	// messages
+	private int dispatch(ArrayList<Object> events) {
+		int count = 0;
+		int start = 0;
+		for (int i = 0; i <= events.size(); i++) {
+			boolean end = i == events.size();
+			Object event = end ? null : events.get(i);
+			if (!end && !(event instanceof Request) && !(event instanceof InboundStream)
+					&& !(event instanceof ChannelMessage) && event != DISCONNECT) {
+				count++;
+				if (event != SKIPPED) {
+					continue;
+				}
+			}
+			if (i > start) {
+				List<Object> messages = i - start == 1 ? Collections.singletonList(events.get(start))
+						: new ArrayList<Object>(events.subList(start, i));
+				server.received(conn, messages);
+			}
+			start = i + 1;
+			if (event instanceof Request) {
+				server.requested(conn, (Request) event);
+			} else if (event instanceof InboundStream) {
+				server.streamed(conn, (InboundStream) event);
+			} else if (event instanceof ChannelMessage) {
+				ChannelMessage message = (ChannelMessage) event;
+				server.received(conn, message.channel, message.obj);
+			} else if (event == DISCONNECT) {
+				server.disconnectListeners(conn);
+			}
+		}
+		return count;
+	}
+
+	// end the drain if nothing was queued since the last take
+	private boolean finish() {
+		lock.lock();
+		try {
+			if (events.isEmpty()) {
+				scheduled = false;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A message received on a channel and the channel's id
+	 */
+	private static final class ChannelMessage {
+
+		final int channel;
+		final Object obj;
+
+		ChannelMessage(int channel, Object obj) {
+			this.channel = channel;
+			this.obj = obj;
+		}
+
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single threaded selector loop which serves the reads and writes of many
+ * Connections<br>
+ * Used by the Server when it is started with event loops so that no thread is
+ * needed per Connection.
+ */
+final class EventLoop implements Runnable {
+
+	// size of the read buffer shared by every connection in this loop
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// the loop run by the current thread, null on any other thread
+	private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<EventLoop>();
+
+	private final Selector selector;
+	// tasks handed to the loop from other threads
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// one direct buffer for all reads, connections only copy partial messages
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	// one direct buffer the reads of TLS connections are decrypted into,
+	// created when first needed
+	private ByteBuffer plainBuffer;
+	private final Thread thread;
+	private volatile boolean running = false;
+
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * @return whether or not the calling thread is this loop's thread
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * @return whether or not the calling thread is the thread of any loop, which
+	 *         must never wait for a send queue to drain
+	 */
+	static boolean onLoopThread() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * Runs the task on the loop thread, immediately if already called from it
+	 */
+	void execute(Runnable task) {
+		if (inLoop()) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the task on the loop thread, immediately if already called from it,
+	 * unless the loop has stopped
+	 * 
+	 * @return false if the loop has stopped and the task will never run
+	 */
+	boolean submit(Runnable task) {
+		if (inLoop()) {
+			task.run();
+			return true;
+		}
+		tasks.add(task);
+		// the loop runs its tasks one last time after it stops, one added since
+		// is taken back
+		if (!running && tasks.remove(task)) {
+			return false;
+		}
+		selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * Returns the buffer the reads of TLS connections are decrypted into, only
+	 * used on the loop thread
+	 * 
+	 * @param size
+	 *            the size the buffer must have at least
+	 */
+	ByteBuffer plainBuffer(int size) {
+		if (plainBuffer == null || plainBuffer.capacity() < size) {
+			plainBuffer = ByteBuffer.allocateDirect(Math.max(size, READ_BUFFER_SIZE));
+		}
+		return plainBuffer;
+	}
+
+	/**
+	 * Registers the Connection's channel for reading in this loop
+	 */
+	void register(Connection conn) {
+		execute(() -> {
+			try {
+				conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				// write anything sent before the channel was registered
+				conn.flush();
+			} catch (ClosedChannelException e) {
+				conn.close();
+			}
+		});
+	}
+
+	/**
+	 * Stops the loop and closes every Connection registered in it
+	 */
+	void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		if (!inLoop()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		CURRENT.set(this);
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Connection conn = (Connection) key.attachment();
+				try {
+					if (key.isReadable()) {
+						conn.read(readBuffer);
+					}
+					if (key.isValid() && key.isWritable()) {
+						conn.flush();
+					}
+				} catch (CancelledKeyException e) {
+					conn.close();
+				} catch (Throwable t) {
+					// the loop still serves its other Connections
+					t.printStackTrace();
+					conn.close();
+				}
+			}
+		}
+
+		// the loop has stopped so close what is left
+		runTasks();
+		for (SelectionKey key : selector.keys()) {
+			((Connection) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// run every task handed to the loop
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				// the loop and the tasks after this one still run
+				t.printStackTrace();
+			}
+		}
+	}
+
+}
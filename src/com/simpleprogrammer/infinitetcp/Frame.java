@@ -0,0 +1,377 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The framing of everything sent between a Client and a Server<br>
+ * Every frame is a 4 byte big endian payload length, a 1 byte frame type and
+ * then the payload. Frames of a type a peer does not know are skipped.<br>
+ * The payload of requests and responses starts with the correlation id as a
+ * variable length number, the payload of a message of a channel with the
+ * channel's id. The highest bit of the type marks a frame
+ * compressed by a {@link Compressor}. The payload of an acknowledgement is the
+ * number of messages received on the connection as an 8 byte number.<br>
+ * The frames of a stream start with the stream's id as a variable length
+ * number: the opening frame is followed by the serialized metadata, a chunk by
+ * its bytes, a credit by the number of bytes granted as a variable length
+ * number and an end by a byte which is 1 if the stream was aborted. A cancel
+ * has only the id. Streams are numbered by their sender, the type tells whose
+ * stream is meant.<br>
+ * A ping and the pong answering it have no payload.<br>
+ * A subscription and its cancelling hold the topic pattern, a publication the
+ * topic and then the serialized Object. A topic is a variable length number of
+ * bytes followed by that many bytes of UTF-8.<br>
+ * A delta starts with the sender's epoch and its number for the type, see
+ * {@link Delta}, a resync holds the epoch to end.<br>
+ * A request the receiver could not read is answered with a failure holding
+ * its correlation id and the reason as a String, written like a topic.
+ */
+final class Frame {
+
+	// bytes in front of every payload
+	static final int HEADER_SIZE = 5;
+
+	/**
+	 * The default largest payload accepted from a peer
+	 */
+	static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	// frame types
+	static final int MESSAGE = 0;
+	static final int REQUEST = 1;
+	static final int RESPONSE = 2;
+	static final int HELLO = 3;
+	static final int ACK = 4;
+	// frames of streams, credits and cancels are sent by the reader
+	static final int STREAM = 5;
+	static final int CHUNK = 6;
+	static final int CREDIT = 7;
+	static final int END = 8;
+	static final int CANCEL = 9;
+	// a message of a channel
+	static final int CHANNEL = 10;
+	// heartbeats, a ping is answered with a pong
+	static final int PING = 11;
+	static final int PONG = 12;
+	// topics, subscriptions are sent by the Client
+	static final int SUBSCRIBE = 13;
+	static final int UNSUBSCRIBE = 14;
+	static final int PUBLISH = 15;
+	// a message of a type sent before, as the fields changed since, and the
+	// receiver's request to send every type whole again
+	static final int DELTA = 16;
+	static final int RESYNC = 17;
+	// the answer to a request which could not be read, in place of a response
+	static final int FAILED = 18;
+
+	// type bit of compressed frames
+	static final int COMPRESSED = 0x80;
+
+	private Frame() {
+	}
+
+	/**
+	 * Serializes the Object into one frame
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 * @exception IllegalArgumentException
+	 *                if the payload is larger than the maximum frame size
+	 */
+	static ByteBuffer encode(int type, Serializer serializer, Object obj, int maxFrameSize,
+			BufferAllocator allocator) throws IOException {
+		Output out = new Output(allocator);
+		try {
+			serializer.serialize(obj, out);
+		} catch (IOException | RuntimeException e) {
+			out.discard();
+			throw e;
+		}
+		return out.finish(type, maxFrameSize);
+	}
+
+	/**
+	 * Serializes the Object into one frame starting with a correlation id
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 * @exception IllegalArgumentException
+	 *                if the payload is larger than the maximum frame size
+	 */
+	static ByteBuffer encode(int type, int correlation, Serializer serializer, Object obj, int maxFrameSize,
+			BufferAllocator allocator) throws IOException {
+		Output out = new Output(allocator);
+		writeVarInt(out, correlation);
+		try {
+			serializer.serialize(obj, out);
+		} catch (IOException | RuntimeException e) {
+			out.discard();
+			throw e;
+		}
+		return out.finish(type, maxFrameSize);
+	}
+
+	/**
+	 * Serializes the Object into one frame starting with a topic
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 * @exception IllegalArgumentException
+	 *                if the payload is larger than the maximum frame size
+	 */
+	static ByteBuffer encode(int type, String topic, Serializer serializer, Object obj, int maxFrameSize,
+			BufferAllocator allocator) throws IOException {
+		Output out = new Output(allocator);
+		writeString(out, topic);
+		try {
+			serializer.serialize(obj, out);
+		} catch (IOException | RuntimeException e) {
+			out.discard();
+			throw e;
+		}
+		return out.finish(type, maxFrameSize);
+	}
+
+	/**
+	 * Encodes a frame holding only a topic or topic pattern, such as a
+	 * subscription
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	static ByteBuffer topic(int type, String topic, BufferAllocator allocator) {
+		Output out = new Output(allocator);
+		writeString(out, topic);
+		return out.finish(type, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Encodes the failure of a request, sent in place of its response
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	static ByteBuffer failed(int correlation, String reason, BufferAllocator allocator) {
+		Output out = new Output(allocator);
+		writeVarInt(out, correlation);
+		writeString(out, reason);
+		return out.finish(FAILED, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Encodes an acknowledgement of the number of messages received
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	static ByteBuffer ack(long count, BufferAllocator allocator) {
+		Output out = new Output(allocator);
+		out.reserve(8).putLong(count);
+		return out.finish(ACK, 8);
+	}
+
+	/**
+	 * Encodes a frame without a payload, such as a ping
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	static ByteBuffer empty(int type, BufferAllocator allocator) {
+		return new Output(allocator).finish(type, 0);
+	}
+
+	/**
+	 * Encodes a frame holding only a variable length number, such as the id of
+	 * a stream, and unless negative a second one
+	 * 
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	static ByteBuffer stream(int type, int id, int value, BufferAllocator allocator) {
+		Output out = new Output(allocator);
+		writeVarInt(out, id);
+		if (value >= 0) {
+			writeVarInt(out, value);
+		}
+		return out.finish(type, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Encodes the header of a chunk whose bytes follow separately, as from a
+	 * file
+	 * 
+	 * @return a buffer from the allocator holding the header and the id
+	 */
+	static ByteBuffer chunkHeader(int id, int length, BufferAllocator allocator) {
+		Output out = new Output(allocator);
+		writeVarInt(out, id);
+		ByteBuffer header = out.finish(CHUNK, Integer.MAX_VALUE);
+		header.putInt(0, header.remaining() - HEADER_SIZE + length);
+		return header;
+	}
+
+	/**
+	 * Writes an unsigned variable length number, 7 bits per byte
+	 */
+	static void writeVarInt(Output out, int v) {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Puts an unsigned variable length number into the buffer
+	 */
+	static void putVarInt(ByteBuffer out, int v) {
+		while ((v & ~0x7F) != 0) {
+			out.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	/**
+	 * @return the number of bytes of the variable length number
+	 */
+	static int varIntSize(int v) {
+		int size = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads an unsigned variable length number from the buffer
+	 */
+	static int readVarInt(ByteBuffer in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new IOException("Truncated variable length number!");
+			}
+			int b = in.get();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed variable length number!");
+	}
+
+	/**
+	 * Writes a String, such as a topic, as its length and its UTF-8 bytes
+	 */
+	static void writeString(Output out, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads a String written by {@link #writeString(Output, String)} from the
+	 * buffer
+	 */
+	static String readString(ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Truncated string!");
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A stream writing a frame into a buffer from an allocator, leaving room for
+	 * the header in front of the payload<br>
+	 * The buffer is replaced by one twice the size whenever it is full.
+	 */
+	static final class Output extends OutputStream {
+
+		// size of the first buffer, most frames fit
+		private static final int INITIAL_SIZE = 512;
+
+		private final BufferAllocator allocator;
+		private ByteBuffer buffer;
+
+		Output(BufferAllocator allocator) {
+			this.allocator = allocator;
+			buffer = allocator.allocate(INITIAL_SIZE);
+			buffer.limit(buffer.capacity()).position(HEADER_SIZE);
+		}
+
+		@Override
+		public void write(int b) {
+			if (!buffer.hasRemaining()) {
+				grow(1);
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (buffer.remaining() < len) {
+				grow(len);
+			}
+			buffer.put(b, off, len);
+		}
+
+		/**
+		 * Makes room for n more bytes and returns the buffer to write them into
+		 * directly, its position is where the next byte goes
+		 */
+		ByteBuffer reserve(int n) {
+			if (buffer.remaining() < n) {
+				grow(n);
+			}
+			return buffer;
+		}
+
+		// move the bytes to a buffer with room for n more
+		private void grow(int n) {
+			long needed = (long) buffer.position() + n;
+			if (needed > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Message exceeds the largest possible frame!");
+			}
+			int size = (int) Math.max(needed, Math.min(2L * buffer.capacity(), Integer.MAX_VALUE));
+			ByteBuffer larger = allocator.allocate(size);
+			larger.limit(larger.capacity());
+			buffer.flip();
+			larger.put(buffer);
+			allocator.release(buffer);
+			buffer = larger;
+		}
+
+		/**
+		 * Writes the header and hands the buffer on, the Output is not used after
+		 *
+		 * @exception IllegalArgumentException
+		 *                if the payload is larger than the maximum frame size
+		 */
+		ByteBuffer finish(int type, int maxFrameSize) {
+			int length = buffer.position() - HEADER_SIZE;
+			if (length > maxFrameSize) {
+				discard();
+				throw new IllegalArgumentException(
+						"Message of " + length + " bytes exceeds the maximum frame size of " + maxFrameSize + "!");
+			}
+			buffer.putInt(0, length);
+			buffer.put(4, (byte) type);
+			buffer.flip();
+			ByteBuffer frame = buffer;
+			buffer = null;
+			return frame;
+		}
+
+		/**
+		 * Gives the buffer back to the allocator when the frame is not finished
+		 */
+		void discard() {
+			if (buffer != null) {
+				allocator.release(buffer);
+				buffer = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes read from a peer into frames<br>
+ * Frames which arrived whole are handed on as slices of the read buffer
+ * without copying. Only a frame split across reads is copied into a buffer
+ * from the allocator until the rest of it arrives. That buffer grows with the
+ * bytes that have arrived rather than being taken at the size the header
+ * declares, so a peer sending only headers holds little memory.
+ */
+final class FrameDecoder {
+
+	/**
+	 * Receives the decoded frames
+	 */
+	interface Handler {
+
+		/**
+		 * Called for every frame, the payload is only valid during the call
+		 */
+		void onFrame(int type, ByteBuffer payload) throws IOException;
+
+	}
+
+	private final int maxFrameSize;
+	private final BufferAllocator allocator;
+	// the frame which has partly arrived, null if none
+	private ByteBuffer partial;
+	// bytes of the whole partial frame, 0 until its header has arrived
+	private int size;
+
+	FrameDecoder(int maxFrameSize, BufferAllocator allocator) {
+		this.maxFrameSize = maxFrameSize;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Decodes every frame in the buffer and keeps what is left of the last one
+	 * 
+	 * @exception IOException
+	 *                if a frame is larger than the maximum frame size
+	 */
+	void decode(ByteBuffer in, Handler handler) throws IOException {
+		if (partial != null && !complete(in, handler)) {
+			return;
+		}
+
+		while (in.remaining() >= Frame.HEADER_SIZE) {
+			int start = in.position();
+			int length = length(in.getInt(start));
+			int end = start + Frame.HEADER_SIZE + length;
+			if (end > in.limit()) {
+				break;
+			}
+			int type = in.get(start + 4) & 0xFF;
+			ByteBuffer payload = in.duplicate();
+			payload.limit(end).position(start + Frame.HEADER_SIZE);
+			in.position(end);
+			handler.onFrame(type, payload.slice());
+		}
+
+		if (in.hasRemaining()) {
+			size = 0;
+			if (in.remaining() >= Frame.HEADER_SIZE) {
+				size = Frame.HEADER_SIZE + length(in.getInt(in.position()));
+			}
+			// room for what has arrived, the rest is made as it arrives
+			partial = allocator.allocate(Math.max(Frame.HEADER_SIZE, in.remaining()));
+			partial.put(in);
+		}
+	}
+
+	// copy into the partial frame and hand it on once whole
+	private boolean complete(ByteBuffer in, Handler handler) throws IOException {
+		if (partial.position() < Frame.HEADER_SIZE) {
+			copy(in, Frame.HEADER_SIZE - partial.position());
+			if (partial.position() < Frame.HEADER_SIZE) {
+				return false;
+			}
+			size = Frame.HEADER_SIZE + length(partial.getInt(0));
+		}
+		while (partial.position() < size && in.hasRemaining()) {
+			if (!partial.hasRemaining()) {
+				grow(in.remaining());
+			}
+			copy(in, size - partial.position());
+		}
+		if (partial.position() < size) {
+			return false;
+		}
+
+		ByteBuffer frame = partial;
+		partial = null;
+		frame.flip();
+		int type = frame.get(4) & 0xFF;
+		frame.position(Frame.HEADER_SIZE);
+		try {
+			handler.onFrame(type, frame.slice());
+		} finally {
+			allocator.release(frame);
+		}
+		return true;
+	}
+
+	/**
+	 * Gives the partly arrived frame back to the allocator, called by the thread
+	 * decoding once the connection is closed
+	 */
+	void release() {
+		if (partial != null) {
+			allocator.release(partial);
+			partial = null;
+		}
+	}
+
+	// make room in the partial frame for the bytes arriving, at least doubling
+	// it but never past the size of the frame
+	private void grow(int arriving) {
+		int filled = partial.position();
+		int needed = (int) Math.min(size, Math.max(filled * 2L, (long) filled + arriving));
+		if (partial.capacity() >= needed) {
+			// the allocator's size classes often leave room already
+			partial.limit(needed);
+			return;
+		}
+		ByteBuffer grown = allocator.allocate(needed);
+		partial.flip();
+		grown.put(partial);
+		allocator.release(partial);
+		partial = grown;
+	}
+
+	// copy up to n bytes from the buffer into the room left in the partial
+	// frame
+	private void copy(ByteBuffer in, int n) {
+		n = Math.min(n, Math.min(in.remaining(), partial.remaining()));
+		ByteBuffer part = in.duplicate();
+		part.limit(in.position() + n);
+		partial.put(part);
+		in.position(in.position() + n);
+	}
+
+	private int length(int length) throws IOException {
+		if (length < 0 || length > maxFrameSize) {
+			throw new IOException("Frame of " + (length & 0xFFFFFFFFL) + " bytes exceeds the maximum frame size of "
+					+ maxFrameSize + "!");
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The first frame a Client sends and the Server's answer to it<br>
+ * The payload is a list of options, each a 1 byte option id, the length of its
+ * value as a variable length number and then the value. Options a peer does
+ * not know are skipped so new ones can be added without breaking older peers.
+ * A Server which does not know the handshake skips the frame and the Client
+ * keeps to what every peer understands.
+ */
+final class Handshake {
+
+	// option ids
+	static final int COMPRESSION = 1;
+	static final int ACKS = 2;
+	static final int SESSION = 3;
+	static final int DELTA = 4;
+
+	// whether or not compression is offered or accepted
+	boolean compression = false;
+	// checksum of the dictionary offered or accepted, 0 for none
+	int dictionaryId = 0;
+	// whether or not acknowledgements of the messages are asked for or agreed to
+	boolean acks = false;
+	// whether or not a session is asked for or given
+	boolean session = false;
+	// the token of the session to resume or given, null to ask for a new one
+	byte[] token;
+	// the number of the session's messages the Client has received
+	long received = 0;
+	// whether or not delta encoding is offered or agreed to
+	boolean delta = false;
+
+	/**
+	 * @return a buffer from the allocator holding the whole frame
+	 */
+	ByteBuffer encode(BufferAllocator allocator) {
+		Frame.Output out = new Frame.Output(allocator);
+		if (compression) {
+			out.write(COMPRESSION);
+			Frame.writeVarInt(out, 4);
+			out.write(dictionaryId >>> 24);
+			out.write(dictionaryId >>> 16);
+			out.write(dictionaryId >>> 8);
+			out.write(dictionaryId);
+		}
+		if (acks) {
+			out.write(ACKS);
+			Frame.writeVarInt(out, 0);
+		}
+		if (session) {
+			out.write(SESSION);
+			if (token == null) {
+				Frame.writeVarInt(out, 0);
+			} else {
+				Frame.writeVarInt(out, Session.TOKEN_SIZE + 8);
+				out.write(token, 0, Session.TOKEN_SIZE);
+				out.reserve(8).putLong(received);
+			}
+		}
+		if (delta) {
+			out.write(DELTA);
+			Frame.writeVarInt(out, 0);
+		}
+		return out.finish(Frame.HELLO, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the options of a handshake frame
+	 * 
+	 * @exception IOException
+	 *                if the payload is malformed
+	 */
+	static Handshake decode(ByteBuffer payload) throws IOException {
+		Handshake handshake = new Handshake();
+		while (payload.hasRemaining()) {
+			int option = payload.get() & 0xFF;
+			int length = Frame.readVarInt(payload);
+			if (length < 0 || length > payload.remaining()) {
+				throw new IOException("Malformed handshake!");
+			}
+			int end = payload.position() + length;
+			switch (option) {
+			case COMPRESSION:
+				handshake.compression = true;
+				if (length >= 4) {
+					handshake.dictionaryId = payload.getInt(payload.position());
+				}
+				break;
+			case ACKS:
+				handshake.acks = true;
+				break;
+			case SESSION:
+				handshake.session = true;
+				if (length >= Session.TOKEN_SIZE + 8) {
+					handshake.token = new byte[Session.TOKEN_SIZE];
+					payload.get(handshake.token);
+					handshake.received = payload.getLong();
+				}
+				break;
+			case DELTA:
+				handshake.delta = true;
+				break;
+			default:
+				// options of unknown ids are skipped
+			}
+			payload.position(end);
+		}
+		return handshake;
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches one connection for a dead peer on the shared {@link TimingWheel}<br>
+ * When nothing has been read for the heartbeat interval a ping is sent, which
+ * the peer answers with a pong, so a live peer is never idle for long. The
+ * connection is given up when nothing has been read for the read idle timeout,
+ * or when queued bytes have not moved for the write idle timeout because the
+ * peer stopped reading.<br>
+ * Reads only record the time. The check runs on the wheel when the next
+ * deadline is due and schedules itself again, so a connection costs one
+ * timeout in the wheel however busy it is.
+ */
+final class Heartbeat implements Runnable {
+
+	// nanoseconds, 0 when not used
+	private final long interval;
+	private final long readTimeout;
+	private final long writeTimeout;
+	private final SendQueue queue;
+	private final BufferAllocator allocator;
+	// closes the connection, called once on the wheel's thread
+	private final Runnable timedOut;
+
+	// when the peer was last read from
+	private volatile long lastRead = System.nanoTime();
+	// when the last ping was sent, only used on the wheel's thread
+	private long pinged;
+	private volatile TimingWheel.Timeout timeout;
+	private volatile boolean stopped = false;
+
+	private Heartbeat(long interval, long readTimeout, long writeTimeout, SendQueue queue,
+			BufferAllocator allocator, Runnable timedOut) {
+		this.interval = interval;
+		this.readTimeout = readTimeout;
+		this.writeTimeout = writeTimeout;
+		this.queue = queue;
+		this.allocator = allocator;
+		this.timedOut = timedOut;
+		pinged = lastRead;
+	}
+
+	/**
+	 * Starts watching a connection
+	 * 
+	 * @param interval
+	 *            how long the peer may be idle before it is pinged, or null to not
+	 *            ping
+	 * @param readTimeout
+	 *            how long the peer may be idle before the connection is given up,
+	 *            or null for ever
+	 * @param writeTimeout
+	 *            how long queued bytes may wait without any being written, or
+	 *            null for ever
+	 * @param timedOut
+	 *            closes the connection, run on the wheel's thread so it must not
+	 *            block
+	 * @return the heartbeat, or null if none of the durations is set
+	 */
+	static Heartbeat start(Duration interval, Duration readTimeout, Duration writeTimeout, SendQueue queue,
+			BufferAllocator allocator, Runnable timedOut) {
+		if (interval == null && readTimeout == null && writeTimeout == null) {
+			return null;
+		}
+		Heartbeat heartbeat = new Heartbeat(nanos(interval), nanos(readTimeout), nanos(writeTimeout), queue,
+				allocator, timedOut);
+		heartbeat.schedule(heartbeat.next(System.nanoTime()));
+		return heartbeat;
+	}
+
+	private static long nanos(Duration duration) {
+		return duration == null ? 0 : duration.toNanos();
+	}
+
+	/**
+	 * Checks a duration to be set, null is allowed
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if the duration is zero or negative
+	 */
+	static void check(String name, Duration duration) {
+		if (duration != null && (duration.isNegative() || duration.isZero())) {
+			throw new IllegalArgumentException(name + " must be positive: " + duration + "!");
+		}
+	}
+
+	/**
+	 * Records that the peer was read from
+	 */
+	void read() {
+		lastRead = System.nanoTime();
+	}
+
+	/**
+	 * Stops watching, once the connection is closed
+	 */
+	void stop() {
+		stopped = true;
+		TimingWheel.Timeout timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	// runs on the wheel's thread when a deadline is due
+	@Override
+	public void run() {
+		if (stopped) {
+			return;
+		}
+		long now = System.nanoTime();
+		long idle = now - lastRead;
+		if ((readTimeout > 0 && idle >= readTimeout) || (writeTimeout > 0 && queue.stalled(now) >= writeTimeout)) {
+			stopped = true;
+			timedOut.run();
+			return;
+		}
+		if (interval > 0 && idle >= interval && now - pinged >= interval) {
+			pinged = now;
+			queue.control(new SharedFrame(Frame.empty(Frame.PING, allocator), 1, allocator));
+		}
+		schedule(next(now));
+	}
+
+	// nanoseconds until the nearest deadline
+	private long next(long now) {
+		long idle = now - lastRead;
+		long next = Long.MAX_VALUE;
+		if (interval > 0) {
+			// the next ping once idle, at most one an interval
+			next = idle < interval ? interval - idle : interval - (now - pinged);
+		}
+		if (readTimeout > 0) {
+			next = Math.min(next, readTimeout - idle);
+		}
+		if (writeTimeout > 0) {
+			next = Math.min(next, writeTimeout - queue.stalled(now));
+		}
+		return Math.max(0, next);
+	}
+
+	private void schedule(long delay) {
+		if (!stopped) {
+			timeout = TimingWheel.SHARED.schedule(this, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often durations in nanoseconds fall into log linear buckets, like
+ * an HdrHistogram<br>
+ * Durations below 16 ns have a bucket each, above that every power of two is
+ * split into 16 buckets so a value is off by at most 1/16. Durations of more
+ * than 2^40 ns, about 18 minutes, are counted in the last bucket.<br>
+ * The counts are striped: a thread records into one of several copies chosen by
+ * its id, so threads recording at once rarely write the same cache line. A
+ * {@link HistogramSnapshot} adds the copies up.
+ */
+final class Histogram {
+
+	// every power of two is split into 2^SUB_BITS buckets
+	static final int SUB_BITS = 4;
+	// the largest power of two with buckets of its own
+	static final int MAX_SHIFT = 40;
+	static final int BUCKETS = (MAX_SHIFT - SUB_BITS + 2) << SUB_BITS;
+	// slots after the buckets of every stripe holding the sum and the maximum
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+	private static final int STRIPE_SIZE = BUCKETS + 2;
+	// the most stripes a histogram has
+	private static final int MAX_STRIPES = 8;
+
+	private final AtomicLongArray counts;
+	private final int mask;
+
+	Histogram() {
+		int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+		mask = stripes - 1;
+		counts = new AtomicLongArray(stripes * STRIPE_SIZE);
+	}
+
+	/**
+	 * Counts the duration
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds, negative ones count as 0
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int stripe = ((int) Thread.currentThread().getId() & mask) * STRIPE_SIZE;
+		counts.incrementAndGet(stripe + bucket(nanos));
+		counts.addAndGet(stripe + SUM, nanos);
+		if (nanos > counts.get(stripe + MAX)) {
+			counts.accumulateAndGet(stripe + MAX, nanos, Math::max);
+		}
+	}
+
+	/**
+	 * @return the counts of every bucket, the sum and the maximum added up over
+	 *         the stripes
+	 */
+	HistogramSnapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		long sum = 0;
+		long max = 0;
+		for (int stripe = 0; stripe < counts.length(); stripe += STRIPE_SIZE) {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] += counts.get(stripe + i);
+			}
+			sum += counts.get(stripe + SUM);
+			max = Math.max(max, counts.get(stripe + MAX));
+		}
+		return new HistogramSnapshot(buckets, sum, max);
+	}
+
+	// the bucket a value is counted in
+	static int bucket(long value) {
+		int shift = 63 - Long.numberOfLeadingZeros(value);
+		if (shift < SUB_BITS) {
+			return (int) value;
+		}
+		if (shift > MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (shift - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return ((shift - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	// the highest value counted in the bucket
+	static long highest(int bucket) {
+		int row = bucket >>> SUB_BITS;
+		if (row == 0) {
+			return bucket;
+		}
+		int shift = row + SUB_BITS - 1;
+		long sub = bucket & ((1 << SUB_BITS) - 1);
+		return ((1L << SUB_BITS | sub) + 1 << (shift - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The durations recorded by one of the histograms of a {@link MetricsSnapshot}
+ * up to the time the snapshot was taken<br>
+ * Durations are in nanoseconds. A duration is counted in a bucket which is at
+ * most 1/16 wide of its value, the percentiles return the highest value of
+ * their bucket so they are never lower than the duration recorded.
+ */
+public final class HistogramSnapshot {
+
+	private final long[] buckets;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	HistogramSnapshot(long[] buckets, long sum, long max) {
+		this.buckets = buckets;
+		long count = 0;
+		for (long n : buckets) {
+			count += n;
+		}
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean of the durations in nanoseconds, 0 if there are none
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @return the longest duration in nanoseconds, 0 if there are none
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the duration which the specified percentage of the durations are
+	 * shorter than or equal to
+	 *
+	 * @param percentile
+	 *            the percentage from 0 to 100
+	 * @return the duration in nanoseconds, 0 if there are none
+	 * @exception IllegalArgumentException
+	 *                if the percentile is out of range
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("Percentile out of range: " + percentile + "!");
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(Histogram.highest(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the median duration in nanoseconds
+	 */
+	public long getP50() {
+		return getValueAtPercentile(50);
+	}
+
+	/**
+	 * @return the 90th percentile of the durations in nanoseconds
+	 */
+	public long getP90() {
+		return getValueAtPercentile(90);
+	}
+
+	/**
+	 * @return the 99th percentile of the durations in nanoseconds
+	 */
+	public long getP99() {
+		return getValueAtPercentile(99);
+	}
+
+	/**
+	 * @return the 99.9th percentile of the durations in nanoseconds
+	 */
+	public long getP999() {
+		return getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + Math.round(getMean()) + "ns p50=" + getP50() + "ns p99=" + getP99()
+				+ "ns max=" + max + "ns";
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of bytes the peer of a connection writes with an
+ * {@link OutboundStream}, handed to {@link Listener#onStream(InboundStream)}
+ * and {@link ServerListener#onStream(Connection, InboundStream)}<br>
+ * The chunks received are buffered until they are read, the peer sending no
+ * more than the window of the stream ahead of the reader. Reading waits for
+ * the next chunk and returns -1 once the peer has closed the stream and every
+ * byte has been read. If the peer aborts the stream or the connection breaks
+ * first, reading fails with an IOException.<br>
+ * The stream is read on a thread of the application's, as the chunks arrive on
+ * the thread which calls the listeners. Closing it before its end tells the
+ * peer to stop writing, a stream which is never read or closed keeps its
+ * writer waiting.
+ */
+public final class InboundStream extends InputStream {
+
+	private final Streams streams;
+	private final int id;
+	private final Object metadata;
+	// bytes the writer may send ahead of the reader
+	private final int window;
+	private final BufferAllocator allocator;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition arrived = lock.newCondition();
+	// the chunks not yet read, oldest first
+	private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+	private int buffered = 0;
+	// bytes read since the writer was last granted more
+	private int consumed = 0;
+	private boolean ended = false;
+	private boolean closed = false;
+	// why the stream can not be read any more, null while it can
+	private String failure;
+	// the byte read by read()
+	private final byte[] one = new byte[1];
+
+	InboundStream(Streams streams, int id, Object metadata, int window, BufferAllocator allocator) {
+		this.streams = streams;
+		this.id = id;
+		this.metadata = metadata;
+		this.window = window;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return the Object the peer opened the stream with, such as the name of a
+	 *         file, or null if none
+	 */
+	public Object getMetadata() {
+		return metadata;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		int grant = 0;
+		lock.lock();
+		try {
+			while (chunks.isEmpty() && !ended && !closed && failure == null) {
+				try {
+					arrived.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the stream!");
+				}
+			}
+			if (closed) {
+				throw new IOException("Stream closed!");
+			}
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+			if (chunks.isEmpty()) {
+				return -1;
+			}
+			while (n < len && !chunks.isEmpty()) {
+				ByteBuffer chunk = chunks.peek();
+				int k = Math.min(len - n, chunk.remaining());
+				chunk.get(b, off + n, k);
+				n += k;
+				if (!chunk.hasRemaining()) {
+					allocator.release(chunks.poll());
+				}
+			}
+			buffered -= n;
+			consumed += n;
+			// grant the window again by halves, fewer credits than one per read
+			if (consumed >= Math.max(1, window / 2) && !ended) {
+				grant = consumed;
+				consumed = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (grant > 0) {
+			streams.credit(id, grant);
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of bytes which have arrived and can be read without
+	 *         waiting
+	 */
+	@Override
+	public int available() {
+		lock.lock();
+		try {
+			return buffered;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the stream, telling the peer to stop writing if it has not ended
+	 * yet, and gives the buffered chunks back
+	 */
+	@Override
+	public void close() {
+		boolean cancel;
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			release();
+			cancel = !ended && failure == null;
+			arrived.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (cancel) {
+			streams.cancel(this, id);
+		}
+	}
+
+	// buffer a chunk received, called by the receiving thread
+	void chunk(ByteBuffer payload) {
+		int n = payload.remaining();
+		boolean overrun = false;
+		lock.lock();
+		try {
+			if (n == 0 || closed || ended || failure != null) {
+				return;
+			}
+			if ((long) buffered + consumed + n > window) {
+				failure = "Stream sent beyond its window!";
+				overrun = true;
+			} else {
+				ByteBuffer chunk = allocator.allocate(n);
+				chunk.put(payload).flip();
+				chunks.add(chunk);
+				buffered += n;
+			}
+			arrived.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (overrun) {
+			streams.cancel(this, id);
+		}
+	}
+
+	// the writer has closed or aborted the stream
+	void end(boolean aborted) {
+		lock.lock();
+		try {
+			if (aborted) {
+				fail("Stream aborted by the sender!");
+			} else {
+				ended = true;
+			}
+			arrived.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the stream can not be read any more, what has arrived of a stream which
+	// ended can still be read
+	void fail(String reason) {
+		lock.lock();
+		try {
+			if (!ended && failure == null) {
+				failure = reason;
+				release();
+			}
+			arrived.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// give the buffered chunks back, holding the lock
+	private void release() {
+		for (ByteBuffer chunk : chunks) {
+			allocator.release(chunk);
+		}
+		chunks.clear();
+		buffered = 0;
+	}
+
+}
@@ -25,4 +25,70 @@ public interface Listener {
 	 */
 	public void onReceive(Object obj);
 
+	/**
+	 * Is called when a Client receives a message the Server sent on a
+	 * {@link Channel}, in order with the other messages of the channel<br>
+	 * By default the message is passed to {@link #onReceive(Object)}.
+	 * 
+	 * @param channel
+	 *            the id of the channel
+	 * @param obj
+	 *            the Object received by the Client
+	 */
+	public default void onReceive(int channel, Object obj) {
+		onReceive(obj);
+	}
+
+	/**
+	 * Is called when a Client receives what the Server published to a topic the
+	 * Client subscribed to with {@link Client#subscribe(String)}, in order with
+	 * the other messages<br>
+	 * By default the Object is passed to {@link #onReceive(Object)}.
+	 * 
+	 * @param topic
+	 *            the topic it was published to
+	 * @param obj
+	 *            the Object received by the Client
+	 * @see Server#publish(String, Object)
+	 */
+	public default void onPublish(String topic, Object obj) {
+		onReceive(obj);
+	}
+
+	/**
+	 * Is called when the Server has opened a stream with
+	 * {@link Connection#openStream(Object)}, in order with the messages sent
+	 * before and after it<br>
+	 * The bytes arrive on the thread calling the listener, so the stream must be
+	 * read on a thread of its own. By default nothing is done, a stream which is
+	 * never read or closed keeps the Server waiting once the window is full.
+	 * 
+	 * @param stream
+	 *            the stream to read and close
+	 * @see Client#setStreamWindow(int)
+	 */
+	public default void onStream(InboundStream stream) {
+	}
+
+	/**
+	 * Is called when the connection of a Client with a {@link Reconnect} breaks,
+	 * before it starts reconnecting<br>
+	 * {@link #onDisconnect()} is only called once the Client gives up or is
+	 * stopped. By default nothing is done.
+	 */
+	public default void onConnectionLost() {
+	}
+
+	/**
+	 * Is called when a Client with a {@link Reconnect} has connected again and
+	 * the Server has answered the handshake<br>
+	 * By default nothing is done.
+	 * 
+	 * @param resumed
+	 *            whether the Server resumed the session, so no message it sent
+	 *            was missed, or started a new one
+	 */
+	public default void onReconnect(boolean resumed) {
+	}
+
 }
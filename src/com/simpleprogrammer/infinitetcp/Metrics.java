@@ -0,0 +1,234 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The counters and histograms of a Server, Client or Connection, updated as
+ * messages go through them<br>
+ * The counters are LongAdders so the threads sending at once do not contend on
+ * them. A Connection counts into its own counters and those of its Server, its
+ * durations are only recorded in the Server's histograms. Nothing is computed
+ * until a {@link MetricsSnapshot} is taken.
+ */
+final class Metrics {
+
+	// the domain of the MBeans registered
+	private static final String DOMAIN = "com.simpleprogrammer.infinitetcp";
+
+	// the Server's metrics when these are a Connection's, otherwise null
+	private final Metrics parent;
+
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder messagesSent = new LongAdder();
+	private final LongAdder messagesReceived = new LongAdder();
+
+	// shared with the parent when there is one
+	private final Histogram serialization;
+	private final Histogram deserialization;
+	private final Histogram dispatch;
+	private final Histogram queueWait;
+
+	/**
+	 * Creates the metrics of a Server or Client
+	 */
+	Metrics() {
+		parent = null;
+		serialization = new Histogram();
+		deserialization = new Histogram();
+		dispatch = new Histogram();
+		queueWait = new Histogram();
+	}
+
+	/**
+	 * Creates the metrics of a Connection which are added to the Server's
+	 */
+	Metrics(Metrics parent) {
+		this.parent = parent;
+		serialization = parent.serialization;
+		deserialization = parent.deserialization;
+		dispatch = parent.dispatch;
+		queueWait = parent.queueWait;
+	}
+
+	// bytes written to the socket
+	void written(long bytes) {
+		bytesSent.add(bytes);
+		if (parent != null) {
+			parent.bytesSent.add(bytes);
+		}
+	}
+
+	// bytes read from the socket
+	void read(long bytes) {
+		bytesReceived.add(bytes);
+		if (parent != null) {
+			parent.bytesReceived.add(bytes);
+		}
+	}
+
+	// a message queued for sending
+	void sent() {
+		messagesSent.increment();
+		if (parent != null) {
+			parent.messagesSent.increment();
+		}
+	}
+
+	// a message received and deserialized
+	void received() {
+		messagesReceived.increment();
+		if (parent != null) {
+			parent.messagesReceived.increment();
+		}
+	}
+
+	void serialized(long nanos) {
+		serialization.record(nanos);
+	}
+
+	void deserialized(long nanos) {
+		deserialization.record(nanos);
+	}
+
+	// time taken by the listeners for one message
+	void dispatched(long nanos) {
+		dispatch.record(nanos);
+	}
+
+	// time a message waited in the send queue before being written
+	void waited(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	/**
+	 * Takes a snapshot of the counters, and of the histograms unless these are a
+	 * Connection's
+	 *
+	 * @param connections
+	 *            the number of open connections
+	 * @param queuedBytes
+	 *            the number of bytes waiting to be sent
+	 */
+	MetricsSnapshot snapshot(int connections, long queuedBytes) {
+		boolean own = parent == null;
+		return new MetricsSnapshot(bytesSent.sum(), bytesReceived.sum(), messagesSent.sum(), messagesReceived.sum(),
+				connections, queuedBytes, own ? serialization.snapshot() : null,
+				own ? deserialization.snapshot() : null, own ? dispatch.snapshot() : null,
+				own ? queueWait.snapshot() : null);
+	}
+
+	/**
+	 * Registers an MBean with the platform MBeanServer which takes a snapshot
+	 * every time it is read
+	 *
+	 * @param type
+	 *            the type of the name, Server or Client
+	 * @param name
+	 *            the name told apart from the others of the type
+	 * @param snapshots
+	 *            takes the snapshots
+	 * @return the name the MBean was registered by
+	 * @exception IllegalArgumentException
+	 *                if the name is not valid in an ObjectName
+	 * @exception IllegalStateException
+	 *                if the MBean could not be registered, such as when the name
+	 *                is taken
+	 */
+	static ObjectName register(String type, String name, Supplier<MetricsSnapshot> snapshots) {
+		ObjectName objectName;
+		try {
+			objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid MBean name: " + name + "!", e);
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(new Bean(snapshots), objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register MBean " + objectName + "!", e);
+		}
+		return objectName;
+	}
+
+	/**
+	 * Unregisters an MBean registered by
+	 * {@link #register(String, String, Supplier)}, if it still is
+	 */
+	static void unregister(ObjectName objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// already unregistered
+		}
+	}
+
+	// the MBean reading the metrics
+	private static final class Bean implements MetricsMXBean {
+
+		private final Supplier<MetricsSnapshot> snapshots;
+
+		Bean(Supplier<MetricsSnapshot> snapshots) {
+			this.snapshots = snapshots;
+		}
+
+		@Override
+		public long getBytesSent() {
+			return snapshots.get().getBytesSent();
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return snapshots.get().getBytesReceived();
+		}
+
+		@Override
+		public long getMessagesSent() {
+			return snapshots.get().getMessagesSent();
+		}
+
+		@Override
+		public long getMessagesReceived() {
+			return snapshots.get().getMessagesReceived();
+		}
+
+		@Override
+		public int getConnections() {
+			return snapshots.get().getConnections();
+		}
+
+		@Override
+		public long getQueuedBytes() {
+			return snapshots.get().getQueuedBytes();
+		}
+
+		@Override
+		public HistogramSnapshot getSerialization() {
+			return snapshots.get().getSerialization();
+		}
+
+		@Override
+		public HistogramSnapshot getDeserialization() {
+			return snapshots.get().getDeserialization();
+		}
+
+		@Override
+		public HistogramSnapshot getDispatch() {
+			return snapshots.get().getDispatch();
+		}
+
+		@Override
+		public HistogramSnapshot getQueueWait() {
+			return snapshots.get().getQueueWait();
+		}
+
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The metrics of a Server or Client as an MXBean, registered with
+ * {@link Server#registerMBean(String)} and {@link Client#registerMBean(String)}
+ * <br>
+ * Every attribute is read from a new {@link MetricsSnapshot}, the histograms
+ * are shown as composite values of their count, mean, maximum and percentiles
+ * in nanoseconds.
+ */
+public interface MetricsMXBean {
+
+	public long getBytesSent();
+
+	public long getBytesReceived();
+
+	public long getMessagesSent();
+
+	public long getMessagesReceived();
+
+	public int getConnections();
+
+	public long getQueuedBytes();
+
+	public HistogramSnapshot getSerialization();
+
+	public HistogramSnapshot getDeserialization();
+
+	public HistogramSnapshot getDispatch();
+
+	public HistogramSnapshot getQueueWait();
+
+}
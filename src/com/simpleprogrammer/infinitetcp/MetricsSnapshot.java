@@ -0,0 +1,125 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The metrics of a Server, Client or Connection at the time the snapshot was
+ * taken<br>
+ * The counters count from the time the Server, Client or Connection was
+ * created. A Server's counters include every Connection it has had. The
+ * histograms hold the durations of the Server or Client, a Connection's
+ * snapshot has none as its durations are recorded in the Server's.<br>
+ * Snapshots are taken on request, to get the rates of an interval subtract the
+ * counters of the snapshot taken at its start.
+ */
+public final class MetricsSnapshot {
+
+	private final long bytesSent;
+	private final long bytesReceived;
+	private final long messagesSent;
+	private final long messagesReceived;
+	private final int connections;
+	private final long queuedBytes;
+	private final HistogramSnapshot serialization;
+	private final HistogramSnapshot deserialization;
+	private final HistogramSnapshot dispatch;
+	private final HistogramSnapshot queueWait;
+
+	MetricsSnapshot(long bytesSent, long bytesReceived, long messagesSent, long messagesReceived, int connections,
+			long queuedBytes, HistogramSnapshot serialization, HistogramSnapshot deserialization,
+			HistogramSnapshot dispatch, HistogramSnapshot queueWait) {
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.messagesSent = messagesSent;
+		this.messagesReceived = messagesReceived;
+		this.connections = connections;
+		this.queuedBytes = queuedBytes;
+		this.serialization = serialization;
+		this.deserialization = deserialization;
+		this.dispatch = dispatch;
+		this.queueWait = queueWait;
+	}
+
+	/**
+	 * @return the number of bytes written to the sockets, headers and handshakes
+	 *         included
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return the number of bytes read from the sockets
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return the number of messages, requests and responses queued for sending
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * @return the number of messages, requests and responses received
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * @return the number of open connections, 0 or 1 for a Client or Connection
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return the number of bytes queued but not yet written to the sockets
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return the time taken to serialize the messages sent, null for a
+	 *         Connection
+	 */
+	public HistogramSnapshot getSerialization() {
+		return serialization;
+	}
+
+	/**
+	 * @return the time taken to deserialize the messages received, null for a
+	 *         Connection
+	 */
+	public HistogramSnapshot getDeserialization() {
+		return deserialization;
+	}
+
+	/**
+	 * @return the time the listeners took for each message received, null for a
+	 *         Connection
+	 */
+	public HistogramSnapshot getDispatch() {
+		return dispatch;
+	}
+
+	/**
+	 * @return the time the messages waited in the send queues before being
+	 *         written, null for a Connection
+	 */
+	public HistogramSnapshot getQueueWait() {
+		return queueWait;
+	}
+
+	@Override
+	public String toString() {
+		return "bytesSent=" + bytesSent + " bytesReceived=" + bytesReceived + " messagesSent=" + messagesSent
+				+ " messagesReceived=" + messagesReceived + " connections=" + connections + " queuedBytes="
+				+ queuedBytes + (serialization == null ? ""
+						: " serialization=[" + serialization + "] deserialization=[" + deserialization
+								+ "] dispatch=[" + dispatch + "] queueWait=[" + queueWait + "]");
+	}
+
+}
@@ -0,0 +1,314 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of bytes written to the peer of a connection, opened with
+ * {@link Client#openStream(Object)} or {@link Connection#openStream(Object)}<br>
+ * The bytes written are sent in chunks between the other messages, so sending
+ * a large object or file does not hold up the rest. The peer's listeners are
+ * handed an {@link InboundStream} to read them from. Writing waits while the
+ * peer has as many bytes of the stream buffered as it allows, until its reader
+ * catches up.<br>
+ * A file can be sent with {@link #transferFrom(FileChannel, long, long)}, which
+ * on a Connection of an event loop without TLS sends it from the file to the
+ * socket without copying. The stream is written by one thread at a time and
+ * must be closed to end it, the connection breaking fails it.
+ */
+public final class OutboundStream extends OutputStream {
+
+	private final Streams streams;
+	private final int id;
+	private final int chunkSize;
+	// the channel the chunks are sent on, null for none
+	private final Channel channel;
+	private final BufferAllocator allocator;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	// bytes the peer has room for, -1 until it has granted its window
+	private long credit = -1;
+	// chunks from files queued but not yet written
+	private int regions = 0;
+	// why the stream can not be written any more, null while it can
+	private String failure;
+
+	// largest chunk, at most half the peer's window so the window is granted
+	// again while the next chunk waits, only used by the writer
+	private int limit;
+	// the chunk being filled, in write mode after the id, null if none
+	private ByteBuffer chunk;
+	// where the bytes of the chunk start
+	private int start;
+	private boolean closed = false;
+
+	OutboundStream(Streams streams, int id, int chunkSize, Channel channel, BufferAllocator allocator) {
+		this.streams = streams;
+		this.id = id;
+		this.chunkSize = chunkSize;
+		this.channel = channel;
+		this.allocator = allocator;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureChunk();
+		chunk.put((byte) b);
+		if (chunk.position() - start == limit) {
+			send();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		while (len > 0) {
+			ensureChunk();
+			int n = Math.min(len, limit - (chunk.position() - start));
+			chunk.put(b, off, n);
+			off += n;
+			len -= n;
+			if (chunk.position() - start == limit) {
+				send();
+			}
+		}
+	}
+
+	/**
+	 * Sends the bytes written so far without waiting for a whole chunk
+	 *
+	 * @exception IOException
+	 *                if the stream was cancelled or the connection closed
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (chunk != null && chunk.position() > start) {
+			send();
+		}
+	}
+
+	/**
+	 * Sends a region of a file as the next bytes of the stream<br>
+	 * The chunks are read from the file only as they are written to the socket,
+	 * without copying them through the heap where the connection allows. The
+	 * method returns once they have all been written, so the file can be closed
+	 * after.
+	 *
+	 * @param file
+	 *            the file to send from, its position is not changed
+	 * @param position
+	 *            where in the file to start
+	 * @param count
+	 *            the most bytes to send
+	 * @return the number of bytes sent, less than the count if the file ends
+	 *         before
+	 * @exception IOException
+	 *                if the file can not be read, the stream was cancelled or the
+	 *                connection closed
+	 */
+	public long transferFrom(FileChannel file, long position, long count) throws IOException {
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("Position and count can not be negative!");
+		}
+		ensureOpen();
+		flush();
+		long end = Math.min(position + count, file.size());
+		awaitWindow();
+		try {
+			for (long at = position; at < end;) {
+				int n = (int) Math.min(limit, end - at);
+				awaitCredit(n);
+				ByteBuffer header = Frame.chunkHeader(id, n, allocator);
+				lock.lock();
+				try {
+					regions++;
+				} finally {
+					lock.unlock();
+				}
+				if (!streams.put(new SharedFrame(header, file, at, n, allocator, this::transferred), channel)) {
+					throw new IOException("Connection closed!");
+				}
+				at += n;
+			}
+		} finally {
+			// the file is read when the chunks are written
+			awaitTransferred();
+		}
+		return Math.max(0, end - position);
+	}
+
+	/**
+	 * Sends what is left to write and ends the stream, the peer reads its end
+	 * once it has read every byte
+	 *
+	 * @exception IOException
+	 *                if the stream was cancelled or the connection closed before
+	 *                the last bytes could be sent
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		closed = true;
+		streams.end(this, id, false, channel);
+	}
+
+	/**
+	 * Ends the stream without sending what is left to write, the peer's reader
+	 * fails with an IOException
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (chunk != null) {
+			allocator.release(chunk);
+			chunk = null;
+		}
+		streams.end(this, id, true, channel);
+	}
+
+	// start a chunk if none is being filled, once the peer has granted its window
+	private void ensureChunk() throws IOException {
+		if (chunk != null) {
+			return;
+		}
+		ensureOpen();
+		awaitWindow();
+		chunk = allocator.allocate(Frame.HEADER_SIZE + Frame.varIntSize(id) + limit);
+		chunk.limit(chunk.capacity()).position(Frame.HEADER_SIZE);
+		Frame.putVarInt(chunk, id);
+		start = chunk.position();
+	}
+
+	// queue the chunk once the peer has room for it
+	private void send() throws IOException {
+		awaitCredit(chunk.position() - start);
+		chunk.putInt(0, chunk.position() - Frame.HEADER_SIZE);
+		chunk.put(4, (byte) Frame.CHUNK);
+		chunk.flip();
+		ByteBuffer frame = chunk;
+		chunk = null;
+		if (!streams.put(new SharedFrame(frame, 1, allocator), channel)) {
+			throw new IOException("Connection closed!");
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed!");
+		}
+	}
+
+	// wait until the peer has granted its window, and size the chunks by it
+	private void awaitWindow() throws IOException {
+		if (limit > 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (failure == null && credit < 0) {
+				await();
+			}
+			check();
+			limit = (int) Math.min(chunkSize, Math.max(1, credit / 2));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// wait until the peer has room for the bytes and take it
+	private void awaitCredit(int bytes) throws IOException {
+		lock.lock();
+		try {
+			while (failure == null && credit < bytes) {
+				await();
+			}
+			check();
+			credit -= bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// wait until the chunks of files queued have been written or discarded
+	private void awaitTransferred() throws IOException {
+		lock.lock();
+		try {
+			while (regions > 0) {
+				await();
+			}
+			check();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// holding the lock
+	private void await() throws InterruptedIOException {
+		try {
+			changed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the stream!");
+		}
+	}
+
+	// holding the lock
+	private void check() throws IOException {
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+	// the peer has granted more bytes, called by the receiving thread
+	void credit(int bytes) {
+		lock.lock();
+		try {
+			credit = Math.max(credit, 0) + bytes;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// a chunk of a file has been written or discarded
+	private void transferred() {
+		lock.lock();
+		try {
+			regions--;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the stream can not be written any more
+	void fail(String reason) {
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = reason;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
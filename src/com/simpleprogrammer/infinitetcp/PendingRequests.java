@@ -0,0 +1,210 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The requests waiting for a response, by their correlation id<br>
+ * An open addressing map from int to future, so no key is boxed and no entry
+ * is allocated per request. Timeouts run on the shared {@link TimingWheel},
+ * which hands the failing of the future to an executor so the callbacks of
+ * the request never run on the wheel's thread.
+ */
+final class PendingRequests {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// 0 marks an empty slot, ids are never 0
+	private int[] ids = new int[16];
+	private Object[] futures = new Object[16];
+	private Object[] timeouts = new Object[16];
+	private int size = 0;
+	private int nextId = 0;
+
+	/**
+	 * Adds the future and fails it with a TimeoutException if no response
+	 * arrives in time
+	 * 
+	 * @param completions
+	 *            the executor failing the future once it has timed out
+	 * @return the correlation id of the request
+	 */
+	int add(CompletableFuture<Object> future, long timeout, TimeUnit unit, Executor completions) {
+		int id;
+		lock.lock();
+		try {
+			// skip 0 and ids still waiting after the counter wrapped
+			do {
+				id = ++nextId;
+			} while (id == 0 || indexOf(id) >= 0);
+			if (size + 1 > ids.length / 2) {
+				resize(ids.length * 2);
+			}
+			int i = slot(id);
+			while (ids[i] != 0) {
+				i = (i + 1) & (ids.length - 1);
+			}
+			ids[i] = id;
+			futures[i] = future;
+			size++;
+		} finally {
+			lock.unlock();
+		}
+
+		final int expired = id;
+		TimingWheel.Timeout t = TimingWheel.SHARED.schedule(() -> {
+			CompletableFuture<Object> f = remove(expired);
+			if (f != null) {
+				completions.execute(() -> f
+						.completeExceptionally(new TimeoutException("No response within " + unit.toMillis(timeout) + " ms!")));
+			}
+		}, timeout, unit);
+
+		lock.lock();
+		try {
+			int i = indexOf(id);
+			if (i >= 0) {
+				timeouts[i] = t;
+			} else {
+				// answered before the timeout was stored
+				t.cancel();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return id;
+	}
+
+	/**
+	 * Removes the request and cancels its timeout
+	 * 
+	 * @return the future of the request, null if it has already been answered or
+	 *         has timed out
+	 */
+	@SuppressWarnings("unchecked")
+	CompletableFuture<Object> remove(int id) {
+		Object future;
+		Object timeout;
+		lock.lock();
+		try {
+			int i = indexOf(id);
+			if (i < 0) {
+				return null;
+			}
+			future = futures[i];
+			timeout = timeouts[i];
+			delete(i);
+		} finally {
+			lock.unlock();
+		}
+		if (timeout != null) {
+			((TimingWheel.Timeout) timeout).cancel();
+		}
+		return (CompletableFuture<Object>) future;
+	}
+
+	/**
+	 * Fails every waiting request, called when the connection is lost
+	 */
+	@SuppressWarnings("unchecked")
+	void failAll(IOException cause) {
+		Object[] failed;
+		Object[] cancelled;
+		lock.lock();
+		try {
+			failed = futures;
+			cancelled = timeouts;
+			ids = new int[16];
+			futures = new Object[16];
+			timeouts = new Object[16];
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+		for (int i = 0; i < failed.length; i++) {
+			if (failed[i] != null) {
+				if (cancelled[i] != null) {
+					((TimingWheel.Timeout) cancelled[i]).cancel();
+				}
+				((CompletableFuture<Object>) failed[i]).completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting for a response
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int slot(int id) {
+		// spread the sequential ids over the table
+		int h = id * 0x9E3779B9;
+		return (h ^ h >>> 16) & (ids.length - 1);
+	}
+
+	private int indexOf(int id) {
+		int i = slot(id);
+		while (ids[i] != 0) {
+			if (ids[i] == id) {
+				return i;
+			}
+			i = (i + 1) & (ids.length - 1);
+		}
+		return -1;
+	}
+
+	// remove the entry and shift the following entries back into the gap
+	private void delete(int i) {
+		int mask = ids.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (ids[j] == 0) {
+				break;
+			}
+			int k = slot(ids[j]);
+			// move the entry at j if its home slot is not between i and j
+			if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+				ids[i] = ids[j];
+				futures[i] = futures[j];
+				timeouts[i] = timeouts[j];
+				i = j;
+			}
+		}
+		ids[i] = 0;
+		futures[i] = null;
+		timeouts[i] = null;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		int[] oldIds = ids;
+		Object[] oldFutures = futures;
+		Object[] oldTimeouts = timeouts;
+		ids = new int[capacity];
+		futures = new Object[capacity];
+		timeouts = new Object[capacity];
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] != 0) {
+				int j = slot(oldIds[i]);
+				while (ids[j] != 0) {
+					j = (j + 1) & (capacity - 1);
+				}
+				ids[j] = oldIds[i];
+				futures[j] = oldFutures[i];
+				timeouts[j] = oldTimeouts[i];
+			}
+		}
+	}
+
+}
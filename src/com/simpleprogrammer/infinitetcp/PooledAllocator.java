@@ -0,0 +1,311 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link BufferAllocator} which reuses its buffers<br>
+ * Sizes are rounded up to a power of two from 256 bytes to 1 MB and every size
+ * class has a pool of its own. Each thread keeps a few buffers of every class
+ * for itself so most allocations take no lock, it trades them with the shared
+ * pool in batches when it runs out or has too many. Virtual threads have no
+ * cache of their own. Buffers larger than 1 MB are not pooled.<br>
+ * Releasing a buffer twice corrupts the pool. With leak detection every buffer
+ * is handed out as a view of its own so a second release throws, and a buffer
+ * the garbage collector finds without it having been released is reported with
+ * the stack trace of its allocation. Leak detection is slow and meant for
+ * debugging, it is turned on for {@link #DEFAULT} by starting java with
+ * -Dinfinitetcp.leakDetection=true.
+ */
+public final class PooledAllocator implements BufferAllocator {
+
+	/**
+	 * The allocator of direct buffers used by every Client and Server unless
+	 * another is set
+	 */
+	public static final PooledAllocator DEFAULT = new PooledAllocator(true,
+			Boolean.getBoolean("infinitetcp.leakDetection"));
+
+	// smallest and largest size class as powers of two
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	// bytes of every size class a thread keeps at most
+	private static final int CACHE_BYTES = 256 * 1024;
+	// bytes of every size class the shared pool keeps at most
+	private static final int POOL_BYTES = 4 * 1024 * 1024;
+
+	private final boolean direct;
+	// the buffers shared by every thread, one stack per size class
+	private final Stack[] pools = new Stack[CLASSES];
+	// the buffers each thread keeps, null for virtual threads
+	private final ThreadLocal<Cache> caches = ThreadLocal
+			.withInitial(() -> Threads.isVirtual(Thread.currentThread()) ? null : new Cache());
+
+	// the buffers handed out while leak detection is on, null when it is off
+	private final ConcurrentHashMap<Tracker, Tracker> tracked;
+	private final ReferenceQueue<ByteBuffer> collected;
+
+	/**
+	 * Creates an allocator of direct buffers without leak detection
+	 */
+	public PooledAllocator() {
+		this(true, false);
+	}
+
+	/**
+	 * Creates an allocator
+	 *
+	 * @param direct
+	 *            whether to allocate direct buffers, which sockets write
+	 *            without copying, or heap buffers
+	 * @param leakDetection
+	 *            whether to track every buffer and report the ones which are
+	 *            never released
+	 */
+	public PooledAllocator(boolean direct, boolean leakDetection) {
+		this.direct = direct;
+		for (int i = 0; i < CLASSES; i++) {
+			int size = 1 << (MIN_SHIFT + i);
+			pools[i] = new Stack(Math.min(4096, Math.max(4, POOL_BYTES / size)));
+		}
+		tracked = leakDetection ? new ConcurrentHashMap<Tracker, Tracker>() : null;
+		collected = leakDetection ? new ReferenceQueue<ByteBuffer>() : null;
+	}
+
+	/**
+	 * @return whether the buffers are direct buffers
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return whether leak detection is on
+	 */
+	public boolean isLeakDetection() {
+		return tracked != null;
+	}
+
+	@Override
+	public ByteBuffer allocate(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Size can not be negative: " + size + "!");
+		}
+		int c = sizeClass(size);
+		ByteBuffer buffer = null;
+		if (c >= 0) {
+			Cache cache = caches.get();
+			if (cache != null) {
+				buffer = cache.pop(c);
+			} else {
+				buffer = pools[c].pop();
+			}
+		}
+		if (buffer == null) {
+			buffer = create(c >= 0 ? 1 << (MIN_SHIFT + c) : size);
+		}
+		buffer.clear().limit(size);
+
+		if (tracked != null) {
+			reportLeaks();
+			// hand out a view so a release can be told apart from the next one
+			ByteBuffer view = buffer.duplicate();
+			Tracker tracker = new Tracker(view, buffer, collected);
+			tracked.put(tracker, tracker);
+			return view;
+		}
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		if (tracked != null) {
+			Tracker tracker = tracked.remove(new Lookup(buffer));
+			if (tracker == null) {
+				throw new IllegalStateException("Buffer released twice or not allocated by this allocator!");
+			}
+			tracker.clear();
+			buffer = tracker.buffer;
+		}
+		pool(buffer);
+	}
+
+	// put the buffer back in the pool of its size class
+	private void pool(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (buffer.isDirect() != direct || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT
+				|| Integer.bitCount(capacity) != 1) {
+			// not from a size class, the garbage collector frees it
+			return;
+		}
+		int c = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+		Cache cache = caches.get();
+		if (cache != null) {
+			cache.push(c, buffer);
+		} else {
+			pools[c].push(buffer);
+		}
+	}
+
+	private ByteBuffer create(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	// the size class of the size, -1 if it is too large to pool
+	private static int sizeClass(int size) {
+		if (size <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		if (size > 1 << MAX_SHIFT) {
+			return -1;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	// report the buffers collected without being released and pool them again
+	private void reportLeaks() {
+		Object ref;
+		while ((ref = collected.poll()) != null) {
+			Tracker tracker = (Tracker) ref;
+			if (tracked.remove(tracker) != null) {
+				tracker.allocation.printStackTrace();
+				pool(tracker.buffer);
+			}
+		}
+	}
+
+	// a bounded stack of buffers of one size class shared by every thread
+	private static final class Stack {
+
+		private final ByteBuffer[] buffers;
+		private int count = 0;
+
+		Stack(int capacity) {
+			buffers = new ByteBuffer[capacity];
+		}
+
+		synchronized ByteBuffer pop() {
+			if (count == 0) {
+				return null;
+			}
+			ByteBuffer buffer = buffers[--count];
+			buffers[count] = null;
+			return buffer;
+		}
+
+		synchronized void push(ByteBuffer buffer) {
+			if (count < buffers.length) {
+				buffers[count++] = buffer;
+			}
+		}
+
+		// move up to n buffers into the array, returns how many were moved
+		synchronized int take(ByteBuffer[] into, int n) {
+			n = Math.min(n, count);
+			for (int i = 0; i < n; i++) {
+				into[i] = buffers[--count];
+				buffers[count] = null;
+			}
+			return n;
+		}
+
+		// move the buffers from start to end of the array, the ones that do not
+		// fit are dropped
+		synchronized void give(ByteBuffer[] from, int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (count < buffers.length) {
+					buffers[count++] = from[i];
+				}
+				from[i] = null;
+			}
+		}
+
+	}
+
+	// the buffers one thread keeps, only used by that thread
+	private final class Cache {
+
+		private final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][];
+		private final int[] counts = new int[CLASSES];
+
+		Cache() {
+			for (int i = 0; i < CLASSES; i++) {
+				buffers[i] = new ByteBuffer[Math.max(2, Math.min(64, CACHE_BYTES >> (MIN_SHIFT + i)))];
+			}
+		}
+
+		ByteBuffer pop(int c) {
+			ByteBuffer[] stack = buffers[c];
+			if (counts[c] == 0) {
+				// refill half the cache from the shared pool at once
+				counts[c] = pools[c].take(stack, stack.length / 2);
+				if (counts[c] == 0) {
+					return null;
+				}
+			}
+			ByteBuffer buffer = stack[--counts[c]];
+			stack[counts[c]] = null;
+			return buffer;
+		}
+
+		void push(int c, ByteBuffer buffer) {
+			ByteBuffer[] stack = buffers[c];
+			if (counts[c] == stack.length) {
+				// hand the upper half of the cache to the shared pool at once
+				int half = stack.length / 2;
+				pools[c].give(stack, half, stack.length);
+				counts[c] = half;
+			}
+			stack[counts[c]++] = buffer;
+		}
+
+	}
+
+	// a buffer handed out while leak detection is on
+	private static final class Tracker extends WeakReference<ByteBuffer> {
+
+		private final int hash;
+		// the pooled buffer the view was made of
+		private final ByteBuffer buffer;
+		private final Throwable allocation;
+
+		Tracker(ByteBuffer view, ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(view, queue);
+			hash = System.identityHashCode(view);
+			this.buffer = buffer;
+			allocation = new Throwable("Buffer of " + buffer.capacity()
+					+ " bytes was garbage collected without being released, allocated at:");
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+	}
+
+	// finds the Tracker of a view, a buffer's equals compares its contents
+	private static final class Lookup {
+
+		private final ByteBuffer view;
+
+		Lookup(ByteBuffer view) {
+			this.view = view;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(view);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Tracker && ((Tracker) o).get() == view;
+		}
+
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The priority of a {@link Channel}, which decides whose frames are written
+ * first when several channels have frames waiting on one connection<br>
+ * The frames of a higher priority are always written before those of a lower
+ * one. Channels of the same priority share the connection by their weights.
+ * The messages sent without a channel have {@link #NORMAL} priority and a
+ * weight of 1.
+ */
+public enum Priority {
+
+	/**
+	 * For small latency sensitive messages, such as control messages, which are
+	 * written before anything else and never wait for the backpressure
+	 */
+	HIGH,
+
+	/**
+	 * The priority of the messages sent without a channel
+	 */
+	NORMAL,
+
+	/**
+	 * For bulk transfers, written when nothing of a higher priority waits
+	 */
+	LOW
+
+}
@@ -0,0 +1,127 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The settings of how fast Clients may send to a Server, given to
+ * {@link Server#setConnectionRateLimit(RateLimit)} and
+ * {@link Server#setAddressRateLimit(RateLimit)}<br>
+ * The messages and the bytes per second are each a token bucket holding up to
+ * the burst: a Client may send that much at once after being quiet, then only
+ * at the rate. Once a read has overdrawn a bucket the Server stops reading
+ * until the rate has paid it back, so what the Client sends waits in the
+ * socket buffers and then on the Client rather than in the Server's memory.
+ * The pause is rounded up to the ticks of the shared timer, 10 ms, on a
+ * Server with event loops.<br>
+ * Messages are everything handed to the listeners: messages, requests,
+ * messages of channels and streams opened. The bytes are those read from the
+ * socket, so they include the frames and TLS.
+ */
+public final class RateLimit {
+
+	/**
+	 * The default burst in seconds of the rate
+	 */
+	public static final double DEFAULT_BURST = 1;
+
+	// 0 for no limit
+	private long messagesPerSecond = 0;
+	private long bytesPerSecond = 0;
+	private double burst = DEFAULT_BURST;
+
+	/**
+	 * Creates settings without any limit and a burst of one second
+	 */
+	public RateLimit() {
+	}
+
+	/**
+	 * Creates settings limiting the messages and the bytes per second with a
+	 * burst of one second
+	 *
+	 * @param messagesPerSecond
+	 *            the messages per second, 0 for no limit
+	 * @param bytesPerSecond
+	 *            the bytes per second, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if a rate is negative
+	 */
+	public RateLimit(long messagesPerSecond, long bytesPerSecond) {
+		setMessagesPerSecond(messagesPerSecond);
+		setBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * Sets how many messages per second may be received
+	 *
+	 * @param messagesPerSecond
+	 *            the rate, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the rate is negative
+	 */
+	public void setMessagesPerSecond(long messagesPerSecond) {
+		if (messagesPerSecond < 0) {
+			throw new IllegalArgumentException("Messages per second can not be negative: " + messagesPerSecond + "!");
+		}
+		this.messagesPerSecond = messagesPerSecond;
+	}
+
+	/**
+	 * @return how many messages per second may be received, 0 for any
+	 */
+	public long getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+
+	/**
+	 * Sets how many bytes per second may be read
+	 *
+	 * @param bytesPerSecond
+	 *            the rate, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the rate is negative
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Bytes per second can not be negative: " + bytesPerSecond + "!");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @return how many bytes per second may be read, 0 for any
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Sets how much may be received at once, as the seconds of the rate the
+	 * buckets hold
+	 *
+	 * @param burst
+	 *            the seconds, such as 0.1 for a tenth of the rate per second
+	 * @exception IllegalArgumentException
+	 *                if the burst is not positive
+	 */
+	public void setBurst(double burst) {
+		if (!(burst > 0)) {
+			throw new IllegalArgumentException("Burst must be positive: " + burst + "!");
+		}
+		this.burst = burst;
+	}
+
+	/**
+	 * @return the seconds of the rate the buckets hold
+	 */
+	public double getBurst() {
+		return burst;
+	}
+
+	// new buckets of the settings, null if nothing is limited
+	RateLimiter limiter() {
+		if (messagesPerSecond == 0 && bytesPerSecond == 0) {
+			return null;
+		}
+		return new RateLimiter(messagesPerSecond, bytesPerSecond, burst);
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.simpleprogrammer.infinitetcp;
+
+/**
+ * The token buckets of a {@link RateLimit}, of one Connection or shared by the
+ * Connections from one address<br>
+ * What has been read is taken even when the buckets do not hold enough, as it
+ * is already in memory. The buckets then go into debt and the Connection
+ * pauses reading until the debt is paid back, so however much one read
+ * overdraws them the average stays at the rate.
+ */
+final class RateLimiter {
+
+	// tokens added per nanosecond and the most held, NaN for no limit
+	private final double messageRate;
+	private final double messageBurst;
+	private final double byteRate;
+	private final double byteBurst;
+
+	private double messages;
+	private double bytes;
+	private long last = System.nanoTime();
+	// Connections sharing the buckets, changed by the Server's map of addresses
+	int users = 0;
+
+	RateLimiter(long messagesPerSecond, long bytesPerSecond, double burst) {
+		messageRate = messagesPerSecond == 0 ? Double.NaN : messagesPerSecond / 1e9;
+		messageBurst = messagesPerSecond * burst;
+		byteRate = bytesPerSecond == 0 ? Double.NaN : bytesPerSecond / 1e9;
+		byteBurst = bytesPerSecond * burst;
+		messages = messageBurst;
+		bytes = byteBurst;
+	}
+
+	/**
+	 * Takes what a read has received from the buckets
+	 *
+	 * @return the nanoseconds until the buckets are out of debt, 0 if they are
+	 *         not in debt
+	 */
+	synchronized long take(long read, int received) {
+		long now = System.nanoTime();
+		long elapsed = now - last;
+		last = now;
+		long wait = 0;
+		if (!Double.isNaN(messageRate)) {
+			messages = Math.min(messageBurst, messages + elapsed * messageRate) - received;
+			if (messages < 0) {
+				wait = (long) (-messages / messageRate);
+			}
+		}
+		if (!Double.isNaN(byteRate)) {
+			bytes = Math.min(byteBurst, bytes + elapsed * byteRate) - read;
+			if (bytes < 0) {
+				wait = Math.max(wait, (long) (-bytes / byteRate));
+			}
+		}
+		return wait;
+	}
+
+}
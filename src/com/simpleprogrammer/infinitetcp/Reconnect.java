@@ -0,0 +1,194 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The settings of how a Client reconnects when its connection breaks, given to
+ * {@link Client#setReconnect(Reconnect)}<br>
+ * The delay before the first attempt is the initial delay and grows by the
+ * multiplier with every failed attempt, up to the maximum delay. Each delay is
+ * shortened by a random part of up to the jitter, so that many Clients losing
+ * the same Server do not all come back at once. Every attempt tries the
+ * Client's addresses in turn, each with the connect timeout.<br>
+ * When the Server keeps sessions the Client resumes its session, and the
+ * messages the Server sent while the connection was broken are sent again.
+ */
+public final class Reconnect {
+
+	/**
+	 * The default delay in milliseconds before the first attempt
+	 */
+	public static final long DEFAULT_INITIAL_DELAY = 100;
+
+	/**
+	 * The default longest delay in milliseconds between attempts
+	 */
+	public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+	/**
+	 * The default time in milliseconds an attempt waits for an address to
+	 * accept
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5 * 1000;
+
+	private long initialDelay = DEFAULT_INITIAL_DELAY;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private double multiplier = 2;
+	private double jitter = 0.5;
+	// 0 for no limit
+	private int maxAttempts = 0;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * Creates the default settings: a delay of 100 ms doubling up to 30 seconds,
+	 * a jitter of half the delay, a connect timeout of 5 seconds and no limit on
+	 * the attempts
+	 */
+	public Reconnect() {
+	}
+
+	/**
+	 * Sets the delay before the first attempt
+	 *
+	 * @param initialDelay
+	 *            the delay in milliseconds
+	 * @exception IllegalArgumentException
+	 *                if the delay is negative
+	 */
+	public void setInitialDelay(long initialDelay) {
+		if (initialDelay < 0) {
+			throw new IllegalArgumentException("Initial delay can not be negative: " + initialDelay + "!");
+		}
+		this.initialDelay = initialDelay;
+	}
+
+	/**
+	 * @return the delay in milliseconds before the first attempt
+	 */
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	/**
+	 * Sets the longest delay between attempts
+	 *
+	 * @param maxDelay
+	 *            the delay in milliseconds
+	 * @exception IllegalArgumentException
+	 *                if the delay is negative
+	 */
+	public void setMaxDelay(long maxDelay) {
+		if (maxDelay < 0) {
+			throw new IllegalArgumentException("Maximum delay can not be negative: " + maxDelay + "!");
+		}
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return the longest delay in milliseconds between attempts
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the factor the delay grows by after every failed attempt
+	 *
+	 * @param multiplier
+	 *            the factor, 1 for a fixed delay
+	 * @exception IllegalArgumentException
+	 *                if the factor is less than 1
+	 */
+	public void setMultiplier(double multiplier) {
+		if (!(multiplier >= 1)) {
+			throw new IllegalArgumentException("Multiplier must be at least 1: " + multiplier + "!");
+		}
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * @return the factor the delay grows by after every failed attempt
+	 */
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * Sets the largest part of a delay which is taken off at random
+	 *
+	 * @param jitter
+	 *            the part from 0, for none, to 1, for a delay anywhere from 0 up
+	 *            to the full delay
+	 * @exception IllegalArgumentException
+	 *                if the part is out of range
+	 */
+	public void setJitter(double jitter) {
+		if (!(jitter >= 0 && jitter <= 1)) {
+			throw new IllegalArgumentException("Jitter out of range: " + jitter + "!");
+		}
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @return the largest part of a delay which is taken off at random
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Sets the number of attempts after which the Client gives up and its
+	 * listeners are told it has disconnected
+	 *
+	 * @param maxAttempts
+	 *            the number of attempts, or 0 to never give up
+	 * @exception IllegalArgumentException
+	 *                if the number is negative
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 0) {
+			throw new IllegalArgumentException("Maximum attempts can not be negative: " + maxAttempts + "!");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the number of attempts after which the Client gives up, 0 if it
+	 *         never does
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets how long an attempt waits for each address to accept
+	 *
+	 * @param connectTimeout
+	 *            the timeout in milliseconds, 0 to wait as long as the operating
+	 *            system does
+	 * @exception IllegalArgumentException
+	 *                if the timeout is negative
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout < 0) {
+			throw new IllegalArgumentException("Connect timeout can not be negative: " + connectTimeout + "!");
+		}
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return how long in milliseconds an attempt waits for each address
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	// the delay in nanoseconds before the attempt, counted from 0
+	long delay(int attempt) {
+		double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+		delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+		return TimeUnit.MILLISECONDS.toNanos((long) delay);
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request received from a Client which sent it with
+ * {@link Client#request(Object, java.time.Duration)}<br>
+ * Passed to {@link ServerListener#onRequest(Connection, Request)}. The Client
+ * waits until {@link #reply(Object)} is called, which may happen later and on
+ * any thread.
+ */
+public final class Request {
+
+	private final Connection connection;
+	// correlation id chosen by the client
+	final int id;
+	private final Object message;
+	private final AtomicBoolean replied = new AtomicBoolean();
+
+	Request(Connection connection, int id, Object message) {
+		this.connection = connection;
+		this.id = id;
+		this.message = message;
+	}
+
+	/**
+	 * @return the Object the Client sent
+	 */
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the Connection the request arrived on
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Sends the response to the Client which made the request
+	 * 
+	 * @param response
+	 *            the Object to respond with
+	 * @exception IllegalStateException
+	 *                if the request has already been replied to
+	 */
+	public void reply(Object response) {
+		connection.reply(this, response);
+	}
+
+	/**
+	 * @return whether the request has been replied to
+	 */
+	public boolean isReplied() {
+		return replied.get();
+	}
+
+	// mark the request replied, false if it already was
+	boolean markReplied() {
+		return replied.compareAndSet(false, true);
+	}
+
+}
@@ -0,0 +1,304 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * The TLS of a Connection served by an event loop, an SSLEngine between the
+ * frames and the non blocking channel<br>
+ * The bytes read are decrypted into a buffer the event loop shares among its
+ * Connections and decoded from there. Frames are encrypted straight from the
+ * queued buffers with gathering wraps into one buffer, which is written with
+ * as few writes as possible. The encrypted bytes of a record which has partly
+ * arrived and the ones the channel has not taken yet are kept in buffers from
+ * the allocator, given back as soon as they are empty so an idle Connection
+ * holds none. Handshake messages are answered as they arrive, the delegated
+ * tasks of the engine run on the loop.
+ */
+final class SecureChannel implements GatheringByteChannel {
+
+	/**
+	 * Receives the bytes decrypted from a read
+	 */
+	interface Sink {
+
+		/**
+		 * Called with the plaintext, which is only valid during the call
+		 */
+		void accept(ByteBuffer plain) throws IOException;
+
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	final SSLEngine engine;
+	private final BufferAllocator allocator;
+	// the largest record the engine writes and the largest plaintext of one
+	private final int packetSize;
+	private final int applicationSize;
+	// the part of a record which has arrived, in write mode, null if none
+	private ByteBuffer netIn;
+	// encrypted bytes the channel has not taken yet, in write mode, null if none
+	private ByteBuffer netOut;
+	// whether the handshake has begun, the Server's once the Client's hello
+	// arrives
+	private boolean begun = false;
+	private boolean closed = false;
+
+	SecureChannel(SocketChannel channel, SSLEngine engine, BufferAllocator allocator) {
+		this.channel = channel;
+		this.engine = engine;
+		this.allocator = allocator;
+		packetSize = engine.getSession().getPacketBufferSize();
+		applicationSize = engine.getSession().getApplicationBufferSize();
+	}
+
+	/**
+	 * @return the size a buffer passed to
+	 *         {@link #unwrap(ByteBuffer, ByteBuffer, Sink)} must have at least
+	 */
+	int applicationSize() {
+		return applicationSize;
+	}
+
+	/**
+	 * Decrypts the bytes read from the channel and hands the plaintext to the
+	 * sink, answering the messages of the handshake
+	 *
+	 * @param net
+	 *            the bytes read
+	 * @param plain
+	 *            the buffer to decrypt into, of at least the application size
+	 * @return false if the peer has closed the TLS connection
+	 * @exception IOException
+	 *                if the bytes are not valid TLS or the handshake fails
+	 */
+	boolean unwrap(ByteBuffer net, ByteBuffer plain, Sink sink) throws IOException {
+		if (!begun) {
+			begun = true;
+			engine.beginHandshake();
+		}
+		ByteBuffer in = net;
+		if (netIn != null) {
+			// the rest of the record kept from the last read
+			netIn = ensure(netIn, net.remaining());
+			netIn.put(net).flip();
+			in = netIn;
+		}
+		plain.clear();
+		try {
+			while (true) {
+				SSLEngineResult result = engine.unwrap(in, plain);
+				if (result.getStatus() == Status.CLOSED) {
+					return false;
+				}
+				if (result.getStatus() == Status.BUFFER_OVERFLOW && plain.position() == 0) {
+					throw new IOException("Buffer too small for a TLS record!");
+				}
+				if (plain.remaining() < applicationSize || result.getStatus() == Status.BUFFER_OVERFLOW
+						|| result.getStatus() == Status.BUFFER_UNDERFLOW || !in.hasRemaining()) {
+					// hand on everything decrypted so far in one go
+					plain.flip();
+					if (plain.hasRemaining()) {
+						sink.accept(plain);
+					}
+					plain.clear();
+				}
+				boolean progressed = handshake();
+				if (result.getStatus() == Status.BUFFER_UNDERFLOW || !in.hasRemaining()) {
+					return true;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !progressed) {
+					return true;
+				}
+			}
+		} finally {
+			keep(in, net);
+		}
+	}
+
+	// keep the part of a record which has not been unwrapped for the next read
+	private void keep(ByteBuffer in, ByteBuffer net) {
+		if (in == netIn) {
+			if (netIn.hasRemaining()) {
+				netIn.compact();
+			} else {
+				allocator.release(netIn);
+				netIn = null;
+			}
+		} else if (net.hasRemaining()) {
+			netIn = allocator.allocate(Math.max(packetSize, net.remaining()));
+			netIn.limit(netIn.capacity());
+			netIn.put(net);
+		}
+	}
+
+	/**
+	 * @return whether the handshake is going on, so frames are not written yet
+	 */
+	boolean isHandshaking() {
+		return !begun || engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	/**
+	 * Encrypts as much of the buffers as the channel takes
+	 *
+	 * @return the number of plaintext bytes encrypted, which may have been
+	 *         written only in part, see {@link #flush()}
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (!flush()) {
+			return 0;
+		}
+		long consumed = 0;
+		while (engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+			netOut = ensure(netOut, packetSize);
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			if (result.getStatus() == Status.CLOSED) {
+				throw new ClosedChannelException();
+			}
+			consumed += result.bytesConsumed();
+			handshake();
+			if (result.bytesConsumed() == 0 || !hasRemaining(srcs, offset, length)) {
+				break;
+			}
+			if (netOut.remaining() < packetSize && !flush()) {
+				break;
+			}
+		}
+		flush();
+		return consumed;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * Writes the encrypted bytes the channel has not taken yet
+	 *
+	 * @return true if nothing is left to write
+	 */
+	boolean flush() throws IOException {
+		if (netOut == null) {
+			return true;
+		}
+		netOut.flip();
+		if (netOut.hasRemaining()) {
+			channel.write(netOut);
+		}
+		if (netOut.hasRemaining()) {
+			netOut.compact();
+			return false;
+		}
+		allocator.release(netOut);
+		netOut = null;
+		return true;
+	}
+
+	// run the delegated tasks and write the handshake messages the engine asks
+	// for, returning whether there were any
+	private boolean handshake() throws IOException {
+		boolean progressed = false;
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				break;
+			case NEED_WRAP:
+				netOut = ensure(netOut, packetSize);
+				if (engine.wrap(EMPTY, netOut).getStatus() == Status.CLOSED) {
+					return progressed;
+				}
+				break;
+			default:
+				return progressed;
+			}
+			progressed = true;
+		}
+	}
+
+	// a buffer in write mode with room for n more bytes, the same one if it has
+	private ByteBuffer ensure(ByteBuffer buffer, int n) {
+		if (buffer == null) {
+			buffer = allocator.allocate(Math.max(n, 4 * packetSize));
+			buffer.limit(buffer.capacity());
+			return buffer;
+		}
+		if (buffer.remaining() >= n) {
+			return buffer;
+		}
+		ByteBuffer larger = allocator.allocate(Math.max(buffer.position() + n, 2 * buffer.capacity()));
+		larger.limit(larger.capacity());
+		buffer.flip();
+		larger.put(buffer);
+		allocator.release(buffer);
+		return larger;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Sends the close message if the channel takes it and gives the buffers back,
+	 * the channel itself is closed by the Connection
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		engine.closeOutbound();
+		try {
+			if (begun) {
+				handshake();
+				flush();
+			}
+		} catch (IOException e) {
+			// the peer has gone already
+		}
+		if (netIn != null) {
+			allocator.release(netIn);
+			netIn = null;
+		}
+		if (netOut != null) {
+			allocator.release(netOut);
+			netOut = null;
+		}
+	}
+
+}
@@ -1,6 +1,252 @@
 package com.simpleprogrammer.infinitetcp;
 
-//Empty class for next version
-public class Security {
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The settings of TLS, given to {@link Client#setSecurity(Security)} and
+ * {@link Server#setSecurity(Security)}<br>
+ * Every connection is encrypted with an SSLEngine of the SSLContext: the
+ * Connections of event loops use the engine directly on their non blocking
+ * channels, blocking sockets are wrapped in an SSLSocket of the same context.
+ * <br>
+ * The context caches the sessions it has negotiated, so a Client connecting to
+ * the same Server again, as after a {@link Reconnect}, resumes the session with
+ * an abbreviated handshake instead of a full one. Keep one Security per
+ * Client or Server, or share it among many Clients, for the cache to be used.
+ */
+public final class Security {
+
+	private final SSLContext context;
+	// the protocols and cipher suites enabled, null for the context's defaults
+	private String[] protocols;
+	private String[] cipherSuites;
+	private boolean needClientAuth = false;
+	private boolean endpointIdentification = true;
+
+	/**
+	 * Creates the settings using the SSLContext
+	 *
+	 * @param context
+	 *            an initialized context holding the keys and trusted
+	 *            certificates
+	 */
+	public Security(SSLContext context) {
+		if (context == null) {
+			throw new IllegalArgumentException("Context can not be null!");
+		}
+		this.context = context;
+	}
+
+	/**
+	 * Creates the settings using a new TLS context of the key stores
+	 *
+	 * @param keyStore
+	 *            the store of the private key and certificate to present, null
+	 *            for none as for a Client without a certificate of its own
+	 * @param password
+	 *            the password of the private key
+	 * @param trustStore
+	 *            the store of the certificates trusted, null for the ones java
+	 *            trusts by default
+	 * @return the settings
+	 * @exception GeneralSecurityException
+	 *                if a store can not be read or TLS is not available
+	 */
+	public static Security create(KeyStore keyStore, char[] password, KeyStore trustStore)
+			throws GeneralSecurityException {
+		KeyManagerFactory keys = null;
+		if (keyStore != null) {
+			keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(keyStore, password);
+		}
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trustStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys == null ? null : keys.getKeyManagers(), trust.getTrustManagers(), null);
+		return new Security(context);
+	}
+
+	/**
+	 * @return the context the engines are created by
+	 */
+	public SSLContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Sets the protocols which may be negotiated, such as TLSv1.3
+	 *
+	 * @param protocols
+	 *            the protocols, or null for the context's defaults
+	 */
+	public void setProtocols(String... protocols) {
+		this.protocols = protocols == null ? null : protocols.clone();
+	}
+
+	/**
+	 * @return the protocols which may be negotiated, null for the context's
+	 *         defaults
+	 */
+	public String[] getProtocols() {
+		return protocols == null ? null : protocols.clone();
+	}
+
+	/**
+	 * Sets the cipher suites which may be negotiated
+	 *
+	 * @param cipherSuites
+	 *            the cipher suites, or null for the context's defaults
+	 */
+	public void setCipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+	}
+
+	/**
+	 * @return the cipher suites which may be negotiated, null for the context's
+	 *         defaults
+	 */
+	public String[] getCipherSuites() {
+		return cipherSuites == null ? null : cipherSuites.clone();
+	}
+
+	/**
+	 * Sets whether a Server requires the Clients to present a trusted
+	 * certificate, by default it does not
+	 *
+	 * @param needClientAuth
+	 *            whether a certificate is required
+	 */
+	public void setNeedClientAuth(boolean needClientAuth) {
+		this.needClientAuth = needClientAuth;
+	}
+
+	/**
+	 * @return whether a Server requires the Clients to present a certificate
+	 */
+	public boolean getNeedClientAuth() {
+		return needClientAuth;
+	}
+
+	/**
+	 * Sets whether a Client checks that the Server's certificate was issued for
+	 * the host name it connects to, by default it does
+	 *
+	 * @param endpointIdentification
+	 *            whether the host name is checked
+	 */
+	public void setEndpointIdentification(boolean endpointIdentification) {
+		this.endpointIdentification = endpointIdentification;
+	}
+
+	/**
+	 * @return whether a Client checks the host name of the Server's certificate
+	 */
+	public boolean getEndpointIdentification() {
+		return endpointIdentification;
+	}
+
+	/**
+	 * Sets the number of sessions the context caches for resumption, on the
+	 * Client and the Server side
+	 *
+	 * @param size
+	 *            the number of sessions, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the size is negative
+	 */
+	public void setSessionCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Session cache size can not be negative: " + size + "!");
+		}
+		context.getClientSessionContext().setSessionCacheSize(size);
+		context.getServerSessionContext().setSessionCacheSize(size);
+	}
+
+	/**
+	 * @return the number of sessions the context caches, 0 for no limit
+	 */
+	public int getSessionCacheSize() {
+		return context.getServerSessionContext().getSessionCacheSize();
+	}
+
+	/**
+	 * Sets how long a cached session can be resumed, on the Client and the
+	 * Server side, by default 24 hours
+	 *
+	 * @param seconds
+	 *            the time in seconds, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the time is negative
+	 */
+	public void setSessionTimeout(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("Session timeout can not be negative: " + seconds + "!");
+		}
+		context.getClientSessionContext().setSessionTimeout(seconds);
+		context.getServerSessionContext().setSessionTimeout(seconds);
+	}
+
+	/**
+	 * @return how long in seconds a cached session can be resumed
+	 */
+	public int getSessionTimeout() {
+		return context.getServerSessionContext().getSessionTimeout();
+	}
+
+	/**
+	 * Creates an engine for one connection<br>
+	 * A Client's engine is created for the host and port so its session is
+	 * cached for them and resumed the next time.
+	 */
+	SSLEngine engine(boolean client, String host, int port) {
+		SSLEngine engine = client ? context.createSSLEngine(host, port) : context.createSSLEngine();
+		engine.setUseClientMode(client);
+		engine.setSSLParameters(parameters(client, engine.getSSLParameters()));
+		return engine;
+	}
+
+	/**
+	 * Wraps a connected socket in an SSLSocket of the context, which closes the
+	 * socket when it is closed
+	 */
+	SSLSocket layer(Socket socket, boolean client, String host, int port) throws IOException {
+		SSLSocket layered;
+		if (client) {
+			layered = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+		} else {
+			layered = (SSLSocket) context.getSocketFactory().createSocket(socket, null, true);
+		}
+		layered.setUseClientMode(client);
+		layered.setSSLParameters(parameters(client, layered.getSSLParameters()));
+		return layered;
+	}
+
+	// the parameters of an engine or socket
+	private SSLParameters parameters(boolean client, SSLParameters parameters) {
+		if (protocols != null) {
+			parameters.setProtocols(protocols);
+		}
+		if (cipherSuites != null) {
+			parameters.setCipherSuites(cipherSuites);
+		}
+		if (client) {
+			if (endpointIdentification) {
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			}
+		} else {
+			parameters.setNeedClientAuth(needClientAuth);
+		}
+		return parameters;
+	}
 
 }
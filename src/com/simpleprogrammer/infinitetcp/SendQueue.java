@@ -0,0 +1,752 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of frames waiting to be written to one peer<br>
+ * Frames are written in the order they were sent. Only one drain runs at a
+ * time, it is handed to the executor when the first frame arrives in an idle
+ * queue and takes every queued frame at once so they share one flush.<br>
+ * The frames of every {@link Channel} are queued in a lane of their own, and
+ * in order within it. A drain takes from the lanes of a higher
+ * {@link Priority} first, and from the lanes of one priority in turns of as
+ * many bytes as their weights, a deficit round robin. Once channels are used
+ * a drain takes at most {@link #BATCH_SIZE} bytes at a time, so a frame of a
+ * higher priority waits behind one batch at most rather than behind a bulk
+ * transfer. The backpressure applies to the bytes queued in each lane on its
+ * own, so a bulk channel filling its lane neither holds up the senders of
+ * other channels nor takes their share, and frames of {@link Priority#HIGH}
+ * channels are never held up by it.<br>
+ * The queue owns one reference of every frame added and releases it once the
+ * frame has been written or discarded.<br>
+ * Once a {@link Session} is attached, the messages queued are kept in it in the
+ * order they were queued so the Client's count of messages matches theirs.<br>
+ * A frame ending with a region of a file, the chunk of a stream, is written
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * to a channel, so the bytes go from the file to the socket without being
+ * copied through the heap.
+ */
+final class SendQueue {
+
+	/**
+	 * The default number of queued bytes after which the backpressure applies
+	 */
+	static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+
+	// most bytes a drain takes at a time once channels are used
+	static final int BATCH_SIZE = 64 * 1024;
+
+	// bytes a lane of weight 1 takes in a turn
+	private static final int QUANTUM = 16 * 1024;
+
+	/**
+	 * The most threads writing the queues of blocking sockets without a thread
+	 * factory
+	 */
+	static final int MAX_WRITERS = Math.max(64, 16 * Runtime.getRuntime().availableProcessors());
+
+	// bounded pool of threads that write the queues of blocking sockets, a
+	// drain holds one for as long as its peer takes to read, so there are many
+	// and a drain finding every one busy waits its turn; idle ones stop after a
+	// while
+	static final ExecutorService WRITERS = writers();
+
+	private static ExecutorService writers() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WRITERS, MAX_WRITERS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "Send");
+					t.setDaemon(true);
+					return t;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition drained = lock.newCondition();
+	// the lane of the frames sent without a channel
+	private final Lane lane = new Lane(Priority.NORMAL, 1);
+	// the lanes of the channels by id, created when first used
+	private final HashMap<Integer, Lane> lanes = new HashMap<Integer, Lane>();
+	// the lanes holding frames, for every priority in the order of their turns
+	private final ArrayList<ArrayDeque<Lane>> turns = new ArrayList<ArrayDeque<Lane>>();
+	// number of frames queued in every lane
+	private int size = 0;
+	private final int highWaterMark;
+	private final Backpressure backpressure;
+	private final Executor executor;
+	private final Runnable drain;
+	// counts the bytes written and the time frames wait
+	private final Metrics metrics;
+	// bytes queued or taken but not yet written
+	private long pending = 0;
+	// bytes queued in every lane, the rest of the pending bytes are being
+	// written
+	private long queued = 0;
+	// when bytes were last written, or became pending after none were
+	private long progress = System.nanoTime();
+	// whether a drain has been handed to the executor
+	private boolean scheduled = false;
+	private boolean closed = false;
+	// the session the messages queued are kept in, null for none
+	private Session session;
+
+	// frames taken from the queue by the drain, only used by the drain
+	private final ArrayList<SharedFrame> batch = new ArrayList<SharedFrame>();
+	// frames partly written to a channel and the views being written
+	private final ArrayDeque<SharedFrame> writing = new ArrayDeque<SharedFrame>();
+	private final ArrayDeque<ByteBuffer> views = new ArrayDeque<ByteBuffer>();
+	// the views handed to a gathering write, reused between writes
+	private ByteBuffer[] gather = new ByteBuffer[16];
+	// bytes of the file region of the first frame being written transferred so
+	// far
+	private long transferred = 0;
+	// copies frames in direct buffers and file regions to a stream, created when
+	// first needed
+	private byte[] chunk;
+	// the waits of the frames taken, only used by the drain
+	private long[] waits = new long[16];
+
+	SendQueue(int highWaterMark, Backpressure backpressure, Executor executor, Runnable drain, Metrics metrics) {
+		this.highWaterMark = highWaterMark;
+		this.backpressure = backpressure;
+		this.executor = executor;
+		this.drain = drain;
+		this.metrics = metrics;
+		for (int i = 0; i < Priority.values().length; i++) {
+			turns.add(new ArrayDeque<Lane>());
+		}
+	}
+
+	/**
+	 * Queues a frame holding one reference to it and schedules a drain if none is
+	 * running
+	 * 
+	 * @return false if the queue is closed or the frame was dropped
+	 * @exception IllegalStateException
+	 *                if the queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}
+	 */
+	boolean add(SharedFrame frame) {
+		return add(frame, null, backpressure, null);
+	}
+
+	/**
+	 * Queues a frame of a channel holding one reference to it, in the channel's
+	 * lane
+	 * 
+	 * @return false if the queue is closed or the frame was dropped
+	 * @exception IllegalStateException
+	 *                if the queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}
+	 */
+	boolean add(SharedFrame frame, Channel channel) {
+		return add(frame, null, backpressure, channel);
+	}
+
+	/**
+	 * Queues a message frame holding one reference to it, and keeps the message
+	 * in the session if one is attached
+	 * 
+	 * @param frame
+	 *            the frame to write
+	 * @param message
+	 *            the message as it was encoded, before any compression, of which
+	 *            the session takes a reference of its own
+	 * @return false if the queue is closed or the frame was dropped
+	 * @exception IllegalStateException
+	 *                if the queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}
+	 */
+	boolean message(SharedFrame frame, SharedFrame message) {
+		return add(frame, message, backpressure, null);
+	}
+
+	/**
+	 * Queues a frame holding one reference to it, waiting for room whatever the
+	 * backpressure
+	 * 
+	 * @return false if the queue is closed
+	 */
+	boolean put(SharedFrame frame) {
+		return add(frame, null, Backpressure.BLOCK, null);
+	}
+
+	/**
+	 * Queues a frame holding one reference to it, waiting for room whatever the
+	 * backpressure
+	 * 
+	 * @param channel
+	 *            the channel whose lane to queue in, null for none
+	 * @return false if the queue is closed
+	 */
+	boolean put(SharedFrame frame, Channel channel) {
+		return add(frame, null, Backpressure.BLOCK, channel);
+	}
+
+	/**
+	 * Applies the backpressure ahead of queueing a message with
+	 * {@link #queue(SharedFrame, SharedFrame)}, so a sender ordering its frames
+	 * with a lock of its own waits for room before taking it<br>
+	 * Senders that made room at once may each queue one frame past the high
+	 * water mark.
+	 * 
+	 * @return false if the queue is closed or the message is to be dropped
+	 * @exception IllegalStateException
+	 *                if the queue is full and the backpressure is
+	 *                {@link Backpressure#FAIL}
+	 */
+	boolean reserve() {
+		return reserve(backpressure);
+	}
+
+	/**
+	 * Waits for room ahead of queueing a message with
+	 * {@link #queue(SharedFrame, SharedFrame)} whatever the backpressure
+	 * 
+	 * @return false if the queue is closed
+	 */
+	boolean awaitRoom() {
+		return reserve(Backpressure.BLOCK);
+	}
+
+	/**
+	 * Queues a message frame holding one reference to it without waiting, once
+	 * room has been made with {@link #reserve()} or {@link #awaitRoom()}, and
+	 * keeps the message in the session if one is attached
+	 * 
+	 * @param message
+	 *            the message as it was encoded, of which the session takes a
+	 *            reference of its own, or null to keep none
+	 * @return false if the queue is closed
+	 */
+	boolean queue(SharedFrame frame, SharedFrame message) {
+		return add(frame, message, null, null);
+	}
+
+	/**
+	 * Queues a small control frame holding one reference to it without waiting,
+	 * even past the high water mark
+	 * 
+	 * @return false if the queue is closed
+	 */
+	boolean control(SharedFrame frame) {
+		return add(frame, null, null, null);
+	}
+
+	/**
+	 * Queues a small control frame holding one reference to it without waiting,
+	 * even past the high water mark
+	 * 
+	 * @param channel
+	 *            the channel whose lane to queue in, null for none
+	 * @return false if the queue is closed
+	 */
+	boolean control(SharedFrame frame, Channel channel) {
+		return add(frame, null, null, channel);
+	}
+
+	/**
+	 * Queues the frames without waiting and keeps the messages queued after them
+	 * in the session<br>
+	 * The queue takes over the reference held of every frame.
+	 * 
+	 * @param frames
+	 *            the answer to the handshake and the messages the session has
+	 *            kept, to be sent again
+	 * @return false if the queue is closed
+	 */
+	boolean attach(Session session, List<SharedFrame> frames) {
+		long now = System.nanoTime();
+		boolean schedule;
+		lock.lock();
+		try {
+			if (closed) {
+				for (SharedFrame frame : frames) {
+					frame.release();
+				}
+				return false;
+			}
+			for (SharedFrame frame : frames) {
+				enqueue(lane, frame, now);
+			}
+			this.session = session;
+			schedule = !scheduled;
+			scheduled = true;
+		} finally {
+			lock.unlock();
+		}
+		if (schedule) {
+			executor.execute(drain);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops keeping the messages queued in the session, if it is attached
+	 */
+	void detach(Session session) {
+		lock.lock();
+		try {
+			if (this.session == session) {
+				this.session = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// apply the backpressure to the lane without a channel
+	private boolean reserve(Backpressure backpressure) {
+		lock.lock();
+		try {
+			return room(lane, backpressure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// queue the frame in the channel's lane, applying the backpressure when full,
+	// or none if null
+	private boolean add(SharedFrame frame, SharedFrame message, Backpressure backpressure, Channel channel) {
+		long now = System.nanoTime();
+		if (channel != null && channel.getPriority() == Priority.HIGH) {
+			backpressure = null;
+		}
+		boolean schedule;
+		lock.lock();
+		try {
+			Lane lane = lane(channel);
+			boolean room = false;
+			try {
+				room = room(lane, backpressure);
+			} finally {
+				if (!room) {
+					frame.release();
+				}
+			}
+			if (!room) {
+				return false;
+			}
+			enqueue(lane, frame, now);
+			if (message != null && session != null) {
+				message.retain();
+				session.sent(message);
+			}
+			schedule = !scheduled;
+			scheduled = true;
+		} finally {
+			lock.unlock();
+		}
+		if (schedule) {
+			executor.execute(drain);
+		}
+		return true;
+	}
+
+	// wait until the lane is below the high water mark, or apply the
+	// backpressure, returning false if the queue is closed or the frame is to
+	// be dropped, holding the lock
+	private boolean room(Lane lane, Backpressure backpressure) {
+		// an event loop drains its queues on its own thread, waiting there for
+		// room would never end, so the frame is queued past the high water mark
+		if (backpressure == Backpressure.BLOCK && EventLoop.onLoopThread()) {
+			backpressure = null;
+		}
+		// the lane's queued bytes and those being written
+		while (backpressure != null && !closed && lane.queued + pending - queued >= highWaterMark) {
+			if (backpressure == Backpressure.FAIL) {
+				throw new IllegalStateException("Send queue is full!");
+			} else if (backpressure == Backpressure.DROP) {
+				return false;
+			}
+			drained.awaitUninterruptibly();
+		}
+		return !closed;
+	}
+
+	// the lane of the channel, the default one for none, holding the lock
+	private Lane lane(Channel channel) {
+		if (channel == null) {
+			return lane;
+		}
+		Lane lane = lanes.get(channel.getId());
+		if (lane == null) {
+			lane = new Lane(channel.getPriority(), channel.getWeight());
+			lanes.put(channel.getId(), lane);
+		}
+		return lane;
+	}
+
+	// add the frame to the lane, which takes its turn if it was empty, holding
+	// the lock
+	private void enqueue(Lane lane, SharedFrame frame, long now) {
+		if (lane.frames.isEmpty()) {
+			turns.get(lane.priority.ordinal()).add(lane);
+		}
+		if (pending == 0) {
+			progress = now;
+		}
+		lane.add(frame, now);
+		lane.queued += frame.size();
+		size++;
+		queued += frame.size();
+		pending += frame.size();
+	}
+
+	/**
+	 * Writes every queued frame to the stream with one flush, until the queue is
+	 * empty<br>
+	 * Called by the drain of a blocking socket
+	 */
+	void drain(OutputStream out) throws IOException {
+		do {
+			take(batch);
+			long written = 0;
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					SharedFrame frame = batch.get(i);
+					write(out, frame.buffer());
+					if (frame.file() != null) {
+						transfer(out, frame);
+					}
+					written += frame.size();
+				}
+				// one flush for every frame that was queued
+				out.flush();
+			} catch (IOException e) {
+				close();
+				throw e;
+			} finally {
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).release();
+				}
+				batch.clear();
+			}
+			written(written);
+		} while (!finish());
+	}
+
+	/**
+	 * Writes the queued frames to the channel with gathering writes<br>
+	 * Called by the drain of an event loop Connection, the channel is the
+	 * socket's or its {@link SecureChannel}
+	 * 
+	 * @return true if everything was written, false if the channel is full and
+	 *         the drain must be run again once it is writable
+	 */
+	boolean drain(GatheringByteChannel channel) throws IOException {
+		while (true) {
+			if (writing.isEmpty()) {
+				take(batch);
+				if (batch.isEmpty()) {
+					if (finish()) {
+						return true;
+					}
+					continue;
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					writing.add(batch.get(i));
+					views.add(batch.get(i).view());
+				}
+				batch.clear();
+			}
+			if (gather.length < views.size()) {
+				gather = new ByteBuffer[Math.max(views.size(), gather.length * 2)];
+			}
+			// gather up to the first frame ending with a file, whose region is
+			// transferred on its own
+			int n = 0;
+			Iterator<SharedFrame> frames = writing.iterator();
+			for (ByteBuffer view : views) {
+				gather[n++] = view;
+				if (frames.next().file() != null) {
+					break;
+				}
+			}
+			long written = channel.write(gather, 0, n);
+			boolean full = gather[n - 1].hasRemaining();
+			Arrays.fill(gather, 0, n, null);
+			written(written);
+			while (!views.isEmpty() && !views.peek().hasRemaining()) {
+				if (writing.peek().file() != null && !transfer(channel, writing.peek())) {
+					return false;
+				}
+				views.poll();
+				writing.poll().release();
+			}
+			if (full) {
+				return false;
+			}
+		}
+	}
+
+	// transfer what is left of the frame's file region to the channel, returning
+	// whether all of it was
+	private boolean transfer(GatheringByteChannel channel, SharedFrame frame) throws IOException {
+		FileChannel file = frame.file();
+		long position = frame.position() + transferred;
+		long n = file.transferTo(position, frame.length() - transferred, channel);
+		transferred += n;
+		written(n);
+		if (transferred < frame.length()) {
+			if (n == 0 && position >= file.size()) {
+				throw new EOFException("File ended before the chunk of a stream!");
+			}
+			return false;
+		}
+		transferred = 0;
+		return true;
+	}
+
+	// write the frame without changing the buffer's position
+	private void write(OutputStream out, ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		// a direct buffer has to be copied out in chunks
+		if (chunk == null) {
+			chunk = new byte[8192];
+		}
+		for (int i = buffer.position(); i < buffer.limit(); i += chunk.length) {
+			int n = Math.min(chunk.length, buffer.limit() - i);
+			buffer.get(i, chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	// copy the frame's file region to the stream
+	private void transfer(OutputStream out, SharedFrame frame) throws IOException {
+		if (chunk == null) {
+			chunk = new byte[8192];
+		}
+		ByteBuffer into = ByteBuffer.wrap(chunk);
+		long position = frame.position();
+		long end = position + frame.length();
+		while (position < end) {
+			into.clear().limit((int) Math.min(chunk.length, end - position));
+			int n = frame.file().read(into, position);
+			if (n < 0) {
+				throw new EOFException("File ended before the chunk of a stream!");
+			}
+			out.write(chunk, 0, n);
+			position += n;
+		}
+	}
+
+	// move the queued frames to the list in the order they are to be written,
+	// every one while no channel is used
+	private void take(ArrayList<SharedFrame> frames) {
+		int n = 0;
+		lock.lock();
+		try {
+			long budget = lanes.isEmpty() ? Long.MAX_VALUE : BATCH_SIZE;
+			for (ArrayDeque<Lane> waiting : turns) {
+				while (budget > 0 && !waiting.isEmpty()) {
+					Lane lane = waiting.peek();
+					// a lane alone in its priority has no one to take turns with
+					boolean alone = waiting.size() == 1;
+					if (!lane.turn) {
+						lane.turn = true;
+						lane.deficit += lane.quantum;
+					}
+					while (budget > 0 && !lane.frames.isEmpty()
+							&& (alone || lane.frames.peek().size() <= lane.deficit)) {
+						if (n == waits.length) {
+							waits = Arrays.copyOf(waits, n * 2);
+						}
+						waits[n++] = lane.time();
+						SharedFrame frame = lane.frames.poll();
+						if (!alone) {
+							lane.deficit -= frame.size();
+						}
+						lane.queued -= frame.size();
+						queued -= frame.size();
+						budget -= frame.size();
+						frames.add(frame);
+					}
+					if (lane.frames.isEmpty()) {
+						waiting.poll();
+						lane.turn = false;
+						lane.deficit = 0;
+					} else if (budget > 0) {
+						// its turn is over, the next lane's begins
+						waiting.poll();
+						lane.turn = false;
+						waiting.add(lane);
+					}
+				}
+			}
+			size -= n;
+		} finally {
+			lock.unlock();
+		}
+		// record the waits without holding up the senders
+		long now = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			metrics.waited(now - waits[i]);
+		}
+	}
+
+	// release bytes that have been written so blocked senders can continue
+	private void written(long bytes) {
+		metrics.written(bytes);
+		lock.lock();
+		try {
+			if (bytes > 0) {
+				progress = System.nanoTime();
+			}
+			pending -= bytes;
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// end the drain if nothing was queued since the last take
+	private boolean finish() {
+		lock.lock();
+		try {
+			if (size == 0) {
+				scheduled = false;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards every queued frame and wakes blocked senders<br>
+	 * Frames being written by a drain are released by the drain
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			for (ArrayDeque<Lane> waiting : turns) {
+				for (Lane lane : waiting) {
+					for (SharedFrame frame : lane.frames) {
+						frame.release();
+					}
+					lane.frames.clear();
+					lane.queued = 0;
+				}
+				waiting.clear();
+			}
+			size = 0;
+			queued = 0;
+			pending = 0;
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the frames a channel drain left partly written, called from the
+	 * drain's thread once the channel has been closed
+	 */
+	void discard() {
+		while (!writing.isEmpty()) {
+			writing.poll().release();
+		}
+		views.clear();
+		transferred = 0;
+	}
+
+	/**
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @return the nanoseconds bytes have been pending without any being written,
+	 *         0 if none are pending
+	 */
+	long stalled(long now) {
+		lock.lock();
+		try {
+			return pending > 0 ? now - progress : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes queued or not yet written
+	 */
+	long pending() {
+		lock.lock();
+		try {
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The frames of one channel, or of none, and its share of the drains
+	 */
+	private static final class Lane {
+
+		final Priority priority;
+		// bytes the lane may take in a turn
+		final long quantum;
+		final ArrayDeque<SharedFrame> frames = new ArrayDeque<SharedFrame>();
+		// bytes of the frames
+		long queued = 0;
+		// the time every queued frame was added, a ring in the order of the frames
+		private long[] times = new long[16];
+		private int first = 0;
+		// bytes the lane may still take in its turn, and whether the turn has
+		// begun
+		long deficit = 0;
+		boolean turn = false;
+
+		Lane(Priority priority, int weight) {
+			this.priority = priority;
+			quantum = (long) weight * QUANTUM;
+		}
+
+		// add the frame and the time it was added
+		void add(SharedFrame frame, long now) {
+			if (frames.size() == times.length) {
+				// grow the ring, oldest first
+				long[] grown = new long[times.length * 2];
+				System.arraycopy(times, first, grown, 0, times.length - first);
+				System.arraycopy(times, 0, grown, times.length - first, first);
+				times = grown;
+				first = 0;
+			}
+			times[(first + frames.size()) & (times.length - 1)] = now;
+			frames.add(frame);
+		}
+
+		// the time the first frame was added, before it is taken
+		long time() {
+			long time = times[first];
+			first = (first + 1) & (times.length - 1);
+			return time;
+		}
+
+	}
+
+}
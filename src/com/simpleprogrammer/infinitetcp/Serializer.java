@@ -0,0 +1,42 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This interface converts the Objects sent between a Client and a Server to
+ * and from bytes<br>
+ * The Client and the Server must use the same kind of Serializer. The
+ * {@link XMLSerializer} is used unless another one is set with
+ * {@link Client#setSerializer(Serializer)} or
+ * {@link Server#setSerializer(Serializer)}.<br>
+ * One Serializer is shared by every Connection of a Server so implementations
+ * must be safe to use from many threads at once.
+ */
+public interface Serializer {
+
+	/**
+	 * Writes the specified Object to the stream
+	 * 
+	 * @param obj
+	 *            the Object to write
+	 * @param out
+	 *            the stream to write to, it holds exactly one message
+	 * @throws IOException
+	 *             if the Object can not be written
+	 */
+	public void serialize(Object obj, OutputStream out) throws IOException;
+
+	/**
+	 * Reads an Object from the stream
+	 * 
+	 * @param in
+	 *            the stream to read from, it holds exactly one message
+	 * @return the Object read
+	 * @throws IOException
+	 *             if the stream does not hold a valid Object
+	 */
+	public Object deserialize(InputStream in) throws IOException;
+
+}
@@ -1,9 +1,33 @@
 package com.simpleprogrammer.infinitetcp;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.management.ObjectName;
 
 /**
  * This class creates a TCP server in which Clients can connect to<br>
@@ -12,17 +36,101 @@ import java.util.ArrayList;
 public class Server {
 
 	private int port = -1;
-	// Create the XMLEncoder
-	private XMLSerializer serializer = new XMLSerializer();
-	private ServerSocket server;
+	// Serializer shared by every connection, XML unless another is set
+	private Serializer serializer;
+	// the listening sockets without event loops, with them the channels, one for
+	// every acceptor with SO_REUSEPORT
+	private ServerSocket[] servers;
 	// check if the server is bound to an port
 	private boolean bound = false;
 	// check if the server has started
 	private boolean started = false;
-	// list of all the listeners user has added
-	protected static ArrayList<ServerListener> listeners = new ArrayList<ServerListener>();
-	// list of all client connections
-	protected static ArrayList<Connection> connections = new ArrayList<Connection>();
+	// number of event loops, 0 runs a thread for every connection
+	private int eventLoops = 0;
+	private EventLoop[] loops;
+	private ServerSocketChannel[] channels;
+	// number of threads accepting connections
+	private int acceptors = 1;
+	// whether every acceptor listens on a socket of its own bound with
+	// SO_REUSEPORT, so the operating system spreads the connections over them
+	private boolean reusePort = false;
+	// connections the operating system queues until they are accepted
+	private int backlog = DEFAULT_BACKLOG;
+	// sets up the accepted connections without event loops, so accepting never
+	// waits on it
+	private ExecutorService setup;
+	// queued bytes per connection after which the backpressure applies
+	private int highWaterMark = SendQueue.DEFAULT_HIGH_WATER_MARK;
+	private Backpressure backpressure = Backpressure.BLOCK;
+	// creates the threads of the connections, null for the defaults
+	private ThreadFactory threadFactory;
+	// largest frame accepted from or sent to a connection
+	private int maxFrameSize = Frame.DEFAULT_MAX_FRAME_SIZE;
+	// allocator of the frames of every connection
+	private BufferAllocator allocator = PooledAllocator.DEFAULT;
+	// compression offered to the Clients, null for none
+	private volatile Compression compression;
+	// TLS of the connections, null for none
+	private volatile Security security;
+	// runs the listeners, null to run them on the threads receiving
+	private Executor dispatchExecutor;
+	// all the listeners user has added, replaced as a whole when changed so it can
+	// be iterated without locking
+	private volatile ServerListener[] listeners = new ServerListener[0];
+	// all client connections by their serial number
+	private final ConcurrentHashMap<Long, Connection> connections = new ConcurrentHashMap<Long, Connection>();
+	// serial number of the next connection
+	private final AtomicLong serials = new AtomicLong();
+	// the connections subscribed to every topic
+	final Topics topics = new Topics();
+	// counters of every connection and the histograms they record into
+	final Metrics metrics = new Metrics();
+	// name the metrics are registered by with JMX, null if they are not
+	private ObjectName mbean;
+	// how long the session of a Client which has gone is kept, null for no
+	// sessions
+	private volatile Duration sessionTimeout;
+	// most bytes of unacknowledged messages a session keeps
+	private int sessionBufferSize = DEFAULT_SESSION_BUFFER_SIZE;
+	// the sessions of the Clients by their token
+	private final ConcurrentHashMap<ByteBuffer, Session> sessions = new ConcurrentHashMap<ByteBuffer, Session>();
+	// bytes of a stream a connection buffers ahead of its reader
+	private int streamWindow = Streams.DEFAULT_WINDOW;
+	// how long a Client may be idle before it is pinged, and before its
+	// connection is given up, null for ever
+	private volatile Duration heartbeatInterval;
+	private volatile Duration readIdleTimeout;
+	// how long queued bytes may wait without being written, null for ever
+	private volatile Duration writeIdleTimeout;
+	// whether delta encoding is agreed to when a Client offers it
+	private volatile boolean deltaEncoding = false;
+	// how fast every Connection, and the Connections from one address together,
+	// may send, null for no limit
+	private volatile RateLimit connectionRateLimit;
+	private volatile RateLimit addressRateLimit;
+	// the buckets shared by the Connections from each address
+	private final ConcurrentHashMap<InetAddress, RateLimiter> addressLimiters = new ConcurrentHashMap<InetAddress, RateLimiter>();
+	// most Connections held at once, 0 for no limit
+	private volatile int maxConnections = 0;
+	// Connections accepted and not yet gone
+	private final AtomicInteger admitted = new AtomicInteger();
+	// most events received by every Connection together and not yet handed to
+	// the listeners, 0 for no limit
+	private volatile int maxInFlight = 0;
+	// events received and not yet handed to the listeners, counted by the
+	// dispatchers
+	final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * The default number of connections the operating system queues until they
+	 * are accepted
+	 */
+	public static final int DEFAULT_BACKLOG = 50;
+
+	/**
+	 * The default number of bytes of unacknowledged messages a session keeps
+	 */
+	public static final int DEFAULT_SESSION_BUFFER_SIZE = 4 * 1024 * 1024;
 
 	/**
 	 * Creates a Server bound to the specified port
@@ -63,10 +171,668 @@ public class Server {
 		this.port = port;
 	}
 
+	/**
+	 * Sets the number of event loops serving the Connections<br>
+	 * With 0 event loops, the default, every Connection is served by its own
+	 * thread. With one or more event loops every Connection is served by a
+	 * selector on one of the loops so that many thousand Connections can be held
+	 * with only a few threads.<br>
+	 * Threads can not be pinned to cores from java, a loop for each of
+	 * {@link Runtime#availableProcessors()} gives each loop a core of its own.
+	 * 
+	 * @param eventLoops
+	 *            the number of event loops
+	 * @exception IllegalArgumentException
+	 *                if the number of event loops is negative
+	 * @exception IllegalStateException
+	 *                if the Server has already started
+	 */
+	public void setEventLoops(int eventLoops) {
+		if (eventLoops < 0) {
+			throw new IllegalArgumentException("Event loops can not be negative: " + eventLoops + "!");
+		}
+		if (started) {
+			throw new IllegalStateException("Server already started!");
+		}
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * Returns the number of event loops serving the Connections
+	 * 
+	 * @return the number of event loops, 0 if every Connection has its own thread
+	 */
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	/**
+	 * Sets the number of threads accepting Connections<br>
+	 * An acceptor only accepts, the Connections are set up on their event loop
+	 * or, without event loops, on a pool of as many threads as there are
+	 * acceptors. More acceptors keep up when many Clients connect at once, such
+	 * as after a restart. They share one listening socket unless
+	 * {@link #setReusePort(boolean)} gives each its own. The calling thread of
+	 * {@link #start()} is the first acceptor, the default is 1.
+	 * 
+	 * @param acceptors
+	 *            the number of acceptors
+	 * @exception IllegalArgumentException
+	 *                if the number of acceptors is not positive
+	 * @exception IllegalStateException
+	 *                if the Server has already started
+	 */
+	public void setAcceptors(int acceptors) {
+		if (acceptors <= 0) {
+			throw new IllegalArgumentException("Acceptors must be positive: " + acceptors + "!");
+		}
+		if (started) {
+			throw new IllegalStateException("Server already started!");
+		}
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * @return the number of threads accepting Connections
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * Sets whether every acceptor listens on a socket of its own, all bound to
+	 * the port with SO_REUSEPORT<br>
+	 * The operating system then spreads the incoming connections over the
+	 * sockets, each with its own backlog, rather than the acceptors taking turns
+	 * on one. Where SO_REUSEPORT is not supported the acceptors share one socket.
+	 * By default they do.
+	 * 
+	 * @param reusePort
+	 *            whether or not to give every acceptor its own socket
+	 * @exception IllegalStateException
+	 *                if the Server has already started
+	 * @see #setAcceptors(int)
+	 */
+	public void setReusePort(boolean reusePort) {
+		if (started) {
+			throw new IllegalStateException("Server already started!");
+		}
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * @return whether or not every acceptor is to listen on a socket of its own
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	/**
+	 * Sets how many connections the operating system queues on a listening
+	 * socket until they are accepted<br>
+	 * Clients connecting while the queue is full are refused or have to send
+	 * their SYN again, a longer queue rides out bursts of connections. The
+	 * operating system may cap it, on Linux at net.core.somaxconn. Takes effect
+	 * the next time the Server is started, the default is 50.
+	 * 
+	 * @param backlog
+	 *            the length of the queue
+	 * @exception IllegalArgumentException
+	 *                if the backlog is not positive
+	 */
+	public void setBacklog(int backlog) {
+		if (backlog <= 0) {
+			throw new IllegalArgumentException("Backlog must be positive: " + backlog + "!");
+		}
+		this.backlog = backlog;
+	}
+
+	/**
+	 * @return how many connections are queued until they are accepted
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Sets how fast each Connection may send<br>
+	 * A Connection over the limit is not read from until the limit allows it
+	 * again. Applies to Connections made after the call, by default there is no
+	 * limit.
+	 * 
+	 * @param connectionRateLimit
+	 *            the limit, or null for none
+	 * @see #setAddressRateLimit(RateLimit)
+	 */
+	public void setConnectionRateLimit(RateLimit connectionRateLimit) {
+		this.connectionRateLimit = connectionRateLimit;
+	}
+
+	/**
+	 * @return how fast each Connection may send, null if it is not limited
+	 */
+	public RateLimit getConnectionRateLimit() {
+		return connectionRateLimit;
+	}
+
+	/**
+	 * Sets how fast the Connections from one address may send together<br>
+	 * A Client opening many Connections gets no more than one would, every
+	 * Connection from the address is paused while the address is over the
+	 * limit. Applies to addresses with no Connection at the time of the call, by
+	 * default there is no limit.
+	 * 
+	 * @param addressRateLimit
+	 *            the limit, or null for none
+	 * @see #setConnectionRateLimit(RateLimit)
+	 */
+	public void setAddressRateLimit(RateLimit addressRateLimit) {
+		this.addressRateLimit = addressRateLimit;
+	}
+
+	/**
+	 * @return how fast the Connections from one address may send, null if they
+	 *         are not limited
+	 */
+	public RateLimit getAddressRateLimit() {
+		return addressRateLimit;
+	}
+
+	/**
+	 * Sets how many Connections the Server holds at once<br>
+	 * Clients connecting while the Server holds that many are closed as soon as
+	 * they are accepted, without any setup. Takes effect straight away, by
+	 * default there is no limit.
+	 * 
+	 * @param maxConnections
+	 *            the number of Connections, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the number is negative
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("Max connections can not be negative: " + maxConnections + "!");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return how many Connections the Server holds at once, 0 for any number
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets how many received messages may wait for the listeners over every
+	 * Connection together<br>
+	 * While that many wait, every Connection pauses reading after its next read
+	 * until the listeners have caught up, looking again every 10 ms, so at most
+	 * a read of each Connection more is waiting. It matters
+	 * with a {@link #setDispatchExecutor(Executor)}, without one the listeners
+	 * run as the messages are read. Takes effect straight away, by default there
+	 * is no limit.
+	 * 
+	 * @param maxInFlight
+	 *            the number of messages, 0 for no limit
+	 * @exception IllegalArgumentException
+	 *                if the number is negative
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("Max in flight can not be negative: " + maxInFlight + "!");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return how many received messages may wait for the listeners, 0 for any
+	 *         number
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the {@link Serializer} used by every Connection to the Server<br>
+	 * Applies to Connections made after the call, the Clients must use the same
+	 * kind of Serializer. The shared {@link XMLSerializer#getDefault()} is used
+	 * unless this method is called.
+	 * 
+	 * @param serializer
+	 *            the Serializer to use
+	 */
+	public void setSerializer(Serializer serializer) {
+		if (serializer == null) {
+			throw new IllegalArgumentException("Serializer can not be null!");
+		}
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return the {@link Serializer} used by the Connections to the Server
+	 */
+	public Serializer getSerializer() {
+		if (serializer == null) {
+			serializer = XMLSerializer.getDefault();
+		}
+		return serializer;
+	}
+
+	/**
+	 * Sets the number of bytes that may be queued for sending to a Connection
+	 * before the {@link Backpressure} applies<br>
+	 * Applies to Connections made after the call, the default is 1 MB
+	 * 
+	 * @param highWaterMark
+	 *            the high water mark in bytes
+	 * @exception IllegalArgumentException
+	 *                if the high water mark is not positive
+	 */
+	public void setHighWaterMark(int highWaterMark) {
+		if (highWaterMark <= 0) {
+			throw new IllegalArgumentException("High water mark must be positive: " + highWaterMark + "!");
+		}
+		this.highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * Returns the number of bytes that may be queued for sending to a Connection
+	 * before the {@link Backpressure} applies
+	 * 
+	 * @return the high water mark in bytes
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Sets what a send to a Connection does when its queue has reached the high
+	 * water mark<br>
+	 * Applies to Connections made after the call, the default is
+	 * {@link Backpressure#BLOCK}
+	 * 
+	 * @param backpressure
+	 *            the backpressure to apply
+	 */
+	public void setBackpressure(Backpressure backpressure) {
+		if (backpressure == null) {
+			throw new IllegalArgumentException("Backpressure can not be null!");
+		}
+		this.backpressure = backpressure;
+	}
+
+	/**
+	 * Returns what a send to a Connection does when its queue has reached the
+	 * high water mark
+	 * 
+	 * @return the backpressure
+	 */
+	public Backpressure getBackpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * Sets the factory of the threads which receive from the Connections, run the
+	 * listeners and write the sent Objects<br>
+	 * Used when the Server runs without event loops. With a factory every burst
+	 * of sends to a Connection is written by a new thread so it is meant for
+	 * cheap threads such as virtual threads. Without one, the default, every
+	 * Connection receives on a platform thread and a bounded pool of threads
+	 * shared by every Client and Server writes. A write holds its thread until
+	 * the Client reads, so once as many Clients as the pool has threads have
+	 * stopped reading the writes to the others wait for a free thread; a
+	 * {@link #setWriteIdleTimeout(Duration) write idle timeout} closes such
+	 * Clients and frees their threads. Applies to Connections made after the
+	 * call.
+	 * 
+	 * @param threadFactory
+	 *            the factory to use, or null for the defaults
+	 * @see #useVirtualThreads()
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * @return the factory of the Connections' threads, null if the defaults are
+	 *         used
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Runs the receive loops, listeners and sends of the Connections on virtual
+	 * threads<br>
+	 * A Server without event loops then holds many thousand Connections without
+	 * a platform thread for each. Applies to Connections made after the call.
+	 * 
+	 * @exception UnsupportedOperationException
+	 *                if this version of java has no virtual threads
+	 */
+	public void useVirtualThreads() {
+		threadFactory = Threads.virtual("Connection-");
+	}
+
+	/**
+	 * Sets the largest message in bytes a Connection accepts or sends<br>
+	 * A Client sending a larger message is disconnected. Applies to Connections
+	 * made after the call, the default is 16 MB
+	 * 
+	 * @param maxFrameSize
+	 *            the largest message size in bytes
+	 * @exception IllegalArgumentException
+	 *                if the size is not positive
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("Maximum frame size must be positive: " + maxFrameSize + "!");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return the largest message in bytes a Connection accepts or sends
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Sets the {@link BufferAllocator} the messages are encoded into and read
+	 * from<br>
+	 * Applies to Connections made after the call, the default is
+	 * {@link PooledAllocator#DEFAULT}
+	 * 
+	 * @param allocator
+	 *            the allocator to use
+	 */
+	public void setAllocator(BufferAllocator allocator) {
+		if (allocator == null) {
+			throw new IllegalArgumentException("Allocator can not be null!");
+		}
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return the {@link BufferAllocator} the messages are encoded into and read
+	 *         from
+	 */
+	public BufferAllocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * Sets the executor which runs the listeners of the Connections<br>
+	 * Without one, the default, the listeners run on the thread receiving from
+	 * the Connection so a slow listener holds up reading from it, or from every
+	 * Connection of the event loop. With one the receiving threads only decode
+	 * the messages and hand them to the executor. The listeners of one
+	 * Connection still run one at a time and in the order the messages arrived,
+	 * different Connections are served in parallel. Once the listeners of a
+	 * Connection are 1024 messages behind, reading from it pauses until they
+	 * have caught up by half. Applies to Connections made after the call.
+	 * 
+	 * @param dispatchExecutor
+	 *            the executor to use, such as a fixed thread pool, or null to run
+	 *            the listeners on the receiving threads
+	 * @see ServerListener#onReceiveBatch(Connection, List)
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	/**
+	 * @return the executor which runs the listeners, null if they run on the
+	 *         receiving threads
+	 */
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Sets the compression the Server agrees to when a Client offers it in the
+	 * handshake<br>
+	 * Messages below the threshold are sent as they are. A dictionary is only
+	 * used with Clients which offer the same one. Applies to handshakes after the
+	 * call, by default there is no compression.
+	 * 
+	 * @param compression
+	 *            the settings of the compression, or null for none
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return the settings of the compression, null if there is none
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the TLS the Connections are encrypted with<br>
+	 * The Clients must have TLS set too. Applies to Connections made after the
+	 * call, by default there is no TLS.
+	 * 
+	 * @param security
+	 *            the settings of the TLS, holding the Server's certificate, or
+	 *            null for none
+	 */
+	public void setSecurity(Security security) {
+		this.security = security;
+	}
+
+	/**
+	 * @return the settings of the TLS, null if there is none
+	 */
+	public Security getSecurity() {
+		return security;
+	}
+
+	/**
+	 * Sets how long the session of a Client whose connection broke is kept<br>
+	 * With sessions, the Server keeps the messages sent to a Client with a
+	 * {@link Reconnect} until the Client acknowledges them. When the Client
+	 * reconnects within the timeout it resumes its session on the new
+	 * Connection and the messages it missed are sent again before any new one,
+	 * see {@link Connection#isResumed()}. Applies to Connections made after the
+	 * call, by default there are no sessions.
+	 * 
+	 * @param sessionTimeout
+	 *            how long a session is kept, or null for no sessions
+	 * @exception IllegalArgumentException
+	 *                if the timeout is negative
+	 */
+	public void setSessionTimeout(Duration sessionTimeout) {
+		if (sessionTimeout != null && sessionTimeout.isNegative()) {
+			throw new IllegalArgumentException("Session timeout can not be negative: " + sessionTimeout + "!");
+		}
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * @return how long the session of a Client whose connection broke is kept,
+	 *         null if there are no sessions
+	 */
+	public Duration getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Sets the number of bytes of unacknowledged messages a session keeps<br>
+	 * A session whose messages grow beyond it can not be resumed, the Client gets
+	 * a new session when it reconnects. Applies to sessions started after the
+	 * call, the default is 4 MB.
+	 * 
+	 * @param sessionBufferSize
+	 *            the number of bytes
+	 * @exception IllegalArgumentException
+	 *                if the size is not positive
+	 */
+	public void setSessionBufferSize(int sessionBufferSize) {
+		if (sessionBufferSize <= 0) {
+			throw new IllegalArgumentException("Session buffer size must be positive: " + sessionBufferSize + "!");
+		}
+		this.sessionBufferSize = sessionBufferSize;
+	}
+
+	/**
+	 * @return the number of bytes of unacknowledged messages a session keeps
+	 */
+	public int getSessionBufferSize() {
+		return sessionBufferSize;
+	}
+
+	/**
+	 * Sets the number of bytes of each stream from a Client a Connection buffers
+	 * ahead of its reader<br>
+	 * The Client waits to write more until the stream is read. A larger window
+	 * keeps a fast link busy while the reader is slow to catch up. Applies to
+	 * Connections made after the call, the default is 256 KB.
+	 * 
+	 * @param streamWindow
+	 *            the number of bytes
+	 * @exception IllegalArgumentException
+	 *                if the window is not positive
+	 * @see ServerListener#onStream(Connection, InboundStream)
+	 */
+	public void setStreamWindow(int streamWindow) {
+		if (streamWindow <= 0) {
+			throw new IllegalArgumentException("Stream window must be positive: " + streamWindow + "!");
+		}
+		this.streamWindow = streamWindow;
+	}
+
+	/**
+	 * @return the number of bytes of each stream a Connection buffers ahead of
+	 *         its reader
+	 */
+	public int getStreamWindow() {
+		return streamWindow;
+	}
+
+	/**
+	 * Sets how long nothing may arrive from a Client before it is pinged<br>
+	 * The Client answers the ping, so with a read idle timeout longer than the
+	 * interval only a dead Client or a half open connection is given up, however
+	 * quiet the Client is. The pings also keep the connection from being dropped
+	 * by a firewall. Applies to Connections made after the call, by default
+	 * there are no pings.
+	 * 
+	 * @param heartbeatInterval
+	 *            how long a Client may be idle, or null to not ping
+	 * @exception IllegalArgumentException
+	 *                if the interval is not positive
+	 * @see #setReadIdleTimeout(Duration)
+	 */
+	public void setHeartbeatInterval(Duration heartbeatInterval) {
+		Heartbeat.check("Heartbeat interval", heartbeatInterval);
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * @return how long nothing may arrive from a Client before it is pinged, null
+	 *         if it is not
+	 */
+	public Duration getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Sets how long nothing may arrive from a Client before its Connection is
+	 * closed<br>
+	 * The Connection is closed as if the Client had disconnected, calling
+	 * {@link ServerListener#onDisconnect(Connection)}, so a Client which has gone
+	 * without closing its socket does not stay among the Connections forever.
+	 * The timeouts of every Connection run on one shared timer. Applies to
+	 * Connections made after the call, by default there is none.
+	 * 
+	 * @param readIdleTimeout
+	 *            how long a Client may be idle, or null for ever
+	 * @exception IllegalArgumentException
+	 *                if the timeout is not positive
+	 * @see #setHeartbeatInterval(Duration)
+	 */
+	public void setReadIdleTimeout(Duration readIdleTimeout) {
+		Heartbeat.check("Read idle timeout", readIdleTimeout);
+		this.readIdleTimeout = readIdleTimeout;
+	}
+
+	/**
+	 * @return how long nothing may arrive from a Client before its Connection is
+	 *         closed, null if for ever
+	 */
+	public Duration getReadIdleTimeout() {
+		return readIdleTimeout;
+	}
+
+	/**
+	 * Sets how long messages may wait to be sent to a Client without any byte
+	 * being written before its Connection is closed<br>
+	 * A Client which has stopped reading, or whose connection is half open,
+	 * fills the socket's buffers and then its send queue. The Connection is
+	 * closed as if the Client had disconnected. Applies to Connections made after
+	 * the call, by default there is none.
+	 * 
+	 * @param writeIdleTimeout
+	 *            how long nothing may be written, or null for ever
+	 * @exception IllegalArgumentException
+	 *                if the timeout is not positive
+	 */
+	public void setWriteIdleTimeout(Duration writeIdleTimeout) {
+		Heartbeat.check("Write idle timeout", writeIdleTimeout);
+		this.writeIdleTimeout = writeIdleTimeout;
+	}
+
+	/**
+	 * @return how long messages may wait without any byte being written before
+	 *         the Connection is closed, null if for ever
+	 */
+	public Duration getWriteIdleTimeout() {
+		return writeIdleTimeout;
+	}
+
+	/**
+	 * Sets whether the messages of a Connection are delta encoded when its
+	 * Client offers it<br>
+	 * The first message of a class is sent whole, the next ones of the class as
+	 * the fields changed since, so state updates repeating most of their fields
+	 * cost less to serialize and to send. Each Connection remembers the last
+	 * message of every class it sent and received, and starts over after an
+	 * error or a reconnect. Only the messages sent with
+	 * {@link Connection#send(Object)} of plain classes with fields are delta
+	 * encoded, not requests, broadcasts, publications or those of a channel.
+	 * Delta encoding is not agreed to with a session, whose messages may be sent
+	 * again on another Connection. Applies to Connections made after the call,
+	 * by default it is off.
+	 * 
+	 * @param deltaEncoding
+	 *            whether or not to delta encode the messages
+	 * @see Client#setDeltaEncoding(boolean)
+	 */
+	public void setDeltaEncoding(boolean deltaEncoding) {
+		this.deltaEncoding = deltaEncoding;
+	}
+
+	/**
+	 * @return whether or not the messages are delta encoded with the Clients
+	 *         which offer it
+	 */
+	public boolean isDeltaEncoding() {
+		return deltaEncoding;
+	}
+
 	/**
 	 * Starts the Server<br>
 	 * If wanting to run other processes this should be called in a thread as it
-	 * will run infinitely until the {@link #stop()} method is invoked
+	 * will run infinitely until the {@link #stop()} method is invoked<br>
+	 * The calling thread accepts Connections, along with the other acceptors.
+	 * A Connection is set up and the listeners' onConnect called on its event
+	 * loop, or without event loops on a setup thread, so the acceptors go
+	 * straight back to accepting.
 	 * 
 	 * @exception IllegalStateException
 	 *                if the Server is not bound or has already started
@@ -84,27 +850,191 @@ public class Server {
 			throw new IllegalStateException("Server already started!");
 		}
 
+		if (eventLoops > 0) {
+			startEventLoops();
+			return;
+		}
+
 		// start the server
-		server = new ServerSocket(port);
+		servers = new ServerSocket[sockets()];
+		for (int i = 0; i < servers.length; i++) {
+			ServerSocket server = new ServerSocket();
+			if (servers.length > 1) {
+				server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			server.bind(new InetSocketAddress(i == 0 ? port : servers[0].getLocalPort()), backlog);
+			servers[i] = server;
+		}
+		setup = Executors.newFixedThreadPool(acceptors, task -> {
+			Thread thread = new Thread(task, "Setup");
+			thread.setDaemon(true);
+			return thread;
+		});
 
 		started = true;
 
-		// start listening for clients
+		// start listening for clients, the calling thread being the first acceptor
+		for (int i = 1; i < acceptors; i++) {
+			ServerSocket server = servers[i % servers.length];
+			Threads.start(null, "Accept-" + i, () -> {
+				try {
+					accept(server);
+				} catch (IOException e) {
+					if (started) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		accept(servers[0]);
+
+	}
+
+	// the number of listening sockets, one per acceptor if they can share the
+	// port
+	private int sockets() throws IOException {
+		if (!reusePort || acceptors == 1) {
+			return 1;
+		}
+		try (ServerSocket probe = new ServerSocket()) {
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) ? acceptors : 1;
+		}
+	}
+
+	// accept clients and hand them to the setup threads until stopped
+	private void accept(ServerSocket server) throws IOException {
 		while (started) {
 			Socket s = server.accept();
-			Connection conn = new Connection(s, serializer);
-			connections.add(conn);
-			for (int i = 0; i < listeners.size(); i++) {
-				listeners.get(i).onConnect(conn);
+			if (!admit()) {
+				s.close();
+				continue;
+			}
+			try {
+				setup.execute(() -> setup(s));
+			} catch (RejectedExecutionException e) {
+				// stopped while accepting
+				admitted.decrementAndGet();
+				s.close();
+			}
+		}
+	}
+
+	// set up the accepted socket as a Connection, on a setup thread
+	private void setup(Socket s) {
+		try {
+			Security security = this.security;
+			if (security != null) {
+				// the handshake is done by the connection's thread on its first read
+				s = security.layer(s, false, null, 0);
+			}
+			Connection conn = new Connection(s, this);
+			try {
+				connected(conn);
+			} finally {
+				// start receiving after the listeners know about the connection, so
+				// no frame or close comes before it
+				conn.receive();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			admitted.decrementAndGet();
+			try {
+				s.close();
+			} catch (IOException e1) {
 			}
 		}
+	}
+
+	// accept clients on channels and hand them to the event loops
+	private void startEventLoops() throws IOException {
+		loops = new EventLoop[eventLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("EventLoop-" + i);
+			loops[i].start();
+		}
+		channels = new ServerSocketChannel[sockets()];
+		for (int i = 0; i < channels.length; i++) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			if (channels.length > 1) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(new InetSocketAddress(i == 0 ? port : channels[0].socket().getLocalPort()), backlog);
+			channels[i] = channel;
+		}
+
+		started = true;
 
+		// the loops are taken in turn by every acceptor
+		AtomicInteger next = new AtomicInteger();
+		for (int i = 1; i < acceptors; i++) {
+			ServerSocketChannel channel = channels[i % channels.length];
+			Threads.start(null, "Accept-" + i, () -> {
+				try {
+					accept(channel, next);
+				} catch (IOException e) {
+					if (started) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		accept(channels[0], next);
+	}
+
+	// accept clients on the channel and hand them to the event loops until
+	// stopped
+	private void accept(ServerSocketChannel channel, AtomicInteger next) throws IOException {
+		while (started) {
+			SocketChannel s;
+			try {
+				s = channel.accept();
+			} catch (ClosedChannelException e) {
+				// the server has been stopped
+				break;
+			}
+			if (!admit()) {
+				s.close();
+				continue;
+			}
+			EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+			// set up on the loop the connection is served by
+			if (!loop.submit(() -> setup(s, loop))) {
+				// the loop has stopped with the server
+				admitted.decrementAndGet();
+				s.close();
+			}
+		}
+	}
+
+	// set up the accepted channel as a Connection, on its event loop
+	private void setup(SocketChannel s, EventLoop loop) {
+		try {
+			s.configureBlocking(false);
+			// frames are already written in batches, Nagle's algorithm only delays them
+			s.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			admitted.decrementAndGet();
+			try {
+				s.close();
+			} catch (IOException e1) {
+			}
+			return;
+		}
+		Connection conn = new Connection(s, loop, this);
+		try {
+			connected(conn);
+		} finally {
+			// start receiving after the listeners know about the connection, even
+			// if one of them failed, so it is served and its close seen
+			loop.register(conn);
+		}
 	}
 
 	/**
-	 * Starts the Server<br>
-	 * If wanting to run other processes this should be called in a thread as it
-	 * will run infinitely until the {@link #stop()} method is invoked
+	 * Stops the Server<br>
+	 * When the Server runs event loops they are stopped as well and all their
+	 * Connections are closed
 	 * 
 	 * @exception IllegalStateException
 	 *                if the Server has not started
@@ -119,23 +1049,451 @@ public class Server {
 
 		started = false;
 
-		try {
-			server.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (channels != null) {
+			for (ServerSocketChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for (int i = 0; i < loops.length; i++) {
+				loops[i].shutdown();
+			}
+			channels = null;
+			loops = null;
+		} else {
+			for (ServerSocket server : servers) {
+				try {
+					server.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			setup.shutdown();
+			servers = null;
+			setup = null;
 		}
-		server = null;
 
+		for (Session session : sessions.values()) {
+			session.release();
+		}
+		sessions.clear();
 		started = false;
 	}
 
+	// count an accepted connection, returning false if the Server holds too
+	// many
+	private boolean admit() {
+		while (true) {
+			int max = maxConnections;
+			int count = admitted.get();
+			if (max > 0 && count >= max) {
+				return false;
+			}
+			if (admitted.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	// new buckets of a Connection, null for no limit
+	RateLimiter connectionLimiter() {
+		RateLimit limit = connectionRateLimit;
+		return limit == null ? null : limit.limiter();
+	}
+
+	// the buckets shared with the other Connections from the address, null for
+	// no limit
+	RateLimiter addressLimiter(InetAddress address) {
+		RateLimit limit = addressRateLimit;
+		if (limit == null && addressLimiters.isEmpty()) {
+			return null;
+		}
+		return addressLimiters.compute(address, (a, limiter) -> {
+			if (limiter == null) {
+				limiter = limit == null ? null : limit.limiter();
+			}
+			if (limiter != null) {
+				limiter.users++;
+			}
+			return limiter;
+		});
+	}
+
+	// whether the listeners of every Connection together are too far behind
+	boolean overloaded() {
+		int max = maxInFlight;
+		return max > 0 && inFlight.get() >= max;
+	}
+
+	// register a new connection and activate the connect methods
+	private void connected(Connection conn) {
+		connections.put(conn.serial, conn);
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onConnect(conn);
+			} catch (RuntimeException e) {
+				// the other listeners still run and the connection is served
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// activate the receive methods, called by the dispatchers of the connections
+	void received(Connection conn, List<Object> objs) {
+		long start = System.nanoTime();
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onReceiveBatch(conn, objs);
+			} catch (RuntimeException e) {
+				// the other listeners and the next messages still run
+				e.printStackTrace();
+			}
+		}
+		metrics.dispatched(System.nanoTime() - start);
+	}
+
+	// activate the request methods, called by the dispatchers of the connections
+	void requested(Connection conn, Request request) {
+		long start = System.nanoTime();
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onRequest(conn, request);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		metrics.dispatched(System.nanoTime() - start);
+	}
+
+	// activate the channel receive methods, called by the dispatchers of the
+	// connections
+	void received(Connection conn, int channel, Object obj) {
+		long start = System.nanoTime();
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onReceive(conn, channel, obj);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		metrics.dispatched(System.nanoTime() - start);
+	}
+
+	// activate the stream methods, called by the dispatchers of the connections
+	void streamed(Connection conn, InboundStream stream) {
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onStream(conn, stream);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// remove a closed connection and hand the disconnect to its dispatcher once
+	void disconnected(Connection conn) {
+		topics.unsubscribeAll(conn);
+		if (connections.remove(conn.serial, conn)) {
+			admitted.decrementAndGet();
+			RateLimiter limiter = conn.addressLimiter;
+			if (limiter != null) {
+				addressLimiters.computeIfPresent(conn.getInetAddress(),
+						(address, shared) -> shared == limiter && --shared.users == 0 ? null : shared);
+			}
+			Session session = conn.session;
+			if (session != null) {
+				abandoned(session, session.detach(conn));
+			}
+			conn.dispatcher.disconnect();
+		}
+	}
+
+	// the session a Client asked for in the handshake, resumed or new, or null
+	// if the Server keeps none
+	Session session(Handshake offer, Connection conn) {
+		if (sessionTimeout == null || !offer.session) {
+			return null;
+		}
+		if (offer.token != null) {
+			Session session = sessions.get(ByteBuffer.wrap(offer.token));
+			if (session != null) {
+				Connection previous;
+				boolean resumed;
+				synchronized (session) {
+					previous = session.connection();
+					resumed = session.attach(conn, offer.received);
+				}
+				if (resumed) {
+					if (previous != null) {
+						// the Client is back before the old connection noticed it had gone
+						previous.detach(session);
+						previous.stop();
+					}
+					return session;
+				}
+				// the session can not be resumed, the Client gets a new one
+				if (sessions.remove(session.key, session)) {
+					session.release();
+				}
+			}
+		}
+		Session session = new Session(sessionBufferSize);
+		session.attach(conn, 0);
+		sessions.put(session.key, session);
+		return session;
+	}
+
+	// forget the session once the timeout passes without its Client coming back
+	private void abandoned(Session session, int generation) {
+		Duration timeout = sessionTimeout;
+		if (generation < 0) {
+			return;
+		}
+		if (timeout == null) {
+			timeout = Duration.ZERO;
+		}
+		TimingWheel.SHARED.schedule(() -> {
+			if (session.isAbandoned(generation) && sessions.remove(session.key, session)) {
+				session.release();
+			}
+		}, timeout.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	// activate the disconnect methods, called by the dispatcher after the
+	// connection's last message
+	void disconnectListeners(Connection conn) {
+		for (ServerListener listener : listeners) {
+			try {
+				listener.onDisconnect(conn);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// the serial number of the next connection
+	long nextSerial() {
+		return serials.incrementAndGet();
+	}
+
+	// whether the connection is still connected
+	boolean isConnected(Connection conn) {
+		return connections.get(conn.serial) == conn;
+	}
+
 	/**
 	 * Returns all the connections currently connected to the Server.
 	 * 
-	 * @return an ArrayList holding all the connections to the Server.
+	 * @return an unmodifiable snapshot of all the connections to the Server.
+	 */
+	public List<Connection> getConnections() {
+		return Collections.unmodifiableList(new ArrayList<Connection>(connections.values()));
+	}
+
+	/**
+	 * Returns the number of connections currently connected to the Server without
+	 * taking a snapshot of them.
+	 * 
+	 * @return the number of connections
 	 */
-	public ArrayList<Connection> getConnections() {
-		return connections;
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Takes a snapshot of the metrics of the Server<br>
+	 * The counters add up every Connection the Server has had, the histograms
+	 * hold the time taken to serialize, deserialize and dispatch the messages of
+	 * all of them and the time their messages waited to be written.
+	 * 
+	 * @return the snapshot
+	 * @see Connection#getMetrics()
+	 */
+	public MetricsSnapshot getMetrics() {
+		long queued = 0;
+		int count = 0;
+		for (Connection conn : connections.values()) {
+			queued += conn.getMetrics().getQueuedBytes();
+			count++;
+		}
+		return metrics.snapshot(count, queued);
+	}
+
+	/**
+	 * Registers a {@link MetricsMXBean} of the Server with the platform
+	 * MBeanServer<br>
+	 * It is named com.simpleprogrammer.infinitetcp:type=Server,name= followed by
+	 * the specified name and stays registered until
+	 * {@link #unregisterMBean()} is called.
+	 * 
+	 * @param name
+	 *            the name telling the Server apart from others in the JVM
+	 * @exception IllegalArgumentException
+	 *                if the name is not valid in an ObjectName
+	 * @exception IllegalStateException
+	 *                if the Server's MBean is already registered or the name
+	 *                is taken
+	 */
+	public synchronized void registerMBean(String name) {
+		if (mbean != null) {
+			throw new IllegalStateException("MBean already registered as " + mbean + "!");
+		}
+		mbean = Metrics.register("Server", name, this::getMetrics);
+	}
+
+	/**
+	 * Unregisters the MBean registered by {@link #registerMBean(String)}, if any
+	 */
+	public synchronized void unregisterMBean() {
+		if (mbean != null) {
+			Metrics.unregister(mbean);
+			mbean = null;
+		}
+	}
+
+	/**
+	 * Sends the specified Object to every Connection<br>
+	 * The Object is serialized once and the same bytes are queued for every
+	 * Connection.
+	 * 
+	 * @param obj
+	 *            the Object to send
+	 * @return the number of Connections the Object was queued for
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 */
+	public int broadcast(Object obj) {
+		return broadcast(obj, null);
+	}
+
+	/**
+	 * Sends the specified Object to every Connection accepted by the filter<br>
+	 * The Object is serialized once and the same bytes are queued for every
+	 * Connection. Connections with a Serializer of their own get the Object
+	 * serialized by it instead. The frame is compressed at most once for all the
+	 * Connections which agreed on compression. A Connection whose send queue is
+	 * full is handled according to the {@link Backpressure}, except that
+	 * {@link Backpressure#FAIL} skips the Connection instead of throwing.
+	 * 
+	 * @param obj
+	 *            the Object to send
+	 * @param filter
+	 *            the filter choosing the Connections, or null for all of them
+	 * @return the number of Connections the Object was queued for
+	 * @exception IllegalArgumentException
+	 *                if the serialized Object is larger than the maximum frame
+	 *                size
+	 */
+	public int broadcast(Object obj, Predicate<Connection> filter) {
+		Serializer serializer = getSerializer();
+		SharedFrame frame;
+		try {
+			long start = System.nanoTime();
+			frame = new SharedFrame(Frame.encode(Frame.MESSAGE, serializer, obj, maxFrameSize, allocator), 1,
+					allocator);
+			metrics.serialized(System.nanoTime() - start);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+		return send(frame, serializer, connections.values(), filter, conn -> conn.send(obj));
+	}
+
+	/**
+	 * Sends the specified Object to every Connection subscribed to a pattern
+	 * matching the topic<br>
+	 * The subscribers are looked up by the topic's levels rather than by going
+	 * through every Connection, and like {@link #broadcast(Object)} the Object
+	 * is serialized and compressed once for all of them. The Clients receive it
+	 * by {@link Listener#onPublish(String, Object)}, a Connection subscribed by
+	 * more than one matching pattern receives it once. With sessions the
+	 * publication is kept like any other message until the Client acknowledges
+	 * it.
+	 * 
+	 * @param topic
+	 *            the topic, levels separated by '/' without wildcards
+	 * @param obj
+	 *            the Object to send
+	 * @return the number of Connections the Object was queued for
+	 * @exception IllegalArgumentException
+	 *                if the topic is empty or has a wildcard, or the serialized
+	 *                Object is larger than the maximum frame size
+	 * @see Connection#subscribe(String)
+	 * @see Client#subscribe(String)
+	 */
+	public int publish(String topic, Object obj) {
+		Topics.checkTopic(topic);
+		Connection[] subscribers = topics.match(topic);
+		if (subscribers.length == 0) {
+			return 0;
+		}
+		Serializer serializer = getSerializer();
+		SharedFrame frame;
+		try {
+			long start = System.nanoTime();
+			frame = new SharedFrame(Frame.encode(Frame.PUBLISH, topic, serializer, obj, maxFrameSize, allocator), 1,
+					allocator);
+			metrics.serialized(System.nanoTime() - start);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+		return send(frame, serializer, Arrays.asList(subscribers), null, conn -> conn.publish(topic, obj));
+	}
+
+	// queue the encoded frame for the connections accepted by the filter,
+	// serialized again for those with a serializer of their own, and release it
+	private int send(SharedFrame frame, Serializer serializer, Iterable<Connection> conns,
+			Predicate<Connection> filter, Consumer<Connection> serialize) {
+		// compressed copies of the frame, without and with the dictionary
+		SharedFrame[] compressed = new SharedFrame[2];
+		int sent = 0;
+		for (Connection conn : conns) {
+			if (filter != null && !filter.test(conn)) {
+				continue;
+			}
+			try {
+				if (conn.getSerializer() != serializer) {
+					serialize.accept(conn);
+					sent++;
+					continue;
+				}
+				SharedFrame shared = frame;
+				Compressor compressor = conn.compressor;
+				if (compressor != null) {
+					int i = compressor.hasDictionary() ? 1 : 0;
+					if (compressed[i] == null) {
+						ByteBuffer buffer = compressor.compress(frame.buffer());
+						if (buffer == frame.buffer()) {
+							// not compressed, the copy is the frame itself
+							frame.retain();
+							compressed[i] = frame;
+						} else {
+							compressed[i] = new SharedFrame(buffer, 1, allocator);
+						}
+					}
+					shared = compressed[i];
+				}
+				// every queue holds a reference of its own
+				shared.retain();
+				if (conn.send(shared, frame)) {
+					sent++;
+				}
+			} catch (IllegalStateException e) {
+				// the queue is full, skip the connection
+			}
+		}
+		// release the references held while queueing
+		frame.release();
+		for (SharedFrame copy : compressed) {
+			if (copy != null) {
+				copy.release();
+			}
+		}
+		return sent;
 	}
 
 	/**
@@ -144,8 +1502,10 @@ public class Server {
 	 * @param listener
 	 *            the ServerListener to be added
 	 */
-	public void addListener(ServerListener listener) {
-		listeners.add(listener);
+	public synchronized void addListener(ServerListener listener) {
+		ServerListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+		added[listeners.length] = listener;
+		listeners = added;
 	}
 
 	/**
@@ -155,8 +1515,17 @@ public class Server {
 	 *            the ServerListener to be removed
 	 * @return whether or not the ServerListener was removed
 	 */
-	public boolean removeListener(ServerListener listener) {
-		return listeners.remove(listener);
+	public synchronized boolean removeListener(ServerListener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(listener)) {
+				ServerListener[] removed = new ServerListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				listeners = removed;
+				return true;
+			}
+		}
+		return false;
 	}
 
 }
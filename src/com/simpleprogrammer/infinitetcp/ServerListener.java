@@ -1,5 +1,7 @@
 package com.simpleprogrammer.infinitetcp;
 
+import java.util.List;
+
 /**
  * This interface defines a {@link #onDisconnect(Connection)} method, a
  * {@link #onReceive(Connection, Object)} method, and a
@@ -33,6 +35,79 @@ public interface ServerListener {
 	 */
 	public void onReceive(Connection conn, Object obj);
 
+	/**
+	 * This method is called when the Server received a message a Client sent on
+	 * a {@link Channel}, in order with the other messages of the channel<br>
+	 * By default the message is passed to {@link #onReceive(Connection, Object)}.
+	 * 
+	 * @param conn
+	 *            the Connection that the Server received the message from
+	 * @param channel
+	 *            the id of the channel
+	 * @param obj
+	 *            the Object received
+	 */
+	public default void onReceive(Connection conn, int channel, Object obj) {
+		onReceive(conn, obj);
+	}
+
+	/**
+	 * This method is called with the messages which arrived from a Client one
+	 * after another<br>
+	 * The messages decoded from one read of the socket, or queued while the
+	 * listeners of the Connection were busy, are passed together so a listener
+	 * can handle a burst at once, such as with a single write to a database. By
+	 * default {@link #onReceive(Connection, Object)} is called for every
+	 * message in order.
+	 * 
+	 * @param conn
+	 *            the Connection that the Server received the messages from
+	 * @param objs
+	 *            the messages in the order they were sent, which the listener
+	 *            may keep but must not change
+	 * @see Server#setDispatchExecutor(java.util.concurrent.Executor)
+	 */
+	public default void onReceiveBatch(Connection conn, List<Object> objs) {
+		for (Object obj : objs) {
+			onReceive(conn, obj);
+		}
+	}
+
+	/**
+	 * This method is called when the Server received a request from a Client<br>
+	 * The Client waits for {@link Request#reply(Object)} or
+	 * {@link Connection#reply(Request, Object)} to be called. By default the
+	 * request's message is passed to {@link #onReceive(Connection, Object)} and
+	 * never replied to.
+	 * 
+	 * @param conn
+	 *            the Connection that the Server received the request from
+	 * @param request
+	 *            the request received
+	 */
+	public default void onRequest(Connection conn, Request request) {
+		onReceive(conn, request.getMessage());
+	}
+
+	/**
+	 * This method is called when a Client has opened a stream with
+	 * {@link Client#openStream(Object)}, in order with the messages sent before
+	 * and after it<br>
+	 * The bytes arrive while the listener runs, it should hand the stream to a
+	 * thread of its own to read, as reading here holds up the Connection's other
+	 * messages and, without a dispatch executor, the stream itself. By default
+	 * nothing is done, a stream which is never read or closed keeps the Client
+	 * waiting once the window is full.
+	 * 
+	 * @param conn
+	 *            the Connection that the stream was opened on
+	 * @param stream
+	 *            the stream to read and close
+	 * @see Server#setStreamWindow(int)
+	 */
+	public default void onStream(Connection conn, InboundStream stream) {
+	}
+
 	/**
 	 * This method should be called when a Client disconnects from the Server<br>
 	 * It is called by the Connection class when the Client disconnects
@@ -0,0 +1,153 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages a Server has sent to one Client and the Client has not yet
+ * acknowledged, kept across Connections so a Client which reconnects can
+ * resume<br>
+ * A session is found by a random token the Client is given in the handshake.
+ * The messages sent in a session are numbered from 1 in the order they were
+ * queued, the Client acknowledges how many it has received. When the Client
+ * resumes on a new Connection the messages after its count are sent again.<br>
+ * A session whose messages take more than the buffer size can not be resumed,
+ * its messages are released and the Client is given a new session instead.
+ */
+final class Session {
+
+	// bytes of a token
+	static final int TOKEN_SIZE = 16;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	final byte[] token;
+	// the token as a key of the Server's sessions
+	final ByteBuffer key;
+	// most bytes of messages kept
+	private final int bufferSize;
+
+	// the messages not yet acknowledged, oldest first
+	private final ArrayDeque<SharedFrame> unacked = new ArrayDeque<SharedFrame>();
+	private long bytes = 0;
+	// number of messages sent and acknowledged in the session
+	private long sent = 0;
+	private long acked = 0;
+	// set once messages had to be released unacknowledged
+	private boolean overflowed = false;
+	// the Connection the session is on, null while the Client is away
+	private Connection conn;
+	// counts the Connections the session has been on, to tell stale expiries
+	private int generation = 0;
+
+	Session(int bufferSize) {
+		token = new byte[TOKEN_SIZE];
+		RANDOM.nextBytes(token);
+		key = ByteBuffer.wrap(token);
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Moves the session to the Connection of a Client which has received the
+	 * specified number of its messages
+	 *
+	 * @return false if the session can not be resumed
+	 */
+	synchronized boolean attach(Connection conn, long received) {
+		if (overflowed || received < acked || received > sent) {
+			return false;
+		}
+		this.conn = conn;
+		generation++;
+		acknowledge(received);
+		return true;
+	}
+
+	/**
+	 * Leaves the session without a Connection if it is still on the specified
+	 * one
+	 *
+	 * @return the generation the session was left in, or -1 if it has moved on
+	 */
+	synchronized int detach(Connection conn) {
+		if (this.conn != conn) {
+			return -1;
+		}
+		this.conn = null;
+		return generation;
+	}
+
+	/**
+	 * @return the Connection the session is on, null if none
+	 */
+	synchronized Connection connection() {
+		return conn;
+	}
+
+	/**
+	 * @return whether the session has had no Connection since it was left in the
+	 *         generation
+	 */
+	synchronized boolean isAbandoned(int generation) {
+		return conn == null && this.generation == generation;
+	}
+
+	/**
+	 * Keeps a message queued for the Client, taking over a reference of it
+	 */
+	synchronized void sent(SharedFrame message) {
+		if (++sent <= acked || overflowed) {
+			// already acknowledged, as the Client may be quicker than the sender
+			message.release();
+			return;
+		}
+		unacked.add(message);
+		bytes += message.size();
+		if (bytes > bufferSize) {
+			overflowed = true;
+			release();
+		}
+	}
+
+	/**
+	 * Releases the messages up to the number the Client has received
+	 */
+	synchronized void acknowledge(long received) {
+		if (received <= acked) {
+			return;
+		}
+		acked = received;
+		while (!unacked.isEmpty() && sent - unacked.size() < acked) {
+			SharedFrame message = unacked.poll();
+			bytes -= message.size();
+			message.release();
+		}
+	}
+
+	/**
+	 * @return the messages not yet acknowledged in order, with a reference of
+	 *         their own for the caller
+	 */
+	synchronized List<SharedFrame> unacknowledged() {
+		ArrayList<SharedFrame> messages = new ArrayList<SharedFrame>(unacked);
+		for (SharedFrame message : messages) {
+			message.retain();
+		}
+		return messages;
+	}
+
+	/**
+	 * Releases every message kept, when the session ends
+	 */
+	synchronized void release() {
+		for (SharedFrame message : unacked) {
+			message.release();
+		}
+		unacked.clear();
+		bytes = 0;
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * An encoded frame which may be queued for several peers at once<br>
+ * The bytes are never changed after encoding, every peer writes them from its
+ * own view. Each queue holds one reference and releases it once the frame has
+ * been written or discarded. The last release gives the buffer back to its
+ * {@link BufferAllocator}.<br>
+ * The chunk of a stream sent from a file is the header in the buffer followed
+ * by a region of the file, which is read only when the frame is written so it
+ * can be transferred to the socket without copying.
+ */
+final class SharedFrame {
+
+	// counts the references without an object of its own per frame
+	private static final AtomicIntegerFieldUpdater<SharedFrame> REFS = AtomicIntegerFieldUpdater
+			.newUpdater(SharedFrame.class, "refs");
+
+	// the whole frame, its position and limit are never changed
+	private final ByteBuffer buffer;
+	private volatile int refs;
+	// the allocator the buffer came from
+	private final BufferAllocator allocator;
+	// the region of a file written after the buffer, null for none
+	private final FileChannel file;
+	private final long position;
+	private final int length;
+	// run once the frame is released for the last time, null for nothing
+	private final Runnable released;
+
+	SharedFrame(ByteBuffer buffer, int refs, BufferAllocator allocator) {
+		this(buffer, refs, null, 0, 0, allocator, null);
+	}
+
+	/**
+	 * Creates a frame of one reference which ends with a region of the file
+	 * 
+	 * @param released
+	 *            run once the frame has been written or discarded, after which
+	 *            the file is no longer read
+	 */
+	SharedFrame(ByteBuffer header, FileChannel file, long position, int length, BufferAllocator allocator,
+			Runnable released) {
+		this(header, 1, file, position, length, allocator, released);
+	}
+
+	private SharedFrame(ByteBuffer header, int refs, FileChannel file, long position, int length,
+			BufferAllocator allocator, Runnable released) {
+		this.buffer = header;
+		this.refs = refs;
+		this.allocator = allocator;
+		this.file = file;
+		this.position = position;
+		this.length = length;
+		this.released = released;
+	}
+
+	/**
+	 * @return the frame's bytes, which must not be changed
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return a view of the bytes with a position of its own
+	 */
+	ByteBuffer view() {
+		return buffer.duplicate();
+	}
+
+	/**
+	 * @return the file the frame ends with, null if it is all in the buffer
+	 */
+	FileChannel file() {
+		return file;
+	}
+
+	/**
+	 * @return where in the file the region starts
+	 */
+	long position() {
+		return position;
+	}
+
+	/**
+	 * @return the size of the region of the file
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * @return the size of the frame in bytes
+	 */
+	int size() {
+		return buffer.remaining() + length;
+	}
+
+	void retain() {
+		REFS.incrementAndGet(this);
+	}
+
+	void release() {
+		int left = REFS.decrementAndGet(this);
+		if (left == 0) {
+			allocator.release(buffer);
+			if (released != null) {
+				released.run();
+			}
+		} else if (left < 0) {
+			throw new IllegalStateException("Frame released too often!");
+		}
+	}
+
+}
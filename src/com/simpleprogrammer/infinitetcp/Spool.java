@@ -0,0 +1,422 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A log on disk of the messages a Client sends, kept until the Server has
+ * acknowledged them<br>
+ * Set with {@link Client#setSpool(Spool)}, every message the Client sends is
+ * appended to the spool before it is queued, also while the Client is not
+ * connected. When the Client starts, every message the Server has not
+ * acknowledged is sent again before any new one, in the order they were sent.
+ * Messages are delivered at least once: the Server may receive a message again
+ * when the connection broke before its acknowledgement arrived.<br>
+ * The log is split into segment files which are memory mapped, so an append is
+ * a copy into memory and the operating system writes it out. A segment is
+ * deleted once all its messages are acknowledged. Every message is stored with
+ * a CRC32C checksum, a spool opened after a crash keeps the messages up to the
+ * first one which was not written completely. Messages written to the memory
+ * of a segment survive a crash of the process but not of the machine.<br>
+ * A directory may only be used by one spool at a time. The Server must know
+ * acknowledgements, a Server of an older version never acknowledges so the
+ * spool fills up.
+ */
+public final class Spool implements Closeable {
+
+	/**
+	 * The default size in bytes of a segment file
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default size in bytes the segment files may take up together
+	 */
+	public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+	// the start of every segment file: magic number, version and first sequence
+	private static final int MAGIC = 0x49545350;
+	private static final int VERSION = 1;
+	private static final int SEGMENT_HEADER = 16;
+	// the start of every message: frame length, checksum and sequence number
+	private static final int RECORD_HEADER = 16;
+	private static final String SUFFIX = ".spool";
+	// file holding the sequence number of the last message acknowledged
+	private static final String ACKED = "acked";
+
+	// Unsafe.invokeCleaner, null if the mappings are left to the garbage
+	// collector
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method method = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			method = type.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			unsafe = null;
+			method = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = method;
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final long maxSize;
+	// the segments oldest first
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final MappedByteBuffer ackedBuffer;
+	private final CRC32C crc = new CRC32C();
+	// sequence number of the last message acknowledged and of the next one
+	private long acked;
+	private long next;
+	// bytes of every segment file
+	private long size = 0;
+	private boolean closed = false;
+
+	/**
+	 * Opens the spool in the directory with the default sizes, creating it if it
+	 * does not exist
+	 *
+	 * @param directory
+	 *            the directory of the segment files
+	 * @throws IOException
+	 *             if the directory can not be created or read
+	 */
+	public Spool(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Opens the spool in the directory, creating it if it does not exist<br>
+	 * The messages left in it are checked and kept up to the first one which is
+	 * damaged.
+	 *
+	 * @param directory
+	 *            the directory of the segment files
+	 * @param segmentSize
+	 *            the size in bytes of a segment file, larger messages get a
+	 *            segment of their own
+	 * @param maxSize
+	 *            the size in bytes the segment files may take up together
+	 * @exception IllegalArgumentException
+	 *                if a size is not positive or the segment size is larger
+	 *                than the maximum size
+	 * @throws IOException
+	 *             if the directory can not be created or read
+	 */
+	public Spool(Path directory, int segmentSize, long maxSize) throws IOException {
+		if (segmentSize <= SEGMENT_HEADER + RECORD_HEADER) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize + "!");
+		}
+		if (maxSize < segmentSize) {
+			throw new IllegalArgumentException("Maximum size " + maxSize + " is smaller than a segment!");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+		Files.createDirectories(directory);
+		try (FileChannel channel = FileChannel.open(directory.resolve(ACKED), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ackedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		}
+		acked = ackedBuffer.getLong(0);
+		next = acked + 1;
+		recover();
+	}
+
+	// map the segments left in the directory and drop what is damaged
+	private void recover() throws IOException {
+		ArrayList<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		// the names are the zero padded first sequence numbers
+		Collections.sort(files);
+		boolean damaged = false;
+		for (Path file : files) {
+			Segment segment = damaged ? null : open(file);
+			Segment previous = segments.peekLast();
+			if (segment != null && previous != null && segment.first != previous.last + 1) {
+				unmap(segment.buffer);
+				segment = null;
+			}
+			if (segment == null) {
+				// nothing after a damaged message or a gap can be trusted
+				damaged = true;
+				Files.delete(file);
+				continue;
+			}
+			segments.add(segment);
+			size += segment.buffer.capacity();
+			damaged = segment.damaged;
+		}
+		Segment tail = segments.peekLast();
+		if (tail != null) {
+			next = Math.max(next, tail.last + 1);
+			if (tail.last + 1 != next) {
+				// the next message does not follow on in the tail, start a new one
+				tail.end = tail.buffer.capacity();
+			}
+		}
+		trim();
+	}
+
+	// map a segment file and find its end, null if it is not a segment
+	private Segment open(Path file) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() < SEGMENT_HEADER || channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			unmap(buffer);
+			return null;
+		}
+		Segment segment = new Segment(file, buffer, buffer.getLong(8));
+		int position = SEGMENT_HEADER;
+		long seq = segment.first;
+		while (position + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				break;
+			}
+			if (length < 0 || length > buffer.capacity() - position - RECORD_HEADER
+					|| buffer.getLong(position + 8) != seq || buffer.getInt(position + 4) != checksum(buffer,
+							position, length)) {
+				segment.damaged = true;
+				break;
+			}
+			position += RECORD_HEADER + length;
+			seq++;
+		}
+		segment.end = position;
+		segment.last = seq - 1;
+		// clear what a cut off append left behind so it can not be read later,
+		// only touching the pages which are not zero already
+		for (int i = position; i < buffer.capacity(); i++) {
+			if (buffer.get(i) != 0) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+		return segment;
+	}
+
+	// the checksum of a message's sequence number and frame
+	private int checksum(ByteBuffer buffer, int position, int length) {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(position + RECORD_HEADER + length).position(position + 8);
+		crc.reset();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Appends a whole frame<br>
+	 * The frame's position is left unchanged.
+	 *
+	 * @return the sequence number of the message
+	 * @exception IllegalStateException
+	 *                if the spool is full or closed
+	 */
+	synchronized long append(ByteBuffer frame) {
+		if (closed) {
+			throw new IllegalStateException("Spool is closed!");
+		}
+		int length = frame.remaining();
+		Segment tail = segments.peekLast();
+		if (tail == null || tail.end + RECORD_HEADER + length > tail.buffer.capacity()) {
+			tail = roll(RECORD_HEADER + length);
+		}
+		ByteBuffer buffer = tail.buffer;
+		int position = tail.end;
+		long seq = next;
+		buffer.putLong(position + 8, seq);
+		ByteBuffer target = buffer.duplicate();
+		target.position(position + RECORD_HEADER);
+		target.put(frame.duplicate());
+		buffer.putInt(position + 4, checksum(buffer, position, length));
+		// the length goes last, a message without one ends the segment
+		buffer.putInt(position, length);
+		tail.end = position + RECORD_HEADER + length;
+		tail.last = seq;
+		next = seq + 1;
+		return seq;
+	}
+
+	// start a new segment large enough for the message
+	private Segment roll(int needed) {
+		int capacity = Math.max(segmentSize, SEGMENT_HEADER + needed);
+		trim();
+		if (size + capacity > maxSize) {
+			throw new IllegalStateException("Spool is full!");
+		}
+		Path file = directory.resolve(String.format("%020d", next) + SUFFIX);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not create segment " + file + "!", e);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, next);
+		Segment segment = new Segment(file, buffer, next);
+		segment.end = SEGMENT_HEADER;
+		segment.last = next - 1;
+		segments.add(segment);
+		size += capacity;
+		return segment;
+	}
+
+	/**
+	 * Passes every message not yet acknowledged to the consumer in order<br>
+	 * The buffers passed are only valid during the call.
+	 *
+	 * @return the sequence number of the first message passed, or of the next
+	 *         message appended if there are none
+	 */
+	synchronized long replay(Consumer<ByteBuffer> consumer) {
+		long first = -1;
+		for (Segment segment : segments) {
+			int position = SEGMENT_HEADER;
+			for (long seq = segment.first; seq <= segment.last; seq++) {
+				int length = segment.buffer.getInt(position);
+				if (seq > acked) {
+					if (first < 0) {
+						first = seq;
+					}
+					ByteBuffer frame = segment.buffer.duplicate();
+					frame.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+					consumer.accept(frame.slice());
+				}
+				position += RECORD_HEADER + length;
+			}
+		}
+		return first < 0 ? next : first;
+	}
+
+	/**
+	 * Drops every message up to and including the sequence number
+	 */
+	synchronized void acknowledge(long seq) {
+		if (closed || seq <= acked) {
+			return;
+		}
+		acked = Math.min(seq, next - 1);
+		ackedBuffer.putLong(0, acked);
+		trim();
+	}
+
+	// delete the segments whose messages have all been acknowledged, except the
+	// one appended to
+	private void trim() {
+		while (segments.size() > 1 && segments.peekFirst().last <= acked) {
+			Segment segment = segments.pollFirst();
+			size -= segment.buffer.capacity();
+			unmap(segment.buffer);
+			try {
+				Files.delete(segment.file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages which have not been acknowledged
+	 */
+	public synchronized long getMessageCount() {
+		long first = segments.isEmpty() ? next : segments.peekFirst().first;
+		return next - Math.max(first, acked + 1);
+	}
+
+	/**
+	 * @return the number of bytes the segment files take up
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the directory of the segment files
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Unmaps the segment files, the messages stay on disk for the next time the
+	 * directory is opened
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			unmap(segment.buffer);
+		}
+		segments.clear();
+		ackedBuffer.force();
+		unmap(ackedBuffer);
+	}
+
+	// free the mapping now instead of when it is garbage collected
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER != null) {
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} catch (ReflectiveOperationException e) {
+			}
+		}
+	}
+
+	// one segment file
+	private static final class Segment {
+
+		private final Path file;
+		private final MappedByteBuffer buffer;
+		// sequence numbers of the first message and the last one appended
+		private final long first;
+		private long last;
+		// where the next message is appended
+		private int end;
+		// whether a message was found damaged when the segment was opened
+		private boolean damaged = false;
+
+		Segment(Path file, MappedByteBuffer buffer, long first) {
+			this.file = file;
+			this.buffer = buffer;
+			this.first = first;
+		}
+
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The streams open on one connection, those written to the peer and those read
+ * from it<br>
+ * The bytes of a stream are sent as chunks of at most {@link #CHUNK_SIZE}
+ * bytes, queued between the other frames so a large transfer does not hold up
+ * the messages sent meanwhile. The reader grants the writer a window of bytes
+ * when the stream opens and grants more as it reads, so no more than the window
+ * of a stream is ever buffered by the receiver, however slow its reader.<br>
+ * When the connection closes every stream still open on it fails.
+ */
+final class Streams {
+
+	/**
+	 * The default number of bytes of a stream the receiver buffers
+	 */
+	static final int DEFAULT_WINDOW = 256 * 1024;
+
+	// most bytes of one chunk, so chunks fit any reasonable maximum frame size
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	private final SendQueue queue;
+	private final BufferAllocator allocator;
+	// largest chunk sent
+	private final int chunkSize;
+	// bytes granted to each stream of the peer
+	private final int window;
+	private final ConcurrentHashMap<Integer, OutboundStream> outbound = new ConcurrentHashMap<Integer, OutboundStream>();
+	private final ConcurrentHashMap<Integer, InboundStream> inbound = new ConcurrentHashMap<Integer, InboundStream>();
+	// the id of the last stream opened
+	private final AtomicInteger ids = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	Streams(SendQueue queue, int window, int maxFrameSize, BufferAllocator allocator) {
+		this.queue = queue;
+		this.window = window;
+		this.allocator = allocator;
+		// room for the id in front of the bytes
+		chunkSize = Math.max(1, Math.min(CHUNK_SIZE, maxFrameSize - 5));
+	}
+
+	/**
+	 * Opens a stream to the peer, sending the metadata
+	 * 
+	 * @param channel
+	 *            the channel the chunks are sent on, null for none
+	 * @exception IOException
+	 *                if the connection is closed
+	 * @exception IllegalArgumentException
+	 *                if the serialized metadata is larger than the maximum frame
+	 *                size
+	 */
+	OutboundStream open(Serializer serializer, Object metadata, int maxFrameSize, Channel channel)
+			throws IOException {
+		int id = ids.incrementAndGet();
+		ByteBuffer frame = Frame.encode(Frame.STREAM, id, serializer, metadata, maxFrameSize, allocator);
+		OutboundStream stream = new OutboundStream(this, id, chunkSize, channel, allocator);
+		outbound.put(id, stream);
+		if (closed || !queue.put(new SharedFrame(frame, 1, allocator), channel)) {
+			outbound.remove(id);
+			throw new IOException("Connection closed!");
+		}
+		return stream;
+	}
+
+	/**
+	 * Accepts a stream the peer has opened and grants it the window
+	 * 
+	 * @return the stream to hand to the listeners
+	 */
+	InboundStream opened(int id, Object metadata) {
+		InboundStream stream = new InboundStream(this, id, metadata, window, allocator);
+		inbound.put(id, stream);
+		if (closed) {
+			stream.fail("Connection closed!");
+		}
+		control(Frame.CREDIT, id, window);
+		return stream;
+	}
+
+	/**
+	 * Refuses a stream whose metadata could not be read
+	 */
+	void refuse(int id) {
+		control(Frame.CANCEL, id, -1);
+	}
+
+	/**
+	 * Handles a chunk, credit, end or cancel received
+	 */
+	void onFrame(int type, ByteBuffer payload) throws IOException {
+		int id = Frame.readVarInt(payload);
+		switch (type) {
+		case Frame.CHUNK:
+			InboundStream stream = inbound.get(id);
+			// chunks of a stream cancelled are still on their way
+			if (stream != null) {
+				stream.chunk(payload);
+			}
+			break;
+		case Frame.CREDIT:
+			int granted = Frame.readVarInt(payload);
+			OutboundStream writer = outbound.get(id);
+			if (writer != null) {
+				writer.credit(granted);
+			}
+			break;
+		case Frame.END:
+			boolean aborted = payload.hasRemaining() && payload.get() != 0;
+			InboundStream ended = inbound.remove(id);
+			if (ended != null) {
+				ended.end(aborted);
+			}
+			break;
+		case Frame.CANCEL:
+			OutboundStream cancelled = outbound.remove(id);
+			if (cancelled != null) {
+				cancelled.fail("Stream cancelled by the receiver!");
+			}
+			break;
+		default:
+		}
+	}
+
+	/**
+	 * Queues a chunk on the stream's channel, waiting for room in the queue
+	 * 
+	 * @return false if the connection is closed
+	 */
+	boolean put(SharedFrame chunk, Channel channel) {
+		return queue.put(chunk, channel);
+	}
+
+	/**
+	 * Queues the end of a stream written after its chunks and forgets it
+	 */
+	void end(OutboundStream stream, int id, boolean aborted, Channel channel) {
+		outbound.remove(id, stream);
+		queue.control(new SharedFrame(Frame.stream(Frame.END, id, aborted ? 1 : 0, allocator), 1, allocator),
+				channel);
+	}
+
+	/**
+	 * Grants the writer of a stream read more bytes
+	 */
+	void credit(int id, int bytes) {
+		control(Frame.CREDIT, id, bytes);
+	}
+
+	/**
+	 * Tells the writer of a stream read to stop and forgets the stream
+	 */
+	void cancel(InboundStream stream, int id) {
+		if (inbound.remove(id, stream)) {
+			control(Frame.CANCEL, id, -1);
+		}
+	}
+
+	// queue a frame of a stream without waiting
+	private void control(int type, int id, int value) {
+		queue.control(new SharedFrame(Frame.stream(type, id, value, allocator), 1, allocator));
+	}
+
+	/**
+	 * Fails every stream still open, once the connection is closed
+	 */
+	void close() {
+		closed = true;
+		// a stream opened meanwhile sees closed set once it is in the map
+		for (Integer id : outbound.keySet()) {
+			OutboundStream stream = outbound.remove(id);
+			if (stream != null) {
+				stream.fail("Connection closed!");
+			}
+		}
+		for (Integer id : inbound.keySet()) {
+			InboundStream stream = inbound.remove(id);
+			if (stream != null) {
+				stream.fail("Connection closed!");
+			}
+		}
+	}
+
+}
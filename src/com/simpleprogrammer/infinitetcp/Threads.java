@@ -0,0 +1,118 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads a Client or Server runs its receive loops, listeners and
+ * sends on<br>
+ * Virtual threads are looked up by reflection so the library still runs on
+ * versions of java without them.
+ */
+final class Threads {
+
+	// Thread.ofVirtual() and Thread.isVirtual(), null before java 21
+	private static final Method OF_VIRTUAL;
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method method = null;
+		Method is = null;
+		try {
+			method = Thread.class.getMethod("ofVirtual");
+			is = Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+		}
+		OF_VIRTUAL = method;
+		IS_VIRTUAL = is;
+	}
+
+	private Threads() {
+	}
+
+	/**
+	 * @return whether this version of java has virtual threads
+	 */
+	static boolean virtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return whether the thread is a virtual thread
+	 */
+	static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a factory of virtual threads named after the specified prefix
+	 * 
+	 * @exception UnsupportedOperationException
+	 *                if this version of java has no virtual threads
+	 */
+	static ThreadFactory virtual(String prefix) {
+		if (OF_VIRTUAL == null) {
+			throw new UnsupportedOperationException(
+					"Virtual threads need java 21 or newer, running " + System.getProperty("java.version") + "!");
+		}
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> type = Class.forName("java.lang.Thread$Builder");
+			builder = type.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) type.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads could not be created!", e);
+		}
+	}
+
+	/**
+	 * Starts a thread running the task, from the factory if there is one
+	 */
+	static Thread start(ThreadFactory factory, String name, Runnable task) {
+		Thread thread;
+		if (factory == null) {
+			thread = new Thread(task, name);
+		} else {
+			thread = factory.newThread(task);
+		}
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Returns the executor completing the futures of requests that timed out,
+	 * so their callbacks never hold up the shared timer<br>
+	 * With a factory every completion gets a thread of its own, without one
+	 * the common pool is used.
+	 */
+	static Executor completions(ThreadFactory factory) {
+		if (factory == null) {
+			return ForkJoinPool.commonPool();
+		}
+		return task -> factory.newThread(task).start();
+	}
+
+	/**
+	 * Returns the executor running the drains of blocking send queues<br>
+	 * With a factory every drain gets a thread of its own, which is cheap for
+	 * virtual threads. Without one the drains share the bounded writer pool,
+	 * in which a drain waits its turn once as many peers as there are writers
+	 * have stopped reading.
+	 */
+	static Executor writers(ThreadFactory factory) {
+		if (factory == null) {
+			return SendQueue.WRITERS;
+		}
+		return task -> factory.newThread(task).start();
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel running many timeouts on one thread<br>
+ * Timeouts are put in the bucket of the tick they expire on, so scheduling and
+ * cancelling cost the same however many timeouts are pending. Timeouts fire up
+ * to one tick late.
+ */
+final class TimingWheel implements Runnable {
+
+	/**
+	 * The wheel shared by every Client and Server
+	 */
+	static final TimingWheel SHARED = new TimingWheel(10, 512);
+
+	/**
+	 * A scheduled task which can be cancelled
+	 */
+	static final class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		// whole turns of the wheel left before the timeout expires
+		private long rounds;
+		private volatile boolean cancelled = false;
+		// links of the bucket the timeout is in
+		private Timeout next, prev;
+		private Bucket bucket;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running if it has not run yet
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+	// a doubly linked list of timeouts, only touched by the wheel's thread
+	private static final class Bucket {
+
+		private Timeout head, tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.next = timeout.prev = null;
+			timeout.bucket = null;
+		}
+
+		// run the expired timeouts and count down the others
+		void expire(long now) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.cancelled) {
+					remove(timeout);
+				} else if (timeout.rounds <= 0 && timeout.deadline <= now) {
+					remove(timeout);
+					try {
+						timeout.task.run();
+					} catch (Throwable t) {
+						// the other timeouts of every Client and Server still run
+						t.printStackTrace();
+					}
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+	}
+
+	private final long tick;
+	private final Bucket[] wheel;
+	private final int mask;
+	// timeouts scheduled since the last tick
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final long start = System.nanoTime();
+	private long ticks = 0;
+	private Thread thread;
+
+	TimingWheel(long tickMillis, int size) {
+		if (Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Wheel size must be a power of two: " + size + "!");
+		}
+		tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Runs the task once the delay has passed
+	 * 
+	 * @return the timeout which can cancel the task
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(Math.max(0, delay)));
+		added.add(timeout);
+		return timeout;
+	}
+
+	// start the thread the first time a timeout is scheduled
+	private synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "Timer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			long deadline = tick * (ticks + 1);
+			long sleep = deadline - (System.nanoTime() - start);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			// put the new timeouts in the bucket of the tick they expire on
+			Timeout timeout;
+			while ((timeout = added.poll()) != null) {
+				if (timeout.cancelled) {
+					continue;
+				}
+				long expiry = Math.max(ticks, timeout.deadline / tick);
+				timeout.rounds = (expiry - ticks) / wheel.length;
+				wheel[(int) (expiry & mask)].add(timeout);
+			}
+
+			wheel[(int) (ticks & mask)].expire(System.nanoTime() - start);
+			ticks++;
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package com.simpleprogrammer.infinitetcp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscriptions of the Connections of a Server, indexed by topic<br>
+ * A topic is a name of levels separated by '/', such as "prices/nyse/ACME". A
+ * pattern matches topics level by level, a "+" level matching any one level
+ * and a "#" as the last level matching any number of levels, even none: both
+ * "prices/+/ACME" and "prices/#" match the topic above.<br>
+ * Patterns without wildcards are kept in a map by topic, the others in a tree
+ * of their levels, so finding the subscribers of a topic costs the number of
+ * its levels rather than the number of Connections. The subscribers of a
+ * pattern are an array replaced on every change, publishing reads them without
+ * locking.
+ */
+final class Topics {
+
+	private static final Connection[] NONE = new Connection[0];
+
+	// the subscribers of every pattern without wildcards
+	private final ConcurrentHashMap<String, Connection[]> exact = new ConcurrentHashMap<String, Connection[]>();
+	// the patterns with wildcards by their levels, changed holding its lock
+	private final Node root = new Node();
+	// number of subscriptions to patterns with wildcards, the tree is skipped
+	// while there are none
+	private volatile int wildcards = 0;
+
+	/**
+	 * Checks a topic to be published to
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the topic is null, empty or has a wildcard
+	 */
+	static void checkTopic(String topic) {
+		if (topic == null || topic.isEmpty()) {
+			throw new IllegalArgumentException("Topic can not be null or empty!");
+		}
+		if (topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0) {
+			throw new IllegalArgumentException("Topic can not have wildcards: " + topic + "!");
+		}
+	}
+
+	/**
+	 * Checks a pattern to be subscribed to
+	 *
+	 * @exception IllegalArgumentException
+	 *                if the pattern is null or empty, or a wildcard is not a level
+	 *                of its own or "#" not the last level
+	 */
+	static void checkPattern(String pattern) {
+		if (pattern == null || pattern.isEmpty()) {
+			throw new IllegalArgumentException("Topic pattern can not be null or empty!");
+		}
+		for (int start = 0; start <= pattern.length();) {
+			int end = end(pattern, start);
+			String level = pattern.substring(start, end);
+			boolean wildcard = level.equals("+") || level.equals("#");
+			if ((!wildcard && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0))
+					|| (level.equals("#") && end != pattern.length())) {
+				throw new IllegalArgumentException("Invalid topic pattern: " + pattern + "!");
+			}
+			start = end + 1;
+		}
+	}
+
+	// whether the checked pattern has a wildcard
+	private static boolean isWildcard(String pattern) {
+		return pattern.indexOf('+') >= 0 || pattern.indexOf('#') >= 0;
+	}
+
+	// the end of the level starting at the index
+	private static int end(String topic, int start) {
+		int end = topic.indexOf('/', start);
+		return end < 0 ? topic.length() : end;
+	}
+
+	/**
+	 * Subscribes the Connection to the checked pattern
+	 *
+	 * @return false if it already was or has gone
+	 */
+	boolean subscribe(Connection conn, String pattern) {
+		// the Connection's set and the index change together
+		synchronized (conn.subscriptions) {
+			if (conn.unsubscribed || !conn.subscriptions.add(pattern)) {
+				return false;
+			}
+			if (!isWildcard(pattern)) {
+				exact.compute(pattern, (topic, subscribers) -> add(subscribers, conn));
+				return true;
+			}
+			synchronized (root) {
+				Node node = root;
+				for (int start = 0; start <= pattern.length();) {
+					int end = end(pattern, start);
+					String level = pattern.substring(start, end);
+					if (level.equals("#")) {
+						node.rest = add(node.rest, conn);
+						wildcards++;
+						return true;
+					}
+					node = node.children.computeIfAbsent(level, l -> new Node());
+					start = end + 1;
+				}
+				node.here = add(node.here, conn);
+				wildcards++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Unsubscribes the Connection from the pattern
+	 *
+	 * @return false if it was not subscribed
+	 */
+	boolean unsubscribe(Connection conn, String pattern) {
+		synchronized (conn.subscriptions) {
+			if (!conn.subscriptions.remove(pattern)) {
+				return false;
+			}
+			if (!isWildcard(pattern)) {
+				exact.computeIfPresent(pattern, (topic, subscribers) -> remove(subscribers, conn));
+				return true;
+			}
+			synchronized (root) {
+				remove(root, pattern, 0, conn);
+				wildcards--;
+			}
+			return true;
+		}
+	}
+
+	// remove the Connection from the pattern's levels from the index on,
+	// returning whether the node is left empty, holding the lock
+	private static boolean remove(Node node, String pattern, int start, Connection conn) {
+		if (start > pattern.length()) {
+			node.here = remove(node.here, conn);
+		} else {
+			int end = end(pattern, start);
+			String level = pattern.substring(start, end);
+			if (level.equals("#")) {
+				node.rest = remove(node.rest, conn);
+			} else {
+				Node child = node.children.get(level);
+				if (child != null && remove(child, pattern, end + 1, conn)) {
+					node.children.remove(level);
+				}
+			}
+		}
+		return node.here == null && node.rest == null && node.children.isEmpty();
+	}
+
+	/**
+	 * Unsubscribes a closed Connection from every pattern, it can not subscribe
+	 * again
+	 */
+	void unsubscribeAll(Connection conn) {
+		synchronized (conn.subscriptions) {
+			conn.unsubscribed = true;
+			for (String pattern : conn.subscriptions.toArray(new String[0])) {
+				unsubscribe(conn, pattern);
+			}
+		}
+	}
+
+	/**
+	 * Finds the Connections subscribed to a pattern matching the topic
+	 *
+	 * @return every subscriber once, an array which must not be changed
+	 */
+	Connection[] match(String topic) {
+		Connection[] subscribers = exact.get(topic);
+		if (wildcards == 0) {
+			return subscribers == null ? NONE : subscribers;
+		}
+		Matches matches = new Matches();
+		matches.add(subscribers);
+		match(root, topic, 0, matches);
+		return matches.get();
+	}
+
+	// collect the subscribers of the patterns matching the topic's levels from
+	// the index on
+	private static void match(Node node, String topic, int start, Matches matches) {
+		// "#" matches the rest, even no level
+		matches.add(node.rest);
+		if (start > topic.length()) {
+			matches.add(node.here);
+			return;
+		}
+		int end = end(topic, start);
+		Node child = node.children.get(topic.substring(start, end));
+		if (child != null) {
+			match(child, topic, end + 1, matches);
+		}
+		Node any = node.children.get("+");
+		if (any != null) {
+			match(any, topic, end + 1, matches);
+		}
+	}
+
+	/**
+	 * @return the number of subscriptions of every Connection
+	 */
+	int size() {
+		int size = wildcards;
+		for (Connection[] subscribers : exact.values()) {
+			size += subscribers.length;
+		}
+		return size;
+	}
+
+	// a copy of the subscribers with the Connection added, null for none
+	private static Connection[] add(Connection[] subscribers, Connection conn) {
+		if (subscribers == null) {
+			return new Connection[] { conn };
+		}
+		Connection[] added = Arrays.copyOf(subscribers, subscribers.length + 1);
+		added[subscribers.length] = conn;
+		return added;
+	}
+
+	// a copy of the subscribers without the Connection, null if none are left
+	private static Connection[] remove(Connection[] subscribers, Connection conn) {
+		if (subscribers == null) {
+			return null;
+		}
+		for (int i = 0; i < subscribers.length; i++) {
+			if (subscribers[i] == conn) {
+				if (subscribers.length == 1) {
+					return null;
+				}
+				Connection[] removed = new Connection[subscribers.length - 1];
+				System.arraycopy(subscribers, 0, removed, 0, i);
+				System.arraycopy(subscribers, i + 1, removed, i, removed.length - i);
+				return removed;
+			}
+		}
+		return subscribers;
+	}
+
+	/**
+	 * A level of the patterns with wildcards
+	 */
+	private static final class Node {
+
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+		// subscribers of the patterns ending here, and of those ending with "#"
+		// after here, null for none
+		volatile Connection[] here;
+		volatile Connection[] rest;
+
+	}
+
+	/**
+	 * The subscribers of the patterns matching one topic, each once
+	 */
+	private static final class Matches {
+
+		private Connection[] first;
+		// every subscriber once there are more patterns than the first
+		private Set<Connection> all;
+
+		void add(Connection[] subscribers) {
+			if (subscribers == null) {
+				return;
+			}
+			if (first == null) {
+				first = subscribers;
+				return;
+			}
+			if (all == null) {
+				all = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+				Collections.addAll(all, first);
+			}
+			Collections.addAll(all, subscribers);
+		}
+
+		Connection[] get() {
+			if (all != null) {
+				return all.toArray(NONE);
+			}
+			return first == null ? NONE : first;
+		}
+
+	}
+
+}
@@ -1,30 +1,134 @@
 package com.simpleprogrammer.infinitetcp;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 import com.thoughtworks.xstream.security.AnyTypePermission;
 
 /**
  * This class creates an com.thoughtworks.xstream.XStream to encode and decode
  * objects to and from XML<br>
- * It is used in both the Server and CLient as the main way to communicate<br>
+ * It is used in both the Server and CLient as the main way to communicate
+ * unless another {@link Serializer} is set<br>
+ * Creating an XStream takes several milliseconds, so every Client and Server
+ * without a Serializer of its own shares the instance returned by
+ * {@link #getDefault()}. Known message classes can be registered with
+ * {@link #register(String, Class)} so they are written with short tags and
+ * without looking up their fields for every message. Both peers must register
+ * the same aliases.<br>
+ * The methods which configure an instance must be called before it is used to
+ * send or receive, from one thread. After that an instance is safe to share
+ * between any number of threads.<br>
  * <a href="http://x-stream.github.io/download.html">link</a> to download
  * XStream
  */
-public class XMLSerializer {
+public class XMLSerializer implements Serializer {
 
 	private XStream xStream;
+	// whether the configuring methods throw, true for the shared instance
+	private final boolean locked;
 
 	/**
 	 * Constructs an {@code XStream} to use for XML encoding and decoding
 	 */
 	public XMLSerializer() {
+		this(false);
+	}
+
+	private XMLSerializer(boolean locked) {
 		xStream = new XStream(new StaxDriver());
 		XStream.setupDefaultSecurity(xStream);
 		xStream.addPermission(AnyTypePermission.ANY);
+		this.locked = locked;
+	}
+
+	// creates the shared instance the first time it is needed
+	private static final class Holder {
+		private static final XMLSerializer DEFAULT = new XMLSerializer(true);
+	}
+
+	/**
+	 * Returns the instance shared by every Client and Server which has no
+	 * Serializer set<br>
+	 * It is created on the first call, after that it is returned straight away.
+	 * It has no aliases and can not be configured, create an instance of your
+	 * own to register classes.
+	 * 
+	 * @return the shared instance
+	 */
+	public static XMLSerializer getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	/**
+	 * Writes the class with the specified tag instead of its full name
+	 * 
+	 * @param name
+	 *            the tag to write
+	 * @param type
+	 *            the class to write with the tag
+	 * @exception IllegalStateException
+	 *                if this is the shared instance
+	 */
+	public synchronized void alias(String name, Class<?> type) {
+		checkLocked();
+		xStream.alias(name, type);
+	}
+
+	/**
+	 * Writes the class with the specified tag and converts it with a converter
+	 * made for it<br>
+	 * The fields of the class are looked up once now instead of for every
+	 * message, and read and written through method handles. The XML is the same
+	 * as without registering the class other than its tag, except that elements
+	 * of fields the class does not have are skipped. Registering is meant for
+	 * the classes sent most often, such as small messages and events.
+	 * 
+	 * @param name
+	 *            the tag to write
+	 * @param type
+	 *            the class to register
+	 * @exception IllegalArgumentException
+	 *                if the class is not a concrete top level or static nested
+	 *                class, or its fields can not be accessed
+	 * @exception IllegalStateException
+	 *                if this is the shared instance
+	 */
+	public synchronized void register(String name, Class<?> type) {
+		checkLocked();
+		CompiledConverter converter = new CompiledConverter(type, xStream.getMapper(),
+				xStream.getReflectionProvider());
+		xStream.alias(name, type);
+		xStream.registerConverter(converter);
+	}
+
+	/**
+	 * Adds an XStream converter, used before the built in ones for the classes
+	 * it converts
+	 * 
+	 * @param converter
+	 *            the converter to add
+	 * @exception IllegalStateException
+	 *                if this is the shared instance
+	 */
+	public synchronized void registerConverter(Converter converter) {
+		checkLocked();
+		if (converter == null) {
+			throw new IllegalArgumentException("Converter can not be null!");
+		}
+		xStream.registerConverter(converter);
+	}
+
+	// throws if this is the shared instance
+	private void checkLocked() {
+		if (locked) {
+			throw new IllegalStateException("The shared XMLSerializer can not be configured!");
+		}
 	}
 
 	/**
@@ -49,4 +153,37 @@ public class XMLSerializer {
 		return xStream.fromXML(str);
 	}
 
+	/**
+	 * Writes the specified Object to the stream as XML
+	 * 
+	 * @param obj
+	 *            the Object to be encoded to XML
+	 * @param out
+	 *            the stream to write the XML to
+	 */
+	@Override
+	public void serialize(Object obj, OutputStream out) throws IOException {
+		try {
+			xStream.toXML(obj, out);
+		} catch (XStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads an Object from the XML in the stream
+	 * 
+	 * @param in
+	 *            the stream holding the XML
+	 * @return the decoded Object
+	 */
+	@Override
+	public Object deserialize(InputStream in) throws IOException {
+		try {
+			return xStream.fromXML(in);
+		} catch (XStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
 }